@@ -33,6 +33,9 @@ public final class BinaryEncodingKeys {
     public static final BinaryEncodedString STATE_KEY_PIECES = new BinaryEncodedString("pieces");
     public static final BinaryEncodedString STATE_KEY_LABEL = new BinaryEncodedString("label");
     public static final BinaryEncodedString STATE_KEY_PEERS = new BinaryEncodedString("peers");
+    public static final BinaryEncodedString STATE_KEY_SUPER_SEEDING = new BinaryEncodedString("super seeding");
+    public static final BinaryEncodedString STATE_KEY_STREAMING = new BinaryEncodedString("streaming");
+    public static final BinaryEncodedString STATE_KEY_PARTIAL_PIECES = new BinaryEncodedString("partial pieces");
 
     //TRACKER SCRAPE RESPONSE KEYS
     public static final BinaryEncodedString KEY_DOWNLOADED =  new BinaryEncodedString("downloaded");
@@ -67,6 +70,7 @@ public final class BinaryEncodingKeys {
     public static final BinaryEncodedString KEY_PATH =  new BinaryEncodedString("path");
     public static final BinaryEncodedString KEY_INFO =  new BinaryEncodedString("info");
     public static final BinaryEncodedString KEY_NAME =  new BinaryEncodedString("name");
+    public static final BinaryEncodedString KEY_URL_LIST =  new BinaryEncodedString("url-list");
 
     //CUSTOM PROPERTY KEYS
     public static final BinaryEncodedString KEY_INFO_HASH = new BinaryEncodedString("jfxInfoHash");
@@ -64,6 +64,7 @@ public class TorrentView {
     private final IntegerProperty hashFailures = new SimpleIntegerProperty(0);
     private final LongProperty downloadedBytes = new SimpleLongProperty(0);
     private final LongProperty wastedBytes = new SimpleLongProperty();
+    private final LongProperty timeToFirstPiece = new SimpleLongProperty();
 
     private long elapsedTime;
     private long downloadSpeed;
@@ -247,6 +248,17 @@ public class TorrentView {
         return wastedBytes.get();
     }
 
+    /**
+     * @return Time (in millis) it took to obtain the first piece of this torrent, or 0 if not known
+     */
+    public LongProperty timeToFirstPieceProperty() {
+        return timeToFirstPiece;
+    }
+
+    public long getTimeToFirstPiece() {
+        return timeToFirstPiece.get();
+    }
+
     public IntegerProperty hashFailuresProperty() {
         return hashFailures;
     }
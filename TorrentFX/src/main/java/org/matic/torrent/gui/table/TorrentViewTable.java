@@ -31,6 +31,10 @@ import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
 import javafx.collections.transformation.SortedList;
 import javafx.geometry.Insets;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
@@ -43,6 +47,8 @@ import javafx.scene.control.TableColumn.CellDataFeatures;
 import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
 import javafx.scene.control.ToggleGroup;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.text.Text;
@@ -52,13 +58,17 @@ import org.matic.torrent.gui.model.TorrentView;
 import org.matic.torrent.hash.InfoHash;
 import org.matic.torrent.preferences.CssProperties;
 import org.matic.torrent.preferences.GuiProperties;
+import org.matic.torrent.queue.QueuedFileMetaData;
 import org.matic.torrent.queue.QueuedTorrentController;
 import org.matic.torrent.queue.enums.PriorityChange;
 import org.matic.torrent.queue.enums.QueueType;
 import org.matic.torrent.queue.enums.TorrentStatus;
 import org.matic.torrent.utils.UnitConverter;
 
+import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
@@ -107,12 +117,14 @@ public final class TorrentViewTable {
     private final MenuItem pauseMenuItem = new MenuItem("_Pause");
     private final MenuItem stopMenuItem = new MenuItem("S_top");
     private final MenuItem openMenuItem = new MenuItem("_Open");
+    private final MenuItem streamMenuItem = new MenuItem("Stream");
 
     private final MenuItem setDownloadLocationMenuItem = new MenuItem("Set Download Location...");
     private final MenuItem setDestinationNameMenuItem = new MenuItem("Set Destination Name...");
     private final MenuItem updateTorrentMenuItem = new MenuItem("Update Torrent...");
     private final MenuItem clearPeerListMenuItem = new MenuItem("Clear Peer List");
     private final MenuItem resetBansMenuItem = new MenuItem("Reset Bans");
+    private final CheckMenuItem superSeedingMenuItem = new CheckMenuItem("Super-Seeding");
 
     private final MenuItem deleteTorrentAndDataMenuItem = new MenuItem("Delete .torrent + Data");
     private final MenuItem deleteTorrentMenuItem = new MenuItem("Delete .torrent");
@@ -348,10 +360,10 @@ public final class TorrentViewTable {
 
         final Menu advancedMenu = new Menu("_Advanced");
         advancedMenu.getItems().addAll(resetBansMenuItem, clearPeerListMenuItem, setDownloadLocationMenuItem,
-                setDestinationNameMenuItem, updateTorrentMenuItem);
+                setDestinationNameMenuItem, updateTorrentMenuItem, new SeparatorMenuItem(), superSeedingMenuItem);
 
         final ContextMenu contextMenu = new ContextMenu();
-        contextMenu.getItems().addAll(openMenuItem, openContainingFolderMenuItem, new SeparatorMenuItem(),
+        contextMenu.getItems().addAll(openMenuItem, openContainingFolderMenuItem, streamMenuItem, new SeparatorMenuItem(),
                 copyMagnetUriMenuItem, openUrlInBrowserMenuItem, new SeparatorMenuItem(),
                 forceStartMenuItem, startMenuItem, pauseMenuItem, stopMenuItem, new SeparatorMenuItem(),
                 moveUpQueueMenuItem, moveDownQueueMenuItem, labelsMenu, new SeparatorMenuItem(),
@@ -390,6 +402,10 @@ public final class TorrentViewTable {
 
         moveUpQueueMenuItem.setDisable(priority == 1);
         moveDownQueueMenuItem.setDisable(priority == torrentTable.getItems().size());
+
+        superSeedingMenuItem.setSelected(torrentView.getProgress().isSuperSeeding());
+        streamMenuItem.setDisable(!torrentView.getProgress().isStreaming()
+                || torrentView.getMetaData().getFiles().isEmpty());
     }
 
     private void setupMenuActions(final TorrentView torrentView) {
@@ -406,6 +422,47 @@ public final class TorrentViewTable {
                 torrentManager.requestTorrentPriorityChange(torrentView, PriorityChange.HIGHER));
         moveDownQueueMenuItem.setOnAction(e ->
                 torrentManager.requestTorrentPriorityChange(torrentView, PriorityChange.LOWER));
+
+        superSeedingMenuItem.setOnAction(e ->
+                torrentManager.setSuperSeeding(torrentView, superSeedingMenuItem.isSelected()));
+        streamMenuItem.setOnAction(e -> onStream(torrentView));
+    }
+
+    private void onStream(final TorrentView torrentView) {
+        //The largest file is the one most likely to be played, such as a movie in a torrent with subtitles
+        final Optional<QueuedFileMetaData> largestFile = torrentView.getMetaData().getFiles().stream().max(
+                Comparator.comparingLong(QueuedFileMetaData::getLength));
+        if(!largestFile.isPresent()) {
+            return;
+        }
+
+        final Optional<URI> streamUri;
+        try {
+            streamUri = torrentManager.streamFile(torrentView, largestFile.get());
+        } catch (final IOException ioe) {
+            showStreamingAlert(AlertType.ERROR, "The streaming server could not be started: " + ioe.getMessage());
+            return;
+        }
+
+        if(!streamUri.isPresent()) {
+            showStreamingAlert(AlertType.WARNING, "The file can't be streamed until the torrent is started.");
+            return;
+        }
+
+        final ClipboardContent clipboardContent = new ClipboardContent();
+        clipboardContent.putString(streamUri.get().toString());
+        Clipboard.getSystemClipboard().setContent(clipboardContent);
+
+        showStreamingAlert(AlertType.INFORMATION, "Open the following location (copied to clipboard) "
+                + "in a media player:\n\n" + streamUri.get());
+    }
+
+    private void showStreamingAlert(final AlertType alertType, final String message) {
+        final Alert alert = new Alert(alertType, message, ButtonType.OK);
+        alert.setTitle("Stream");
+        alert.setHeaderText(null);
+        alert.initOwner(torrentTable.getScene().getWindow());
+        alert.show();
     }
 	
 	private void createColumns() {
@@ -84,6 +84,7 @@ public final class AddTorrentWindow {
     private final CheckBox addToTopQueueCheckbox;
     private final CheckBox startTorrentCheckbox;
     private final CheckBox skipHashCheckbox;
+    private final CheckBox streamingCheckbox;
 
     private final ComboBox<String> savePathCombo;
     private final ComboBox<String> labelCombo;
@@ -131,6 +132,7 @@ public final class AddTorrentWindow {
         createSubFolderCheckbox = new CheckBox("Create subfolder");
         startTorrentCheckbox = new CheckBox("Start torrent");
         skipHashCheckbox = new CheckBox("Skip hash check");
+        streamingCheckbox = new CheckBox("Stream while downloading");
 
         diskSpaceText = new Text();
         fileSizeText = new Text();
@@ -169,6 +171,7 @@ public final class AddTorrentWindow {
             final QueueType targetStatus = startTorrentCheckbox.isSelected()?
                     QueueType.ACTIVE : QueueType.INACTIVE;
             progress.setQueueType(targetStatus);
+            progress.setStreaming(streamingCheckbox.isSelected());
 
             final String savePath = savePathCombo.getEditor().getText();
             progress.setSavePath(savePath != null? Paths.get(savePath) : Paths.get(System.getProperty("user.home")));
@@ -446,6 +449,8 @@ public final class AddTorrentWindow {
         torrentOptionsPane.add(startTorrentCheckbox, 0, 1);
         torrentOptionsPane.add(addToTopQueueCheckbox, 1, 1);
 
+        torrentOptionsPane.add(streamingCheckbox, 0, 2);
+
         GridPane.setHgrow(labelPane, Priority.ALWAYS);
 
         final TitledBorderPane borderedTorrentOptionsPane = new TitledBorderPane("Torrent Options",
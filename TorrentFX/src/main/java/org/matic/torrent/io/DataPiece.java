@@ -22,6 +22,7 @@ package org.matic.torrent.io;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
@@ -34,14 +35,15 @@ import java.util.TreeMap;
  */
 public class DataPiece {
 
-    private static final String DIGEST_ALGORITHM = "SHA-1";
+    protected static final String DIGEST_ALGORITHM = "SHA-1";
 
     private final MessageDigest validatorDigest;
 
     private final byte[] pieceBytes;
     private final int pieceIndex;
 
-    protected final TreeMap<Integer, DataBlock> queuedBlocks = new TreeMap<>();
+    //Offsets and lengths of the blocks received out of order, their data is digested once the preceding blocks arrive
+    protected final TreeMap<Integer, Integer> queuedBlocks = new TreeMap<>();
 
     protected int digestedBlocksPointer = 0;
 
@@ -71,34 +73,59 @@ public class DataPiece {
         System.arraycopy(blockData, 0, pieceBytes, block.getPieceOffset(), blockData.length);
 
         if(pieceOffset == digestedBlocksPointer) {
-            validatorDigest.update(block.getBlockData());
+            validatorDigest.update(blockData);
             digestedBlocksPointer += blockData.length;
 
-            Map.Entry<Integer, DataBlock> nextQueuedBlock;
-            while((nextQueuedBlock = queuedBlocks.firstEntry()) != null) {
-                final DataBlock queuedDataBlock = nextQueuedBlock.getValue();
-                final byte[] queuedBlockBytes = queuedDataBlock.getBlockData();
-                if(queuedDataBlock.getPieceOffset() == digestedBlocksPointer) {
-                    validatorDigest.update(queuedBlockBytes);
-                    final int queuedDataBlockLength = queuedBlockBytes.length;
-                    System.arraycopy(queuedBlockBytes, 0, pieceBytes,
-                            queuedDataBlock.getPieceOffset(), queuedBlockBytes.length);
-
-                    queuedBlocks.remove(nextQueuedBlock.getKey());
-                    digestedBlocksPointer += queuedDataBlockLength;
-                }
-                else {
-                    break;
-                }
+            //The queued blocks are already in place, only their data needs to be digested
+            Map.Entry<Integer, Integer> nextQueuedBlock;
+            while((nextQueuedBlock = queuedBlocks.firstEntry()) != null
+                    && nextQueuedBlock.getKey() == digestedBlocksPointer) {
+                final int queuedBlockLength = nextQueuedBlock.getValue();
+                validatorDigest.update(pieceBytes, digestedBlocksPointer, queuedBlockLength);
+
+                queuedBlocks.remove(nextQueuedBlock.getKey());
+                digestedBlocksPointer += queuedBlockLength;
             }
         }
         else {
-            queuedBlocks.put(pieceOffset, block);
+            queuedBlocks.put(pieceOffset, blockData.length);
         }
 
         return true;
     }
 
+    /**
+     * Check whether the block starting at the given offset has already been received.
+     *
+     * @param offset Block's offset within the piece
+     * @return true if the block has been added to this piece, false otherwise
+     */
+    public boolean hasBlock(final int offset) {
+        return offset < digestedBlocksPointer || queuedBlocks.containsKey(offset);
+    }
+
+    /**
+     * Get the blocks that have been added to this piece. All blocks, except for the last one, are
+     * expected to have the same length.
+     *
+     * @param blockLength Length of the piece's blocks
+     * @return Indexes (offset / blockLength) of the received blocks
+     */
+    public BitSet getReceivedBlocks(final int blockLength) {
+        final BitSet receivedBlocks = new BitSet();
+        final int digestedBlocks = digestedBlocksPointer == getLength()?
+                (digestedBlocksPointer + blockLength - 1) / blockLength : digestedBlocksPointer / blockLength;
+        receivedBlocks.set(0, digestedBlocks);
+
+        queuedBlocks.forEach((offset, length) -> {
+            if(offset % blockLength == 0 && length == Math.min(blockLength, getLength() - offset)) {
+                receivedBlocks.set(offset / blockLength);
+            }
+        });
+
+        return receivedBlocks;
+    }
+
     public Optional<DataBlock> getBlock(final int offset, final int blockLength) {
         if(offset + blockLength > this.getLength() || offset < 0 || offset > this.getLength()
                 || blockLength < 1 || blockLength > this.getLength()) {
@@ -111,6 +138,28 @@ public class DataPiece {
         return Optional.of(dataBlock);
     }
 
+    /**
+     * Calculate a hash of a part of this piece's data, in order to compare it with the data
+     * received for the same block in another download of the piece.
+     *
+     * @param offset Block's offset within the piece
+     * @param blockLength Length of the block
+     * @return Hash of the block's data, or empty if the block is out of the piece's bounds
+     */
+    public Optional<byte[]> getBlockHash(final int offset, final int blockLength) {
+        if(offset < 0 || blockLength < 1 || offset + blockLength > this.getLength()) {
+            return Optional.empty();
+        }
+
+        try {
+            final MessageDigest blockDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            blockDigest.update(pieceBytes, offset, blockLength);
+            return Optional.of(blockDigest.digest());
+        } catch (final NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("This should never happen: the platform doesn't support " + DIGEST_ALGORITHM);
+        }
+    }
+
     public int getIndex() {
         return pieceIndex;
     }
@@ -120,7 +169,7 @@ public class DataPiece {
     }
 
     public boolean hasCompleted() {
-        return pieceBytes.length == digestedBlocksPointer;
+        return getLength() == digestedBlocksPointer;
     }
 
     public boolean validate(final byte[] expectedPieceHash) {
@@ -137,7 +186,7 @@ public class DataPiece {
         return "DataPiece{" +
                 "pieceIndex=" + pieceIndex +
                 ", digestedBlocksPointer=" + digestedBlocksPointer +
-                ", length=" + pieceBytes.length +
+                ", length=" + getLength() +
                 ", queuedBlocks=" + queuedBlocks.keySet() +
                 '}';
     }
@@ -0,0 +1,149 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.io;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A block of a piece that has been written to the disk, whose data is transferred straight from the
+ * files that contain it, without being copied through the heap.
+ *
+ * @author Vedran Matic
+ */
+public final class FileDataBlock {
+
+    private final List<FileRegion> fileRegions = new ArrayList<>();
+
+    private final int pieceIndex;
+    private final int pieceOffset;
+    private int length = 0;
+
+    //Set by the requesting thread, checked by the connection's thread before the block is sent
+    private volatile boolean cancelled = false;
+
+    //Set by the connection's thread once all of the block's data has been sent
+    private volatile boolean sent = false;
+
+    public FileDataBlock(final int pieceIndex, final int pieceOffset) {
+        this.pieceIndex = pieceIndex;
+        this.pieceOffset = pieceOffset;
+    }
+
+    /**
+     * Add the next part of the block's data, which is contained in a file.
+     *
+     * @param fileIO File that contains the data
+     * @param filePosition Where the data begins in the file
+     * @param regionLength Length of the data
+     */
+    public void addFileRegion(final TorrentFileIO fileIO, final long filePosition, final int regionLength) {
+        fileRegions.add(new FileRegion(fileIO, filePosition, regionLength));
+        length += regionLength;
+    }
+
+    /**
+     * Transfer as much as possible of the block's data, following the data transferred so far, into a channel.
+     *
+     * @param blockPosition How many of the block's bytes have already been transferred
+     * @param target Where to transfer the data to
+     * @return How many bytes were transferred, fewer than the rest of the block if the channel can't take them all
+     * @throws IOException If the data can't be read or written
+     */
+    public long transferTo(final long blockPosition, final WritableByteChannel target) throws IOException {
+        long regionStart = 0;
+        long transferredBytes = 0;
+
+        for(final FileRegion fileRegion : fileRegions) {
+            final long regionEnd = regionStart + fileRegion.length;
+            final long transferStart = blockPosition + transferredBytes;
+
+            if(transferStart < regionEnd) {
+                final long transferLength = regionEnd - transferStart;
+                final long regionTransferredBytes = fileRegion.fileIO.transferTo(
+                        fileRegion.filePosition + (transferStart - regionStart), transferLength, target);
+                transferredBytes += regionTransferredBytes;
+
+                if(regionTransferredBytes < transferLength) {
+                    break;
+                }
+            }
+            regionStart = regionEnd;
+        }
+
+        return transferredBytes;
+    }
+
+    /**
+     * Cancel sending this block. The block is dropped if its message hasn't started being sent yet,
+     * otherwise it is sent in full (a partly sent message can't be withdrawn).
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setSent() {
+        sent = true;
+    }
+
+    public boolean isSent() {
+        return sent;
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public int getPieceOffset() {
+        return pieceOffset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "FileDataBlock{" +
+                "pieceIndex=" + pieceIndex +
+                ", pieceOffset=" + pieceOffset +
+                ", length=" + length +
+                '}';
+    }
+
+    private static final class FileRegion {
+
+        private final TorrentFileIO fileIO;
+        private final long filePosition;
+        private final int length;
+
+        FileRegion(final TorrentFileIO fileIO, final long filePosition, final int length) {
+            this.fileIO = fileIO;
+            this.filePosition = filePosition;
+            this.length = length;
+        }
+    }
+}
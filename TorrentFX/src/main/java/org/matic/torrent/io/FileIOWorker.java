@@ -19,22 +19,51 @@
 */
 package org.matic.torrent.io;
 
+import org.matic.torrent.io.cache.CachedDataPieceIdentifier;
 import org.matic.torrent.io.cache.DataPieceCache;
-import org.matic.torrent.net.pwp.PeerSession;
 import org.matic.torrent.queue.QueuedTorrentMetaData;
 import org.matic.torrent.transfer.DataBlockIdentifier;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 
-public final class FileIOWorker implements Runnable {
+/**
+ * Reads and writes a torrent's pieces. The queued operations are performed by a pool of disk threads,
+ * shared by all of the torrents, so that several pieces of the same torrent can be read or written at once.
+ *
+ * @author Vedran Matic
+ */
+public final class FileIOWorker {
+
+    //How many of the pieces that a peer is likely to request next are read into the cache
+    public static final int MAX_READ_AHEAD_PIECES = 2;
 
     private final List<WriteDataPieceRequest> fileWriterQueue = new LinkedList<>();
     private final List<ReadDataPieceRequest> fileReaderQueue = new LinkedList<>();
+    private final List<PartialPieceLoadRequest> partialPieceLoadQueue = new LinkedList<>();
+
+    //Pieces to read into the cache once there are no other queued operations
+    private final List<CachedDataPieceIdentifier> readAheadQueue = new LinkedList<>();
+
+    //The pieces that are queued or being written, reads of these are served from memory
+    private final Map<Integer, DataPiece> pendingWrites = new HashMap<>();
+
+    //The pieces being read, the requests for these arriving meanwhile are served with the same read
+    private final Map<CachedDataPieceIdentifier, List<ReadDataPieceRequest>> inFlightReads = new HashMap<>();
 
     private final Consumer<FileOperationResult> dataPieceConsumer;
     private final DataPieceCache pieceCache;
@@ -43,144 +72,516 @@ public final class FileIOWorker implements Runnable {
     private final TreeMap<Long, TorrentFileIO> diskFileIOs;
     private final QueuedTorrentMetaData torrentMetaData;
 
+    private final ExecutorService diskIOExecutor;
+
+    //Files mapped into memory for reading the pieces, if enabled
+    private final MappedFileWindows mappedFileWindows;
+
+    private boolean running = false;
+    private int activeOperations = 0;
+
+    //Whether to stop as soon as all of the queued writes have completed
+    private boolean stopRequested = false;
+
+    public FileIOWorker(final TreeMap<Long, TorrentFileIO> diskFileIOs,
+                        final DataPieceCache pieceCache,
+                        final QueuedTorrentMetaData torrentMetaData,
+                        final Consumer<FileOperationResult> dataPieceConsumer,
+                        final ExecutorService diskIOExecutor) {
+        this(diskFileIOs, pieceCache, torrentMetaData, dataPieceConsumer, diskIOExecutor, false);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param diskFileIOs Torrent's files, mapped to their offsets within the torrent's contents
+     * @param pieceCache Cache of the pieces that were recently read or written
+     * @param torrentMetaData Torrent's meta data
+     * @param dataPieceConsumer Receives the results of the file operations
+     * @param diskIOExecutor Performs the queued file operations
+     * @param mappedReads Whether to read the pieces from the files mapped into memory, instead of onto the heap
+     */
     public FileIOWorker(final TreeMap<Long, TorrentFileIO> diskFileIOs,
                         final DataPieceCache pieceCache,
                         final QueuedTorrentMetaData torrentMetaData,
-                        final Consumer<FileOperationResult> dataPieceConsumer) {
+                        final Consumer<FileOperationResult> dataPieceConsumer,
+                        final ExecutorService diskIOExecutor,
+                        final boolean mappedReads) {
         this.diskFileIOs = diskFileIOs;
         this.torrentMetaData = torrentMetaData;
         this.pieceCache = pieceCache;
         this.dataPieceConsumer = dataPieceConsumer;
+        this.diskIOExecutor = diskIOExecutor;
+        this.mappedFileWindows = mappedReads? new MappedFileWindows(diskFileIOs, MappedFileWindows.DEFAULT_WINDOW_SIZE,
+                MappedFileWindows.DEFAULT_MAX_WINDOWS, torrentMetaData.getPieceLength()) : null;
     }
 
     public void writeDataPiece(final WriteDataPieceRequest writeDataPieceRequest) {
         synchronized(this) {
             fileWriterQueue.add(writeDataPieceRequest);
-            this.notifyAll();
+            pendingWrites.put(writeDataPieceRequest.getDataPiece().getIndex(), writeDataPieceRequest.getDataPiece());
         }
+        scheduleOperation();
     }
 
     public void readDataPiece(final ReadDataPieceRequest readDataPieceRequest) {
         synchronized(this) {
+            final List<ReadDataPieceRequest> inFlightRequests = inFlightReads.get(
+                    readDataPieceRequest.getCachedDataPieceIdentifier());
+            if(inFlightRequests != null) {
+                inFlightRequests.add(readDataPieceRequest);
+                return;
+            }
             fileReaderQueue.add(readDataPieceRequest);
-            this.notifyAll();
         }
+        scheduleOperation();
     }
 
-    @Override
-    public void run() {
-        setup();
-        while(true) {
-            if (Thread.currentThread().isInterrupted()) {
-                Thread.interrupted();
-                cleanup();
+    /**
+     * Queue a load of the stored blocks of a partially downloaded piece, while the worker is running.
+     * The loaded piece is delivered as the result of a LOAD operation. Any queued loads are discarded
+     * when the worker is stopped.
+     *
+     * @param pieceIndex Index of the partially downloaded piece
+     * @param storedBlocks Indexes of the blocks to read
+     * @param blockLength Length of the piece's blocks
+     */
+    public void queuePartialPieceLoad(final int pieceIndex, final BitSet storedBlocks, final int blockLength) {
+        synchronized(this) {
+            partialPieceLoadQueue.add(new PartialPieceLoadRequest(pieceIndex, storedBlocks, blockLength));
+        }
+        scheduleOperation();
+    }
 
+    /**
+     * Open the files and start performing the queued operations.
+     */
+    public void start() {
+        final int queuedOperations;
+        synchronized(this) {
+            if(running) {
                 return;
             }
+            setup();
+            running = true;
+            stopRequested = false;
+            queuedOperations = fileWriterQueue.size() + fileReaderQueue.size() + partialPieceLoadQueue.size()
+                    + readAheadQueue.size();
+        }
+        for(int i = 0; i < queuedOperations; ++i) {
+            scheduleOperation();
+        }
+    }
 
-            WriteDataPieceRequest writeDataPieceRequest = null;
-            ReadDataPieceRequest readDataPieceRequest = null;
+    /**
+     * Stop the worker once all of the queued writes have been completed. Any queued reads and loads are discarded.
+     * If the writes don't complete in time, the worker still stops (and closes the files) after they do.
+     *
+     * @param timeout Max time (in millis) to wait for the writes to complete
+     * @return true if the writes have completed and the files were closed, false on timeout
+     * @throws InterruptedException If interrupted while waiting for the writes to complete
+     */
+    public boolean stop(final long timeout) throws InterruptedException {
+        synchronized(this) {
+            if(!running) {
+                return true;
+            }
+            stopRequested = true;
+            fileReaderQueue.clear();
+            partialPieceLoadQueue.clear();
+            readAheadQueue.clear();
+
+            final long stopDeadline = System.currentTimeMillis() + timeout;
+            while(running) {
+                if(fileWriterQueue.isEmpty() && activeOperations == 0) {
+                    completeStop();
+                    break;
+                }
+                final long timeLeft = stopDeadline - System.currentTimeMillis();
+                if(timeLeft <= 0) {
+                    return false;
+                }
+                this.wait(timeLeft);
+            }
+            return true;
+        }
+    }
 
-            synchronized(this) {
-                while(fileWriterQueue.isEmpty() && fileReaderQueue.isEmpty()) {
-                    try {
-                        this.wait();
-                    }
-                    catch (final InterruptedException ie) {
-                        if (Thread.currentThread().isInterrupted()) {
-                            Thread.interrupted();
-                        }
-
-                        cleanup();
-                        return;
-                    }
+    /**
+     * Write the received blocks of partially downloaded pieces to the disk. Must only be called while
+     * the worker is not running.
+     *
+     * @param partialPieces Pieces to store
+     * @param blockLength Length of the pieces' blocks
+     * @throws IOException If any errors occur during the file writing
+     */
+    public void storePartialPieces(final Collection<DataPiece> partialPieces,
+                                   final int blockLength) throws IOException {
+        setup();
+        try {
+            for(final DataPiece partialPiece : partialPieces) {
+                final BitSet receivedBlocks = partialPiece.getReceivedBlocks(blockLength);
+                final long pieceStart = (long)torrentMetaData.getPieceLength() * partialPiece.getIndex();
+
+                //Write each run of consecutive received blocks at once
+                for(int runStart = receivedBlocks.nextSetBit(0); runStart != -1;
+                    runStart = receivedBlocks.nextSetBit(receivedBlocks.nextClearBit(runStart))) {
+                    final int runStartOffset = runStart * blockLength;
+                    final int runEndOffset = (int)Math.min((long)receivedBlocks.nextClearBit(runStart) * blockLength,
+                            partialPiece.getLength());
+
+                    transferData(pieceStart + runStartOffset, partialPiece.getPieceBytes(),
+                            runStartOffset, runEndOffset - runStartOffset, true);
                 }
+            }
+        }
+        finally {
+            cleanup();
+        }
+    }
 
-                if(!fileWriterQueue.isEmpty()) {
-                    writeDataPieceRequest = fileWriterQueue.remove(0);
+    /**
+     * Read the stored blocks of a partially downloaded piece from the disk. Must only be called while
+     * the worker is not running.
+     *
+     * @param pieceIndex Index of the partially downloaded piece
+     * @param storedBlocks Indexes of the blocks to read
+     * @param blockLength Length of the piece's blocks
+     * @return A piece containing the stored blocks
+     * @throws IOException If any errors occur during the file reading
+     */
+    public DataPiece loadPartialPiece(final int pieceIndex, final BitSet storedBlocks,
+                                      final int blockLength) throws IOException {
+        setup();
+        try {
+            return readPartialPiece(pieceIndex, storedBlocks, blockLength);
+        }
+        finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * Get a block of a piece that has been written to the disk, so that the block can be sent straight
+     * from the files. Nothing is read from the disk until the block's data is transferred.
+     *
+     * @param blockIdentifier The requested block
+     * @return The block, or empty if the piece hasn't been written to the disk yet, if the files are closed, or if
+     * the piece can be read from memory instead (when it is cached or when the files are mapped into memory)
+     */
+    public Optional<FileDataBlock> getFileBlock(final DataBlockIdentifier blockIdentifier) {
+        final int pieceIndex = blockIdentifier.getPieceIndex();
+        final int pieceOffset = blockIdentifier.getPieceOffset();
+        final int blockLength = blockIdentifier.getBlockLength();
+
+        synchronized(this) {
+            if(!running || pendingWrites.containsKey(pieceIndex)) {
+                return Optional.empty();
+            }
+        }
+        if(mappedFileWindows != null || pieceCache.get(
+                new CachedDataPieceIdentifier(pieceIndex, torrentMetaData.getInfoHash())).isPresent()) {
+            return Optional.empty();
+        }
+        if(pieceOffset < 0 || blockLength < 1 || pieceOffset + blockLength > getPieceLength(pieceIndex)) {
+            return Optional.empty();
+        }
+
+        final long blockStart = (long)torrentMetaData.getPieceLength() * pieceIndex + pieceOffset;
+        final long blockEnd = blockStart + blockLength;
+        final FileDataBlock fileBlock = new FileDataBlock(pieceIndex, pieceOffset);
+
+        //Add the parts of the block from all of the files that the block spans across
+        for(Long currentFilePosition = diskFileIOs.floorKey(blockStart);
+            currentFilePosition != null && currentFilePosition < blockEnd;
+            currentFilePosition = diskFileIOs.higherKey(currentFilePosition)) {
+
+            final TorrentFileIO fileIO = diskFileIOs.get(currentFilePosition);
+            final long regionStart = Math.max(blockStart, currentFilePosition);
+            final long regionEnd = Math.min(blockEnd, currentFilePosition + fileIO.getLength());
+
+            if(regionStart < regionEnd) {
+                fileBlock.addFileRegion(fileIO, regionStart - currentFilePosition, (int)(regionEnd - regionStart));
+            }
+        }
+
+        return fileBlock.getLength() == blockLength? Optional.of(fileBlock) : Optional.empty();
+    }
+
+    //Each queued operation schedules one task, which performs the next queued operation, whichever that is
+    private void scheduleOperation() {
+        try {
+            diskIOExecutor.execute(this::performQueuedOperation);
+        } catch (final RejectedExecutionException ree) {
+            System.err.println("Disk I/O rejected for " + torrentMetaData.getInfoHash() + ": " + ree.getMessage());
+        }
+    }
+
+    private void performQueuedOperation() {
+        WriteDataPieceRequest writeDataPieceRequest = null;
+        PartialPieceLoadRequest partialPieceLoadRequest = null;
+        CachedDataPieceIdentifier readPieceIdentifier = null;
+        List<CachedDataPieceIdentifier> readAheadPieces = Collections.emptyList();
+        List<ReadDataPieceRequest> readDataPieceRequests = null;
+
+        synchronized(this) {
+            if(!running) {
+                return;
+            }
+            if(!fileWriterQueue.isEmpty()) {
+                writeDataPieceRequest = fileWriterQueue.remove(0);
+            }
+            else if(!partialPieceLoadQueue.isEmpty() && !stopRequested) {
+                partialPieceLoadRequest = partialPieceLoadQueue.remove(0);
+            }
+            else if(!fileReaderQueue.isEmpty() && !stopRequested) {
+                final List<ReadDataPieceRequest> queuedReadRequests = takeQueuedReadRequests();
+                if(!queuedReadRequests.isEmpty()) {
+                    readPieceIdentifier = queuedReadRequests.get(0).getCachedDataPieceIdentifier();
+                    readAheadPieces = queuedReadRequests.get(0).getReadAheadPieces();
+                    readDataPieceRequests = queuedReadRequests;
                 }
-                if(!fileReaderQueue.isEmpty()) {
-                    readDataPieceRequest = fileReaderQueue.remove(0);
+            }
+            else if(!readAheadQueue.isEmpty() && !stopRequested) {
+                readPieceIdentifier = readAheadQueue.remove(0);
+                if(!inFlightReads.containsKey(readPieceIdentifier)) {
+                    readDataPieceRequests = new ArrayList<>();
                 }
             }
+            if(writeDataPieceRequest == null && partialPieceLoadRequest == null && readDataPieceRequests == null) {
+                return;
+            }
+            if(readDataPieceRequests != null) {
+                inFlightReads.put(readPieceIdentifier, readDataPieceRequests);
+            }
+            ++activeOperations;
+        }
 
+        try {
             if(writeDataPieceRequest != null) {
                 handleWriteRequest(writeDataPieceRequest);
             }
-            if(readDataPieceRequest != null) {
-                handleReadRequest(readDataPieceRequest);
+            else if(partialPieceLoadRequest != null) {
+                handlePartialPieceLoadRequest(partialPieceLoadRequest);
+            }
+            else {
+                handleReadRequests(readPieceIdentifier, readAheadPieces);
+            }
+        }
+        finally {
+            synchronized(this) {
+                if(writeDataPieceRequest != null) {
+                    final DataPiece writtenPiece = writeDataPieceRequest.getDataPiece();
+                    pendingWrites.remove(writtenPiece.getIndex(), writtenPiece);
+                }
+                else if(readDataPieceRequests != null) {
+                    inFlightReads.remove(readPieceIdentifier, readDataPieceRequests);
+                }
+                --activeOperations;
+                if(stopRequested && fileWriterQueue.isEmpty() && activeOperations == 0) {
+                    completeStop();
+                }
+                this.notifyAll();
             }
         }
     }
 
-    //Need to open the file accessors for read/write when creating the thread
+    //Must be called while holding the lock, once no more operations are queued or being performed
+    private void completeStop() {
+        running = false;
+        stopRequested = false;
+        if(mappedFileWindows != null) {
+            mappedFileWindows.clear();
+        }
+        cleanup();
+    }
+
+    //Need to open the file accessors for read/write when starting
     private void setup() {
         diskFileIOs.values().forEach(TorrentFileIO::setup);
     }
 
-    //Need to close all of the file accessors on exit (RandomAccessFile.close())
+    //Need to close all of the file accessors on exit (FileChannel.close())
     private void cleanup() {
         diskFileIOs.values().forEach(TorrentFileIO::cleanup);
     }
 
-    private void handleReadRequest(final ReadDataPieceRequest readDataPieceRequest) {
-        final int defaultPieceLength = torrentMetaData.getPieceLength();
-        final DataBlockIdentifier blockIdentifier = readDataPieceRequest.getBlockIdentifier();
-        final PeerSession requester = readDataPieceRequest.getRequester();
+    //Take all of the queued read requests for the same piece as the first request, to serve them with one read
+    private List<ReadDataPieceRequest> takeQueuedReadRequests() {
+        final List<ReadDataPieceRequest> pieceReadRequests = new ArrayList<>();
+        CachedDataPieceIdentifier pieceIdentifier = null;
+
+        //Cancelled requests are dropped without reading anything from the disk
+        final Iterator<ReadDataPieceRequest> queuedRequests = fileReaderQueue.iterator();
+        while(queuedRequests.hasNext()) {
+            final ReadDataPieceRequest queuedRequest = queuedRequests.next();
+            if(queuedRequest.isCancelled()) {
+                queuedRequests.remove();
+            }
+            else if(pieceIdentifier == null || pieceIdentifier.equals(queuedRequest.getCachedDataPieceIdentifier())) {
+                pieceIdentifier = queuedRequest.getCachedDataPieceIdentifier();
+                pieceReadRequests.add(queuedRequest);
+                queuedRequests.remove();
+            }
+        }
+        return pieceReadRequests;
+    }
 
-        final int pieceIndex = blockIdentifier.getPieceIndex();
-        final long pieceStart = (long)defaultPieceLength * pieceIndex;
-        final long firstFileBeginPosition = diskFileIOs.floorKey(pieceStart);
-        final long lastFileBeginPosition = diskFileIOs.floorKey(pieceStart + defaultPieceLength);
-
-        //Check whether the piece has been cached (faster)
-        final Optional<DataPiece> cachedPiece = pieceCache.get(readDataPieceRequest.getCachedDataPieceIdentifier());
-        if(cachedPiece.isPresent()) {
-            dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.READ,
-                    cachedPiece.get(), requester, blockIdentifier, null));
+    private void handleReadRequests(final CachedDataPieceIdentifier pieceIdentifier,
+                                    final List<CachedDataPieceIdentifier> readAheadPieces) {
+        //Check whether the piece has been cached or is still being written (faster),
+        //otherwise retrieve it from the disk (slower)
+        DataPiece dataPiece = pieceCache.get(pieceIdentifier).orElse(null);
+        if(dataPiece == null) {
+            synchronized(this) {
+                dataPiece = pendingWrites.get(pieceIdentifier.getPieceIndex());
+            }
+        }
+        IOException readError = null;
+        if(dataPiece == null) {
+            try {
+                dataPiece = readPiece(pieceIdentifier.getPieceIndex());
+                cachePiece(pieceIdentifier, dataPiece);
+            } catch (final IOException ioe) {
+                readError = ioe;
+            }
+        }
+
+        //Include the requests for the same piece that have arrived during the read
+        final List<ReadDataPieceRequest> pieceReadRequests;
+        synchronized(this) {
+            pieceReadRequests = inFlightReads.remove(pieceIdentifier);
+        }
+
+        if(readError != null && pieceReadRequests.isEmpty()) {
+            System.err.println("Failed to read ahead piece " + pieceIdentifier.getPieceIndex()
+                    + " due to: " + readError.getMessage());
+        }
+        for(final ReadDataPieceRequest request : pieceReadRequests) {
+            if(request.isCancelled()) {
+                continue;
+            }
+            getResultConsumer(request).accept(new FileOperationResult(FileOperationResult.OperationType.READ,
+                    readError == null? dataPiece : null, request.getRequester(), request.getBlockIdentifier(),
+                    readError));
+        }
+
+        if(readError == null) {
+            queueReadAhead(readAheadPieces);
+        }
+    }
+
+    //Cache the pieces that the requester is likely to ask for next, once the other operations are done.
+    //The mapped pieces are already cached by the OS, and the pieces being written are still in memory
+    private void queueReadAhead(final List<CachedDataPieceIdentifier> readAheadPieces) {
+        if(mappedFileWindows != null) {
             return;
         }
 
-        //Retrieve piece data from the disk (slower)
+        int queuedReadAheads = 0;
+        synchronized(this) {
+            for(final CachedDataPieceIdentifier readAheadPiece : readAheadPieces.subList(
+                    0, Math.min(MAX_READ_AHEAD_PIECES, readAheadPieces.size()))) {
+                if(!pendingWrites.containsKey(readAheadPiece.getPieceIndex())
+                        && !inFlightReads.containsKey(readAheadPiece) && !readAheadQueue.contains(readAheadPiece)
+                        && !pieceCache.get(readAheadPiece).isPresent()) {
+                    readAheadQueue.add(readAheadPiece);
+                    ++queuedReadAheads;
+                }
+            }
+        }
+        for(int i = 0; i < queuedReadAheads; ++i) {
+            scheduleOperation();
+        }
+    }
+
+    private void handlePartialPieceLoadRequest(final PartialPieceLoadRequest loadRequest) {
+        final int pieceIndex = loadRequest.pieceIndex;
+        try {
+            dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.LOAD,
+                    readPartialPiece(pieceIndex, loadRequest.storedBlocks, loadRequest.blockLength), null, null, null));
+        } catch (final IOException ioe) {
+            dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.LOAD,
+                    new DataPiece(getPieceLength(pieceIndex), pieceIndex), null, null, ioe));
+        }
+    }
+
+    //The mapped pieces are already cached by the OS, there is no need to hold them on the heap as well
+    private void cachePiece(final CachedDataPieceIdentifier pieceIdentifier, final DataPiece dataPiece) {
+        if(!(dataPiece instanceof MappedDataPiece)) {
+            pieceCache.put(pieceIdentifier, dataPiece);
+        }
+    }
+
+    private Consumer<FileOperationResult> getResultConsumer(final ReadDataPieceRequest readDataPieceRequest) {
+        return readDataPieceRequest.getResultHandler().orElse(dataPieceConsumer);
+    }
+
+    private int getPieceLength(final int pieceIndex) {
+        final int defaultPieceLength = torrentMetaData.getPieceLength();
         final int totalPieces = torrentMetaData.getTotalPieces();
         final long totalTorrentLength = torrentMetaData.getTotalLength();
-        final int pieceLength = pieceIndex == totalPieces - 1?
+        return pieceIndex == totalPieces - 1?
                 (int)(totalTorrentLength - ((long)defaultPieceLength * (totalPieces - 1))): defaultPieceLength;
-        final byte[] pieceBytes = new byte[pieceLength];
-        int pieceBytesRead = 0;
+    }
 
-        //Read bytes from all files that the piece spans across
-        for(Long currentFilePosition = firstFileBeginPosition;
-            currentFilePosition != null && currentFilePosition <= lastFileBeginPosition;
+    //Write or read data at any position within the torrent, to/from all of the files that the data spans across
+    private void transferData(final long torrentPosition, final byte[] data, final int dataOffset,
+                              final int length, final boolean write) throws IOException {
+        int transferredBytes = 0;
+
+        for(Long currentFilePosition = diskFileIOs.floorKey(torrentPosition);
+            currentFilePosition != null && currentFilePosition < torrentPosition + length;
             currentFilePosition = diskFileIOs.higherKey(currentFilePosition)) {
 
             final TorrentFileIO fileIO = diskFileIOs.get(currentFilePosition);
-            final byte[] pieceBytesFromFile;
-            try {
-                pieceBytesFromFile = fileIO.readPieceFromDisk(pieceLength, pieceIndex);
+            transferredBytes += write? fileIO.writeToDisk(torrentPosition, data, dataOffset, length) :
+                    fileIO.readFromDisk(torrentPosition, data, dataOffset, length);
+        }
 
-                System.arraycopy(pieceBytesFromFile, 0, pieceBytes, pieceBytesRead, pieceBytesFromFile.length);
-                pieceBytesRead += pieceBytesFromFile.length;
-            } catch (final IOException ioe) {
-                dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.READ,
-                        null, requester, blockIdentifier, ioe));
-                return;
+        if(transferredBytes != length) {
+            throw new IOException("Data length mismatch at position " + torrentPosition + ": expected "
+                    + length + " but transferred " + transferredBytes + " bytes");
+        }
+    }
+
+    private DataPiece readPartialPiece(final int pieceIndex, final BitSet storedBlocks,
+                                       final int blockLength) throws IOException {
+        final DataPiece partialPiece = new DataPiece(getPieceLength(pieceIndex), pieceIndex);
+        final long pieceStart = (long)torrentMetaData.getPieceLength() * pieceIndex;
+
+        for(int blockIndex = storedBlocks.nextSetBit(0); blockIndex != -1;
+            blockIndex = storedBlocks.nextSetBit(blockIndex + 1)) {
+            final int blockOffset = blockIndex * blockLength;
+            if(blockOffset >= partialPiece.getLength()) {
+                break;
             }
+
+            final byte[] blockData = new byte[Math.min(blockLength, partialPiece.getLength() - blockOffset)];
+            transferData(pieceStart + blockOffset, blockData, 0, blockData.length, false);
+            partialPiece.addBlock(new DataBlock(blockData, pieceIndex, blockOffset));
         }
+        return partialPiece;
+    }
 
-        if(pieceBytesRead != pieceLength) {
-            dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.READ,
-                    null, requester, blockIdentifier,
-                    new IOException("Read piece data length mismatch: expected " + pieceLength
-                            + " but got " + pieceBytesRead + " bytes")));
-            return;
+    private DataPiece readPiece(final int pieceIndex) throws IOException {
+        final long pieceStart = (long)torrentMetaData.getPieceLength() * pieceIndex;
+        final int pieceLength = getPieceLength(pieceIndex);
+
+        //A piece contained in a single file can be served straight from the file's mapping
+        if(mappedFileWindows != null) {
+            final Optional<ByteBuffer> mappedPiece = mappedFileWindows.map(pieceStart, pieceLength);
+            if(mappedPiece.isPresent()) {
+                return new MappedDataPiece(mappedPiece.get(), pieceIndex);
+            }
         }
 
-        final DataPiece dataPiece = new DataPiece(pieceBytes, pieceIndex);
-        pieceCache.put(readDataPieceRequest.getCachedDataPieceIdentifier(), dataPiece);
+        final byte[] pieceBytes = new byte[pieceLength];
+
+        //Read bytes from all files that the piece spans across
+        transferData(pieceStart, pieceBytes, 0, pieceBytes.length, false);
 
-        dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.READ,
-                dataPiece, requester, blockIdentifier, null));
+        return new DataPiece(pieceBytes, pieceIndex);
     }
 
     private void handleWriteRequest(final WriteDataPieceRequest writeDataPieceRequest) {
@@ -193,46 +594,44 @@ public final class FileIOWorker implements Runnable {
                 (int)(totalTorrentLength - ((long)defaultPieceLength * (totalPieces - 1))): defaultPieceLength;
 
         if(pieceLength != expectedPieceLength) {
-            //TODO: And throw a new InvalidPeerMessageException
-            System.err.println("Invalid piece length: expected " + expectedPieceLength
-                    + " but was " + defaultPieceLength);
+            dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.WRITE,
+                    dataPiece, null, null, new IOException("Invalid piece length: expected "
+                    + expectedPieceLength + " but was " + pieceLength)));
             return;
         }
 
-        final long pieceStart = pieceLength * (long)dataPiece.getIndex();
-        final long firstFileBeginPosition = diskFileIOs.floorKey(pieceStart);
-        final long lastFileBeginPosition = diskFileIOs.floorKey(pieceStart + expectedPieceLength);
+        /*TODO: Wait to write the pieces to disk until a piece in the cache expires and is
+            removed from it. When it does, we can write all of the neighbouring pieces
+            still left in the cache, but not written yet, to the disk together. This will
+            both minimize disk tear (by jumping too much when writing) and also improve the
+            write times (as the neighbouring pieces can be written in one continuous write
+            without changing the writer position
+         */
+        final long pieceStart = (long)defaultPieceLength * dataPiece.getIndex();
 
         //Write bytes to all files that the piece spans across
-        for(Long currentFilePosition = firstFileBeginPosition;
-            currentFilePosition != null && currentFilePosition <= lastFileBeginPosition;
-            currentFilePosition = diskFileIOs.higherKey(currentFilePosition)) {
-
-            /*TODO: Wait to write the pieces to disk until a piece in the cache expires and is
-                removed from it. When it does, we can write all of the neighbouring pieces
-                still left in the cache, but not written yet, to the disk together. This will
-                both minimize disk tear (by jumping too much when writing) and also improve the
-                write times (as the neighbouring pieces can be written in one continuous write
-                without changing the writer position
-             */
-            final TorrentFileIO fileIO = diskFileIOs.get(currentFilePosition);
-
-            try {
-                final int writtenBytes = fileIO.writePieceToDisk(dataPiece);
-                if(writtenBytes == 0) {
-                    dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.WRITE,
-                            dataPiece, null, null, new IOException("No bytes were written for " + dataPiece)));
-                    return;
-                }
-            } catch (final IOException ioe) {
-                dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.WRITE,
-                        dataPiece, null, null, ioe));
-                return;
-            }
+        try {
+            transferData(pieceStart, dataPiece.getPieceBytes(), 0, pieceLength, true);
+        } catch (final IOException ioe) {
+            dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.WRITE,
+                    dataPiece, null, null, ioe));
+            return;
         }
 
         pieceCache.put(writeDataPieceRequest.getCachedDataPieceIdentifier(), dataPiece);
         dataPieceConsumer.accept(new FileOperationResult(FileOperationResult.OperationType.WRITE,
                 dataPiece, writeDataPieceRequest.getSender(), null, null));
     }
-}
\ No newline at end of file
+
+    private static final class PartialPieceLoadRequest {
+        private final int pieceIndex;
+        private final BitSet storedBlocks;
+        private final int blockLength;
+
+        PartialPieceLoadRequest(final int pieceIndex, final BitSet storedBlocks, final int blockLength) {
+            this.pieceIndex = pieceIndex;
+            this.storedBlocks = storedBlocks;
+            this.blockLength = blockLength;
+        }
+    }
+}
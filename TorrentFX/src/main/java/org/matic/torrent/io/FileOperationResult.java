@@ -33,7 +33,7 @@ import java.util.Optional;
 public final class FileOperationResult {
 
     public enum OperationType {
-        READ, WRITE
+        READ, WRITE, LOAD
     }
 
     private final DataBlockIdentifier blockRequest;
@@ -47,7 +47,7 @@ public final class FileOperationResult {
     /**
      * Construct a new instance.
      *
-     * @param operationType Whether it is a read or a write operation
+     * @param operationType Whether it is a read, a write or a partial piece load operation
      * @param dataPiece Piece data to be stored/written or retrieved/read
      * @param sender The peer that sent (to write) or requested (to read) piece data
      * @param blockRequest Info about the block that belong to the piece to be read (if requested)
@@ -0,0 +1,106 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.io;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * A read-only piece of data, that is a slice of a file mapped into memory. Its data isn't copied
+ * onto the heap, only the blocks that are requested from it are.
+ *
+ * @author Vedran Matic
+ */
+public final class MappedDataPiece extends DataPiece {
+
+    private static final byte[] NO_PIECE_BYTES = new byte[0];
+
+    private final ByteBuffer pieceBuffer;
+
+    public MappedDataPiece(final ByteBuffer pieceBuffer, final int pieceIndex) {
+        super(NO_PIECE_BYTES, pieceIndex);
+        this.pieceBuffer = pieceBuffer;
+
+        //All of the piece's data is already there
+        digestedBlocksPointer = pieceBuffer.capacity();
+    }
+
+    @Override
+    public boolean addBlock(final DataBlock block) {
+        return false;
+    }
+
+    @Override
+    public Optional<DataBlock> getBlock(final int offset, final int blockLength) {
+        if(offset < 0 || blockLength < 1 || offset + blockLength > this.getLength()) {
+            return Optional.empty();
+        }
+
+        final byte[] blockData = new byte[blockLength];
+        getBlockBuffer(offset, blockLength).get(blockData);
+        return Optional.of(new DataBlock(blockData, getIndex(), offset));
+    }
+
+    @Override
+    public Optional<byte[]> getBlockHash(final int offset, final int blockLength) {
+        if(offset < 0 || blockLength < 1 || offset + blockLength > this.getLength()) {
+            return Optional.empty();
+        }
+        return Optional.of(digest(getBlockBuffer(offset, blockLength)));
+    }
+
+    @Override
+    public int getLength() {
+        return pieceBuffer.capacity();
+    }
+
+    @Override
+    public boolean validate(final byte[] expectedPieceHash) {
+        return Arrays.equals(expectedPieceHash, digest(getBlockBuffer(0, getLength())));
+    }
+
+    @Override
+    protected byte[] getPieceBytes() {
+        final byte[] pieceBytes = new byte[getLength()];
+        getBlockBuffer(0, pieceBytes.length).get(pieceBytes);
+        return pieceBytes;
+    }
+
+    //Each caller gets a view of its own, so that the piece can be read by several threads at once
+    private ByteBuffer getBlockBuffer(final int offset, final int blockLength) {
+        final ByteBuffer blockBuffer = pieceBuffer.duplicate();
+        blockBuffer.limit(offset + blockLength);
+        blockBuffer.position(offset);
+        return blockBuffer;
+    }
+
+    private static byte[] digest(final ByteBuffer data) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(data);
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("This should never happen: the platform doesn't support " + DIGEST_ALGORITHM);
+        }
+    }
+}
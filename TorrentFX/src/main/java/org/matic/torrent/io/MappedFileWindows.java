@@ -0,0 +1,146 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Maps the files of a torrent into memory, in windows of a bounded size, so that the pieces can be
+ * read as slices of the windows instead of being copied onto the heap. Only the most recently used
+ * windows are kept, the caching of their data is left to the OS page cache.
+ *
+ * @author Vedran Matic
+ */
+public final class MappedFileWindows {
+
+    public static final int DEFAULT_WINDOW_SIZE = 16 * 1048576;   //16 MB
+    public static final int DEFAULT_MAX_WINDOWS = 16;
+
+    private final TreeMap<Long, TorrentFileIO> diskFileIOs;
+    private final Map<WindowKey, MappedByteBuffer> windows;
+
+    private final int windowSize;
+
+    //Each window is extended by a piece's length, so that any piece starting in it also ends in it
+    private final int windowOverlap;
+
+    /**
+     * Create a new instance.
+     *
+     * @param diskFileIOs Torrent's files, mapped to their offsets within the torrent's contents
+     * @param windowSize Length of the file part that each of the windows starts in
+     * @param maxWindows How many of the most recently used windows to keep mapped
+     * @param pieceLength Length of the torrent's pieces
+     */
+    public MappedFileWindows(final TreeMap<Long, TorrentFileIO> diskFileIOs, final int windowSize,
+                             final int maxWindows, final int pieceLength) {
+        this.diskFileIOs = diskFileIOs;
+        this.windowSize = windowSize;
+        this.windowOverlap = pieceLength;
+
+        //The evicted windows are unmapped once they are no longer referenced by any of the pieces
+        this.windows = new LinkedHashMap<WindowKey, MappedByteBuffer>(maxWindows + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<WindowKey, MappedByteBuffer> eldest) {
+                return size() > maxWindows;
+            }
+        };
+    }
+
+    /**
+     * Get a part of the torrent's contents as a slice of the window of the file that contains it.
+     *
+     * @param torrentPosition Where the data begins within the torrent's contents
+     * @param length Length of the data, at most a piece's length
+     * @return Mapped data, or empty if the data spans across several files
+     * @throws IOException If the file can't be mapped
+     */
+    public synchronized Optional<ByteBuffer> map(final long torrentPosition, final int length) throws IOException {
+        final Map.Entry<Long, TorrentFileIO> fileEntry = diskFileIOs.floorEntry(torrentPosition);
+        if(fileEntry == null || length > windowOverlap) {
+            return Optional.empty();
+        }
+
+        final TorrentFileIO fileIO = fileEntry.getValue();
+        final long filePosition = torrentPosition - fileEntry.getKey();
+        if(filePosition + length > fileIO.getLength()) {
+            return Optional.empty();
+        }
+
+        final long windowIndex = filePosition / windowSize;
+        final long windowStart = windowIndex * windowSize;
+        final WindowKey windowKey = new WindowKey(fileEntry.getKey(), windowIndex);
+
+        MappedByteBuffer window = windows.get(windowKey);
+        if(window == null) {
+            window = fileIO.mapForReading(windowStart, (long)windowSize + windowOverlap);
+            windows.put(windowKey, window);
+        }
+
+        final ByteBuffer data = window.duplicate();
+        final int windowOffset = (int)(filePosition - windowStart);
+        data.limit(windowOffset + length);
+        data.position(windowOffset);
+        return Optional.of(data.slice());
+    }
+
+    /**
+     * Drop all of the windows, for instance when the files are closed.
+     */
+    public synchronized void clear() {
+        windows.clear();
+    }
+
+    protected synchronized int getMappedWindowCount() {
+        return windows.size();
+    }
+
+    private static final class WindowKey {
+
+        private final long fileOffset;
+        private final long windowIndex;
+
+        WindowKey(final long fileOffset, final long windowIndex) {
+            this.fileOffset = fileOffset;
+            this.windowIndex = windowIndex;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            WindowKey windowKey = (WindowKey) o;
+            return fileOffset == windowKey.fileOffset &&
+                    windowIndex == windowKey.windowIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileOffset, windowIndex);
+        }
+    }
+}
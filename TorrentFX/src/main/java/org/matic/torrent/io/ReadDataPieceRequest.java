@@ -23,7 +23,11 @@ import org.matic.torrent.io.cache.CachedDataPieceIdentifier;
 import org.matic.torrent.net.pwp.PeerSession;
 import org.matic.torrent.transfer.DataBlockIdentifier;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 public final class ReadDataPieceRequest {
 
@@ -31,11 +35,69 @@ public final class ReadDataPieceRequest {
     private final DataBlockIdentifier blockIdentifier;
     private final PeerSession requester;
 
+    private final List<CachedDataPieceIdentifier> readAheadPieces;
+    private final Consumer<FileOperationResult> resultHandler;
+
+    //Set by the requesting thread, checked by the disk worker before the piece is read
+    private volatile boolean cancelled = false;
+
     public ReadDataPieceRequest(final CachedDataPieceIdentifier pieceIdentifier,
                                 final DataBlockIdentifier blockIdentifier, final PeerSession requester) {
+        this(pieceIdentifier, blockIdentifier, requester, Collections.emptyList());
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param pieceIdentifier Identifier of the piece containing the requested block
+     * @param blockIdentifier The requested block
+     * @param requester The peer that requested the block
+     * @param readAheadPieces Pieces the requester is likely to ask for next, to be read into the cache
+     */
+    public ReadDataPieceRequest(final CachedDataPieceIdentifier pieceIdentifier,
+                                final DataBlockIdentifier blockIdentifier, final PeerSession requester,
+                                final List<CachedDataPieceIdentifier> readAheadPieces) {
+        this(pieceIdentifier, blockIdentifier, requester, readAheadPieces, null);
+    }
+
+    /**
+     * Create a new instance, with a handler of its own for the result of the read.
+     *
+     * @param pieceIdentifier Identifier of the piece containing the requested block
+     * @param blockIdentifier The requested block
+     * @param requester The peer that requested the block, if any
+     * @param readAheadPieces Pieces the requester is likely to ask for next, to be read into the cache
+     * @param resultHandler Receives the result instead of the worker's default result consumer
+     */
+    public ReadDataPieceRequest(final CachedDataPieceIdentifier pieceIdentifier,
+                                final DataBlockIdentifier blockIdentifier, final PeerSession requester,
+                                final List<CachedDataPieceIdentifier> readAheadPieces,
+                                final Consumer<FileOperationResult> resultHandler) {
         this.pieceIdentifier = pieceIdentifier;
         this.blockIdentifier = blockIdentifier;
         this.requester = requester;
+        this.readAheadPieces = readAheadPieces;
+        this.resultHandler = resultHandler;
+    }
+
+    /**
+     * Cancel this request. The disk worker will skip it if the read hasn't started yet, and
+     * won't deliver its result otherwise.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Optional<Consumer<FileOperationResult>> getResultHandler() {
+        return Optional.ofNullable(resultHandler);
+    }
+
+    public List<CachedDataPieceIdentifier> getReadAheadPieces() {
+        return readAheadPieces;
     }
 
     public PeerSession getRequester() {
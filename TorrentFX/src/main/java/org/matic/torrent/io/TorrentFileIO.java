@@ -21,27 +21,30 @@ package org.matic.torrent.io;
 
 import org.matic.torrent.queue.QueuedFileMetaData;
 
-import java.io.FileNotFoundException;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * A class for writing and reading a file that is part of a torrent. It has the
  * ability to write/read at any part of the file, which is useful when pieces
  * that are residing across the file need to be read/written from/to the disk.
+ * All of the reads and writes are positional (they don't move a shared file
+ * pointer), so that the file can be accessed by several threads at once.
  *
  * @author Vedran Matic
  */
 public final class TorrentFileIO {
 
-    private static final byte[] EMPTY_BYTES = new byte[0];
-    private static final String FILE_ACCESS_MODE = "rw";
-
     private final QueuedFileMetaData fileMetaData;
     private final Path filePath;
 
-    private RandomAccessFile fileAccessor;
+    private volatile FileChannel fileChannel;
 
     /**
      * Create a new instance.
@@ -51,32 +54,32 @@ public final class TorrentFileIO {
      * @throws IOException If any errors occur during I/O operations on the file
      */
     public TorrentFileIO(final Path filePath, final QueuedFileMetaData fileMetaData) throws IOException {
-        this(filePath, fileMetaData, new RandomAccessFile(filePath.toFile(), FILE_ACCESS_MODE));
+        this(filePath, fileMetaData, openFileChannel(filePath));
     }
 
     //A constructor to use in unit tests
     protected TorrentFileIO(final Path filePath, final QueuedFileMetaData fileMetaData,
-                            final RandomAccessFile fileAccessor) throws IOException {
+                            final FileChannel fileChannel) throws IOException {
         this.filePath = filePath;
         this.fileMetaData = fileMetaData;
-        this.fileAccessor = fileAccessor;
+        this.fileChannel = fileChannel;
 
-        //TODO: Call fileAccessor.setLength(fileMetaData.getLength()) based on user preference in Properties
+        //TODO: Preallocate (instead of extending a sparse file) based on user preference in Properties
         final long fileLength = fileMetaData.getLength();
-        if(fileAccessor.length() < fileLength) {
-            fileAccessor.setLength(fileLength);
+        if(fileLength > 0 && fileChannel.size() < fileLength) {
+            fileChannel.write(ByteBuffer.wrap(new byte[1]), fileLength - 1);
         }
     }
 
     /**
      * Create and setup file accessor resources.
      */
-    public void setup() {
-        if(fileAccessor == null) {
+    public synchronized void setup() {
+        if(fileChannel == null) {
             try {
-                fileAccessor = new RandomAccessFile(filePath.toFile(), FILE_ACCESS_MODE);
-            } catch (final FileNotFoundException fnfe) {
-                fnfe.printStackTrace();
+                fileChannel = openFileChannel(filePath);
+            } catch (final IOException ioe) {
+                ioe.printStackTrace();
             }
         }
     }
@@ -84,106 +87,133 @@ public final class TorrentFileIO {
     /**
      * Close and release all file accessor resources on shutdown.
      */
-    public void cleanup() {
-        if(fileAccessor != null) {
+    public synchronized void cleanup() {
+        if(fileChannel != null) {
             try {
-                fileAccessor.close();
+                fileChannel.close();
             } catch (final IOException ioe) {
                 ioe.printStackTrace();
             }
-            fileAccessor = null;
+            fileChannel = null;
         }
     }
 
     /**
-     * Write as much as possible of a data piece into the correct place of the file on the disk.
+     * Write the part of the data, positioned anywhere within the torrent's contents, that belongs to this file.
      *
-     * @param dataPiece Data piece to write into the file on the disk
-     * @return How many bytes were written
+     * @param torrentPosition Position of the data within the torrent's contents
+     * @param data Data to write
+     * @param dataOffset Where the data begins in the data array
+     * @param length Length of the data
+     * @return How many bytes were written into this file
      * @throws IOException If any errors occur during the file writing
      */
-    public int writePieceToDisk(final DataPiece dataPiece) throws IOException {
-        final long pieceIndex = dataPiece.getIndex();
-        final long pieceLength = dataPiece.getLength();
-
-        //Piece's total position offset within the torrent file
-        final long pieceBeginPosition = pieceIndex * pieceLength;
-        final long pieceEndPosition = pieceBeginPosition + pieceLength - 1;
-
+    public int writeToDisk(final long torrentPosition, final byte[] data,
+                           final int dataOffset, final int length) throws IOException {
         final long fileBeginPosition = fileMetaData.getOffset();
-        final long fileEndPosition = fileBeginPosition + fileMetaData.getLength() - 1;
+        final long writeBeginPosition = Math.max(torrentPosition, fileBeginPosition);
+        final long writeEndPosition = Math.min(torrentPosition + length, fileBeginPosition + fileMetaData.getLength());
 
-        //Check whether the piece is inside this file
-        if(pieceEndPosition < fileBeginPosition || pieceBeginPosition > fileEndPosition) {
+        if(writeBeginPosition >= writeEndPosition) {
             return 0;
         }
 
-        fileAccessor.seek(pieceBeginPosition < fileBeginPosition? 0: pieceBeginPosition - fileBeginPosition);
-
-        //Calculate how much of the piece data is contained in this file
-        final int writeDataLength = getFileAccessorInputDataLength(
-                pieceBeginPosition, pieceEndPosition, fileBeginPosition, fileEndPosition);
-
-        final int pieceBytesStart = (pieceBeginPosition < fileBeginPosition)?
-                (pieceEndPosition <= fileEndPosition? (int)(pieceLength - writeDataLength) :
-                        (int)(fileBeginPosition - pieceBeginPosition)): 0;
-
-        fileAccessor.write(dataPiece.getPieceBytes(), pieceBytesStart, writeDataLength);
+        final int writeDataLength = (int)(writeEndPosition - writeBeginPosition);
+        write(writeBeginPosition - fileBeginPosition, data,
+                dataOffset + (int)(writeBeginPosition - torrentPosition), writeDataLength);
 
         return writeDataLength;
     }
 
     /**
-     * Read as much as possible of a data piece from this file on the disk.
+     * Read the part of the data, positioned anywhere within the torrent's contents, that belongs to this file.
      *
-     * @param pieceLength The length of data piece
-     * @param pieceIndex The data piece index relative to the torrent's contents
-     * @return Read data piece bytes
+     * @param torrentPosition Position of the data within the torrent's contents
+     * @param data Where to store the read data
+     * @param dataOffset Where the data begins in the data array
+     * @param length Length of the data
+     * @return How many bytes were read from this file
      * @throws IOException If any errors occur during the file reading
      */
-    public byte[] readPieceFromDisk(final int pieceLength, final int pieceIndex) throws IOException {
-
-        //Piece's total position offset within the torrent file
-        final long pieceBeginPosition = pieceIndex * pieceLength;
-        final long pieceEndPosition = pieceBeginPosition + pieceLength - 1;
-
+    public int readFromDisk(final long torrentPosition, final byte[] data,
+                            final int dataOffset, final int length) throws IOException {
         final long fileBeginPosition = fileMetaData.getOffset();
-        final long fileEndPosition = fileBeginPosition + fileMetaData.getLength() - 1;
+        final long readBeginPosition = Math.max(torrentPosition, fileBeginPosition);
+        final long readEndPosition = Math.min(torrentPosition + length, fileBeginPosition + fileMetaData.getLength());
 
-        //Check whether the piece is inside this file
-        if(pieceEndPosition < fileBeginPosition || pieceBeginPosition > fileEndPosition) {
-            return EMPTY_BYTES;
+        if(readBeginPosition >= readEndPosition) {
+            return 0;
         }
 
-        fileAccessor.seek(pieceBeginPosition < fileBeginPosition? 0: pieceBeginPosition - fileBeginPosition);
+        final int readDataLength = (int)(readEndPosition - readBeginPosition);
+        read(readBeginPosition - fileBeginPosition, data,
+                dataOffset + (int)(readBeginPosition - torrentPosition), readDataLength);
+
+        return readDataLength;
+    }
+
+    /**
+     * Map a part of this file into memory, for reading only. The mapping remains valid after the file is closed.
+     *
+     * @param filePosition Where the mapped part begins within the file
+     * @param length Length of the mapped part, it is shortened if it runs past the end of the file
+     * @return The mapped part of the file
+     * @throws IOException If the file can't be mapped
+     */
+    public MappedByteBuffer mapForReading(final long filePosition, final long length) throws IOException {
+        final long mappedLength = Math.min(length, fileMetaData.getLength() - filePosition);
+        return getFileChannel().map(FileChannel.MapMode.READ_ONLY, filePosition, mappedLength);
+    }
+
+    /**
+     * Transfer a part of this file straight into a channel, without copying it through the heap
+     * (where supported by the OS, the data never leaves the kernel).
+     *
+     * @param filePosition Where the transferred part begins within the file
+     * @param length Length of the transferred part
+     * @param target Where to transfer the data to
+     * @return How many bytes were transferred, possibly fewer than requested
+     * @throws IOException If the file is closed or if any errors occur during the transfer
+     */
+    public long transferTo(final long filePosition, final long length,
+                           final WritableByteChannel target) throws IOException {
+        return getFileChannel().transferTo(filePosition, length, target);
+    }
 
-        //Calculate how much of the piece data is contained in this file
-        final int readDataLength = getFileAccessorInputDataLength(
-                pieceBeginPosition, pieceEndPosition, fileBeginPosition, fileEndPosition);
+    public long getLength() {
+        return fileMetaData.getLength();
+    }
 
-        final byte[] pieceBytes = new byte[readDataLength];
-        fileAccessor.read(pieceBytes, 0, pieceBytes.length);
-        return pieceBytes;
+    //A positional write may write fewer bytes than requested, so keep writing until all of them are written
+    private void write(final long filePosition, final byte[] data, final int dataOffset,
+                       final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+        while(buffer.hasRemaining()) {
+            getFileChannel().write(buffer, filePosition + buffer.position() - dataOffset);
+        }
     }
 
-    //Calculate how many of the piece's bytes we can write into this file
-    private int getFileAccessorInputDataLength(long pieceBeginPosition, long pieceEndPosition,
-                                               long fileBeginPosition, long fileEndPosition) {
-        //Check whether any parts of the piece belong to the previous file
-        if(pieceBeginPosition < fileBeginPosition) {
-            if(pieceEndPosition > fileEndPosition) {
-                return (int)(fileEndPosition - fileBeginPosition + 1);
-            } else {
-                return (int)(pieceEndPosition - fileBeginPosition + 1);
+    private void read(final long filePosition, final byte[] data, final int dataOffset,
+                      final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+        while(buffer.hasRemaining()) {
+            if(getFileChannel().read(buffer, filePosition + buffer.position() - dataOffset) == -1) {
+                throw new EOFException("Reached the end of " + filePath + " at position "
+                        + (filePosition + buffer.position() - dataOffset));
             }
         }
-        //Check whether any parts of the piece belong to the next file
-        else if(pieceEndPosition > fileEndPosition) {
-            return (int)((pieceEndPosition - pieceBeginPosition + 1) - (pieceEndPosition - fileEndPosition));
-        }
-        //All of the piece's blocks belong to this file
-        else {
-            return (int)(pieceEndPosition - pieceBeginPosition + 1);
+    }
+
+    private FileChannel getFileChannel() throws IOException {
+        final FileChannel currentFileChannel = fileChannel;
+        if(currentFileChannel == null) {
+            throw new IOException("File " + filePath + " is closed");
         }
+        return currentFileChannel;
+    }
+
+    private static FileChannel openFileChannel(final Path filePath) throws IOException {
+        return FileChannel.open(filePath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
     }
 }
\ No newline at end of file
@@ -19,12 +19,16 @@
 */
 package org.matic.torrent.net.pwp;
 
+import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.io.FileDataBlock;
+
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * A class that keeps track of remote peer connection's writes and reads.
@@ -45,9 +49,21 @@ public final class ConnectionSession {
 	private static final int INFO_HASH_LENGTH = 20;
 	private static final int PEER_ID_LENGTH = 20;
 
+	//PIECE message: [msg_id=byte(7)][piece_index=int][block_begin_offset=int][block_data]
+	private static final byte PIECE_MESSAGE_ID = 7;
+	private static final int PIECE_HEADER_LENGTH = 8;
+	private static final int MAX_BLOCK_LENGTH = 128 * 1024;
+
+	//Marks that the header of a PIECE message sent from the disk hasn't been written yet
+	private static final long NO_FILE_BLOCK = -1;
+
 	//Leftover data, if any, left from a previous read on this session's connection
 	protected ByteBuffer backupReaderBuffer = null;
 
+	//A PIECE message whose header has been parsed, but whose block data hasn't been completely received yet
+	protected DataBlock partialBlock = null;
+	private int partialBlockPosition = 0;
+
     private static final int INPUT_BUFFER_SIZE = 20 * 1024; //32 * 1024;
     private static final int OUTPUT_BUFFER_SIZE = 20 * 1024;   //32 * 1024;
 
@@ -57,6 +73,12 @@ public final class ConnectionSession {
 
     private final List<PwpMessage> messageWriteQueue = new ArrayList<>();
 
+    //Leftover data, if any, not yet written by a previous write on this session's connection
+    private ByteBuffer backupWriterBuffer = null;
+
+    //How much of the block of the PIECE message at the head of the write queue has been sent from the disk
+    private long fileBlockPosition = NO_FILE_BLOCK;
+
     private final SocketChannel channel;
     private final PeerSession peerSession;
 
@@ -82,28 +104,70 @@ public final class ConnectionSession {
      * @throws IOException If an exception occurs while writing on the connection
      */
     protected boolean flushWriteQueue() throws IOException {
-         while(!messageWriteQueue.isEmpty()) {
+        //Finish writing the data left over from the previous writes, before writing anything else
+        if(backupWriterBuffer != null) {
+            channel.write(backupWriterBuffer);
+            if(backupWriterBuffer.hasRemaining()) {
+                return false;
+            }
+            backupWriterBuffer = null;
+        }
+
+        while(!messageWriteQueue.isEmpty()) {
             final PwpMessage message = messageWriteQueue.get(0);
-            final ByteBuffer localOutputBuffer = outputBuffer.get();
+            final Optional<FileDataBlock> fileBlock = message.getFileBlock();
 
-            //If buffer is empty, we process a new message, otherwise we write buffered data
-            if(localOutputBuffer.position() == 0) {
-                localOutputBuffer.put(message.getPayload());
+            if(!fileBlock.isPresent()) {
+                messageWriteQueue.remove(0);
+                if(!writePayload(message)) {
+                    return false;
+                }
+                continue;
             }
 
-            localOutputBuffer.flip();
-            final int bytesWritten = channel.write(localOutputBuffer);
-            localOutputBuffer.compact();
+            //Write the PIECE message's header, followed by its block straight from the disk
+            if(fileBlockPosition == NO_FILE_BLOCK) {
+                //A block that was cancelled before anything of it was sent is withdrawn
+                if(fileBlock.get().isCancelled()) {
+                    messageWriteQueue.remove(0);
+                    continue;
+                }
+                fileBlockPosition = 0;
+                if(!writePayload(message)) {
+                    return false;
+                }
+            }
 
-            if(bytesWritten == 0) {
+            fileBlockPosition += fileBlock.get().transferTo(fileBlockPosition, channel);
+            if(fileBlockPosition < fileBlock.get().getLength()) {
                 return false;
             }
 
+            fileBlock.get().setSent();
+            fileBlockPosition = NO_FILE_BLOCK;
             messageWriteQueue.remove(0);
         }
         return true;
     }
 
+    //The output buffer is shared by all of the thread's connections, so any unwritten data is backed up
+    private boolean writePayload(final PwpMessage message) throws IOException {
+        final ByteBuffer localOutputBuffer = outputBuffer.get();
+        localOutputBuffer.clear();
+        localOutputBuffer.put(message.getPayload());
+        localOutputBuffer.flip();
+
+        channel.write(localOutputBuffer);
+
+        if(localOutputBuffer.hasRemaining()) {
+            backupWriterBuffer = ByteBuffer.allocate(localOutputBuffer.remaining());
+            backupWriterBuffer.put(localOutputBuffer);
+            backupWriterBuffer.flip();
+            return false;
+        }
+        return true;
+    }
+
     protected void putOnWriteQueue(final PwpMessageRequest messageRequest) throws IOException {
         messageWriteQueue.addAll(messageRequest.getMessages());
     }
@@ -145,10 +209,11 @@ public final class ConnectionSession {
 		buffer.flip();
 		
 		if(backupReaderBuffer != null) {			
-			//Read as much as possible from buffer, until backupBuffer is full				
-			while(buffer.remaining() > 0 && backupReaderBuffer.remaining() > 0) {
-				backupReaderBuffer.put(buffer.get());
-			}
+			//Read as much as possible from buffer, until backupBuffer is full
+			final ByteBuffer backupSource = buffer.duplicate();
+			backupSource.limit(buffer.position() + Math.min(buffer.remaining(), backupReaderBuffer.remaining()));
+			backupReaderBuffer.put(backupSource);
+			buffer.position(backupSource.position());
 			
 			if(backupReaderBuffer.remaining() > 0) {
 				buffer.clear();
@@ -162,6 +227,16 @@ public final class ConnectionSession {
 			buffer.compact();
 			buffer.flip();
 		}
+
+		//Continue filling the block of a PIECE message started in one of the previous reads
+		if(partialBlock != null) {
+			final PwpMessage blockMessage = readPartialBlock(buffer);
+			if(blockMessage == null) {
+				buffer.clear();
+				return messages;
+			}
+			messages.add(blockMessage);
+		}
 				
 		messages.addAll(parse(buffer));
 		return messages;
@@ -191,7 +266,7 @@ public final class ConnectionSession {
             messages.add(regularMessage);
 		}
 		
-		if(backupReaderBuffer != null) {
+		if(backupReaderBuffer != null || partialBlock != null) {
 			return messages;
 		}				
 		
@@ -242,6 +317,10 @@ public final class ConnectionSession {
 			return new PwpMessage(PwpMessage.fromMessageId(messageId));
 		}
 
+		if(messageId == PIECE_MESSAGE_ID && messageLength > PIECE_HEADER_LENGTH + 1) {
+			return parsePieceMessage(buffer, messageLength);
+		}
+
 		//Check whether there is enough data in buffer to completely parse the message
 		if(buffer.remaining() < messageLength - 1) {
 			//Backup remaining buffer data for the partial message
@@ -261,6 +340,50 @@ public final class ConnectionSession {
 		return new PwpMessage(PwpMessage.fromMessageId(messageId), messagePayload);
 	}
 	
+	//Decode the PIECE header as soon as it is available and read the block data directly into the block's array
+	private PwpMessage parsePieceMessage(final ByteBuffer buffer, final int messageLength)
+			throws InvalidPeerMessageException {
+		final int blockLength = messageLength - 1 - PIECE_HEADER_LENGTH;
+		if(blockLength > MAX_BLOCK_LENGTH) {
+			throw new InvalidPeerMessageException("Invalid PIECE message: block length = " + blockLength
+					+ ", CAUSE: " + peerSession);
+		}
+
+		if(buffer.remaining() < PIECE_HEADER_LENGTH) {
+			//Backup only the header, the block data is read directly into the block later
+			backupReaderBuffer = fromExistingBuffer(MESSAGE_LENGTH_PREFIX_LENGTH + 1 + PIECE_HEADER_LENGTH);
+
+			backupReaderBuffer.putInt(messageLength);
+			backupReaderBuffer.put(PIECE_MESSAGE_ID);
+			backupReaderBuffer.put(buffer);
+			return null;
+		}
+
+		final int pieceIndex = buffer.getInt();
+		final int pieceOffset = buffer.getInt();
+
+		partialBlock = new DataBlock(new byte[blockLength], pieceIndex, pieceOffset);
+		partialBlockPosition = 0;
+
+		return readPartialBlock(buffer);
+	}
+
+	private PwpMessage readPartialBlock(final ByteBuffer buffer) {
+		final byte[] blockData = partialBlock.getBlockData();
+		final int bytesToRead = Math.min(buffer.remaining(), blockData.length - partialBlockPosition);
+
+		buffer.get(blockData, partialBlockPosition, bytesToRead);
+		partialBlockPosition += bytesToRead;
+
+		if(partialBlockPosition < blockData.length) {
+			return null;
+		}
+
+		final PwpMessage blockMessage = new PwpMessage(partialBlock);
+		partialBlock = null;
+		return blockMessage;
+	}
+	
 	private PwpMessage parseHandshake(final ByteBuffer buffer) {		
 		if(buffer.remaining() < ConnectionSession.HANDSHAKE_MESSAGE_LENGTH) {
 			//Backup remaining buffer data for the partial HANDSHAKE message						
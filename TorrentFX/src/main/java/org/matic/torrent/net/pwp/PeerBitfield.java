@@ -0,0 +1,180 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.net.pwp;
+
+import java.util.BitSet;
+
+/**
+ * The pieces that a remote peer has. Most peers either have all of the pieces (seeds) or none of them
+ * (new downloaders), so those two states are stored without any bits at all. Only a peer that has some,
+ * but not all, of the pieces keeps a bitmap, which is dropped again once the peer has got every piece.
+ *
+ * @author Vedran Matic
+ */
+public final class PeerBitfield {
+
+    //Bits of a partial peer's pieces, null if the peer has either none or all of the pieces
+    private BitSet bits = null;
+
+    //The peer's piece count, which equals the torrent's piece count if the peer has all of the pieces
+    private int cardinality = 0;
+    private boolean complete = false;
+
+    public boolean get(final int pieceIndex) {
+        if(complete) {
+            return pieceIndex >= 0 && pieceIndex < cardinality;
+        }
+        return bits != null && bits.get(pieceIndex);
+    }
+
+    /**
+     * Mark a piece as obtained by the peer.
+     *
+     * @param pieceIndex Index of the obtained piece
+     * @param pieceCount Total number of the torrent's pieces
+     */
+    public void set(final int pieceIndex, final int pieceCount) {
+        if(get(pieceIndex)) {
+            return;
+        }
+        if(bits == null) {
+            bits = new BitSet(pieceCount);
+        }
+        bits.set(pieceIndex);
+        ++cardinality;
+        compactIfComplete(pieceCount);
+    }
+
+    /**
+     * Mark all of the torrent's pieces as obtained by the peer.
+     *
+     * @param pieceCount Total number of the torrent's pieces
+     */
+    public void setAll(final int pieceCount) {
+        bits = null;
+        cardinality = pieceCount;
+        complete = true;
+    }
+
+    /**
+     * Add the pieces found in a peer's bitfield. Any (spare) bits beyond the last piece are ignored.
+     *
+     * @param pieces Pieces that the peer has
+     * @param pieceCount Total number of the torrent's pieces
+     */
+    public void or(final BitSet pieces, final int pieceCount) {
+        if(complete) {
+            return;
+        }
+        if(pieces.nextClearBit(0) >= pieceCount) {
+            setAll(pieceCount);
+            return;
+        }
+        if(bits == null) {
+            bits = new BitSet(pieceCount);
+        }
+        bits.or(pieces);
+        if(bits.length() > pieceCount) {
+            bits.clear(pieceCount, bits.length());
+        }
+        cardinality = bits.cardinality();
+        compactIfComplete(pieceCount);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean isComplete(final int pieceCount) {
+        return complete || cardinality == pieceCount;
+    }
+
+    /**
+     * Count the peer's pieces that are missing from another bitfield, such as the pieces that we have.
+     *
+     * @param other The bitfield to compare against
+     * @return Number of the peer's pieces that aren't set in the other bitfield
+     */
+    public int andNotCardinality(final BitSet other) {
+        //Counted in place, as this is called for each peer whenever the wanted pieces change
+        if(complete) {
+            int otherPieces = 0;
+            for(int i = other.nextSetBit(0); i != -1 && i < cardinality; i = other.nextSetBit(i + 1)) {
+                ++otherPieces;
+            }
+            return cardinality - otherPieces;
+        }
+        if(bits == null) {
+            return 0;
+        }
+        int missingPieces = 0;
+        for(int i = bits.nextSetBit(0); i != -1; i = bits.nextSetBit(i + 1)) {
+            if(!other.get(i)) {
+                ++missingPieces;
+            }
+        }
+        return missingPieces;
+    }
+
+    /**
+     * Check whether the peer has any of the pieces set in another bitfield.
+     *
+     * @param other The bitfield to compare against
+     * @return true if at least one piece is set in both of the bitfields, false otherwise
+     */
+    public boolean intersects(final BitSet other) {
+        if(complete) {
+            final int firstOtherPiece = other.nextSetBit(0);
+            return firstOtherPiece != -1 && firstOtherPiece < cardinality;
+        }
+        return bits != null && bits.intersects(other);
+    }
+
+    /**
+     * Replace the contents of a (reusable) bitfield with the peer's pieces, so that it can be combined
+     * with other bitfields word by word.
+     *
+     * @param target The bitfield to copy the pieces into
+     */
+    public void copyInto(final BitSet target) {
+        target.clear();
+        if(complete) {
+            target.set(0, cardinality);
+        }
+        else if(bits != null) {
+            target.or(bits);
+        }
+    }
+
+    private void compactIfComplete(final int pieceCount) {
+        if(cardinality >= pieceCount) {
+            setAll(pieceCount);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return complete? "{all " + cardinality + "}" : bits != null? bits.toString() : "{}";
+    }
+}
@@ -86,6 +86,10 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
     private final List<TorrentStatusChangeEvent> statusChanges = new ArrayList<>();
     private final List<PwpMessageRequest> messageRequests = new ArrayList<>();
     private final List<PwpPeer> peerQueue = new ArrayList<>();
+    private final List<PeerSession> peersToBan = new ArrayList<>();
+
+    //IP addresses of the peers that have sent us corrupt data, we won't connect to them again
+    private final Set<String> bannedPeerIps = new CopyOnWriteArraySet<>();
 
     //Torrents for which we accept incoming remote connections
     private final Map<InfoHash, TorrentView> servedTorrents = new HashMap<>();
@@ -158,7 +162,7 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
     @Override
     public void onPeersFound(final Collection<PwpPeer> peers, final String source) {
         synchronized(peerQueue) {
-            final Collection<PwpPeer> newPeers = peers.stream().filter(p ->
+            final Collection<PwpPeer> newPeers = peers.stream().filter(p -> !isBanned(p.getIp()) &&
                     (!handshakenConnections.containsKey(p.getInfoHash()) ||
                     !handshakenConnections.get(p.getInfoHash()).containsKey(p))
                     && !peerQueue.contains(p) &&
@@ -185,6 +189,29 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
         selector.wakeup();
     }
 
+    /**
+     * Disconnect a peer and refuse any further connections to or from its IP address.
+     *
+     * @param peerSession Session of the peer to ban
+     */
+    public void ban(final PeerSession peerSession) {
+        bannedPeerIps.add(peerSession.getPeer().getIp());
+        synchronized(peersToBan) {
+            peersToBan.add(peerSession);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Check whether a peer with the given IP address has been banned.
+     *
+     * @param peerIp IP address of the peer to check
+     * @return true if the peer is banned, false otherwise
+     */
+    public boolean isBanned(final String peerIp) {
+        return bannedPeerIps.contains(peerIp);
+    }
+
     private int getTorrentConnectionCount(final InfoHash infoHash) {
         final int indeterminateConnectionCount = halfOpenConnections.containsKey(infoHash)?
                 halfOpenConnections.get(infoHash).size() : 0;
@@ -301,6 +328,8 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
             processPendingPeers();
             //React on torrent status changes
             processTorrentStatusChanges();
+            //Disconnect the peers that have been banned
+            processBannedPeers();
         }
     }
 
@@ -343,6 +372,27 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
         }
     }
 
+    private void processBannedPeers() {
+        while(true) {
+            PeerSession bannedPeer = null;
+            synchronized(peersToBan) {
+                if(!peersToBan.isEmpty()) {
+                    bannedPeer = peersToBan.remove(0);
+                }
+            }
+            if(bannedPeer == null) {
+                return;
+            }
+
+            final Map<PeerSession, SelectionKey> torrentPeers = handshakenConnections.get(bannedPeer.getInfoHash());
+            final SelectionKey selectionKey = torrentPeers != null? torrentPeers.get(bannedPeer) : null;
+
+            if(selectionKey != null) {
+                disconnectPeer(selectionKey, bannedPeer, "Banned: sent corrupt data");
+            }
+        }
+    }
+
     private void processPendingPeers() {
         while(true) {
             PwpPeer peer = null;
@@ -635,7 +685,9 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
         //Make a connection to an offline peer, to replace the disconnected peer
         final List<PwpPeer> targetOfflinePeers = offlinePeers.get(peerInfoHash);
         if(targetOfflinePeers != null) {
-            targetOfflinePeers.add(peerSession.getPeer());
+            if(!isBanned(peerSession.getPeer().getIp())) {
+                targetOfflinePeers.add(peerSession.getPeer());
+            }
 
 
             int torrentConnectionCount = getTorrentConnectionCount(peerInfoHash);
@@ -726,6 +778,11 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
             final String remotePeerIp = connectionAddress.getAddress().getHostAddress();
             final int remotePeerPort = connectionAddress.getPort();
 
+            if(isBanned(remotePeerIp)) {
+                closeChannel(channel);
+                return;
+            }
+
             final PwpPeer peer = new PwpPeer(remotePeerIp, remotePeerPort, null);
             final ConnectionSession connectionSession = new ConnectionSession(channel, new PeerSession(peer, true));
 
@@ -773,6 +830,10 @@ public class PeerConnectionController implements PeerFoundListener, TorrentStatu
     }
 
     private void initConnection(final PwpPeer peer) {
+        if(isBanned(peer.getIp())) {
+            return;
+        }
+
         SocketChannel peerChannel = null;
 
         try {
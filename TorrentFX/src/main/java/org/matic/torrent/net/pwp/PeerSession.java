@@ -39,6 +39,11 @@ public class PeerSession {
     private volatile int sentBlockRequests = 0;
     private volatile int requestedBlocks = 0;
 
+    //Block request latency and timeout tracking
+    private long averageBlockResponseTime = 0;
+    private int blockRequestTimeouts = 0;
+    private int blocksReceivedSinceTimeout = 0;
+
     private volatile boolean areWeInterestedIn = false;
     private volatile boolean isInterestedInUs = false;
     private volatile boolean areWeChoking = true;
@@ -48,9 +53,18 @@ public class PeerSession {
     private volatile long downloadedBytes = 0;
     private volatile long uploadedBytes = 0;
 
+    //Transfer rates (bytes/second), sampled periodically by the choker
+    private long downloadedBytesAtLastSample = 0;
+    private long uploadedBytesAtLastSample = 0;
+    private double downloadRate = 0;
+    private double uploadRate = 0;
+
     private volatile boolean logTraffic = false;
 
-    private BitSet pieces = new BitSet();
+    //Number of this peer's pieces that we don't have yet, decides whether we are interested in the peer
+    private int neededPieceCount = 0;
+
+    private final PeerBitfield pieces = new PeerBitfield();
     private final boolean incoming;
     private final PwpPeer peer;
 
@@ -104,6 +118,41 @@ public class PeerSession {
         this.uploadedBytes += uploadedBytes;
     }
 
+    /**
+     * Update the download and upload rate estimates with the bytes transferred since the last sample.
+     * The estimate is a moving average over the last couple of samples.
+     *
+     * @param elapsedMillis Time passed since the last sample was taken
+     */
+    public void sampleTransferRates(final long elapsedMillis) {
+        if(elapsedMillis <= 0) {
+            return;
+        }
+
+        final double downloadSample = (downloadedBytes - downloadedBytesAtLastSample) * 1000.0 / elapsedMillis;
+        final double uploadSample = (uploadedBytes - uploadedBytesAtLastSample) * 1000.0 / elapsedMillis;
+
+        downloadRate = (downloadRate + downloadSample) / 2;
+        uploadRate = (uploadRate + uploadSample) / 2;
+
+        downloadedBytesAtLastSample = downloadedBytes;
+        uploadedBytesAtLastSample = uploadedBytes;
+    }
+
+    /**
+     * @return Rate (bytes/second) at which this peer has recently been sending data to us
+     */
+    public double getDownloadRate() {
+        return downloadRate;
+    }
+
+    /**
+     * @return Rate (bytes/second) at which we have recently been sending data to this peer
+     */
+    public double getUploadRate() {
+        return uploadRate;
+    }
+
     public int getSentBlockRequests() {
         return sentBlockRequests;
     }
@@ -120,20 +169,60 @@ public class PeerSession {
         this.requestedBlocks = requestedBlocks;
     }
 
+    /**
+     * Get the smoothed time it took for this peer to respond to our block requests.
+     *
+     * @return Average block response time (in millis), or 0 if no response has been measured yet
+     */
+    public long getAverageBlockResponseTime() {
+        return averageBlockResponseTime;
+    }
+
+    /**
+     * Update the block response time estimate with a new measurement (exponentially weighted moving average).
+     *
+     * @param responseTime Time (in millis) between a block request and the block's reception
+     */
+    public void updateBlockResponseTime(final long responseTime) {
+        averageBlockResponseTime = averageBlockResponseTime == 0? responseTime :
+                (7 * averageBlockResponseTime + responseTime) / 8;
+    }
+
+    public int getBlockRequestTimeouts() {
+        return blockRequestTimeouts;
+    }
+
+    public void setBlockRequestTimeouts(final int blockRequestTimeouts) {
+        this.blockRequestTimeouts = blockRequestTimeouts;
+        blocksReceivedSinceTimeout = 0;
+    }
+
+    public int getBlocksReceivedSinceTimeout() {
+        return blocksReceivedSinceTimeout;
+    }
+
+    public void setBlocksReceivedSinceTimeout(final int blocksReceivedSinceTimeout) {
+        this.blocksReceivedSinceTimeout = blocksReceivedSinceTimeout;
+    }
+
     public boolean hasPiece(final int pieceIndex) {
         return pieces.get(pieceIndex);
     }
 
-    public void setHasPiece(final int pieceIndex, final boolean have) {
-        pieces.set(pieceIndex, have);
+    public void setHasPiece(final int pieceIndex, final int pieceCount) {
+        pieces.set(pieceIndex, pieceCount);
+    }
+
+    public void setHasAllPieces(final int pieceCount) {
+        pieces.setAll(pieceCount);
     }
 
-    public BitSet getPieces() {
+    public PeerBitfield getPieces() {
         return pieces;
     }
 
-    public void setPieces(final BitSet pieces) {
-        this.pieces.or(pieces);
+    public void setPieces(final BitSet pieces, final int pieceCount) {
+        this.pieces.or(pieces, pieceCount);
     }
 
     public int getPieceCount() {
@@ -141,7 +230,15 @@ public class PeerSession {
     }
 
     public boolean isSeeder(final int pieceCount) {
-        return pieces.cardinality() == pieceCount;
+        return pieces.isComplete(pieceCount);
+    }
+
+    public int getNeededPieceCount() {
+        return neededPieceCount;
+    }
+
+    public void setNeededPieceCount(final int neededPieceCount) {
+        this.neededPieceCount = neededPieceCount;
     }
 
     public boolean isSnubbed() {
@@ -188,6 +285,13 @@ public class PeerSession {
         }
     }
 
+    /**
+     * @return Time (in millis) when this peer was last unchoked by us, or 0 if never
+     */
+    public long getUnchokedByUsTime() {
+        return unchokedByUsTime;
+    }
+
     public void updateBytesReceived(final long byteCount) {
         bytesSentToUsSinceUnchoke += byteCount;
     }
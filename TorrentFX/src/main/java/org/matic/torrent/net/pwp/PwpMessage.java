@@ -19,7 +19,11 @@
 */
 package org.matic.torrent.net.pwp;
 
+import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.io.FileDataBlock;
+
 import java.util.Arrays;
+import java.util.Optional;
 
 /**
  * A message sent between the client and remote peers.
@@ -42,6 +46,12 @@ public class PwpMessage {
 
     private final byte[] payload;
 
+    //A received PIECE message's block, decoded while the message was being read
+    private final DataBlock dataBlock;
+
+    //A PIECE message's block to be sent straight from the disk, following the message's header (the payload)
+    private final FileDataBlock fileBlock;
+
 	private final MessageType messageType;
 	
 	public static MessageType fromMessageId(final int messageId) throws InvalidPeerMessageException {
@@ -59,8 +69,35 @@ public class PwpMessage {
 	public PwpMessage(final MessageType messageType, final byte[] payload) {
 		this.payload = payload;
 	    this.messageType = messageType;
+	    this.dataBlock = null;
+	    this.fileBlock = null;
 	}
 
+    /**
+     * Create a PIECE message from an already decoded block, without keeping a copy of the raw payload.
+     *
+     * @param dataBlock The received block
+     */
+    public PwpMessage(final DataBlock dataBlock) {
+        this.payload = EMPTY_PAYLOAD;
+        this.messageType = MessageType.PIECE;
+        this.dataBlock = dataBlock;
+        this.fileBlock = null;
+    }
+
+    /**
+     * Create a PIECE message, whose block is sent straight from the disk after the message's header.
+     *
+     * @param header The message's header, everything except for the block data
+     * @param fileBlock The block to send
+     */
+    public PwpMessage(final byte[] header, final FileDataBlock fileBlock) {
+        this.payload = header;
+        this.messageType = MessageType.PIECE;
+        this.dataBlock = null;
+        this.fileBlock = fileBlock;
+    }
+
 	public MessageType getMessageType() {
 		return messageType;
 	}
@@ -70,10 +107,20 @@ public class PwpMessage {
         return payload;
     }
 
+    public Optional<DataBlock> getDataBlock() {
+        return Optional.ofNullable(dataBlock);
+    }
+
+    public Optional<FileDataBlock> getFileBlock() {
+        return Optional.ofNullable(fileBlock);
+    }
+
     @Override
     public String toString() {
         return "PwpMessage{" +
                 "payload=" + Arrays.toString(payload) +
+                (dataBlock != null? ", dataBlock=" + dataBlock : "") +
+                (fileBlock != null? ", fileBlock=" + fileBlock : "") +
                 ", messageType=" + messageType +
                 '}';
     }
@@ -26,9 +26,11 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.BitSet;
+import java.util.Optional;
 
 import org.matic.torrent.hash.InfoHash;
 import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.io.FileDataBlock;
 import org.matic.torrent.client.ClientProperties;
 import org.matic.torrent.transfer.DataBlockIdentifier;
 import org.matic.torrent.utils.UnitConverter;
@@ -155,6 +157,33 @@ public final class PwpMessageFactory {
         }
     }
 
+    /**
+     * Create a PIECE message, whose block data is sent straight from the disk. Only the message's
+     * header is built here:
+     *
+     * [msg_length=int(9+block_data_length)][msg_id=byte(7)][piece_index=int][block_begin_offset=int]
+     *
+     * @param fileBlock Requested data block
+     * @return The constructed PIECE message
+     */
+    public static PwpMessage buildSendFileBlockMessage(final FileDataBlock fileBlock) {
+        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream(baos)) {
+
+            dos.writeInt(9 + fileBlock.getLength());    //Message length (9 + block_length)
+            dos.writeByte(7);                           //Message id
+            dos.writeInt(fileBlock.getPieceIndex());    //Piece index
+            dos.writeInt(fileBlock.getPieceOffset());   //Block offset within the piece
+            dos.flush();
+
+            return new PwpMessage(baos.toByteArray(), fileBlock);
+        }
+        catch(final IOException ioe) {
+            //This can't happen for ByteArrayOutputStream
+            return null;
+        }
+    }
+
     /**
      * Create a REQUEST message. The REQUEST message has the following format:
      *
@@ -181,6 +210,32 @@ public final class PwpMessageFactory {
         }
     }
 
+    /**
+     * Create a CANCEL message. The CANCEL message has the following format:
+     *
+     * [msg_length=int(13)][msg_id=byte(8)][piece_index=int][block_begin_offset=int][block_length=int]
+     *
+     * @param dataBlockIdentifier Data block request to cancel
+     * @return The constructed CANCEL message
+     */
+    public static PwpMessage buildCancelMessage(final DataBlockIdentifier dataBlockIdentifier) {
+        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(13);                               //Message length
+            dos.writeByte(8);                               //Message id
+            dos.writeInt(dataBlockIdentifier.getPieceIndex()); //Piece index
+            dos.writeInt(dataBlockIdentifier.getPieceOffset());//Block offset within the piece
+            dos.writeInt(dataBlockIdentifier.getBlockLength());//Cancelled block's length
+            dos.flush();
+
+            return new PwpMessage(PwpMessage.MessageType.CANCEL, baos.toByteArray());
+        }
+        catch(final IOException ioe) {
+            //This can't happen for ByteArrayOutputStream
+            return null;
+        }
+    }
+
     /**
      * Create a HAVE message. The HAVE message has the following format:
      *
@@ -248,6 +303,12 @@ public final class PwpMessageFactory {
     public static DataBlock parseBlockReceivedMessage(final PwpMessage message)
             throws InvalidPeerMessageException {
 
+        //The block has already been decoded while the message was being read from the connection
+        final Optional<DataBlock> decodedBlock = message.getDataBlock();
+        if(decodedBlock.isPresent()) {
+            return decodedBlock.get();
+        }
+
         final byte[] messagePayload = message.getPayload();
         try(final ByteArrayInputStream bais = new ByteArrayInputStream(messagePayload);
             final DataInputStream dis = new DataInputStream(bais)) {
@@ -0,0 +1,325 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.net.webseed;
+
+import org.matic.torrent.net.pwp.PeerSession;
+import org.matic.torrent.net.pwp.PwpMessage;
+import org.matic.torrent.net.pwp.PwpMessageEvent;
+import org.matic.torrent.net.pwp.PwpMessageListener;
+import org.matic.torrent.net.pwp.PwpPeer;
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.queue.QueuedTorrentMetaData;
+import org.matic.torrent.transfer.DataBlockIdentifier;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A download source that serves a torrent's blocks from an HTTP web seed (BEP 19). The requested blocks are
+ * fetched with HTTP range requests, contiguous blocks with a single request, and then delivered to the
+ * message listener as PIECE messages, as if they were sent by a regular peer.
+ *
+ * @author Vedran Matic
+ */
+public final class WebSeedConnection {
+
+    private static final int CONNECT_TIMEOUT = 10000;          //10 sec
+    private static final int READ_TIMEOUT = 30000;             //30 sec
+
+    //Stop using the web seed for a while after this many consecutive failures
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long FAILURE_BACKOFF_INTERVAL = 60000; //1 min
+
+    private final List<DataBlockIdentifier> pendingRequests = new LinkedList<>();
+    private final ExecutorService downloadExecutor;
+
+    private final PwpMessageListener messageListener;
+    private final QueuedTorrentMetaData metaData;
+    private final PeerSession peerSession;
+    private final String url;
+
+    private volatile int consecutiveFailures = 0;
+    private volatile long lastFailureTime = 0;
+
+    /**
+     * Create a new web seed connection.
+     *
+     * @param url Web seed location, as found in the torrent's url-list
+     * @param metaData Meta data of the torrent being downloaded
+     * @param messageListener Receiver of the downloaded blocks
+     * @throws MalformedURLException If the web seed location is invalid
+     */
+    public WebSeedConnection(final String url, final QueuedTorrentMetaData metaData,
+                             final PwpMessageListener messageListener) throws MalformedURLException {
+        this.url = url;
+        this.metaData = metaData;
+        this.messageListener = messageListener;
+
+        //Pending downloads must not keep the application running after it has been closed
+        downloadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread downloadThread = new Thread(runnable, "web-seed");
+            downloadThread.setDaemon(true);
+            return downloadThread;
+        });
+
+        final URL webSeedUrl = new URL(url);
+        final int port = webSeedUrl.getPort() != -1? webSeedUrl.getPort() : webSeedUrl.getDefaultPort();
+
+        //A web seed has all of the pieces and never chokes us
+        peerSession = new WebSeedSession(new PwpPeer(webSeedUrl.getHost(), port, metaData.getInfoHash()), url);
+        peerSession.setClientId("Web seed");
+        peerSession.setHasAllPieces(metaData.getTotalPieces());
+        peerSession.setChokingUs(false);
+        peerSession.setAreWeInterestedIn(true);
+    }
+
+    /**
+     * @return The session through which the blocks are requested from and delivered by this web seed
+     */
+    public PeerSession getPeerSession() {
+        return peerSession;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Check whether the web seed can be used, or whether it has been failing and should be left alone for a while.
+     *
+     * @return true if blocks can be requested from this web seed, false otherwise
+     */
+    public boolean isAvailable() {
+        return consecutiveFailures < MAX_CONSECUTIVE_FAILURES
+                || System.currentTimeMillis() - lastFailureTime > FAILURE_BACKOFF_INTERVAL;
+    }
+
+    /**
+     * Queue blocks for download.
+     *
+     * @param blockRequests Blocks to download
+     */
+    public void request(final Collection<DataBlockIdentifier> blockRequests) {
+        synchronized(pendingRequests) {
+            pendingRequests.addAll(blockRequests);
+        }
+        downloadExecutor.submit(this::processPendingRequests);
+    }
+
+    /**
+     * Remove a block from the download queue, unless its download has already started.
+     *
+     * @param blockRequest Block to cancel
+     */
+    public void cancel(final DataBlockIdentifier blockRequest) {
+        synchronized(pendingRequests) {
+            pendingRequests.remove(blockRequest);
+        }
+    }
+
+    public void shutdown() {
+        downloadExecutor.shutdownNow();
+    }
+
+    private void processPendingRequests() {
+        List<DataBlockIdentifier> blockRun;
+        while(!(blockRun = takeContiguousRequests()).isEmpty()) {
+            final DataBlockIdentifier firstBlock = blockRun.get(0);
+            final long torrentPosition = (long)firstBlock.getPieceIndex() * metaData.getPieceLength()
+                    + firstBlock.getPieceOffset();
+            final int runLength = blockRun.stream().mapToInt(DataBlockIdentifier::getBlockLength).sum();
+
+            final byte[] runData;
+            try {
+                runData = download(torrentPosition, runLength);
+            } catch (final IOException ioe) {
+                System.err.println("Web seed " + url + " failed: " + ioe);
+                ++consecutiveFailures;
+                lastFailureTime = System.currentTimeMillis();
+
+                //The remaining requests will time out and be re-assigned to other peers
+                synchronized(pendingRequests) {
+                    pendingRequests.clear();
+                }
+                return;
+            }
+
+            consecutiveFailures = 0;
+
+            int runOffset = 0;
+            for(final DataBlockIdentifier block : blockRun) {
+                final ByteBuffer payload = ByteBuffer.allocate(8 + block.getBlockLength());
+                payload.putInt(block.getPieceIndex());
+                payload.putInt(block.getPieceOffset());
+                payload.put(runData, runOffset, block.getBlockLength());
+                runOffset += block.getBlockLength();
+
+                messageListener.onMessageReceived(new PwpMessageEvent(
+                        new PwpMessage(PwpMessage.MessageType.PIECE, payload.array()), peerSession));
+            }
+        }
+    }
+
+    //Take the first pending block and the ones that directly follow it within the same piece
+    private List<DataBlockIdentifier> takeContiguousRequests() {
+        final List<DataBlockIdentifier> blockRun = new ArrayList<>();
+        synchronized(pendingRequests) {
+            while(!pendingRequests.isEmpty()) {
+                final DataBlockIdentifier nextBlock = pendingRequests.get(0);
+                if(!blockRun.isEmpty()) {
+                    final DataBlockIdentifier lastBlock = blockRun.get(blockRun.size() - 1);
+                    if(nextBlock.getPieceIndex() != lastBlock.getPieceIndex() ||
+                            nextBlock.getPieceOffset() != lastBlock.getPieceOffset() + lastBlock.getBlockLength()) {
+                        break;
+                    }
+                }
+                blockRun.add(pendingRequests.remove(0));
+            }
+        }
+        return blockRun;
+    }
+
+    //Download the data at a torrent position, which might span several files
+    private byte[] download(final long torrentPosition, final int length) throws IOException {
+        final byte[] data = new byte[length];
+        int dataOffset = 0;
+
+        for(final QueuedFileMetaData fileMetaData : metaData.getFiles()) {
+            final long fileStart = fileMetaData.getOffset();
+            final long fileEnd = fileStart + fileMetaData.getLength();
+            final long position = torrentPosition + dataOffset;
+
+            if(dataOffset == length) {
+                break;
+            }
+            if(position >= fileEnd || fileMetaData.getLength() == 0) {
+                continue;
+            }
+
+            final int segmentLength = (int)Math.min(length - dataOffset, fileEnd - position);
+            downloadRange(getFileUrl(fileMetaData), position - fileStart, data, dataOffset, segmentLength);
+            dataOffset += segmentLength;
+        }
+
+        if(dataOffset != length) {
+            throw new IOException("Requested data is out of the torrent's bounds: "
+                    + torrentPosition + " + " + length);
+        }
+        return data;
+    }
+
+    private void downloadRange(final URL fileUrl, final long filePosition, final byte[] data,
+                               final int dataOffset, final int length) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)fileUrl.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Range", "bytes=" + filePosition + "-" + (filePosition + length - 1));
+
+        try {
+            final int responseCode = connection.getResponseCode();
+            if(responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response from " + fileUrl + ": " + responseCode);
+            }
+
+            try(final InputStream responseStream = connection.getInputStream();
+                final DataInputStream dataStream = new DataInputStream(responseStream)) {
+                //Skip to the requested range, in case the server ignored it and sent the whole file
+                for(long bytesToSkip = responseCode == HttpURLConnection.HTTP_OK? filePosition : 0;
+                        bytesToSkip > 0;) {
+                    final long skippedBytes = dataStream.skip(bytesToSkip);
+                    if(skippedBytes <= 0) {
+                        throw new IOException("Unexpected end of data from " + fileUrl);
+                    }
+                    bytesToSkip -= skippedBytes;
+                }
+                dataStream.readFully(data, dataOffset, length);
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    //Single file torrents use the url as is, unless it is a directory; multi-file torrents append name/path
+    private URL getFileUrl(final QueuedFileMetaData fileMetaData) throws IOException {
+        final StringBuilder fileUrl = new StringBuilder(url);
+
+        if(metaData.isSingleFile()) {
+            if(url.endsWith("/")) {
+                fileUrl.append(encodePathElement(metaData.getName()));
+            }
+        }
+        else {
+            if(!url.endsWith("/")) {
+                fileUrl.append('/');
+            }
+            fileUrl.append(encodePathElement(metaData.getName()));
+            for(final Path pathElement : fileMetaData.getPath()) {
+                fileUrl.append('/').append(encodePathElement(pathElement.toString()));
+            }
+        }
+
+        return new URL(fileUrl.toString());
+    }
+
+    private static String encodePathElement(final String pathElement) throws UnsupportedEncodingException {
+        return URLEncoder.encode(pathElement, StandardCharsets.UTF_8.name()).replace("+", "%20");
+    }
+
+    //Several web seeds may be served by the same host and port, so a web seed is identified by its url instead
+    private static final class WebSeedSession extends PeerSession {
+
+        private final String url;
+
+        WebSeedSession(final PwpPeer peer, final String url) {
+            super(peer, false);
+            this.url = url;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            WebSeedSession that = (WebSeedSession) o;
+            return super.equals(that) && url.equals(that.url);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), url);
+        }
+    }
+}
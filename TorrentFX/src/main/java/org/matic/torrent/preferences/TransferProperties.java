@@ -31,4 +31,49 @@ public final class TransferProperties {
     public static final int DEFAULT_ACTIVE_TORRENTS_LIMIT = 5;
     public static final int DEFAULT_DOWNLOADING_TORRENTS_LIMIT = 3;
     public static final int DEFAULT_UPLOADING_TORRENTS_LIMIT = 3;
-}
\ No newline at end of file
+
+    //Choking algorithm used while seeding
+    public static final String SEEDING_CHOKER = "transfer.choker.seeding";
+    public static final String SEEDING_CHOKER_ROUND_ROBIN = "round_robin";
+    public static final String SEEDING_CHOKER_FASTEST_UPLOAD = "fastest_upload";
+
+    public static final String DEFAULT_SEEDING_CHOKER = SEEDING_CHOKER_ROUND_ROBIN;
+
+    //Piece selection algorithm used while downloading (unless streaming)
+    public static final String PIECE_SELECTION = "transfer.piece.selection";
+    public static final String PIECE_SELECTION_RAREST_FIRST = "rarest_first";
+    public static final String PIECE_SELECTION_DEMAND_WEIGHTED = "demand_weighted";
+
+    public static final String DEFAULT_PIECE_SELECTION = PIECE_SELECTION_RAREST_FIRST;
+
+    //Local (loopback only) HTTP server for streaming files while they are being downloaded
+    public static final String STREAMING_SERVER_PORT = "transfer.streaming.port";
+
+    public static final long DEFAULT_STREAMING_SERVER_PORT = 0;    //Any free port
+
+    //Whether to download from the torrents' HTTP web seeds (url-list), in addition to peers
+    public static final String WEB_SEEDS_ENABLED = "transfer.webseeds.enabled";
+
+    public static final boolean DEFAULT_WEB_SEEDS_ENABLED = true;
+
+    //Number of threads reading and writing the pieces of all of the torrents
+    public static final String DISK_IO_THREADS = "transfer.disk.threads";
+
+    public static final long DEFAULT_DISK_IO_THREADS = 4;
+
+    //Whether to read the pieces from the files mapped into memory, instead of copying them onto the heap
+    public static final String DISK_MAPPED_READS = "transfer.disk.mmap";
+
+    public static final boolean DEFAULT_DISK_MAPPED_READS = false;
+
+    //Whether to send the uploaded blocks straight from the files to the peers' connections (zero-copy).
+    //The files are then read on the connection thread, which is only worth it if the disks are fast
+    public static final String ZERO_COPY_UPLOADS = "transfer.upload.zerocopy";
+
+    public static final boolean DEFAULT_ZERO_COPY_UPLOADS = false;
+
+    //Memory (in bytes) that may be held by the pieces being downloaded by all of the torrents
+    public static final String PIECE_MEMORY_LIMIT = "transfer.piece.memory.limit";
+
+    public static final long DEFAULT_PIECE_MEMORY_LIMIT = 64 * 1048576;   //64 MB
+}
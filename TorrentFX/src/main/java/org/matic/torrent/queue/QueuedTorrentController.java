@@ -49,10 +49,15 @@ import org.matic.torrent.tracking.TrackerManager;
 import org.matic.torrent.tracking.methods.dht.DhtSession;
 import org.matic.torrent.tracking.methods.peerdiscovery.LocalPeerDiscoverySession;
 import org.matic.torrent.tracking.methods.pex.PeerExchangeSession;
+import org.matic.torrent.transfer.PieceMemoryBudget;
 import org.matic.torrent.transfer.TransferController;
 import org.matic.torrent.transfer.TransferStatusChangeEvent;
+import org.matic.torrent.transfer.UploadSlotManager;
+import org.matic.torrent.transfer.streaming.StreamingDataSource;
+import org.matic.torrent.transfer.streaming.StreamingServer;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -65,6 +70,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -105,6 +111,18 @@ public final class QueuedTorrentController implements PreferenceChangeListener,
 
     //TODO: Read cache size from a property. Also, add a cache timeout property
     private final DataPieceCache pieceCache = new DataPieceCache(128 * 1048576);    //128 MB
+    private final UploadSlotManager uploadSlotManager = new UploadSlotManager();
+    private final PieceMemoryBudget pieceMemoryBudget = new PieceMemoryBudget(ApplicationPreferences.getProperty(
+            TransferProperties.PIECE_MEMORY_LIMIT, TransferProperties.DEFAULT_PIECE_MEMORY_LIMIT));
+    private final ExecutorService diskIOExecutor = Executors.newFixedThreadPool(
+            (int)ApplicationPreferences.getProperty(TransferProperties.DISK_IO_THREADS,
+                    TransferProperties.DEFAULT_DISK_IO_THREADS), runnable -> {
+                final Thread diskIOThread = new Thread(runnable, "disk-io");
+                diskIOThread.setDaemon(true);
+                return diskIOThread;
+            });
+    private final StreamingServer streamingServer = new StreamingServer((int)ApplicationPreferences.getProperty(
+            TransferProperties.STREAMING_SERVER_PORT, TransferProperties.DEFAULT_STREAMING_SERVER_PORT));
 
     public QueuedTorrentController(final DataPersistenceSupport persistenceSupport,
                                    final TrackerManager trackerManager,
@@ -215,6 +233,7 @@ public final class QueuedTorrentController implements PreferenceChangeListener,
      * Store the torrents' progress and properties when shutting down the client.
      */
     public void storeState() {
+        streamingServer.stop();
         transferExecutor.shutdownNow();
         try {
             transferExecutor.awaitTermination(10, TimeUnit.SECONDS);
@@ -235,6 +254,56 @@ public final class QueuedTorrentController implements PreferenceChangeListener,
                 persistenceSupport.store(t.getMetaData(), progress);
             });
         }
+
+        //The transfers have already waited for their disk writes, let any remaining ones complete
+        diskIOExecutor.shutdown();
+    }
+
+    /**
+     * Enable or disable super-seeding (BEP 16) for a torrent. The setting is stored with the torrent's
+     * progress and takes effect immediately if the torrent is being transferred.
+     *
+     * @param torrentView A view of the target torrent
+     * @param superSeeding Whether to use super-seeding while we are the seed
+     */
+    public void setSuperSeeding(final TorrentView torrentView, final boolean superSeeding) {
+        synchronized(queuedTorrents) {
+            torrentView.getProgress().setSuperSeeding(superSeeding);
+
+            final QueuedTorrentJob torrentJob = queuedTorrentJobs.get(torrentView.getInfoHash());
+            if(torrentJob != null) {
+                torrentJob.getTransferController().superSeedingChanged(superSeeding);
+            }
+        }
+    }
+
+    /**
+     * Make one of a torrent's files available for playback (on the local machine only) while it is
+     * being downloaded. The torrent must be in the streaming mode.
+     *
+     * @param torrentView A view of the torrent to which the file belongs
+     * @param fileMetaData The file to stream
+     * @return Location from which a media player can stream the file, if the file can be streamed
+     * @throws IOException If the streaming server could not be started
+     */
+    public Optional<URI> streamFile(final TorrentView torrentView,
+                                    final QueuedFileMetaData fileMetaData) throws IOException {
+        synchronized(queuedTorrents) {
+            final QueuedTorrentJob torrentJob = queuedTorrentJobs.get(torrentView.getInfoHash());
+            if(torrentJob == null) {
+                return Optional.empty();
+            }
+
+            final Optional<StreamingDataSource> dataSource =
+                    torrentJob.getTransferController().createStreamingDataSource(fileMetaData);
+            if(!dataSource.isPresent()) {
+                return Optional.empty();
+            }
+
+            streamingServer.start();
+            final int fileIndex = torrentView.getMetaData().getFileMetaDataIndex(fileMetaData);
+            return Optional.of(streamingServer.publish(torrentView.getInfoHash() + "/" + fileIndex, dataSource.get()));
+        }
     }
 
     /**
@@ -301,7 +370,8 @@ public final class QueuedTorrentController implements PreferenceChangeListener,
     }
 
     private void initTransferController(final QueuedTorrent torrent, final TorrentView torrentView) {
-        final TransferController transferController = new TransferController(torrentView, connectionManager, pieceCache);
+        final TransferController transferController = new TransferController(
+                torrentView, connectionManager, pieceCache, uploadSlotManager, pieceMemoryBudget, diskIOExecutor);
         torrentView.getFileTree().addFilePriorityChangeListener(transferController);
 
         transferController.addStatusChangeListener(event -> {
@@ -104,6 +104,28 @@ public class QueuedTorrentMetaData {
         return createdBy != null? createdBy.getValue() : "";
     }
 
+    /**
+     * Get the HTTP(S) web seed locations (BEP 19) of this torrent, if any.
+     *
+     * @return Web seed URLs
+     */
+    public List<String> getWebSeeds() {
+        final BinaryEncodable urlList = metaData.get(BinaryEncodingKeys.KEY_URL_LIST);
+        final List<String> webSeeds = new ArrayList<>();
+
+        //The url-list is either a single URL or a list of them
+        if(urlList instanceof BinaryEncodedString) {
+            webSeeds.add(((BinaryEncodedString)urlList).getValue());
+        }
+        else if(urlList instanceof BinaryEncodedList) {
+            ((BinaryEncodedList)urlList).stream().filter(url -> url instanceof BinaryEncodedString).forEach(
+                    url -> webSeeds.add(((BinaryEncodedString)url).getValue()));
+        }
+
+        return webSeeds.stream().filter(url -> url.startsWith("http://") || url.startsWith("https://"))
+                .collect(Collectors.toList());
+    }
+
     public List<QueuedFileMetaData> getFiles() {
         return fileMetaDatas;
     }
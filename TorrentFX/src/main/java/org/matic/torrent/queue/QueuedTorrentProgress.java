@@ -36,7 +36,9 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -118,6 +120,46 @@ public final class QueuedTorrentProgress {
         torrentState.put(BinaryEncodingKeys.STATE_KEY_PIECES, pieceList);
     }
 
+    /**
+     * Get the blocks that were received for the pieces that were only partially downloaded.
+     *
+     * @return Received block indexes, mapped to the index of the piece they belong to
+     */
+    public Map<Integer, BitSet> getPartialPieces() {
+        final BinaryEncodedList partialPieces = (BinaryEncodedList)torrentState.get(
+                BinaryEncodingKeys.STATE_KEY_PARTIAL_PIECES);
+        if(partialPieces == null) {
+            return Collections.emptyMap();
+        }
+
+        //Each partial piece is stored as a list: [piece_index, received_blocks_bitset_words...]
+        final Map<Integer, BitSet> partialPieceBlocks = new HashMap<>();
+        partialPieces.stream().map(partialPiece -> (BinaryEncodedList)partialPiece).forEach(partialPiece -> {
+            final long[] blockBitSetArray = new long[partialPiece.size() - 1];
+            for(int i = 0; i < blockBitSetArray.length; ++i) {
+                blockBitSetArray[i] = ((BinaryEncodedInteger)partialPiece.get(i + 1)).getValue();
+            }
+            final int pieceIndex = (int)((BinaryEncodedInteger)partialPiece.get(0)).getValue();
+            partialPieceBlocks.put(pieceIndex, BitSet.valueOf(blockBitSetArray));
+        });
+
+        return partialPieceBlocks;
+    }
+
+    public void storePartialPieces(final Map<Integer, BitSet> partialPieceBlocks) {
+        final BinaryEncodedList partialPieces = new BinaryEncodedList();
+
+        partialPieceBlocks.forEach((pieceIndex, blocks) -> {
+            final BinaryEncodedList partialPiece = new BinaryEncodedList();
+            partialPiece.add(new BinaryEncodedInteger(pieceIndex));
+            Arrays.stream(blocks.toLongArray()).forEach(
+                    arrayElement -> partialPiece.add(new BinaryEncodedInteger(arrayElement)));
+            partialPieces.add(partialPiece);
+        });
+
+        torrentState.put(BinaryEncodingKeys.STATE_KEY_PARTIAL_PIECES, partialPieces);
+    }
+
     public void addTrackerUrls(final Set<String> trackerUrls) {
         BinaryEncodedList list = (BinaryEncodedList)torrentState.get(
                 BinaryEncodingKeys.KEY_ANNOUNCE_LIST);
@@ -184,6 +226,38 @@ public final class QueuedTorrentProgress {
         return FilePriority.values()[(int)filePriority.getValue()];
     }
 
+    /**
+     * Enable or disable super-seeding (BEP 16) for this torrent. The change is applied the next time
+     * the torrent is started.
+     *
+     * @param superSeeding Whether to use super-seeding while we are the seed
+     */
+    public void setSuperSeeding(final boolean superSeeding) {
+        torrentState.put(BinaryEncodingKeys.STATE_KEY_SUPER_SEEDING, new BinaryEncodedInteger(superSeeding? 1 : 0));
+    }
+
+    public boolean isSuperSeeding() {
+        final BinaryEncodedInteger superSeeding = (BinaryEncodedInteger)torrentState.get(
+                BinaryEncodingKeys.STATE_KEY_SUPER_SEEDING);
+        return superSeeding != null && superSeeding.getValue() == 1;
+    }
+
+    /**
+     * Enable or disable the streaming mode for this torrent, in which the pieces are downloaded in the
+     * playback order. The change is applied the next time the torrent is started.
+     *
+     * @param streaming Whether to download the pieces for streaming
+     */
+    public void setStreaming(final boolean streaming) {
+        torrentState.put(BinaryEncodingKeys.STATE_KEY_STREAMING, new BinaryEncodedInteger(streaming? 1 : 0));
+    }
+
+    public boolean isStreaming() {
+        final BinaryEncodedInteger streaming = (BinaryEncodedInteger)torrentState.get(
+                BinaryEncodingKeys.STATE_KEY_STREAMING);
+        return streaming != null && streaming.getValue() == 1;
+    }
+
     protected void setAddedOn(final long addedOnMillis) {
         torrentState.put(BinaryEncodingKeys.STATE_KEY_ADDED_ON, new BinaryEncodedInteger(addedOnMillis));
     }
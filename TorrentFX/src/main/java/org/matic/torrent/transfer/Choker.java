@@ -0,0 +1,43 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.net.pwp.PeerSession;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A choker decides which of the peers interested in us should get one of our upload slots
+ * during a choking rotation.
+ *
+ * @author Vedran Matic
+ */
+public interface Choker {
+
+    /**
+     * Order the unchoke candidates by preference. The first peers in the returned list
+     * will be given the regular upload slots, the rest will be choked.
+     *
+     * @param candidates Peers that are interested in our pieces
+     * @return Candidates ordered by preference, the most deserving peer first
+     */
+    List<PeerSession> rankPeers(Collection<PeerSession> candidates);
+}
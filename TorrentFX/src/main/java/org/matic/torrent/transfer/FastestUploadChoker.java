@@ -0,0 +1,46 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.net.pwp.PeerSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A choker used while seeding. Upload slots are given to the peers we can upload to at the highest rates,
+ * which maximizes the rate at which our data is spread in the swarm.
+ *
+ * @author Vedran Matic
+ */
+public final class FastestUploadChoker implements Choker {
+
+    /**
+     * @see Choker#rankPeers(Collection)
+     */
+    @Override
+    public List<PeerSession> rankPeers(final Collection<PeerSession> candidates) {
+        final List<PeerSession> rankedPeers = new ArrayList<>(candidates);
+        rankedPeers.sort(Comparator.comparingDouble(PeerSession::getUploadRate).reversed());
+        return rankedPeers;
+    }
+}
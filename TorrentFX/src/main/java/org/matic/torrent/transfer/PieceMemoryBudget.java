@@ -0,0 +1,128 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.hash.InfoHash;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits the memory held by the pieces that are being downloaded, shared by all of the active torrents.
+ * A piece holds its whole length in memory from the moment it is first requested until it has been
+ * written to the disk, so a torrent may only start on a new piece if the piece fits within the budget.
+ *
+ * A torrent that is refused memory while holding less than its fair share of the budget (or nothing at all)
+ * is put on hold, and until it gets its piece, the torrents already holding their fair share may not grow,
+ * so that no torrent can be starved by the others.
+ *
+ * @author Vedran Matic
+ */
+public final class PieceMemoryBudget {
+
+    private final Map<InfoHash, Long> usedBytes = new HashMap<>();
+
+    //Torrents that were refused memory while holding less than their fair share
+    private final Set<InfoHash> waitingTorrents = new HashSet<>();
+
+    private final long memoryLimit;
+
+    private long totalUsedBytes = 0;
+
+    /**
+     * Create a new instance.
+     *
+     * @param memoryLimit Maximum total length (in bytes) of all of the pieces being downloaded
+     */
+    public PieceMemoryBudget(final long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Check whether a torrent may start on a new piece, and if so, include the piece in the torrent's usage.
+     *
+     * @param infoHash Torrent requesting the memory
+     * @param torrentUsedBytes Memory (in bytes) that the torrent's pieces currently hold
+     * @param pieceLength Length of the new piece
+     * @return Whether the torrent may allocate the piece
+     */
+    public synchronized boolean tryAllocate(final InfoHash infoHash, final long torrentUsedBytes,
+                                            final long pieceLength) {
+        updateUsage(infoHash, torrentUsedBytes);
+
+        //A torrent without any pieces in memory is always entitled to wait for one
+        final boolean withinFairShare = torrentUsedBytes == 0
+                || torrentUsedBytes + pieceLength <= memoryLimit / getTorrentCount(infoHash);
+        final boolean mayGrow = waitingTorrents.isEmpty() || waitingTorrents.contains(infoHash) || withinFairShare;
+
+        //A piece longer than the whole budget can only be held on its own
+        final boolean fitsWithinLimit = totalUsedBytes + pieceLength <= memoryLimit || totalUsedBytes == 0;
+
+        if(!mayGrow || !fitsWithinLimit) {
+            if(withinFairShare) {
+                waitingTorrents.add(infoHash);
+            }
+            return false;
+        }
+
+        waitingTorrents.remove(infoHash);
+        updateUsage(infoHash, torrentUsedBytes + pieceLength);
+        return true;
+    }
+
+    /**
+     * Report the memory that a torrent's pieces currently hold, for example after a piece has been written.
+     *
+     * @param infoHash Reporting torrent
+     * @param torrentUsedBytes Memory (in bytes) held by the torrent's pieces
+     */
+    public synchronized void updateUsage(final InfoHash infoHash, final long torrentUsedBytes) {
+        final Long previousUsage = torrentUsedBytes > 0? usedBytes.put(infoHash, torrentUsedBytes) :
+                usedBytes.remove(infoHash);
+        totalUsedBytes += torrentUsedBytes - (previousUsage != null? previousUsage : 0);
+    }
+
+    /**
+     * Release all of the memory held by a torrent's pieces.
+     *
+     * @param infoHash Torrent to remove
+     */
+    public synchronized void unregister(final InfoHash infoHash) {
+        waitingTorrents.remove(infoHash);
+        updateUsage(infoHash, 0);
+    }
+
+    /**
+     * @return Total memory (in bytes) held by the pieces of all of the torrents
+     */
+    public synchronized long getUsedBytes() {
+        return totalUsedBytes;
+    }
+
+    //Torrents holding or waiting for memory, including the requesting one
+    private int getTorrentCount(final InfoHash infoHash) {
+        final Set<InfoHash> torrents = new HashSet<>(usedBytes.keySet());
+        torrents.addAll(waitingTorrents);
+        torrents.add(infoHash);
+        return torrents.size();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.net.pwp.PeerSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A choker used while seeding. Each interested peer gets an upload slot for a fixed amount of time,
+ * after which the slot is given to the peer that has waited the longest since it was last unchoked.
+ *
+ * @author Vedran Matic
+ */
+public final class RoundRobinChoker implements Choker {
+
+    private final long slotDuration;
+
+    /**
+     * Create a new instance.
+     *
+     * @param slotDuration For how long (in millis) an unchoked peer keeps its upload slot
+     */
+    public RoundRobinChoker(final long slotDuration) {
+        this.slotDuration = slotDuration;
+    }
+
+    /**
+     * @see Choker#rankPeers(Collection)
+     */
+    @Override
+    public List<PeerSession> rankPeers(final Collection<PeerSession> candidates) {
+        final long currentTime = System.currentTimeMillis();
+        final List<PeerSession> rankedPeers = new ArrayList<>(candidates);
+
+        //Peers whose turn is not over yet come first, followed by the ones that have waited the longest
+        rankedPeers.sort(Comparator.comparing((PeerSession peer) -> !isTurnInProgress(peer, currentTime))
+                .thenComparingLong(PeerSession::getUnchokedByUsTime));
+        return rankedPeers;
+    }
+
+    private boolean isTurnInProgress(final PeerSession peer, final long currentTime) {
+        return !peer.areWeChoking() && currentTime - peer.getUnchokedByUsTime() < slotDuration;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.net.pwp.PeerSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Attributes piece hash failures to the peers that sent the corrupt data ("smart ban").
+ *
+ * The peer that sent each block of a piece is recorded. If a failed piece was sent by a single peer, that
+ * peer is to blame. Otherwise, a hash of each block and its sender is stored, and the piece is downloaded
+ * again from a single peer. Once the piece validates, the blocks that differ from the stored ones identify
+ * the peers that sent the corrupt data.
+ *
+ * @author Vedran Matic
+ */
+public final class SmartBanTracker {
+
+    //Senders of the received blocks of the pieces being downloaded (piece index -> block index -> sender)
+    private final Map<Integer, Map<Integer, PeerSession>> blockSenders = new HashMap<>();
+
+    //Blocks received for the pieces that have failed the hash check (piece index -> block index -> blocks)
+    private final Map<Integer, Map<Integer, List<FailedBlock>>> failedPieceBlocks = new HashMap<>();
+
+    private final int blockLength;
+
+    /**
+     * Create a tracker for the pieces downloaded in blocks of a given length.
+     *
+     * @param blockLength Length of the requested blocks (the last block of a piece may be shorter)
+     */
+    public SmartBanTracker(final int blockLength) {
+        this.blockLength = blockLength;
+    }
+
+    /**
+     * Record the sender of a received block.
+     *
+     * @param pieceIndex Index of the piece the block belongs to
+     * @param pieceOffset Offset of the block within the piece
+     * @param sender Peer that sent the block
+     */
+    public void blockReceived(final int pieceIndex, final int pieceOffset, final PeerSession sender) {
+        if(pieceOffset % blockLength == 0) {
+            blockSenders.computeIfAbsent(pieceIndex, key -> new HashMap<>()).put(pieceOffset / blockLength, sender);
+        }
+    }
+
+    /**
+     * Check whether a piece has failed a hash check earlier and should be downloaded from a single peer.
+     *
+     * @param pieceIndex Index of the piece to check
+     * @return true if the piece is under suspicion, false otherwise
+     */
+    public boolean isSuspectPiece(final int pieceIndex) {
+        return failedPieceBlocks.containsKey(pieceIndex);
+    }
+
+    /**
+     * Handle a piece that has failed the hash check.
+     *
+     * @param dataPiece The failed piece
+     * @return The peers proven to have sent corrupt data, if any
+     */
+    public Set<PeerSession> pieceFailed(final DataPiece dataPiece) {
+        final int pieceIndex = dataPiece.getIndex();
+        final Map<Integer, PeerSession> senders = blockSenders.remove(pieceIndex);
+
+        if(senders == null) {
+            return Collections.emptySet();
+        }
+
+        //The whole piece was sent by a single peer, no need to compare any blocks
+        final Set<PeerSession> distinctSenders = new HashSet<>(senders.values());
+        if(distinctSenders.size() == 1 && senders.size() == getBlockCount(dataPiece)) {
+            return distinctSenders;
+        }
+
+        //Keep the blocks of all failed downloads, any of their senders may have sent corrupt data
+        final Map<Integer, List<FailedBlock>> failedBlocks = failedPieceBlocks.computeIfAbsent(
+                pieceIndex, key -> new HashMap<>());
+        senders.forEach((blockIndex, sender) -> getBlockHash(dataPiece, blockIndex).ifPresent(
+                blockHash -> failedBlocks.computeIfAbsent(blockIndex, key -> new ArrayList<>()).add(
+                        new FailedBlock(sender, blockHash))));
+
+        return Collections.emptySet();
+    }
+
+    /**
+     * Handle a piece that has passed the hash check. If the piece has failed earlier, its blocks
+     * are compared with the ones received in the failed downloads.
+     *
+     * @param dataPiece The validated piece
+     * @return The peers that have sent the blocks that differ from the validated piece's blocks
+     */
+    public Set<PeerSession> pieceValidated(final DataPiece dataPiece) {
+        final int pieceIndex = dataPiece.getIndex();
+        blockSenders.remove(pieceIndex);
+
+        final Map<Integer, List<FailedBlock>> failedBlocks = failedPieceBlocks.remove(pieceIndex);
+        if(failedBlocks == null) {
+            return Collections.emptySet();
+        }
+
+        final Set<PeerSession> corruptDataSenders = new HashSet<>();
+        failedBlocks.forEach((blockIndex, blocks) -> {
+            final Optional<byte[]> validBlockHash = getBlockHash(dataPiece, blockIndex);
+            if(validBlockHash.isPresent()) {
+                blocks.stream().filter(failedBlock -> !Arrays.equals(validBlockHash.get(), failedBlock.blockHash))
+                        .forEach(failedBlock -> corruptDataSenders.add(failedBlock.sender));
+            }
+        });
+
+        return corruptDataSenders;
+    }
+
+    private Optional<byte[]> getBlockHash(final DataPiece dataPiece, final int blockIndex) {
+        final int pieceOffset = blockIndex * blockLength;
+        return dataPiece.getBlockHash(pieceOffset, Math.min(blockLength, dataPiece.getLength() - pieceOffset));
+    }
+
+    private int getBlockCount(final DataPiece dataPiece) {
+        return (dataPiece.getLength() + blockLength - 1) / blockLength;
+    }
+
+    private static final class FailedBlock {
+        private final PeerSession sender;
+        private final byte[] blockHash;
+
+        FailedBlock(final PeerSession sender, final byte[] blockHash) {
+            this.sender = sender;
+            this.blockHash = blockHash;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.net.pwp.PeerSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A choker used while we are downloading. Upload slots are given to the peers that
+ * have recently been uploading to us at the highest rates (tit-for-tat). Peers that
+ * have snubbed us are only considered after everybody else.
+ *
+ * @author Vedran Matic
+ */
+public final class TitForTatChoker implements Choker {
+
+    /**
+     * @see Choker#rankPeers(Collection)
+     */
+    @Override
+    public List<PeerSession> rankPeers(final Collection<PeerSession> candidates) {
+        final List<PeerSession> rankedPeers = new ArrayList<>(candidates);
+        rankedPeers.sort(Comparator.comparing(PeerSession::isSnubbed)
+                .thenComparing(Comparator.comparingDouble(PeerSession::getDownloadRate).reversed())
+                .thenComparing(Comparator.comparingDouble(PeerSession::getUploadRate).reversed()));
+        return rankedPeers;
+    }
+}
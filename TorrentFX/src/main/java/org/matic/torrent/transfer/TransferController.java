@@ -30,6 +30,7 @@ import org.matic.torrent.gui.model.TorrentView;
 import org.matic.torrent.hash.InfoHash;
 import org.matic.torrent.io.DataBlock;
 import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.io.FileDataBlock;
 import org.matic.torrent.io.FileIOWorker;
 import org.matic.torrent.io.FileOperationResult;
 import org.matic.torrent.io.ReadDataPieceRequest;
@@ -47,20 +48,30 @@ import org.matic.torrent.net.pwp.PwpMessageEvent;
 import org.matic.torrent.net.pwp.PwpMessageFactory;
 import org.matic.torrent.net.pwp.PwpMessageListener;
 import org.matic.torrent.net.pwp.PwpMessageRequest;
+import org.matic.torrent.net.webseed.WebSeedConnection;
+import org.matic.torrent.preferences.ApplicationPreferences;
+import org.matic.torrent.preferences.TransferProperties;
 import org.matic.torrent.queue.QueuedFileMetaData;
 import org.matic.torrent.queue.action.FilePriorityChangeEvent;
 import org.matic.torrent.queue.action.FilePriorityChangeListener;
+import org.matic.torrent.transfer.strategy.DemandWeightedPieceSelectionStrategy;
+import org.matic.torrent.transfer.strategy.PiecePriorityTable;
 import org.matic.torrent.transfer.strategy.PieceSelectionStrategy;
 import org.matic.torrent.transfer.strategy.RarestFirstPieceSelectionStrategy;
+import org.matic.torrent.transfer.strategy.StreamingPieceSelectionStrategy;
+import org.matic.torrent.transfer.streaming.StreamingDataSource;
+import org.matic.torrent.transfer.streaming.TorrentStreamingDataSource;
 import org.matic.torrent.utils.UnitConverter;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -70,9 +81,8 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -85,17 +95,41 @@ import java.util.stream.Collectors;
 public final class TransferController implements PwpMessageListener, PwpConnectionStateListener,
         FilePriorityChangeListener, Runnable {
 
-    //4 interested and 1 optimistic client
-    private static final int MAX_UNCHOKED_PEERS = 5;
     private static final int MAX_RAREST_PIECES = 10;
 
+    //How many of the first pieces are selected at random among the most available ones, instead of rarest first
+    private static final int RANDOM_FIRST_PIECES = 4;
+
     private static final int MAX_BLOCK_REQUESTS_PER_PEER = 19;
+    private static final int MIN_BLOCK_REQUESTS_PER_PEER = 2;
+
+    //How many more pieces than there are peers unchoking us may be partially downloaded at the same time
+    private static final int EXTRA_OPEN_PIECES = 1;
+
+    //A peer sending to us at less than this fraction of the average rate is slow, it joins the pieces in progress
+    private static final double SLOW_PEER_RATE_RATIO = 0.5;
     private static final int REQUESTED_BLOCK_LENGTH = 16384;    //16 kB
 
+    //How many pieces following the playback position are downloaded in order when streaming
+    private static final int STREAMING_DEADLINE_WINDOW = 10;
+
+    //How far past a requested piece to look for pieces that the requester is likely to ask for next
+    private static final int READ_AHEAD_WINDOW = 8;
+
     //Various choking algorithm timeouts
     private static final long OPTIMISTIC_ROTATION_INTERVAL = 30000; //30 sec
     private static final long CHOKING_ROTATION_INTERVAL = 10000;    //10 sec
     private static final long ANTI_SNUBBING_INTERVAL = 60000;       //1 minute
+    private static final long ROUND_ROBIN_SLOT_DURATION = 30000;    //30 sec
+
+    //Block request timeouts, scaled by each peer's measured block response time
+    private static final long BLOCK_REQUEST_TIMEOUT_CHECK_INTERVAL = 2000;  //2 sec
+    private static final long MIN_BLOCK_REQUEST_TIMEOUT = 5000;             //5 sec
+    private static final long MAX_BLOCK_REQUEST_TIMEOUT = 30000;            //30 sec
+    private static final int BLOCK_REQUEST_TIMEOUT_FACTOR = 4;
+
+    //How long to wait for the queued disk writes to complete when the transfer is stopped
+    private static final long FILE_IO_WORKER_STOP_TIMEOUT = 10000;  //10 sec
 
     //Peers we have unchoked and who are interested (except optimistic unchoke)
     // and to whom we are uploading and downloading from
@@ -107,28 +141,85 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
     //Peers we are choking and are choking us, no down-/upload is occurring
     private final Set<PeerSession> standbyPeers = new HashSet<>();
 
+    //Peer that was unchoked regardless of its transfer rates, giving it a chance to prove itself
+    private PeerSession optimisticUnchokedPeer = null;
+
+    //Whether the requested blocks of the pieces on the disk are sent straight from the files
+    private final boolean zeroCopyUploads;
+
+    //Super-seeding (BEP 16): all pieces offered to each peer, the latest offer that has yet to propagate
+    // to other peers, the pieces that no peer has been seen with and where the next offer round begins
+    private boolean superSeedingEnabled;
+    private boolean superSeeding = false;
+    private final Map<PeerSession, BitSet> superSeedingOfferedPieces = new HashMap<>();
+    private final Map<PeerSession, Integer> superSeedingPendingOffers = new HashMap<>();
+    private final BitSet superSeedingUnseenPieces = new BitSet();
+    private int superSeedingNextOffer = 0;
+
     //Piece download/upload state tracking
     private final Map<PeerSession, List<DataBlockIdentifier>> sentBlockRequests = new HashMap<>();
-    private final Map<PeerSession, Set<DataBlockIdentifier>> uploadingBlocks = new HashMap<>();
+
+    //Disk reads queued for the blocks requested by the peers, cancelled if the peer no longer wants them
+    private final Map<PeerSession, List<ReadDataPieceRequest>> queuedReadRequests = new HashMap<>();
+
+    //Blocks queued for sending straight from the disk, withdrawn if the peer no longer wants them
+    private final Map<PeerSession, List<FileDataBlock>> queuedFileBlocks = new HashMap<>();
 
     //Pieces for which the download was interrupted, i.e. peer disconnecting, snubbing etc
-    private final Map<Integer, List<DataBlockIdentifier>> downloadedInterruptedPieces = new HashMap<>();
+    private final Set<Integer> downloadedInterruptedPieces = new HashSet<>();
+
+    //Blocks (by block index) of the downloading pieces that are requested from a peer but not yet received
+    private final Map<Integer, BitSet> requestedPieceBlocks = new HashMap<>();
+
+    //HTTP web seeds (BEP 19), mapped by the sessions through which their blocks are requested and received
+    private final Map<PeerSession, WebSeedConnection> webSeeds = new HashMap<>();
+
+    //Length of the validated pieces still waiting in the disk write queue
+    private long pendingWriteBytes = 0;
+
+    //Attributes hash failures to the peers that sent the corrupt blocks
+    private final SmartBanTracker smartBanTracker = new SmartBanTracker(REQUESTED_BLOCK_LENGTH);
 
     //Event queues
-    private FilePriorityChangeEvent queuedFilePriorityChangeEvent = null;
+    private final List<FilePriorityChangeEvent> filePriorityChangeEventQueue = new LinkedList<>();
     private final List<PeerConnectionStateChangeEvent> peerStateChangeEventQueue = new LinkedList<>();
     private final List<FileOperationResult> fileOperationResultQueue = new LinkedList<>();
     private final List<PwpMessageEvent> messageQueue = new LinkedList<>();
+    private final List<TorrentStreamingDataSource> streamingDataSourceQueue = new LinkedList<>();
+    private Boolean requestedSuperSeeding = null;
 
     private final ObjectProperty<TransferStatusChangeEvent> statusProperty = new SimpleObjectProperty();
 
-    private final ExecutorService ioWorkerExecutor = Executors.newSingleThreadExecutor();
     private final FileIOWorker fileIOWorker;
-    private Future<?> fileIOWorkerJob;
+
+    //Whether the partially downloaded pieces stored on the last shutdown have been looked up
+    private boolean partialPiecesRestored = false;
+
+    //Partially downloaded pieces whose blocks are on the disk, but didn't fit in memory when they were restored
+    private final Map<Integer, BitSet> postponedPartialPieces = new HashMap<>();
+
+    //Postponed partial pieces that are being loaded by the disk worker, once they fitted in memory
+    private final Map<Integer, BitSet> loadingPartialPieces = new HashMap<>();
 
     private final PieceSelectionStrategy pieceSelectionStrategy;
+    private final PiecePriorityTable piecePriorityTable;
+
+    //Sources of the files being streamed, notified whenever a piece has been stored on the disk
+    private final List<TorrentStreamingDataSource> streamingDataSources = new CopyOnWriteArrayList<>();
+
+    private final UploadSlotManager uploadSlotManager;
+    private final PieceMemoryBudget pieceMemoryBudget;
+    private final Choker leechingChoker = new TitForTatChoker();
+    private final Choker seedingChoker;
+    private int uploadSlots = 0;
     private final BitSet receivedPieces;
 
+    //Reused for handing a peer's pieces to the piece selection strategy, as a plain bitmap
+    private final BitSet peerPiecesBuffer = new BitSet();
+
+    //Reused for counting the pieces that a peer has and we still want, received and skipped pieces are masked out
+    private final BitSet unwantedPiecesBuffer = new BitSet();
+
     private final PeerConnectionController connectionManager;
     private final TorrentView torrentView;
 
@@ -136,16 +227,26 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
     private final IntegerProperty hashFailures = new SimpleIntegerProperty(0);
     private final LongProperty wastedBytes = new SimpleLongProperty(0);
 
+    //Time it took to obtain the first piece of a download that started without any pieces
+    private final LongProperty timeToFirstPiece = new SimpleLongProperty(0);
+    private long firstPieceWaitStartTime = 0;
+
     /**
      * Create a new instance.
      *
      * @param torrentView The view of the torrentView for which the data will be transferred
      * @param connectionManager For sending/receiving messages to/from remote peers
      * @param pieceCache The cache to use for data piece I/O
+     * @param uploadSlotManager Assigns upload slots to this torrent
+     * @param pieceMemoryBudget Limits the memory held by the pieces being downloaded
+     * @param diskIOExecutor The pool of disk threads shared by all of the torrents
      */
     public TransferController(final TorrentView torrentView, final PeerConnectionController connectionManager,
-                              final DataPieceCache pieceCache) {
+                              final DataPieceCache pieceCache, final UploadSlotManager uploadSlotManager,
+                              final PieceMemoryBudget pieceMemoryBudget, final ExecutorService diskIOExecutor) {
         this.connectionManager = connectionManager;
+        this.uploadSlotManager = uploadSlotManager;
+        this.pieceMemoryBudget = pieceMemoryBudget;
         this.torrentView = torrentView;
 
         final List<QueuedFileMetaData> fileMetaDatas = this.torrentView.getMetaData().getFiles();
@@ -156,26 +257,91 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         }
 
         final Consumer<FileOperationResult> pieceConsumer = this::fileOperationCompleted;
-        this.fileIOWorker = new FileIOWorker(diskFileIOs, pieceCache, this.torrentView.getMetaData(), pieceConsumer);
+        this.fileIOWorker = new FileIOWorker(diskFileIOs, pieceCache, this.torrentView.getMetaData(),
+                pieceConsumer, diskIOExecutor, ApplicationPreferences.getProperty(
+                        TransferProperties.DISK_MAPPED_READS, TransferProperties.DEFAULT_DISK_MAPPED_READS));
 
         final int pieceCount = this.torrentView.getMetaData().getTotalPieces();
         receivedPieces = this.torrentView.getProgress().getObtainedPieces(pieceCount);
 
-        pieceSelectionStrategy = new RarestFirstPieceSelectionStrategy(MAX_RAREST_PIECES,
-                this.torrentView.getMetaData().getPieceLength(), receivedPieces);
+        final String pieceSelectionName = ApplicationPreferences.getProperty(
+                TransferProperties.PIECE_SELECTION, TransferProperties.DEFAULT_PIECE_SELECTION);
+        if(this.torrentView.getProgress().isStreaming()) {
+            pieceSelectionStrategy = new StreamingPieceSelectionStrategy(MAX_RAREST_PIECES, pieceCount,
+                    receivedPieces, STREAMING_DEADLINE_WINDOW);
+        }
+        else {
+            pieceSelectionStrategy = TransferProperties.PIECE_SELECTION_DEMAND_WEIGHTED.equals(pieceSelectionName)?
+                    new DemandWeightedPieceSelectionStrategy(MAX_RAREST_PIECES, pieceCount, receivedPieces) :
+                    new RarestFirstPieceSelectionStrategy(MAX_RAREST_PIECES, pieceCount, receivedPieces);
+        }
+
+        piecePriorityTable = new PiecePriorityTable(fileMetaDatas, this.torrentView.getMetaData().getPieceLength(),
+                pieceCount, this.torrentView.getProgress()::getFilePriority);
+        pieceSelectionStrategy.setPiecePriorityTable(piecePriorityTable);
+        pieceSelectionStrategy.setRandomFirstPieceCount(RANDOM_FIRST_PIECES);
+
+        final String seedingChokerName = ApplicationPreferences.getProperty(
+                TransferProperties.SEEDING_CHOKER, TransferProperties.DEFAULT_SEEDING_CHOKER);
+        seedingChoker = TransferProperties.SEEDING_CHOKER_FASTEST_UPLOAD.equals(seedingChokerName)?
+                new FastestUploadChoker() : new RoundRobinChoker(ROUND_ROBIN_SLOT_DURATION);
+
+        if(ApplicationPreferences.getProperty(TransferProperties.WEB_SEEDS_ENABLED,
+                TransferProperties.DEFAULT_WEB_SEEDS_ENABLED)) {
+            this.torrentView.getMetaData().getWebSeeds().forEach(this::addWebSeed);
+        }
+
+        zeroCopyUploads = ApplicationPreferences.getProperty(TransferProperties.ZERO_COPY_UPLOADS,
+                TransferProperties.DEFAULT_ZERO_COPY_UPLOADS);
+
+        superSeedingEnabled = this.torrentView.getProgress().isSuperSeeding();
+        if(superSeedingEnabled && receivedPieces.cardinality() == pieceCount) {
+            startSuperSeeding();
+        }
 
         torrentView.setHavePieces(receivedPieces.toByteArray());
         torrentView.hashFailuresProperty().bindBidirectional(hashFailures);
         torrentView.downloadedBytesProperty().bind(totalDownloadedBytes);
         torrentView.wastedBytesProperty().bind(wastedBytes);
+        torrentView.timeToFirstPieceProperty().bind(timeToFirstPiece);
     }
 
     public void shutdown() {
         torrentView.downloadedBytesProperty().unbind();
         torrentView.hashFailuresProperty().unbind();
         torrentView.wastedBytesProperty().unbind();
+        torrentView.timeToFirstPieceProperty().unbind();
 
-        ioWorkerExecutor.shutdownNow();
+        uploadSlotManager.unregister(torrentView);
+        pieceMemoryBudget.unregister(torrentView.getInfoHash());
+        streamingDataSources.clear();
+        webSeeds.values().forEach(WebSeedConnection::shutdown);
+    }
+
+    /**
+     * Create a source for playing one of the torrent's files while it is being downloaded. Reading from
+     * the source moves the playback position, and the pieces following it are downloaded first.
+     *
+     * @param fileMetaData The file to stream
+     * @return A streaming source, or nothing if the torrent is not in the streaming mode
+     */
+    public Optional<StreamingDataSource> createStreamingDataSource(final QueuedFileMetaData fileMetaData) {
+        if(!(pieceSelectionStrategy instanceof StreamingPieceSelectionStrategy)) {
+            return Optional.empty();
+        }
+
+        final StreamingPieceSelectionStrategy streamingStrategy = (StreamingPieceSelectionStrategy)pieceSelectionStrategy;
+        final TorrentStreamingDataSource dataSource = new TorrentStreamingDataSource(fileMetaData,
+                torrentView.getInfoHash(), torrentView.getMetaData().getPieceLength(), new BitSet(),
+                streamingStrategy::setPlaybackPiece, fileIOWorker::readDataPiece);
+
+        //The received pieces are only accessed on the transfer thread, which registers the source
+        synchronized(this) {
+            streamingDataSourceQueue.add(dataSource);
+            this.notifyAll();
+        }
+
+        return Optional.of(dataSource);
     }
 
     public void fileOperationCompleted(final FileOperationResult fileOperationResult) {
@@ -201,7 +367,19 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
     @Override
     public void filePriorityChanged(final FilePriorityChangeEvent changeEvent) {
         synchronized (this) {
-            queuedFilePriorityChangeEvent = changeEvent;
+            filePriorityChangeEventQueue.add(changeEvent);
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Enable or disable super-seeding. It is only used once all of the torrent's pieces are obtained.
+     *
+     * @param superSeeding Whether to use super-seeding
+     */
+    public void superSeedingChanged(final boolean superSeeding) {
+        synchronized(this) {
+            requestedSuperSeeding = superSeeding;
             this.notifyAll();
         }
     }
@@ -266,10 +444,19 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
     public void run() {
         restoreState();
 
+        if(receivedPieces.isEmpty()) {
+            firstPieceWaitStartTime = System.currentTimeMillis();
+        }
+
+        //Unlike the peers, the web seeds are ready for requests as soon as we start
+        requestWebSeedPieces();
+
         long lastChokingRotationTime = 0;
         long lastOptimisticUnchokeTime = System.currentTimeMillis();
         long lastAntiSnubbingCheckTime = System.currentTimeMillis();
+        long lastBlockRequestTimeoutCheckTime = System.currentTimeMillis();
         long timeLeftUntilChokingRotation;
+        long timeLeftUntilBlockRequestTimeoutCheck;
 
         while (true) {
             if (Thread.currentThread().isInterrupted()) {
@@ -279,15 +466,19 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             }
 
             FilePriorityChangeEvent filePriorityChangeEvent = null;
+            TorrentStreamingDataSource streamingDataSource = null;
+            Boolean superSeedingChange = null;
             PeerConnectionStateChangeEvent peerEvent = null;
             FileOperationResult fileOperationResult = null;
             PwpMessageEvent messageEvent = null;
 
             synchronized(this) {
                 while((timeLeftUntilChokingRotation = getTimeLeftUntilChokingRotation(lastChokingRotationTime)) > 0
+                        && (timeLeftUntilBlockRequestTimeoutCheck = getTimeLeftUntilBlockRequestTimeoutCheck(
+                                lastBlockRequestTimeoutCheckTime)) > 0
                         && eventQueuesEmpty()) {
                     try {
-                        this.wait(timeLeftUntilChokingRotation);
+                        this.wait(Math.min(timeLeftUntilChokingRotation, timeLeftUntilBlockRequestTimeoutCheck));
                     } catch (final InterruptedException ie) {
                         Thread.interrupted();
                         storeState();
@@ -304,10 +495,14 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
                 if(!fileOperationResultQueue.isEmpty()) {
                     fileOperationResult = fileOperationResultQueue.remove(0);
                 }
-                if(queuedFilePriorityChangeEvent != null) {
-                    filePriorityChangeEvent = queuedFilePriorityChangeEvent;
-                    queuedFilePriorityChangeEvent = null;
+                if(!filePriorityChangeEventQueue.isEmpty()) {
+                    filePriorityChangeEvent = filePriorityChangeEventQueue.remove(0);
                 }
+                if(!streamingDataSourceQueue.isEmpty()) {
+                    streamingDataSource = streamingDataSourceQueue.remove(0);
+                }
+                superSeedingChange = requestedSuperSeeding;
+                requestedSuperSeeding = null;
             }
 
             if(peerEvent != null) {
@@ -322,6 +517,18 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             if(filePriorityChangeEvent != null) {
                 handleFilePriorityChangeEvent(filePriorityChangeEvent);
             }
+            if(streamingDataSource != null) {
+                registerStreamingDataSource(streamingDataSource);
+            }
+            if(superSeedingChange != null) {
+                handleSuperSeedingChange(superSeedingChange);
+            }
+
+            if(getTimeLeftUntilBlockRequestTimeoutCheck(lastBlockRequestTimeoutCheckTime) <= 0) {
+                reassignTimedOutBlockRequests(System.currentTimeMillis());
+                requestWebSeedPieces();
+                lastBlockRequestTimeoutCheckTime = System.currentTimeMillis();
+            }
 
             if(timeLeftUntilChokingRotation <= 0) {
                 final boolean applyAntiSnubbing = getTimeLeftUntilAntiSnubbingCheck(lastAntiSnubbingCheckTime) <= 0;
@@ -329,7 +536,8 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
                         getTimeLeftUntilOptimisticUnchoking(lastOptimisticUnchokeTime) <= 0;
                 final long currentTime = System.currentTimeMillis();
 
-                applyChokingRotation(applyAntiSnubbing, applyOptimisticUnchoking);
+                applyChokingRotation(applyAntiSnubbing, applyOptimisticUnchoking, lastChokingRotationTime == 0?
+                        CHOKING_ROTATION_INTERVAL : currentTime - lastChokingRotationTime);
                 lastChokingRotationTime = currentTime;
 
                 if(applyAntiSnubbing) {
@@ -345,7 +553,13 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
 
     private boolean eventQueuesEmpty() {
         return peerStateChangeEventQueue.isEmpty() && messageQueue.isEmpty()
-                && fileOperationResultQueue.isEmpty() && queuedFilePriorityChangeEvent == null;
+                && fileOperationResultQueue.isEmpty() && filePriorityChangeEventQueue.isEmpty()
+                && streamingDataSourceQueue.isEmpty() && requestedSuperSeeding == null;
+    }
+
+    protected void registerStreamingDataSource(final TorrentStreamingDataSource dataSource) {
+        streamingDataSources.add(dataSource);
+        receivedPieces.stream().forEach(dataSource::pieceStored);
     }
 
     private long getTimeLeftUntilAntiSnubbingCheck(final long lastAntiSnubbingCheckTime) {
@@ -360,20 +574,111 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         return CHOKING_ROTATION_INTERVAL - (System.currentTimeMillis() - lastChokingRotationTime);
     }
 
+    private long getTimeLeftUntilBlockRequestTimeoutCheck(final long lastBlockRequestTimeoutCheckTime) {
+        return BLOCK_REQUEST_TIMEOUT_CHECK_INTERVAL - (System.currentTimeMillis() - lastBlockRequestTimeoutCheckTime);
+    }
+
+    private long getBlockRequestTimeout(final PeerSession peer) {
+        final long averageResponseTime = peer.getAverageBlockResponseTime();
+        if(averageResponseTime == 0) {
+            //We haven't received any blocks from this peer yet, be generous
+            return MAX_BLOCK_REQUEST_TIMEOUT;
+        }
+        return Math.max(MIN_BLOCK_REQUEST_TIMEOUT,
+                Math.min(MAX_BLOCK_REQUEST_TIMEOUT, averageResponseTime * BLOCK_REQUEST_TIMEOUT_FACTOR));
+    }
+
+    //Halve the request pipeline for each (recent) timeout, but always allow a couple of outstanding requests
+    protected int getBlockRequestPipelineDepth(final PeerSession peer) {
+        return Math.max(MIN_BLOCK_REQUESTS_PER_PEER,
+                MAX_BLOCK_REQUESTS_PER_PEER >> Math.min(peer.getBlockRequestTimeouts(), 4));
+    }
+
+    protected void reassignTimedOutBlockRequests(final long currentTime) {
+        final Map<PeerSession, List<DataBlockIdentifier>> timedOutRequests = new HashMap<>();
+
+        sentBlockRequests.forEach((peer, blockRequests) -> {
+            final long requestTimeout = getBlockRequestTimeout(peer);
+            final List<DataBlockIdentifier> expiredRequests = blockRequests.stream().filter(
+                    request -> currentTime - request.getTimeRequested() > requestTimeout).collect(Collectors.toList());
+            if(!expiredRequests.isEmpty()) {
+                timedOutRequests.put(peer, expiredRequests);
+            }
+        });
+
+        timedOutRequests.forEach((slowPeer, expiredRequests) -> {
+            slowPeer.setBlockRequestTimeouts(slowPeer.getBlockRequestTimeouts() + 1);
+
+            if(slowPeer.isLogTraffic()) {
+                System.out.println("[TIMEOUT] " + expiredRequests.size() + " block requests to " + slowPeer
+                        + ", pipeline depth is now " + getBlockRequestPipelineDepth(slowPeer));
+            }
+
+            expiredRequests.forEach(request -> reassignBlockRequest(request, slowPeer, currentTime));
+        });
+    }
+
+    private void reassignBlockRequest(final DataBlockIdentifier timedOutRequest, final PeerSession slowPeer,
+                                      final long currentTime) {
+        final int pieceIndex = timedOutRequest.getPieceIndex();
+
+        //Find the fastest peer that unchoked us, has the piece and still has room in its request pipeline
+        final Optional<PeerSession> replacementPeer = sentBlockRequests.keySet().stream().filter(peer ->
+                !peer.equals(slowPeer) && !peer.isChokingUs() && peer.hasPiece(pieceIndex)
+                        && sentBlockRequests.get(peer).size() < getBlockRequestPipelineDepth(peer)).min(
+                Comparator.comparingLong(PeerSession::getAverageBlockResponseTime));
+
+        //A piece that has failed the hash check is downloaded from a single peer, so that its blocks can be compared
+        if(!replacementPeer.isPresent() || smartBanTracker.isSuspectPiece(pieceIndex)) {
+            //Nobody else can take over, give the slow peer another chance
+            timedOutRequest.setTimeRequested(currentTime);
+            return;
+        }
+
+        final List<DataBlockIdentifier> slowPeerRequests = sentBlockRequests.get(slowPeer);
+        slowPeerRequests.remove(timedOutRequest);
+        slowPeer.setRequestedBlocks(slowPeerRequests.size());
+        cancelBlockRequest(timedOutRequest, slowPeer);
+
+        final PeerSession fasterPeer = replacementPeer.get();
+        final DataBlockIdentifier blockRequest = new DataBlockIdentifier(pieceIndex,
+                timedOutRequest.getPieceOffset(), timedOutRequest.getBlockLength());
+        blockRequest.setTimeRequested(currentTime);
+        final List<DataBlockIdentifier> fasterPeerRequests = sentBlockRequests.get(fasterPeer);
+        fasterPeerRequests.add(blockRequest);
+        fasterPeer.setRequestedBlocks(fasterPeerRequests.size());
+        sendBlockRequests(Collections.singletonList(blockRequest), fasterPeer);
+
+        if(fasterPeer.isLogTraffic()) {
+            System.out.println("Re-assigned timed out block " + blockRequest + " from " + slowPeer + " to " + fasterPeer);
+        }
+    }
+
     private void handleFileOperationCompleted(final FileOperationResult fileOperationResult) {
+        if(fileOperationResult.getOperationType() == FileOperationResult.OperationType.LOAD) {
+            handlePartialPieceLoaded(fileOperationResult);
+            return;
+        }
+
         //Check whether the file operation was successful
         final Optional<IOException> fileOperationError = fileOperationResult.getErrorCause();
 
+        //A written piece no longer holds memory on behalf of the downloads, other than in the piece cache
+        if(fileOperationResult.getOperationType() == FileOperationResult.OperationType.WRITE) {
+            pendingWriteBytes -= fileOperationResult.getDataPiece().getLength();
+            pieceMemoryBudget.updateUsage(torrentView.getInfoHash(), getPieceMemoryUsage());
+        }
+
         if(fileOperationError.isPresent()) {
 
             //TODO: Handle the I/O exception (re-download the piece if OperationType == WRITE)
 
             if(fileOperationResult.getOperationType() == FileOperationResult.OperationType.READ) {
-                final PeerSession sender = fileOperationResult.getSender();
-                uploadingBlocks.computeIfAbsent(sender, peer -> new HashSet<>()).remove(fileOperationResult.getBlockRequest());
-                //sender.setSentBlockRequests(uploadingBlocks.get(sender).size());
+                removeQueuedReadRequest(fileOperationResult.getSender(), fileOperationResult.getBlockRequest());
+            }
+            else {
+                pieceSelectionStrategy.pieceFailure(fileOperationResult.getDataPiece().getIndex());
             }
-            pieceSelectionStrategy.pieceFailure(fileOperationResult.getDataPiece().getIndex());
         }
         else if(fileOperationResult.getOperationType() == FileOperationResult.OperationType.READ) {
             handlePieceRead(fileOperationResult);
@@ -383,48 +688,77 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         }
     }
 
-    private void applyChokingRotation(final boolean applyAntiSnubbing, final boolean applyOptimisticUnchoking) {
+    private void applyChokingRotation(final boolean applyAntiSnubbing, final boolean applyOptimisticUnchoking,
+                                      final long timeSinceLastRotation) {
 
         //System.out.println("\nCHOKING_ROTATION\n\tDownloaders: " + downloaderPeers);
 
-        Optional<PeerSession> peerToUnchoke = applyOptimisticUnchoking?
-                applyOptimisticUnchoking() : getRandomChokedPeerForUnchoking();
-        if(!peerToUnchoke.isPresent()) {
-            return;
-        }
-
         //Check for any peers that have snubbed us and choke them
         if(applyAntiSnubbing) {
             applyAntiSnubbing();
         }
 
-        //If we haven't yet reached the limit for max unchoked peers, just unchoke as many as possible
-        if(downloaderPeers.size() < MAX_UNCHOKED_PEERS) {
-            do {
-                unchokePeer(peerToUnchoke.get());
-                peerToUnchoke = getRandomChokedPeerForUnchoking();
-            } while(peerToUnchoke.isPresent() && downloaderPeers.size() < MAX_UNCHOKED_PEERS);
+        //Update the peers' transfer rates and let the slot manager know how many upload slots we could use
+        final List<PeerSession> connectedPeers = getConnectedPeers();
+        connectedPeers.forEach(peer -> peer.sampleTransferRates(timeSinceLastRotation));
+        pieceSelectionStrategy.decayDemand();
+
+        final int pieceCount = torrentView.getTotalPieces();
+        final List<PeerSession> unchokeCandidates = connectedPeers.stream().filter(
+                peer -> peer.isInterestedInUs() && !peer.isSeeder(pieceCount)).collect(Collectors.toList());
+
+        uploadSlotManager.updateUploadDemand(torrentView, connectedPeers.stream().mapToDouble(
+                PeerSession::getUploadRate).sum(), unchokeCandidates.size());
+        uploadSlots = uploadSlotManager.getUploadSlots(torrentView);
+
+        //The best ranked interested peers get all of the upload slots except for the optimistic one
+        final Choker choker = receivedPieces.cardinality() == pieceCount? seedingChoker : leechingChoker;
+        final Set<PeerSession> peersToUnchoke = choker.rankPeers(unchokeCandidates).stream().limit(
+                Math.max(0, uploadSlots - 1)).collect(Collectors.toCollection(HashSet::new));
+
+        if(uploadSlots == 0) {
+            optimisticUnchokedPeer = null;
+        }
+        else if(applyOptimisticUnchoking || optimisticUnchokedPeer == null
+                || peersToUnchoke.contains(optimisticUnchokedPeer) || !connectedPeers.contains(optimisticUnchokedPeer)) {
+            optimisticUnchokedPeer = selectOptimisticUnchokePeer(connectedPeers, peersToUnchoke).orElse(null);
+        }
+        if(optimisticUnchokedPeer != null) {
+            peersToUnchoke.add(optimisticUnchokedPeer);
         }
-        //We already have max peers unchoked, replace the one with the slowest upload rate
-        else {
-            final Optional<PeerSession> slowestUploadingPeer = downloaderPeers.stream().reduce((first, second) ->
-                    first.getAverageUploadRateSinceLastUnchoke() <
-                            second.getAverageUploadRateSinceLastUnchoke()? first : second);
-            if(slowestUploadingPeer.isPresent()) {
-                final PeerSession slowestPeer = slowestUploadingPeer.get();
-                chokePeer(slowestPeer);
-                connectionManager.send(new PwpMessageRequest(
-                        PwpMessageFactory.getChokeMessage(), slowestPeer));
-
-                saveInterruptedDownloadState(slowestPeer);
-
-                if(slowestPeer.isLogTraffic()) {
-                    System.out.println("Choking slowest peer : " + slowestPeer);
-                }
 
-                unchokePeer(peerToUnchoke.get());
-            }
+        //Keep the currently unchoked peers if there are any upload slots left
+        for(int i = 0; i < downloaderPeers.size() && peersToUnchoke.size() < uploadSlots; ++i) {
+            peersToUnchoke.add(downloaderPeers.get(i));
+        }
+
+        final List<PeerSession> peersToChoke = downloaderPeers.stream().filter(
+                peer -> !peersToUnchoke.contains(peer)).collect(Collectors.toList());
+        if(!peersToChoke.isEmpty()) {
+            peersToChoke.forEach(this::chokePeer);
+            connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getChokeMessage(), peersToChoke));
+        }
+
+        peersToUnchoke.stream().filter(PeerSession::areWeChoking).forEach(peer -> {
+            interestedAndChokedPeers.remove(peer);
+            standbyPeers.remove(peer);
+            unchokePeer(peer);
+        });
+    }
+
+    private boolean acquireSpareUploadSlot() {
+        if(uploadSlotManager.acquireSpareUploadSlot(torrentView)) {
+            ++uploadSlots;
+            return true;
         }
+        return false;
+    }
+
+    private List<PeerSession> getConnectedPeers() {
+        final List<PeerSession> connectedPeers = new ArrayList<>(downloaderPeers);
+        connectedPeers.addAll(interestedAndChokedPeers);
+        connectedPeers.addAll(standbyPeers);
+        return connectedPeers;
     }
 
     private void applyAntiSnubbing() {
@@ -460,26 +794,33 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getChokeMessage(), snubbingPeers));
     }
 
-    private Optional<PeerSession> applyOptimisticUnchoking() {
+    private Optional<PeerSession> selectOptimisticUnchokePeer(final List<PeerSession> connectedPeers,
+                                                              final Set<PeerSession> regularlyUnchokedPeers) {
 
         //System.out.println("OPTIMISTIC_UNCHOKING");
 
-        final int randomUnchokingDistribution = ClientProperties.RANDOM_INSTANCE.nextInt(4);
+        final int pieceCount = torrentView.getTotalPieces();
+        final List<PeerSession> candidates = connectedPeers.stream().filter(peer ->
+                !regularlyUnchokedPeers.contains(peer) && !peer.isSeeder(pieceCount)).collect(Collectors.toList());
+
+        if(candidates.isEmpty()) {
+            return Optional.empty();
+        }
 
         //3x more likely to unchoke a newly connected peer
-        final Optional<PeerSession> standByPeer;
+        final Optional<PeerSession> standByPeer = candidates.stream().filter(standbyPeers::contains).min(
+                Comparator.comparingInt(PeerSession::getPieceCount));
 
-        if(randomUnchokingDistribution < 3 && (standByPeer = standbyPeers.stream().filter(
-                peer -> !peer.isSeeder(torrentView.getTotalPieces())).min(
-                Comparator.comparingInt(PeerSession::getPieceCount))).isPresent()) {
-            final PeerSession foundPeer = standByPeer.get();
-            standbyPeers.remove(foundPeer);
+        if(ClientProperties.RANDOM_INSTANCE.nextInt(4) < 3 && standByPeer.isPresent()) {
             return standByPeer;
         }
-        else {
-            //Unchoke a random peer
-            return getRandomChokedPeerForUnchoking();
-        }
+
+        //Otherwise unchoke a random peer, preferably one that is interested in us
+        final List<PeerSession> interestedCandidates = candidates.stream().filter(
+                PeerSession::isInterestedInUs).collect(Collectors.toList());
+        final List<PeerSession> selectionPool = interestedCandidates.isEmpty()? candidates : interestedCandidates;
+
+        return Optional.of(selectionPool.get(ClientProperties.RANDOM_INSTANCE.nextInt(selectionPool.size())));
     }
 
     private Optional<PeerSession> getRandomChokedPeerForUnchoking() {
@@ -525,6 +866,9 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
 
         peer.setAreWeChoking(true);
 
+        //A choked peer's requests are discarded, don't read their blocks from the disk
+        cancelQueuedReadRequests(peer);
+
         if(peer.isInterestedInUs()) {
             interestedAndChokedPeers.add(peer);
         }
@@ -548,14 +892,26 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         final Set<Integer> inProgressPieceDownloads = new HashSet<>();
         final List<DataBlockIdentifier> peerBlockRequests = sentBlockRequests.remove(targetPeer);
         if(peerBlockRequests != null && !peerBlockRequests.isEmpty()) {
-            final Map<Integer, List<DataBlockIdentifier>> requestedPieces = peerBlockRequests.stream()
-                    .collect(Collectors.groupingBy(DataBlockIdentifier::getPieceIndex));
-
-            inProgressPieceDownloads.addAll(requestedPieces.keySet());
-            inProgressPieceDownloads.forEach(pieceIndex -> pieceSelectionStrategy.pieceInterrupted(pieceIndex,
-                    "saveInterruptedDownloadState"));
 
-            downloadedInterruptedPieces.putAll(requestedPieces);
+            //Release the blocks so that other peers can request them
+            peerBlockRequests.forEach(request -> {
+                final BitSet pieceBlocks = requestedPieceBlocks.get(request.getPieceIndex());
+                if(pieceBlocks != null) {
+                    pieceBlocks.clear(request.getPieceOffset() / REQUESTED_BLOCK_LENGTH);
+                }
+                inProgressPieceDownloads.add(request.getPieceIndex());
+            });
+
+            //Pieces that no other peer is working on are interrupted until a peer that has them can resume
+            inProgressPieceDownloads.stream().filter(pieceIndex -> {
+                final BitSet pieceBlocks = requestedPieceBlocks.get(pieceIndex);
+                return pieceBlocks == null || pieceBlocks.isEmpty();
+            }).forEach(pieceIndex -> {
+                requestedPieceBlocks.remove(pieceIndex);
+                if(pieceSelectionStrategy.pieceInterrupted(pieceIndex, "saveInterruptedDownloadState")) {
+                    downloadedInterruptedPieces.add(pieceIndex);
+                }
+            });
 
             targetPeer.setSentBlockRequests(peerBlockRequests.size());
 
@@ -568,6 +924,7 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
 
     private void handlePieceWritten(final FileOperationResult fileOperationResult) {
         final int pieceIndex = fileOperationResult.getDataPiece().getIndex();
+        streamingDataSources.forEach(dataSource -> dataSource.pieceStored(pieceIndex));
 
         //Send HAVE message only to non-seeder peers
         final List<PeerSession> receiverPeers = new ArrayList<>();
@@ -585,16 +942,40 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         }
     }
 
+    private void handlePartialPieceLoaded(final FileOperationResult fileOperationResult) {
+        final DataPiece partialPiece = fileOperationResult.getDataPiece();
+        final int pieceIndex = partialPiece.getIndex();
+
+        if(loadingPartialPieces.remove(pieceIndex) == null) {
+            return;
+        }
+        if(fileOperationResult.getErrorCause().isPresent()) {
+            //The piece will be downloaded again from scratch
+            System.err.println("Failed to load partial piece " + pieceIndex + ": "
+                    + fileOperationResult.getErrorCause().get());
+        }
+        else if(!receivedPieces.get(pieceIndex) && pieceSelectionStrategy.pieceRequested(pieceIndex, partialPiece)
+                && pieceSelectionStrategy.pieceInterrupted(pieceIndex, "handlePartialPieceLoaded")) {
+            downloadedInterruptedPieces.add(pieceIndex);
+        }
+        pieceMemoryBudget.updateUsage(torrentView.getInfoHash(), getPieceMemoryUsage());
+    }
+
     private void handlePieceRead(final FileOperationResult fileOperationResult) {
         final DataPiece dataPiece = fileOperationResult.getDataPiece();
         final DataBlockIdentifier blockRequest = fileOperationResult.getBlockRequest();
+        final PeerSession sender = fileOperationResult.getSender();
+
+        //The request was cancelled while the piece was being read
+        if(!removeQueuedReadRequest(sender, blockRequest)) {
+            return;
+        }
 
         //TODO: Verify the DataPiece (SHA-1) before sending its block to the peer?
 
         final DataBlock dataBlock = dataPiece.getBlock(
                 blockRequest.getPieceOffset(), blockRequest.getBlockLength()).get();
 
-        final PeerSession sender = fileOperationResult.getSender();
         connectionManager.send(new PwpMessageRequest(
                 PwpMessageFactory.buildSendBlockMessage(dataBlock), sender));
 
@@ -602,14 +983,53 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             System.out.println("Sent block " + blockRequest + " to " + fileOperationResult.getSender());
         }
 
-        uploadingBlocks.computeIfAbsent(sender, peer -> new HashSet<>()).remove(blockRequest);
-
-        sender.setSentBlockRequests(uploadingBlocks.get(sender).size());
         sender.addUploadedBytes(blockRequest.getBlockLength());
     }
 
-    private void handleFilePriorityChangeEvent(final FilePriorityChangeEvent filePriorityChangeEvent) {
-        //TODO: Implement method
+    private boolean removeQueuedReadRequest(final PeerSession requester, final DataBlockIdentifier blockRequest) {
+        final List<ReadDataPieceRequest> requesterReads = queuedReadRequests.get(requester);
+        final boolean removed = requesterReads != null && requesterReads.removeIf(
+                readRequest -> readRequest.getBlockIdentifier() == blockRequest);
+
+        if(removed) {
+            requester.setSentBlockRequests(requesterReads.size());
+        }
+        return removed;
+    }
+
+    //Cancel the disk reads of all blocks requested by a peer that has been choked or disconnected
+    private void cancelQueuedReadRequests(final PeerSession requester) {
+        final List<ReadDataPieceRequest> requesterReads = queuedReadRequests.remove(requester);
+        if(requesterReads != null) {
+            requesterReads.forEach(ReadDataPieceRequest::cancel);
+            requester.setSentBlockRequests(0);
+        }
+
+        //Any of the blocks that haven't started being sent are removed from the peer's write queue
+        final List<FileDataBlock> requesterBlocks = queuedFileBlocks.remove(requester);
+        if(requesterBlocks != null) {
+            requesterBlocks.forEach(FileDataBlock::cancel);
+        }
+    }
+
+    protected void handleFilePriorityChangeEvent(final FilePriorityChangeEvent filePriorityChangeEvent) {
+        if(!piecePriorityTable.filePriorityChanged(filePriorityChangeEvent.getFilePath(),
+                filePriorityChangeEvent.getFilePriority())) {
+            return;
+        }
+
+        //Skipping or unskipping a file changes which of the peers have anything that we still want
+        getConnectedPeers().forEach(peer -> {
+            peer.setNeededPieceCount(countNeededPieces(peer));
+
+            if(!peer.areWeInterestedIn()) {
+                checkIfInterestingAndShowInterest(peer);
+            }
+            else if(peer.getNeededPieceCount() == 0) {
+                connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getNotInterestedMessage(), peer));
+                peer.setAreWeInterestedIn(false);
+            }
+        });
     }
 
     protected void handlePeerStateChange(final PeerConnectionStateChangeEvent changeEvent) {
@@ -654,12 +1074,16 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             //Update piece statistics, remove all piece counts for pieces
             // that this peer had and store its download state
             final Set<Integer> interruptedPieceDownloadsFromPeer = saveInterruptedDownloadState(peer);
+            cancelQueuedReadRequests(peer);
+            superSeedingOfferedPieces.remove(peer);
+            superSeedingPendingOffers.remove(peer);
             //interruptedPieceDownloadsFromPeer.forEach(index -> pieceSelectionStrategy.pieceFailure(index));
-            pieceSelectionStrategy.peerLost(peer.getPieces(), interruptedPieceDownloadsFromPeer);
+            peer.getPieces().copyInto(peerPiecesBuffer);
+            pieceSelectionStrategy.peerLost(peerPiecesBuffer, interruptedPieceDownloadsFromPeer);
         }
     }
 
-    private void handlePeerMessage(final PwpMessageEvent messageEvent) {
+    protected void handlePeerMessage(final PwpMessageEvent messageEvent) {
         final PwpMessage message = messageEvent.getMessage();
         final PeerSession peerSession = messageEvent.getPeerSession();
 
@@ -702,10 +1126,21 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             //Check whether this peer has anything we are interested in
 
             final BitSet parsedBitField = PwpMessageFactory.parseBitfieldMessage(message);
-            peerSession.setPieces(parsedBitField);
+            peerSession.setPieces(parsedBitField, torrentView.getTotalPieces());
+            peerSession.setNeededPieceCount(countNeededPieces(peerSession));
 
             pieceSelectionStrategy.peerGained(parsedBitField);
 
+            if(superSeeding) {
+                superSeedingUnseenPieces.andNot(parsedBitField);
+
+                //Offer another piece if the peer already has the one we offered it
+                final Integer offeredPiece = superSeedingPendingOffers.get(peerSession);
+                if(offeredPiece != null && peerSession.hasPiece(offeredPiece)) {
+                    offerSuperSeedingPiece(peerSession);
+                }
+            }
+
             checkIfInterestingAndShowInterest(peerSession);
         }
     }
@@ -714,8 +1149,12 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         if(!standbyPeers.contains(peerSession)) {
             standbyPeers.add(peerSession);
 
+            //When super-seeding, only reveal a single piece to the peer
+            if(superSeeding) {
+                offerSuperSeedingPiece(peerSession);
+            }
             //Send a BITFIELD message to this peer if we have any pieces to share
-            if(receivedPieces.cardinality() > 0) {
+            else if(receivedPieces.cardinality() > 0) {
                 connectionManager.send(new PwpMessageRequest(PwpMessageFactory.buildBitfieldMessage(
                         receivedPieces, torrentView.getMetaData().getTotalPieces()), peerSession));
             }
@@ -734,7 +1173,8 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         peerSession.setInterestedInUs(true);
 
         if(peerSession.areWeChoking()) {
-            if(downloaderPeers.size() < MAX_UNCHOKED_PEERS) {
+            if(downloaderPeers.size() < uploadSlots || acquireSpareUploadSlot()) {
+                standbyPeers.remove(peerSession);
                 unchokePeer(peerSession);
             }
             else {
@@ -763,7 +1203,53 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
     }
 
     private void handleCancelMessage(final PwpMessage message, final PeerSession peerSession) {
-        //TODO: Implement method
+        //A CANCEL message has the same payload as the REQUEST message
+        final DataBlockIdentifier cancelledBlock;
+        try {
+            cancelledBlock = PwpMessageFactory.parseBlockRequestedMessage(message);
+        } catch (final InvalidPeerMessageException ipme) {
+            System.err.println(ipme.getMessage());
+            return;
+        }
+
+        //A block that is queued for sending straight from the disk is withdrawn from the peer's write queue
+        final Optional<FileDataBlock> cancelledFileBlock = queuedFileBlocks.getOrDefault(
+                peerSession, Collections.emptyList()).stream().filter(fileBlock -> !fileBlock.isSent()
+                && fileBlock.getPieceIndex() == cancelledBlock.getPieceIndex()
+                && fileBlock.getPieceOffset() == cancelledBlock.getPieceOffset()
+                && fileBlock.getLength() == cancelledBlock.getBlockLength()).findFirst();
+
+        if(cancelledFileBlock.isPresent()) {
+            cancelledFileBlock.get().cancel();
+            queuedFileBlocks.get(peerSession).remove(cancelledFileBlock.get());
+
+            if(peerSession.isLogTraffic()) {
+                System.out.println("[CANCEL] " + cancelledBlock + " from " + peerSession);
+            }
+            return;
+        }
+
+        final List<ReadDataPieceRequest> requesterReads = queuedReadRequests.get(peerSession);
+        if(requesterReads == null) {
+            return;
+        }
+
+        final Optional<ReadDataPieceRequest> cancelledRead = requesterReads.stream().filter(readRequest -> {
+            final DataBlockIdentifier blockRequest = readRequest.getBlockIdentifier();
+            return blockRequest.getPieceIndex() == cancelledBlock.getPieceIndex()
+                    && blockRequest.getPieceOffset() == cancelledBlock.getPieceOffset()
+                    && blockRequest.getBlockLength() == cancelledBlock.getBlockLength();
+        }).findFirst();
+
+        if(cancelledRead.isPresent()) {
+            cancelledRead.get().cancel();
+            requesterReads.remove(cancelledRead.get());
+            peerSession.setSentBlockRequests(requesterReads.size());
+
+            if(peerSession.isLogTraffic()) {
+                System.out.println("[CANCEL] " + cancelledBlock + " from " + peerSession);
+            }
+        }
     }
 
     private void handleUnchokeMessage(final PeerSession peerSession) {
@@ -781,10 +1267,13 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         peerSession.setChokingUs(false);
 
         if(peerSession.areWeChoking() && !peerSession.isSeeder(torrentView.getTotalPieces())) {
-            if(downloaderPeers.size() < MAX_UNCHOKED_PEERS) {
+            if(downloaderPeers.size() < uploadSlots) {
+                interestedAndChokedPeers.remove(peerSession);
+                standbyPeers.remove(peerSession);
                 unchokePeer(peerSession);
             }
-            else if(peerSession.isInterestedInUs()) {
+            else if(peerSession.isInterestedInUs() && !interestedAndChokedPeers.contains(peerSession)) {
+                standbyPeers.remove(peerSession);
                 interestedAndChokedPeers.add(peerSession);
             }
         }
@@ -829,11 +1318,7 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
     }
 
     private boolean checkIfInterestingAndShowInterest(final PeerSession peerSession) {
-        final BitSet peerPieces = peerSession.getPieces().get(0, torrentView.getMetaData().getTotalPieces());
-        peerPieces.andNot(receivedPieces);
-        final boolean peerHasNotReceivedPieces = !peerPieces.isEmpty();
-
-        if(!peerHasNotReceivedPieces) {
+        if(peerSession.getNeededPieceCount() == 0) {
             //We already have all of this client's pieces
 
             //System.out.println("Already have all of the pieces that " + peerSession + " has.");
@@ -841,19 +1326,38 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             return false;
         }
 
-        //The client has pieces that we haven't yet got. Check whether we have pending requests for those
-        final boolean peerHasPiecesNotYetRequested = pieceSelectionStrategy.anyPiecesNotYetRequested(peerPieces);
+        //The client has pieces that we haven't yet got
+        connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getInterestedMessage(), peerSession));
+        peerSession.setAreWeInterestedIn(true);
 
-        if(peerHasPiecesNotYetRequested) {
-            connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getInterestedMessage(), peerSession));
-            peerSession.setAreWeInterestedIn(true);
+        return true;
+    }
 
-            return true;
+    //Count the pieces that the peer has, and that we neither have nor skip
+    private int countNeededPieces(final PeerSession peerSession) {
+        unwantedPiecesBuffer.clear();
+        unwantedPiecesBuffer.or(receivedPieces);
+        unwantedPiecesBuffer.or(piecePriorityTable.getSkippedPieces());
+
+        return peerSession.getPieces().andNotCardinality(unwantedPiecesBuffer);
+    }
+
+    //Peers that have nothing more that we need are no longer interesting
+    private void updateNeededPieceCounts(final int obtainedPieceIndex) {
+        //A skipped piece (for instance, one that was downloaded before its file was skipped) was never counted
+        if(piecePriorityTable.isSkipped(obtainedPieceIndex)) {
+            return;
         }
 
-        //System.out.println("All of the pieces that " + peerSession + " has are already requested.");
+        getConnectedPeers().stream().filter(peer -> peer.hasPiece(obtainedPieceIndex)).forEach(peer -> {
+            final int neededPieceCount = peer.getNeededPieceCount() - 1;
+            peer.setNeededPieceCount(neededPieceCount);
 
-        return false;
+            if(neededPieceCount == 0 && peer.areWeInterestedIn()) {
+                connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getNotInterestedMessage(), peer));
+                peer.setAreWeInterestedIn(false);
+            }
+        });
     }
 
     private void handleBlockReceived(final PwpMessage message, final PeerSession sender) {
@@ -896,21 +1400,54 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         if(matchingRequest.isPresent()) {
             blockRequests.remove(matchingRequest.get());
             sender.setRequestedBlocks(blockRequests.size());
+            updateBlockResponseStatistics(sender, matchingRequest.get());
+        }
+
+        storeReceivedBlock(block, sender);
+
+        //Keep the request pipeline of this peer full, if we are unchoked
+        if(!sender.isChokingUs()) {
+
+            if(sender.isLogTraffic()) {
+                System.out.println("\nNeed to request more blocks from " + sender + ": requested blocks are = "
+                    + blockRequests);
+            }
+
+            requestPiece(sender);
         }
 
+        //The web seeds' requests for this piece might have been cancelled, give them more work right away
+        requestWebSeedPieces();
+    }
+
+    private void storeReceivedBlock(final DataBlock block, final PeerSession sender) {
+        final int blockLength = block.getBlockData().length;
         final int pieceIndex = block.getPieceIndex();
         final DataPiece dataPiece = pieceSelectionStrategy.getRequestedPiece(pieceIndex);
         if(dataPiece == null) {
             return;
         }
 
+        if(dataPiece.hasBlock(block.getPieceOffset())) {
+            if(sender.isLogTraffic()) {
+                System.out.println("WASTED: Block " + block + " from " + sender + " was already received.");
+            }
+            wastedBytes.set(wastedBytes.get() + blockLength);
+            return;
+        }
+
         final boolean blockAdded = dataPiece.addBlock(block);
-        if(!blockAdded && sender.isLogTraffic()) {
-            System.out.println("WASTED: Received blocked was out of order.");
+        if(!blockAdded) {
+            if(sender.isLogTraffic()) {
+                System.out.println("WASTED: Received block was invalid: " + block);
+            }
             wastedBytes.set(wastedBytes.get() + blockLength);
             return;
         }
 
+        blockReceived(pieceIndex, block.getPieceOffset(), sender);
+        smartBanTracker.blockReceived(pieceIndex, block.getPieceOffset(), sender);
+
         if(sender.isLogTraffic()) {
             System.out.println("\n[RECEIVED_BLOCK]: " + block + " from " + sender
                     + ",\nrequested blocks are: " + sentBlockRequests.get(sender)
@@ -926,42 +1463,109 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
                 System.out.println("\nPIECE COMPLETED from " + sender + " : " + dataPiece);
             }
 
+            removePieceBlockRequests(pieceIndex);
+
             if(validPiece) {
-                sentBlockRequests.forEach((peer, blocksRequestedFromPeer) ->
-                    blocksRequestedFromPeer.removeIf(request -> request.getPieceIndex() == pieceIndex));
-                downloadedInterruptedPieces.remove(pieceIndex);
+                banPeers(smartBanTracker.pieceValidated(dataPiece));
                 pieceSelectionStrategy.pieceObtained(pieceIndex);
                 torrentView.setHavePiece(pieceIndex);
+                updateNeededPieceCounts(pieceIndex);
 
-                //Request a new piece from this peer if we are unchoked
-                if(!sender.isChokingUs()) {
+                if(superSeedingEnabled && receivedPieces.cardinality() == torrentView.getTotalPieces()) {
+                    startSuperSeeding();
+                }
+
+                if(firstPieceWaitStartTime > 0) {
+                    timeToFirstPiece.set(System.currentTimeMillis() - firstPieceWaitStartTime);
+                    firstPieceWaitStartTime = 0;
 
                     if(sender.isLogTraffic()) {
-                        System.out.println("We are not choked by " + sender + ", requesting a new piece...");
+                        System.out.println("\nFIRST PIECE obtained after " + timeToFirstPiece.get() + " ms");
                     }
-
-                    requestPiece(sender);
                 }
 
                 final CachedDataPieceIdentifier cachedDataPieceIdentifier =
                         new CachedDataPieceIdentifier(dataPiece.getIndex(), sender.getInfoHash());
                 fileIOWorker.writeDataPiece(new WriteDataPieceRequest(cachedDataPieceIdentifier, dataPiece, sender));
+                pendingWriteBytes += dataPiece.getLength();
             }
             else {
                 hashFailures.set(hashFailures.get() + 1);
                 totalDownloadedBytes.set(totalDownloadedBytes.get() - dataPiece.getLength());
 
+                banPeers(smartBanTracker.pieceFailed(dataPiece));
                 pieceSelectionStrategy.pieceFailure(pieceIndex);
+                pieceMemoryBudget.updateUsage(torrentView.getInfoHash(), getPieceMemoryUsage());
             }
         }
-        else {
+    }
 
-            if(sender.isLogTraffic()) {
-                System.out.println("\nNeed to request more blocks from " + sender + ": requested blocks are = "
-                    + blockRequests);
+    private void banPeers(final Set<PeerSession> corruptDataSenders) {
+        corruptDataSenders.forEach(peer -> {
+            System.err.println("Banning " + peer + ": sent corrupt data");
+
+            final WebSeedConnection webSeed = webSeeds.remove(peer);
+            if(webSeed != null) {
+                webSeed.shutdown();
+                sentBlockRequests.remove(peer);
+
+                //Nothing more will be requested from a banned web seed
+                peer.setChokingUs(true);
+            }
+            else {
+                connectionManager.ban(peer);
             }
+        });
+    }
 
-            requestBlocks(dataPiece, sender);
+    private void blockReceived(final int pieceIndex, final int pieceOffset, final PeerSession sender) {
+        final BitSet pieceBlocks = requestedPieceBlocks.get(pieceIndex);
+        if(pieceBlocks != null) {
+            pieceBlocks.clear(pieceOffset / REQUESTED_BLOCK_LENGTH);
+        }
+
+        //Cancel any other requests for the same block, i.e. if it was re-assigned after a timeout
+        sentBlockRequests.forEach((peer, blocksRequestedFromPeer) -> {
+            if(peer.equals(sender)) {
+                return;
+            }
+            final Optional<DataBlockIdentifier> duplicateRequest = blocksRequestedFromPeer.stream().filter(request ->
+                    request.getPieceIndex() == pieceIndex && request.getPieceOffset() == pieceOffset).findAny();
+            if(duplicateRequest.isPresent()) {
+                blocksRequestedFromPeer.remove(duplicateRequest.get());
+                peer.setRequestedBlocks(blocksRequestedFromPeer.size());
+                cancelBlockRequest(duplicateRequest.get(), peer);
+            }
+        });
+    }
+
+    private void removePieceBlockRequests(final int pieceIndex) {
+        sentBlockRequests.forEach((peer, blocksRequestedFromPeer) -> {
+            final WebSeedConnection webSeed = webSeeds.get(peer);
+            if(webSeed != null) {
+                blocksRequestedFromPeer.stream().filter(request -> request.getPieceIndex() == pieceIndex)
+                        .forEach(webSeed::cancel);
+            }
+            if(blocksRequestedFromPeer.removeIf(request -> request.getPieceIndex() == pieceIndex)) {
+                peer.setRequestedBlocks(blocksRequestedFromPeer.size());
+            }
+        });
+        requestedPieceBlocks.remove(pieceIndex);
+        downloadedInterruptedPieces.remove(pieceIndex);
+    }
+
+    private void updateBlockResponseStatistics(final PeerSession sender, final DataBlockIdentifier blockRequest) {
+        sender.updateBlockResponseTime(System.currentTimeMillis() - blockRequest.getTimeRequested());
+
+        //Forgive one timeout for each full request pipeline delivered since the last timeout
+        if(sender.getBlockRequestTimeouts() > 0) {
+            final int blocksReceived = sender.getBlocksReceivedSinceTimeout() + 1;
+            if(blocksReceived >= getBlockRequestPipelineDepth(sender)) {
+                sender.setBlockRequestTimeouts(sender.getBlockRequestTimeouts() - 1);
+            }
+            else {
+                sender.setBlocksReceivedSinceTimeout(blocksReceived);
+            }
         }
     }
 
@@ -995,32 +1599,110 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
 
         //Read data only if we have this piece/block
         final int pieceIndex = blockRequest.getPieceIndex();
+
+        //When super-seeding, only serve the pieces that were offered to the peer
+        final BitSet offeredPieces = superSeedingOfferedPieces.get(requester);
+        if(superSeeding && (offeredPieces == null || !offeredPieces.get(pieceIndex))) {
+            if(requester.isLogTraffic()) {
+                System.out.println("Block request denied, piece " + pieceIndex + " was not offered to " + requester);
+            }
+            return;
+        }
+
         if(receivedPieces.get(pieceIndex)) {
+            if(blockRequest.getPieceOffset() == 0) {
+                pieceSelectionStrategy.pieceDemanded(pieceIndex);
+            }
+
+            //A block of a piece that has been written to the disk needs no disk read, the OS sends it from the file
+            if(zeroCopyUploads) {
+                final Optional<FileDataBlock> fileBlock = fileIOWorker.getFileBlock(blockRequest);
+                if(fileBlock.isPresent()) {
+                    final List<FileDataBlock> requesterBlocks = queuedFileBlocks.computeIfAbsent(
+                            requester, peer -> new ArrayList<>());
+                    requesterBlocks.removeIf(FileDataBlock::isSent);
+                    requesterBlocks.add(fileBlock.get());
+
+                    connectionManager.send(new PwpMessageRequest(
+                            PwpMessageFactory.buildSendFileBlockMessage(fileBlock.get()), requester));
+
+                    if(requester.isLogTraffic()) {
+                        System.out.println("Sent block " + blockRequest + " from disk to " + requester);
+                    }
+
+                    requester.addUploadedBytes(blockLength);
+                    return;
+                }
+            }
+
+            //When the peer starts on a new piece, let the disk reader cache the next ones it is likely to request
+            final List<CachedDataPieceIdentifier> readAheadPieces = blockRequest.getPieceOffset() == 0?
+                    getReadAheadPieces(pieceIndex, requester) : Collections.emptyList();
             final ReadDataPieceRequest readRequest = new ReadDataPieceRequest(new CachedDataPieceIdentifier(
-                    pieceIndex, requester.getInfoHash()), blockRequest, requester);
+                    pieceIndex, requester.getInfoHash()), blockRequest, requester, readAheadPieces);
+
+            final List<ReadDataPieceRequest> requesterReads = queuedReadRequests.computeIfAbsent(
+                    requester, peer -> new ArrayList<>());
+            requesterReads.add(readRequest);
+            requester.setSentBlockRequests(requesterReads.size());
 
             fileIOWorker.readDataPiece(readRequest);
         }
     }
 
+    //The pieces following the requested one that we have and the requester is still missing
+    private List<CachedDataPieceIdentifier> getReadAheadPieces(final int pieceIndex, final PeerSession requester) {
+        //When super-seeding, a peer is only offered one piece at a time, there is nothing to read ahead
+        if(superSeeding) {
+            return Collections.emptyList();
+        }
+
+        final List<CachedDataPieceIdentifier> readAheadPieces = new ArrayList<>();
+        final int readAheadWindowEnd = Math.min(pieceIndex + 1 + READ_AHEAD_WINDOW, torrentView.getTotalPieces());
+
+        for(int nextPiece = receivedPieces.nextSetBit(pieceIndex + 1);
+            nextPiece != -1 && nextPiece < readAheadWindowEnd
+                    && readAheadPieces.size() < FileIOWorker.MAX_READ_AHEAD_PIECES;
+            nextPiece = receivedPieces.nextSetBit(nextPiece + 1)) {
+            if(!requester.hasPiece(nextPiece)) {
+                readAheadPieces.add(new CachedDataPieceIdentifier(nextPiece, requester.getInfoHash()));
+            }
+        }
+        return readAheadPieces;
+    }
+
     private void requestPiece(final PeerSession peerSession) {
         final List<DataBlockIdentifier> blocksRequestedFromPeer = sentBlockRequests.computeIfAbsent(
                 peerSession, key -> new ArrayList<>());
+        final int pipelineDepth = getBlockRequestPipelineDepth(peerSession);
+
+        //First keep filling the pieces that this peer is already working on (piece affinity)
+        final List<Integer> peerPieceDownloads = blocksRequestedFromPeer.stream().map(
+                DataBlockIdentifier::getPieceIndex).distinct().collect(Collectors.toList());
+        for(int i = 0; i < peerPieceDownloads.size() && blocksRequestedFromPeer.size() < pipelineDepth; ++i) {
+            final DataPiece requestedDataPiece = pieceSelectionStrategy.getRequestedPiece(peerPieceDownloads.get(i));
+            if(requestedDataPiece != null) {
+                requestBlocks(requestedDataPiece, peerSession);
+            }
+        }
 
-        final List<Integer> interruptedPieces = downloadedInterruptedPieces.keySet().stream().filter(
+        //Then check whether there are any interrupted piece downloads that this peer has
+        final List<Integer> interruptedPieces = downloadedInterruptedPieces.stream().filter(
                 pieceIndex -> peerSession.hasPiece(pieceIndex)).collect(Collectors.toList());
 
-        boolean pieceRequested = false;
-
-        //First check whether there are any interrupted piece downloads that this peer has
-        while(blocksRequestedFromPeer.size() < MAX_BLOCK_REQUESTS_PER_PEER && !interruptedPieces.isEmpty()) {
+        while(blocksRequestedFromPeer.size() < pipelineDepth && !interruptedPieces.isEmpty()) {
             final int pieceIndex = interruptedPieces.remove(0);
             downloadedInterruptedPieces.remove(pieceIndex);
-            final DataPiece requestedDataPiece = pieceSelectionStrategy.getInterruptedPiece(pieceIndex);
+            DataPiece requestedDataPiece = pieceSelectionStrategy.getInterruptedPiece(pieceIndex);
 
-            if(pieceSelectionStrategy.pieceRequested(pieceIndex, requestedDataPiece)) {
+            //A piece that has failed the hash check must be downloaded again from a single peer,
+            //so the blocks received from the other peer are discarded
+            if(requestedDataPiece != null && smartBanTracker.isSuspectPiece(pieceIndex)) {
+                requestedDataPiece = new DataPiece(requestedDataPiece.getLength(), pieceIndex);
+            }
+
+            if(requestedDataPiece != null && pieceSelectionStrategy.pieceRequested(pieceIndex, requestedDataPiece)) {
                 requestBlocks(requestedDataPiece, peerSession);
-                pieceRequested = true;
             }
         }
 
@@ -1029,30 +1711,44 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
                 ", blocks requested = " + blocksRequestedFromPeer);
         }
 
-        //Also check whether there are any pieces we could request, in case there are no interrupted ones
-        Optional<Integer> nextPieceCandidate = pieceSelectionStrategy.selectNext(peerSession.getPieces());
-        final int totalPieces = torrentView.getTotalPieces();
-        final int pieceLength = torrentView.getMetaData().getPieceLength();
-        final long totalTorrentLength = torrentView.getTotalLength();
+        //Fast peers start on new pieces, while slow peers first help complete the pieces in progress,
+        //so that the fast peers don't end up waiting on a slow peer's piece. The strategy stops selecting
+        //new pieces once too many pieces are already partially downloaded
+        pieceSelectionStrategy.setPartialPieceLimit(getOpenPieceLimit());
+        final boolean slowPeer = isSlowPeer(peerSession);
+        peerSession.getPieces().copyInto(peerPiecesBuffer);
 
-        while(blocksRequestedFromPeer.size() < MAX_BLOCK_REQUESTS_PER_PEER && nextPieceCandidate.isPresent()) {
-            final int pieceIndex = nextPieceCandidate.get();
+        //The postponed partial pieces are resumed from their stored blocks, not downloaded again from scratch
+        if(!postponedPartialPieces.isEmpty()) {
+            loadPostponedPartialPieces();
+        }
+        postponedPartialPieces.keySet().forEach(peerPiecesBuffer::clear);
+        loadingPartialPieces.keySet().forEach(peerPiecesBuffer::clear);
 
-            //Calculate the correct piece length based on whether it is the last one or not
-            final int selectedPieceLength = pieceIndex == totalPieces - 1?
-                    (int)(totalTorrentLength - ((long)pieceLength * (totalPieces - 1))): pieceLength;
+        while(blocksRequestedFromPeer.size() < pipelineDepth) {
+            if(slowPeer && joinPieceDownload(peerSession)) {
+                continue;
+            }
 
-            final DataPiece requestedDataPiece = new DataPiece(selectedPieceLength, pieceIndex);
+            final int pieceIndex = pieceSelectionStrategy.selectNextPiece(peerPiecesBuffer);
+            if(pieceIndex != -1 && pieceMemoryBudget.tryAllocate(torrentView.getInfoHash(),
+                    getPieceMemoryUsage(), getPieceLength(pieceIndex))) {
+                final DataPiece requestedDataPiece = new DataPiece(getPieceLength(pieceIndex), pieceIndex);
 
-            if(pieceSelectionStrategy.pieceRequested(pieceIndex, requestedDataPiece)) {
-                requestBlocks(requestedDataPiece, peerSession);
-                pieceRequested = true;
+                if(pieceSelectionStrategy.pieceRequested(pieceIndex, requestedDataPiece)
+                        && requestBlocks(requestedDataPiece, peerSession)) {
+                    continue;
+                }
+                pieceMemoryBudget.updateUsage(torrentView.getInfoHash(), getPieceMemoryUsage());
             }
 
-            nextPieceCandidate = pieceSelectionStrategy.selectNext(peerSession.getPieces());
+            //There are no new pieces to download from this peer, help out with the ones in progress instead
+            if(!joinPieceDownload(peerSession)) {
+                break;
+            }
         }
 
-        if(!pieceRequested) {
+        if(blocksRequestedFromPeer.isEmpty()) {
 
             if(peerSession.isLogTraffic()) {
                 System.out.println("\nNo pieces available for download, sending NOT_INTERESTED: "
@@ -1062,62 +1758,151 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
 
             //No pieces that we want to download, send NOT_INTERESTED
             connectionManager.send(new PwpMessageRequest(PwpMessageFactory.getNotInterestedMessage(), peerSession));
+            peerSession.setAreWeInterestedIn(false);
         }
     }
 
-    private void requestBlocks(final DataPiece dataPiece, final PeerSession receiver) {
-        //Collect all previously sent block requests for this piece
+    private int getPieceLength(final int pieceIndex) {
+        final int totalPieces = torrentView.getTotalPieces();
+        final int pieceLength = torrentView.getMetaData().getPieceLength();
+
+        //Calculate the correct piece length based on whether it is the last one or not
+        return pieceIndex == totalPieces - 1?
+                (int)(torrentView.getTotalLength() - ((long)pieceLength * (totalPieces - 1))): pieceLength;
+    }
+
+    //Memory held by the pieces being downloaded and the downloaded ones that haven't been written yet
+    private long getPieceMemoryUsage() {
+        return pieceSelectionStrategy.getRequestedPieces().stream().mapToLong(DataPiece::getLength).sum()
+                + pieceSelectionStrategy.getInterruptedPieces().stream().mapToLong(DataPiece::getLength).sum()
+                + loadingPartialPieces.keySet().stream().mapToLong(this::getPieceLength).sum()
+                + pendingWriteBytes;
+    }
+
+    private int getOpenPieceLimit() {
+        return (int)sentBlockRequests.keySet().stream().filter(peer -> !peer.isChokingUs()).count()
+                + EXTRA_OPEN_PIECES;
+    }
+
+    private boolean isSlowPeer(final PeerSession peerSession) {
+        final double averageDownloadRate = sentBlockRequests.keySet().stream().filter(
+                peer -> !peer.isChokingUs()).mapToDouble(PeerSession::getDownloadRate).average().orElse(0);
+        return peerSession.getDownloadRate() < averageDownloadRate * SLOW_PEER_RATE_RATIO;
+    }
+
+    //Request blocks from a piece that is already being downloaded, preferring the pieces closest to completion
+    private boolean joinPieceDownload(final PeerSession peerSession) {
+        final Optional<DataPiece> pieceInProgress = pieceSelectionStrategy.getRequestedPieces().stream().filter(
+                dataPiece -> peerSession.hasPiece(dataPiece.getIndex())
+                        && !smartBanTracker.isSuspectPiece(dataPiece.getIndex())
+                        && getUnrequestedBlockCount(dataPiece) > 0).min(
+                Comparator.comparingInt(this::getUnrequestedBlockCount));
+
+        return pieceInProgress.isPresent() && requestBlocks(pieceInProgress.get(), peerSession);
+    }
+
+    private int getUnrequestedBlockCount(final DataPiece dataPiece) {
+        final BitSet pieceBlocks = requestedPieceBlocks.get(dataPiece.getIndex());
+        final int blockCount = (dataPiece.getLength() + REQUESTED_BLOCK_LENGTH - 1) / REQUESTED_BLOCK_LENGTH;
 
+        int unrequestedBlocks = 0;
+        for(int blockIndex = 0; blockIndex < blockCount; ++blockIndex) {
+            if((pieceBlocks == null || !pieceBlocks.get(blockIndex))
+                    && !dataPiece.hasBlock(blockIndex * REQUESTED_BLOCK_LENGTH)) {
+                ++unrequestedBlocks;
+            }
+        }
+        return unrequestedBlocks;
+    }
+
+    private boolean requestBlocks(final DataPiece dataPiece, final PeerSession receiver) {
         final List<DataBlockIdentifier> allRequestedBlocksForPeer = sentBlockRequests.computeIfAbsent(
                 receiver, blocks -> new ArrayList<>());
-
-        final List<DataBlockIdentifier> blockRequestsForPiece = allRequestedBlocksForPeer.stream().filter(
-                block -> block.getPieceIndex() == dataPiece.getIndex()).collect(Collectors.toList());
+        final BitSet pieceBlocks = requestedPieceBlocks.computeIfAbsent(dataPiece.getIndex(), key -> new BitSet());
 
         if(receiver.isLogTraffic()) {
             System.out.println("\nrequestBlocks(): allRequestedBlocks[" + receiver + "] = " + allRequestedBlocksForPeer
-                + ", blockRequestsForPiece[" + dataPiece.getIndex() +"] = " + blockRequestsForPiece
-                + ", interruptedPieces = " + downloadedInterruptedPieces.keySet());
+                + ", requestedBlocksForPiece[" + dataPiece.getIndex() +"] = " + pieceBlocks
+                + ", interruptedPieces = " + downloadedInterruptedPieces);
+        }
+
+        final List<DataBlockIdentifier> blockRequests = new ArrayList<>();
+        final int pipelineDepth = getBlockRequestPipelineDepth(receiver);
+        final int pieceLength = dataPiece.getLength();
+
+        //Request the blocks that neither have been received nor are being requested from other peers
+        for(int blockIndex = pieceBlocks.nextClearBit(0); blockIndex * REQUESTED_BLOCK_LENGTH < pieceLength
+                && allRequestedBlocksForPeer.size() < pipelineDepth; blockIndex = pieceBlocks.nextClearBit(blockIndex + 1)) {
+            final int pieceOffset = blockIndex * REQUESTED_BLOCK_LENGTH;
+            if(dataPiece.hasBlock(pieceOffset)) {
+                continue;
+            }
+
+            final int blockLength = Math.min(REQUESTED_BLOCK_LENGTH, pieceLength - pieceOffset);
+            final DataBlockIdentifier blockRequest = new DataBlockIdentifier(dataPiece.getIndex(),
+                    pieceOffset, blockLength);
+
+            blockRequests.add(blockRequest);
+            allRequestedBlocksForPeer.add(blockRequest);
+            pieceBlocks.set(blockIndex);
         }
 
-        int pieceOffset = 0;
-        if(!blockRequestsForPiece.isEmpty()) {
-            final DataBlockIdentifier lastBlockRequested = blockRequestsForPiece.get(blockRequestsForPiece.size() - 1);
-            pieceOffset = lastBlockRequested.getPieceOffset() + lastBlockRequested.getBlockLength();
+        if(!blockRequests.isEmpty()) {
+            receiver.setRequestedBlocks(allRequestedBlocksForPeer.size());
+            sendBlockRequests(blockRequests, receiver);
+            return true;
         }
+        return false;
+    }
 
-        final List<PwpMessage> blockRequestMessages = new ArrayList<>();
+    //Block requests to web seeds are served over HTTP, instead of being sent to a connected peer
+    private void sendBlockRequests(final List<DataBlockIdentifier> blockRequests, final PeerSession receiver) {
+        final WebSeedConnection webSeed = webSeeds.get(receiver);
+        if(webSeed != null) {
+            webSeed.request(blockRequests);
+            return;
+        }
 
-        final List<DataBlockIdentifier> interruptedPieceBlocks = downloadedInterruptedPieces.get(dataPiece.getIndex());
-        if(interruptedPieceBlocks != null && !interruptedPieceBlocks.isEmpty()) {
-            while(allRequestedBlocksForPeer.size() < MAX_BLOCK_REQUESTS_PER_PEER && !interruptedPieceBlocks.isEmpty()) {
-                final DataBlockIdentifier blockRequest = interruptedPieceBlocks.remove(0);
-                allRequestedBlocksForPeer.add(blockRequest);
-                blockRequestMessages.add(PwpMessageFactory.buildRequestMessage(blockRequest));
-                receiver.setRequestedBlocks(allRequestedBlocksForPeer.size());
-            }
+        final List<PwpMessage> blockRequestMessages = blockRequests.stream().map(
+                PwpMessageFactory::buildRequestMessage).collect(Collectors.toList());
+        connectionManager.send(new PwpMessageRequest(blockRequestMessages, receiver, PwpMessage.MessageType.REQUEST));
+    }
+
+    private void cancelBlockRequest(final DataBlockIdentifier blockRequest, final PeerSession receiver) {
+        final WebSeedConnection webSeed = webSeeds.get(receiver);
+        if(webSeed != null) {
+            webSeed.cancel(blockRequest);
+            return;
         }
-        else {
-            while (allRequestedBlocksForPeer.size() < MAX_BLOCK_REQUESTS_PER_PEER && pieceOffset < dataPiece.getLength()) {
-                //Check if there are unrequested blocks left for this piece
-                final boolean isLastBlock = pieceOffset + REQUESTED_BLOCK_LENGTH >= dataPiece.getLength();
-                final int blockLength = isLastBlock ? dataPiece.getLength() - pieceOffset : REQUESTED_BLOCK_LENGTH;
-                final DataBlockIdentifier blockRequest = new DataBlockIdentifier(dataPiece.getIndex(),
-                        pieceOffset, blockLength);
 
-                final PwpMessage message = PwpMessageFactory.buildRequestMessage(blockRequest);
-                blockRequestMessages.add(message);
-                allRequestedBlocksForPeer.add(blockRequest);
-                pieceOffset += blockLength;
-                receiver.setRequestedBlocks(allRequestedBlocksForPeer.size());
-            }
+        connectionManager.send(new PwpMessageRequest(PwpMessageFactory.buildCancelMessage(blockRequest), receiver));
+    }
+
+    private void addWebSeed(final String url) {
+        if(webSeeds.values().stream().anyMatch(webSeed -> webSeed.getUrl().equals(url))) {
+            return;
         }
 
-        if(!blockRequestMessages.isEmpty()) {
-            connectionManager.send(new PwpMessageRequest(blockRequestMessages, receiver, PwpMessage.MessageType.REQUEST));
+        try {
+            final WebSeedConnection webSeed = new WebSeedConnection(url, torrentView.getMetaData(), this);
+            webSeeds.put(webSeed.getPeerSession(), webSeed);
+        } catch (final MalformedURLException mue) {
+            System.err.println("Invalid web seed " + url + ": " + mue.getMessage());
         }
     }
 
+    //Keep the request pipelines of the web seeds full while there are pieces left to download
+    private void requestWebSeedPieces() {
+        if(webSeeds.isEmpty() || receivedPieces.cardinality() == torrentView.getTotalPieces()) {
+            return;
+        }
+
+        webSeeds.values().stream().filter(WebSeedConnection::isAvailable).map(WebSeedConnection::getPeerSession)
+                .filter(webSeedSession -> sentBlockRequests.computeIfAbsent(webSeedSession,
+                        key -> new ArrayList<>()).size() < getBlockRequestPipelineDepth(webSeedSession))
+                .collect(Collectors.toList()).forEach(this::requestPiece);
+    }
+
     //TODO: If the peer becomes seeder after this HAVE, choke it if it was a downloader peer
     private void handleHaveMessage(final PwpMessage message, final PeerSession peerSession) {
         final int pieceIndex = UnitConverter.getInt(message.getPayload());
@@ -1131,13 +1916,31 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
             System.out.println("[HAVE] Piece = " + pieceIndex + " + from " + peerSession);
         }
 
+        //A repeated announcement of the same piece doesn't change anything
+        if(peerSession.hasPiece(pieceIndex)) {
+            return;
+        }
+
         pieceSelectionStrategy.occurrenceIncreased(pieceIndex);
-        peerSession.setHasPiece(pieceIndex, true);
+        peerSession.setHasPiece(pieceIndex, torrentView.getTotalPieces());
+
+        if(peerSession.isSeeder(torrentView.getTotalPieces())) {
+            peerSession.getPieces().copyInto(peerPiecesBuffer);
+            pieceSelectionStrategy.peerCompleted(peerPiecesBuffer);
+        }
 
-        //If we don't yet have this piece, let's show some interest
-        if(!receivedPieces.get(pieceIndex) &&
-                pieceSelectionStrategy.getRequestedPiece(pieceIndex) == null
-                && !peerSession.areWeInterestedIn()) {
+        if(superSeeding) {
+            superSeedingUnseenPieces.clear(pieceIndex);
+            handleSuperSeedingPiecePropagation(pieceIndex, peerSession);
+        }
+
+        if(receivedPieces.get(pieceIndex) || piecePriorityTable.isSkipped(pieceIndex)) {
+            return;
+        }
+
+        //We don't yet have this piece and we want it, let's show some interest
+        peerSession.setNeededPieceCount(peerSession.getNeededPieceCount() + 1);
+        if(!peerSession.areWeInterestedIn()) {
 
             if(peerSession.isLogTraffic()) {
                 System.out.println("[HAVE] Showing interest in " + peerSession + " because of piece " + pieceIndex);
@@ -1148,6 +1951,102 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         }
     }
 
+    protected void handleSuperSeedingChange(final boolean enabled) {
+        superSeedingEnabled = enabled;
+
+        if(enabled && !superSeeding && receivedPieces.cardinality() == torrentView.getTotalPieces()) {
+            startSuperSeeding();
+        }
+        else if(!enabled && superSeeding) {
+            stopSuperSeeding();
+        }
+    }
+
+    //Super-seeding starts once we have all of the pieces, none of which any peer has been seen with yet
+    private void startSuperSeeding() {
+        superSeeding = true;
+        superSeedingUnseenPieces.set(0, torrentView.getTotalPieces());
+
+        getConnectedPeers().forEach(peer -> {
+            peer.getPieces().copyInto(peerPiecesBuffer);
+            superSeedingUnseenPieces.andNot(peerPiecesBuffer);
+        });
+    }
+
+    //Announce the pieces that were held back from the peers, now that they may download any of them
+    private void stopSuperSeeding() {
+        superSeeding = false;
+        superSeedingUnseenPieces.clear();
+
+        getConnectedPeers().forEach(peer -> {
+            final BitSet offeredPieces = superSeedingOfferedPieces.get(peer);
+            final List<PwpMessage> haveMessages = new ArrayList<>();
+
+            for(int pieceIndex = receivedPieces.nextSetBit(0); pieceIndex != -1;
+                pieceIndex = receivedPieces.nextSetBit(pieceIndex + 1)) {
+                if(!peer.hasPiece(pieceIndex) && (offeredPieces == null || !offeredPieces.get(pieceIndex))) {
+                    haveMessages.add(PwpMessageFactory.buildHavePieceMessage(pieceIndex));
+                }
+            }
+
+            if(!haveMessages.isEmpty()) {
+                connectionManager.send(new PwpMessageRequest(haveMessages, peer, PwpMessage.MessageType.HAVE));
+            }
+        });
+
+        superSeedingOfferedPieces.clear();
+        superSeedingPendingOffers.clear();
+    }
+
+    //A piece has propagated once a peer other than the one we offered it to announces that it has it
+    private void handleSuperSeedingPiecePropagation(final int pieceIndex, final PeerSession announcingPeer) {
+        final List<PeerSession> peersWithPropagatedOffers = superSeedingPendingOffers.entrySet().stream().filter(
+                offer -> offer.getValue() == pieceIndex && !offer.getKey().equals(announcingPeer)).map(
+                Map.Entry::getKey).collect(Collectors.toList());
+
+        peersWithPropagatedOffers.forEach(this::offerSuperSeedingPiece);
+    }
+
+    //Offer a piece that no peer has yet been seen with. Once all of them have been seen, the offers rotate
+    // over the pieces, so that each piece is offered about as often as the others
+    private void offerSuperSeedingPiece(final PeerSession peerSession) {
+        final BitSet offeredPieces = superSeedingOfferedPieces.computeIfAbsent(peerSession, key -> new BitSet());
+
+        int offeredPiece = -1;
+        for(int pieceIndex = superSeedingUnseenPieces.nextSetBit(0); pieceIndex != -1;
+            pieceIndex = superSeedingUnseenPieces.nextSetBit(pieceIndex + 1)) {
+            if(!peerSession.hasPiece(pieceIndex)) {
+                offeredPiece = pieceIndex;
+                break;
+            }
+            superSeedingUnseenPieces.clear(pieceIndex);
+        }
+
+        final int pieceCount = torrentView.getTotalPieces();
+        for(int i = 0; offeredPiece == -1 && i < pieceCount; ++i) {
+            final int pieceIndex = (superSeedingNextOffer + i) % pieceCount;
+            if(!peerSession.hasPiece(pieceIndex) && !offeredPieces.get(pieceIndex)) {
+                offeredPiece = pieceIndex;
+            }
+        }
+
+        if(offeredPiece == -1) {
+            superSeedingPendingOffers.remove(peerSession);
+            return;
+        }
+
+        superSeedingUnseenPieces.clear(offeredPiece);
+        superSeedingNextOffer = (offeredPiece + 1) % pieceCount;
+        offeredPieces.set(offeredPiece);
+        superSeedingPendingOffers.put(peerSession, offeredPiece);
+
+        if(peerSession.isLogTraffic()) {
+            System.out.println("[SUPER_SEEDING] Offering piece " + offeredPiece + " to " + peerSession);
+        }
+
+        connectionManager.send(new PwpMessageRequest(PwpMessageFactory.buildHavePieceMessage(offeredPiece), peerSession));
+    }
+
     private TorrentFileIO buildDiskFileIOs(final QueuedFileMetaData fileMetaData) {
         final Path filePath = torrentView.getProgress().getSavePath()
                 .resolve(Paths.get(torrentView.getMetaData().getName())).resolve(fileMetaData.getPath());
@@ -1171,15 +2070,120 @@ public final class TransferController implements PwpMessageListener, PwpConnecti
         connectionManager.removeConnectionListener(this);
         connectionManager.removeMessageListener(this);
 
-        if(fileIOWorkerJob != null) {
-            fileIOWorkerJob.cancel(true);
+        //Let the queued writes complete, then store the partially downloaded pieces while the disk is idle
+        try {
+            if(fileIOWorker.stop(FILE_IO_WORKER_STOP_TIMEOUT)) {
+                storePartialPieces();
+            }
+            else {
+                System.err.println("Disk writes didn't complete in time for " + torrentView.getInfoHash());
+            }
+        } catch (final InterruptedException ie) {
+            System.err.println("Interrupted while waiting on disk writes for " + torrentView.getInfoHash());
         }
 
         torrentView.getProgress().storeObtainedPieces(receivedPieces);
     }
 
+    private void storePartialPieces() {
+        final List<DataPiece> partialPieces = new ArrayList<>(pieceSelectionStrategy.getRequestedPieces());
+        partialPieces.addAll(pieceSelectionStrategy.getInterruptedPieces());
+        partialPieces.removeIf(DataPiece::hasCompleted);
+
+        //The postponed pieces are still on the disk, unless they have been obtained in the meantime
+        final Map<Integer, BitSet> partialPieceBlocks = new HashMap<>();
+        postponedPartialPieces.putAll(loadingPartialPieces);
+        loadingPartialPieces.clear();
+        postponedPartialPieces.forEach((pieceIndex, storedBlocks) -> {
+            if(!receivedPieces.get(pieceIndex)) {
+                partialPieceBlocks.put(pieceIndex, storedBlocks);
+            }
+        });
+
+        try {
+            fileIOWorker.storePartialPieces(partialPieces, REQUESTED_BLOCK_LENGTH);
+            partialPieces.forEach(partialPiece -> partialPieceBlocks.put(
+                    partialPiece.getIndex(), partialPiece.getReceivedBlocks(REQUESTED_BLOCK_LENGTH)));
+        } catch (final IOException ioe) {
+            System.err.println("Failed to store partial pieces of " + torrentView.getInfoHash() + ": " + ioe);
+        }
+
+        torrentView.getProgress().storePartialPieces(partialPieceBlocks);
+    }
+
+    //Continue downloading the pieces that were only partially downloaded before the last shutdown. The pieces
+    //are only loaded while they fit within the memory budget (the most complete ones first), the rest are
+    //left on the disk and loaded by the disk worker once there is room for them
+    protected void restorePartialPieces() {
+        if(!partialPiecesRestored) {
+            postponedPartialPieces.putAll(torrentView.getProgress().getPartialPieces());
+            partialPiecesRestored = true;
+        }
+
+        //Any loads left over from before the disk worker was stopped were discarded
+        postponedPartialPieces.putAll(loadingPartialPieces);
+        loadingPartialPieces.clear();
+
+        for(final int pieceIndex : getPostponedPartialPieces()) {
+            if(receivedPieces.get(pieceIndex) || isPieceInMemory(pieceIndex)) {
+                //The piece has been downloaded again since, the stored blocks are no longer needed
+                postponedPartialPieces.remove(pieceIndex);
+                continue;
+            }
+            if(!pieceMemoryBudget.tryAllocate(torrentView.getInfoHash(),
+                    getPieceMemoryUsage(), getPieceLength(pieceIndex))) {
+                break;
+            }
+
+            final BitSet storedBlocks = postponedPartialPieces.remove(pieceIndex);
+            try {
+                final DataPiece partialPiece = fileIOWorker.loadPartialPiece(
+                        pieceIndex, storedBlocks, REQUESTED_BLOCK_LENGTH);
+                if(pieceSelectionStrategy.pieceRequested(pieceIndex, partialPiece)
+                        && pieceSelectionStrategy.pieceInterrupted(pieceIndex, "restorePartialPieces")) {
+                    downloadedInterruptedPieces.add(pieceIndex);
+                }
+            } catch (final IOException ioe) {
+                System.err.println("Failed to restore partial piece " + pieceIndex + ": " + ioe);
+            }
+        }
+        pieceMemoryBudget.updateUsage(torrentView.getInfoHash(), getPieceMemoryUsage());
+    }
+
+    private void loadPostponedPartialPieces() {
+        for(final int pieceIndex : getPostponedPartialPieces()) {
+            if(receivedPieces.get(pieceIndex)) {
+                postponedPartialPieces.remove(pieceIndex);
+                continue;
+            }
+            if(!pieceMemoryBudget.tryAllocate(torrentView.getInfoHash(),
+                    getPieceMemoryUsage(), getPieceLength(pieceIndex))) {
+                break;
+            }
+
+            final BitSet storedBlocks = postponedPartialPieces.remove(pieceIndex);
+            loadingPartialPieces.put(pieceIndex, storedBlocks);
+            fileIOWorker.queuePartialPieceLoad(pieceIndex, storedBlocks, REQUESTED_BLOCK_LENGTH);
+        }
+        pieceMemoryBudget.updateUsage(torrentView.getInfoHash(), getPieceMemoryUsage());
+    }
+
+    //The most complete pieces first
+    private List<Integer> getPostponedPartialPieces() {
+        return postponedPartialPieces.keySet().stream().sorted(Comparator.comparingInt(
+                pieceIndex -> -postponedPartialPieces.get(pieceIndex).cardinality())).collect(Collectors.toList());
+    }
+
+    private boolean isPieceInMemory(final int pieceIndex) {
+        return pieceSelectionStrategy.getRequestedPiece(pieceIndex) != null
+                || pieceSelectionStrategy.getInterruptedPieces().stream().anyMatch(
+                        dataPiece -> dataPiece.getIndex() == pieceIndex);
+    }
+
     private void restoreState() {
-        fileIOWorkerJob = ioWorkerExecutor.submit(fileIOWorker);
+        restorePartialPieces();
+
+        fileIOWorker.start();
 
         connectionManager.addConnectionListener(this);
         connectionManager.addMessageListener(this);
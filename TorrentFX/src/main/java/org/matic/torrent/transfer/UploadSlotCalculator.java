@@ -0,0 +1,111 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+/**
+ * Derives the number of upload slots from the measured upload capacity, so that each unchoked peer
+ * gets a meaningful share of the uplink. The capacity is estimated as the highest total upload rate
+ * seen recently, slowly decaying so that the estimate can adapt to a slower uplink.
+ *
+ * The measured upload rate is limited by the slots themselves, so when the peers can only receive slowly
+ * the estimate alone would keep the slot count low. Therefore an extra slot is probed whenever the last
+ * one raised the total upload rate, until the uplink stops delivering more.
+ *
+ * @author Vedran Matic
+ */
+public final class UploadSlotCalculator {
+
+    //Used until the upload capacity has been measured (4 regular and 1 optimistic slot)
+    public static final int DEFAULT_UPLOAD_SLOTS = 5;
+
+    public static final int MIN_UPLOAD_SLOTS = 2;
+    public static final int MAX_UPLOAD_SLOTS = 30;
+
+    //How much the capacity estimate decays for every sample below the current estimate
+    private static final double CAPACITY_DECAY_FACTOR = 0.99;
+
+    //How much the total upload rate must change between samples to add or remove a probed slot
+    private static final double PROBED_RATE_CHANGE_FACTOR = 1.05;
+
+    private final int maxUploadSlots;
+    private double uploadCapacity = 0;
+
+    private double lastUploadRate = 0;
+    private int probedUploadSlots = 0;
+
+    /**
+     * Create a new instance with the default upper limit of upload slots.
+     */
+    public UploadSlotCalculator() {
+        this(MAX_UPLOAD_SLOTS);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxUploadSlots Upper limit of upload slots, regardless of the upload capacity
+     */
+    public UploadSlotCalculator(final int maxUploadSlots) {
+        this.maxUploadSlots = maxUploadSlots;
+    }
+
+    /**
+     * Update the capacity estimate with the most recently measured total upload rate.
+     *
+     * @param totalUploadRate Sum of upload rates (bytes/second) to all peers
+     */
+    public void updateUploadRate(final double totalUploadRate) {
+        final int uploadSlots = getUploadSlots();
+
+        //The uplink is not saturated while more slots still increase the total upload rate
+        if(totalUploadRate > lastUploadRate * PROBED_RATE_CHANGE_FACTOR) {
+            probedUploadSlots = uploadSlots + 1;
+        }
+        else if(totalUploadRate * PROBED_RATE_CHANGE_FACTOR < lastUploadRate) {
+            probedUploadSlots = Math.max(0, probedUploadSlots - 1);
+        }
+
+        lastUploadRate = totalUploadRate;
+        uploadCapacity = Math.max(totalUploadRate, uploadCapacity * CAPACITY_DECAY_FACTOR);
+    }
+
+    /**
+     * @return Current upload capacity estimate (bytes/second)
+     */
+    public double getUploadCapacity() {
+        return uploadCapacity;
+    }
+
+    /**
+     * Calculate the number of upload slots for the current upload capacity estimate. The slot count
+     * grows with the square root of the capacity (in kB/s), i.e. faster uplinks give each peer more,
+     * but is never below the number of slots probed so far.
+     *
+     * @return Number of upload slots, including the optimistic one
+     */
+    public int getUploadSlots() {
+        if(uploadCapacity == 0) {
+            return DEFAULT_UPLOAD_SLOTS;
+        }
+        final int uploadSlots = Math.max(probedUploadSlots,
+                (int)Math.round(Math.sqrt(0.6 * uploadCapacity / 1024)));
+        return Math.max(MIN_UPLOAD_SLOTS, Math.min(maxUploadSlots, uploadSlots));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.matic.torrent.gui.model.TorrentView;
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.queue.QueuedTorrent;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Owns the upload slot budget shared by all of the active torrents. The total number of slots is derived
+ * from the measured upload capacity of all torrents combined, and is divided between the torrents that
+ * have interested peers, based on their upload rates and queue priorities.
+ *
+ * Each torrent with interested peers is first given a single slot, the ones that have waited the longest
+ * and those with the highest priority first. The remaining slots are then divided in proportion to each
+ * torrent's upload rate weighted by its priority, but never more than the torrent's interested peers.
+ *
+ * @author Vedran Matic
+ */
+public final class UploadSlotManager {
+
+    public static final int MAX_GLOBAL_UPLOAD_SLOTS = 100;
+
+    private static final long REBALANCE_INTERVAL = 10000;      //10 sec
+
+    //The lowest upload rate used for weighting, so that idle torrents can still claim extra slots
+    private static final double MIN_UPLOAD_RATE_WEIGHT = 1024;  //1 kB/s
+
+    //Forced torrents weigh twice as much as the torrent at the top of the queue
+    private static final double FORCED_PRIORITY_WEIGHT = 2;
+
+    private final Map<InfoHash, UploadDemand> uploadDemands = new HashMap<>();
+    private final UploadSlotCalculator slotCalculator = new UploadSlotCalculator(MAX_GLOBAL_UPLOAD_SLOTS);
+
+    private long lastRebalanceTime = 0;
+    private int spareUploadSlots = 0;
+
+    /**
+     * Report a torrent's current upload demand. The slots are rebalanced between all of the torrents
+     * if a rotation interval has passed since the last rebalancing.
+     *
+     * @param torrentView Torrent reporting its demand
+     * @param uploadRate Torrent's current total upload rate (bytes/second)
+     * @param interestedPeers Number of peers interested in the torrent's pieces
+     */
+    public synchronized void updateUploadDemand(final TorrentView torrentView, final double uploadRate,
+                                                final int interestedPeers) {
+        final UploadDemand uploadDemand = uploadDemands.computeIfAbsent(
+                torrentView.getInfoHash(), key -> new UploadDemand(torrentView));
+        uploadDemand.uploadRate = uploadRate;
+        uploadDemand.interestedPeers = interestedPeers;
+
+        final long currentTime = System.currentTimeMillis();
+        if(currentTime - lastRebalanceTime >= REBALANCE_INTERVAL) {
+            rebalance();
+            lastRebalanceTime = currentTime;
+        }
+    }
+
+    /**
+     * Get the number of upload slots currently assigned to a torrent.
+     *
+     * @param torrentView Target torrent
+     * @return Number of assigned upload slots, or 0 if the torrent has none
+     */
+    public synchronized int getUploadSlots(final TorrentView torrentView) {
+        final UploadDemand uploadDemand = uploadDemands.get(torrentView.getInfoHash());
+        return uploadDemand != null? uploadDemand.uploadSlots : 0;
+    }
+
+    /**
+     * Assign one of the currently unassigned slots to a torrent, if there are any left. This allows a torrent
+     * to unchoke a newly interested peer right away, instead of waiting for the next rebalancing.
+     *
+     * @param torrentView Torrent requesting a slot
+     * @return Whether a slot was assigned to the torrent
+     */
+    public synchronized boolean acquireSpareUploadSlot(final TorrentView torrentView) {
+        if(spareUploadSlots == 0) {
+            return false;
+        }
+        final UploadDemand uploadDemand = uploadDemands.computeIfAbsent(
+                torrentView.getInfoHash(), key -> new UploadDemand(torrentView));
+        ++uploadDemand.uploadSlots;
+        --spareUploadSlots;
+        return true;
+    }
+
+    /**
+     * Stop managing the upload slots of a torrent, its slots will be reassigned on next rebalancing.
+     *
+     * @param torrentView Torrent to remove
+     */
+    public synchronized void unregister(final TorrentView torrentView) {
+        final UploadDemand uploadDemand = uploadDemands.remove(torrentView.getInfoHash());
+        if(uploadDemand != null) {
+            spareUploadSlots += uploadDemand.uploadSlots;
+        }
+    }
+
+    /**
+     * @return Total number of upload slots shared by all of the torrents
+     */
+    public synchronized int getTotalUploadSlots() {
+        return slotCalculator.getUploadSlots();
+    }
+
+    protected synchronized void rebalance() {
+        slotCalculator.updateUploadRate(uploadDemands.values().stream().mapToDouble(d -> d.uploadRate).sum());
+        int availableSlots = slotCalculator.getUploadSlots();
+
+        uploadDemands.values().forEach(d -> d.uploadSlots = 0);
+
+        final List<UploadDemand> slotCandidates = uploadDemands.values().stream().filter(
+                d -> d.interestedPeers > 0).sorted(Comparator.comparingInt((UploadDemand d) -> -d.starvedRotations)
+                .thenComparingInt(UploadDemand::getPriority)).collect(Collectors.toList());
+
+        //Give a slot to as many of the torrents as possible
+        for(final UploadDemand candidate : slotCandidates) {
+            if(availableSlots > 0) {
+                candidate.uploadSlots = 1;
+                candidate.starvedRotations = 0;
+                --availableSlots;
+            }
+            else {
+                ++candidate.starvedRotations;
+            }
+        }
+
+        //Divide the remaining slots by weight (highest averages method)
+        while(availableSlots > 0) {
+            final Optional<UploadDemand> nextSlotOwner = slotCandidates.stream().filter(
+                    d -> d.uploadSlots > 0 && d.uploadSlots < d.interestedPeers).max(
+                    Comparator.comparingDouble(d -> d.getWeight() / (d.uploadSlots + 1)));
+            if(!nextSlotOwner.isPresent()) {
+                break;
+            }
+            ++nextSlotOwner.get().uploadSlots;
+            --availableSlots;
+        }
+
+        spareUploadSlots = availableSlots;
+    }
+
+    private static final class UploadDemand {
+        private final TorrentView torrentView;
+
+        private double uploadRate = 0;
+        private int interestedPeers = 0;
+        private int uploadSlots = 0;
+        private int starvedRotations = 0;
+
+        UploadDemand(final TorrentView torrentView) {
+            this.torrentView = torrentView;
+        }
+
+        //Lower values denote higher priorities, forced torrents come before all of the queued ones
+        int getPriority() {
+            final int priority = torrentView.getPriority();
+            return priority == QueuedTorrent.TOP_PRIORITY? 0 : Math.max(1, priority);
+        }
+
+        double getWeight() {
+            final int priority = getPriority();
+            final double priorityWeight = priority == 0? FORCED_PRIORITY_WEIGHT : 1.0 / priority;
+            return Math.max(MIN_UPLOAD_RATE_WEIGHT, uploadRate) * priorityWeight;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.strategy;
+
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects among the rarest pieces the ones closest to the pieces that our peers have recently been requesting
+ * from us. Peers that download only some of the files, or download in order, keep requesting pieces from the
+ * same parts of the torrent, so the pieces there are likely to be requested next. Having them early lets us
+ * serve them back out sooner, which the peers reciprocate with their uploads.
+ *
+ * @author Vedran Matic
+ */
+public class DemandWeightedPieceSelectionStrategy extends RarestFirstPieceSelectionStrategy {
+
+    //Demand is tracked per region of neighbouring pieces (16 pieces per region)
+    private static final int DEMAND_REGION_SHIFT = 4;
+
+    private final int[] regionDemands;
+
+    public DemandWeightedPieceSelectionStrategy(final int maxRarestPieces, final int pieceCount,
+                                                final BitSet receivedPieces) {
+        super(maxRarestPieces, pieceCount, receivedPieces);
+        regionDemands = new int[(pieceCount >> DEMAND_REGION_SHIFT) + 1];
+    }
+
+    @Override
+    public void pieceDemanded(final int pieceIndex) {
+        if(pieceIndex >= 0 && pieceIndex < pieceAvailabilities.length) {
+            ++regionDemands[pieceIndex >> DEMAND_REGION_SHIFT];
+        }
+    }
+
+    @Override
+    public void decayDemand() {
+        for(int i = 0; i < regionDemands.length; ++i) {
+            regionDemands[i] >>= 1;
+        }
+    }
+
+    public int getPieceDemand(final int pieceIndex) {
+        return regionDemands[pieceIndex >> DEMAND_REGION_SHIFT];
+    }
+
+    @Override
+    protected int chooseRarestCandidate(final int[] candidates, final int candidateCount) {
+        int chosenPiece = candidates[0];
+        int highestDemand = getPieceDemand(chosenPiece);
+        int equallyDemandedPieces = 1;
+
+        //Choose the most demanded piece, and at random among the ones that are equally demanded
+        for(int i = 1; i < candidateCount; ++i) {
+            final int demand = getPieceDemand(candidates[i]);
+            if(demand > highestDemand) {
+                chosenPiece = candidates[i];
+                highestDemand = demand;
+                equallyDemandedPieces = 1;
+            }
+            else if(demand == highestDemand && ThreadLocalRandom.current().nextInt(++equallyDemandedPieces) == 0) {
+                chosenPiece = candidates[i];
+            }
+        }
+
+        return chosenPiece;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.strategy;
+
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.queue.enums.FilePriority;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * A precomputed table of piece priorities, derived from the priorities of the files that the pieces
+ * belong to. A piece that is shared between several files gets the highest priority among them, so
+ * it is only skipped if all of its files are skipped. When a file's priority changes, only the pieces
+ * overlapping that file are updated.
+ *
+ * @author Vedran Matic
+ */
+public final class PiecePriorityTable {
+
+    private static final byte SKIP_PRIORITY = (byte)FilePriority.SKIP.getValue();
+
+    private final byte[] piecePriorities;
+    private final byte[] filePriorities;
+
+    //Kept in sync with the piece priorities, so that the skipped pieces can be masked out in bulk
+    private final BitSet skippedPieces;
+
+    //File positions within the torrent, ordered by the file offsets
+    private final long[] fileOffsets;
+    private final long[] fileEnds;
+
+    private final Map<Path, Integer> fileIndexes = new HashMap<>();
+    private final int pieceLength;
+    private final long totalLength;
+
+    /**
+     * Build the priority table for all of the torrent's pieces.
+     *
+     * @param files The torrent's files, in torrent order
+     * @param pieceLength Length of the torrent's pieces (the last one may be shorter)
+     * @param pieceCount Total number of the torrent's pieces
+     * @param filePriorities Current priority of each file, by its index
+     */
+    public PiecePriorityTable(final List<QueuedFileMetaData> files, final int pieceLength, final int pieceCount,
+                              final IntFunction<FilePriority> filePriorities) {
+        this.pieceLength = pieceLength;
+        this.piecePriorities = new byte[pieceCount];
+        this.skippedPieces = new BitSet(pieceCount);
+        this.filePriorities = new byte[files.size()];
+        this.fileOffsets = new long[files.size()];
+        this.fileEnds = new long[files.size()];
+
+        for(int fileIndex = 0; fileIndex < files.size(); ++fileIndex) {
+            final QueuedFileMetaData fileMetaData = files.get(fileIndex);
+            fileOffsets[fileIndex] = fileMetaData.getOffset();
+            fileEnds[fileIndex] = fileMetaData.getOffset() + fileMetaData.getLength();
+            this.filePriorities[fileIndex] = toPriorityValue(filePriorities.apply(fileIndex));
+            fileIndexes.put(fileMetaData.getPath(), fileIndex);
+        }
+
+        totalLength = files.isEmpty()? 0 : fileEnds[files.size() - 1];
+        updatePieces(0, pieceCount - 1);
+    }
+
+    /**
+     * Get a piece's priority.
+     *
+     * @param pieceIndex Index of the target piece
+     * @return The piece's priority, one of {@link FilePriority} values
+     */
+    public int getPriority(final int pieceIndex) {
+        return piecePriorities[pieceIndex];
+    }
+
+    /**
+     * Check whether a piece doesn't need to be downloaded, because all of its files are skipped.
+     *
+     * @param pieceIndex Index of the target piece
+     * @return true if the piece is skipped, false otherwise
+     */
+    public boolean isSkipped(final int pieceIndex) {
+        return piecePriorities[pieceIndex] == SKIP_PRIORITY;
+    }
+
+    /**
+     * Get all of the pieces that don't need to be downloaded. The returned set is owned by the table
+     * and changes along with the file priorities, so the caller must not modify it.
+     *
+     * @return Indexes of the skipped pieces
+     */
+    public BitSet getSkippedPieces() {
+        return skippedPieces;
+    }
+
+    /**
+     * Update the priorities of the pieces that overlap a file whose priority has changed.
+     *
+     * @param filePath Path of the file, as found in the torrent's meta data
+     * @param filePriority The file's new priority
+     * @return true if any piece priorities might have changed, false if the file is unknown or its priority is unchanged
+     */
+    public boolean filePriorityChanged(final Path filePath, final FilePriority filePriority) {
+        final Integer fileIndex = fileIndexes.get(filePath);
+        final byte priorityValue = toPriorityValue(filePriority);
+
+        if(fileIndex == null || filePriorities[fileIndex] == priorityValue) {
+            return false;
+        }
+
+        filePriorities[fileIndex] = priorityValue;
+
+        if(fileEnds[fileIndex] > fileOffsets[fileIndex]) {
+            updatePieces((int)(fileOffsets[fileIndex] / pieceLength), (int)((fileEnds[fileIndex] - 1) / pieceLength));
+        }
+        return true;
+    }
+
+    private void updatePieces(final int firstPiece, final int lastPiece) {
+        if(firstPiece > lastPiece || fileOffsets.length == 0) {
+            return;
+        }
+
+        //Find the last file that starts at or before the first piece
+        final int searchResult = Arrays.binarySearch(fileOffsets, (long)firstPiece * pieceLength);
+        int firstFile = searchResult >= 0? searchResult : Math.max(0, -searchResult - 2);
+
+        for(int pieceIndex = firstPiece; pieceIndex <= lastPiece; ++pieceIndex) {
+            final long pieceStart = (long)pieceIndex * pieceLength;
+            final long pieceEnd = Math.min(pieceStart + pieceLength, totalLength);
+
+            while(firstFile < fileEnds.length && fileEnds[firstFile] <= pieceStart) {
+                ++firstFile;
+            }
+
+            byte piecePriority = SKIP_PRIORITY;
+            for(int fileIndex = firstFile; fileIndex < fileOffsets.length && fileOffsets[fileIndex] < pieceEnd;
+                ++fileIndex) {
+                if(fileEnds[fileIndex] > pieceStart) {
+                    piecePriority = (byte)Math.max(piecePriority, filePriorities[fileIndex]);
+                }
+            }
+            piecePriorities[pieceIndex] = piecePriority;
+            skippedPieces.set(pieceIndex, piecePriority == SKIP_PRIORITY);
+        }
+    }
+
+    //MIXED only applies to directories, a file with such priority is downloaded normally
+    private static byte toPriorityValue(final FilePriority filePriority) {
+        return (byte)(filePriority == null || filePriority == FilePriority.MIXED?
+                FilePriority.NORMAL.getValue() : filePriority.getValue());
+    }
+}
@@ -20,31 +20,139 @@
 package org.matic.torrent.transfer.strategy;
 
 import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.queue.enums.FilePriority;
 
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Consumer;
 
 public abstract class PieceSelectionStrategy {
 
     protected final Map<Integer, DataPiece> downloadingPieces = new HashMap<>();
+
+    //The keys of downloadingPieces, for checking and masking them without boxing the piece indexes
+    protected final BitSet downloadingPieceSet = new BitSet();
     protected final Map<Integer, DataPiece> interruptedPieces = new HashMap<>();
 
+    //Availabilities counted per piece, for the peers that aren't seeds
     protected final int[] pieceAvailabilities;
+
+    //Seeds have every piece, so they are counted once for the whole torrent instead of once per piece
+    protected int seedCount = 0;
+
     protected BitSet receivedPieces;
 
+    //Priorities of the pieces derived from their files' priorities, if any
+    protected PiecePriorityTable piecePriorityTable = null;
+
+    //How many pieces may be partially downloaded at the same time, before no more new pieces are selected
+    private int partialPieceLimit = Integer.MAX_VALUE;
+
+    //How many pieces to select at random among the most available ones, before switching to rarest first
+    private int randomFirstPieceCount = 0;
+
     protected PieceSelectionStrategy(final int pieceCount, final BitSet receivedPieces) {
         pieceAvailabilities = new int[pieceCount];
         this.receivedPieces = receivedPieces;
     }
 
-    public abstract Optional<Integer> selectNext(BitSet peerCondition);
+    /**
+     * Select the next piece to download from a peer, without creating any garbage.
+     *
+     * @param peerCondition Pieces that the peer has
+     * @return Index of the selected piece, or -1 if none of the peer's pieces should be downloaded or if too
+     * many pieces are already partially downloaded
+     */
+    public abstract int selectNextPiece(BitSet peerCondition);
     public abstract void occurrenceIncreased(int pieceIndex);
     public abstract void occurrenceDecreased(int pieceIndex);
 
+    public Optional<Integer> selectNext(final BitSet peerCondition) {
+        final int pieceIndex = selectNextPiece(peerCondition);
+        return pieceIndex != -1? Optional.of(pieceIndex) : Optional.empty();
+    }
+
+    public int getPieceAvailability(final int pieceIndex) {
+        return pieceAvailabilities[pieceIndex] + seedCount;
+    }
+
+    public int getSeedCount() {
+        return seedCount;
+    }
+
+    protected boolean isAvailable(final int pieceIndex) {
+        return seedCount > 0 || pieceAvailabilities[pieceIndex] > 0;
+    }
+
+    public void setPartialPieceLimit(final int partialPieceLimit) {
+        this.partialPieceLimit = partialPieceLimit;
+    }
+
+    /**
+     * Count the pieces that have been started but not completed, both those being downloaded and the interrupted ones.
+     *
+     * @return Number of partially downloaded pieces
+     */
+    public int getPartialPieceCount() {
+        return downloadingPieces.size() + interruptedPieces.size();
+    }
+
+    protected boolean isPartialPieceLimitReached() {
+        return getPartialPieceCount() >= partialPieceLimit;
+    }
+
+    public void setRandomFirstPieceCount(final int randomFirstPieceCount) {
+        this.randomFirstPieceCount = randomFirstPieceCount;
+    }
+
+    /**
+     * Check whether we are still obtaining our first pieces. The rarest pieces are the slowest to get,
+     * so until we have something to upload, the pieces that are quick to get are preferred instead.
+     *
+     * @return true if fewer than the random first pieces have been obtained, false otherwise
+     */
+    protected boolean isBootstrapping() {
+        return receivedPieces.cardinality() < randomFirstPieceCount;
+    }
+
+    /**
+     * Notify the strategy that a peer has started requesting one of our pieces.
+     *
+     * @param pieceIndex Index of the requested piece
+     */
+    public void pieceDemanded(final int pieceIndex) {
+        //Only demand aware strategies make use of this
+    }
+
+    /**
+     * Reduce the weight of the demand seen so far, so that the recent requests matter the most.
+     */
+    public void decayDemand() {
+        //Only demand aware strategies make use of this
+    }
+
+    public void setPiecePriorityTable(final PiecePriorityTable piecePriorityTable) {
+        this.piecePriorityTable = piecePriorityTable;
+    }
+
+    /**
+     * Check whether a piece should be downloaded, or whether it only belongs to skipped files.
+     *
+     * @param pieceIndex Index of the target piece
+     * @return true if the piece should be downloaded, false otherwise
+     */
+    public boolean isWanted(final int pieceIndex) {
+        return piecePriorityTable == null || !piecePriorityTable.isSkipped(pieceIndex);
+    }
+
+    protected int getPiecePriority(final int pieceIndex) {
+        return piecePriorityTable != null? piecePriorityTable.getPriority(pieceIndex) : FilePriority.NORMAL.getValue();
+    }
+
     public DataPiece getRequestedPiece(final int pieceIndex) {
 
         //System.out.println("getRequestedPiece(" + pieceIndex + "): " + downloadingPieces.get(pieceIndex));
@@ -52,6 +160,14 @@ public abstract class PieceSelectionStrategy {
         return downloadingPieces.get(pieceIndex);
     }
 
+    public Collection<DataPiece> getRequestedPieces() {
+        return Collections.unmodifiableCollection(downloadingPieces.values());
+    }
+
+    public Collection<DataPiece> getInterruptedPieces() {
+        return Collections.unmodifiableCollection(interruptedPieces.values());
+    }
+
     public DataPiece getInterruptedPiece(final int pieceIndex) {
 
         //System.out.println("getInterruptedPiece(" + pieceIndex + "): " + interruptedPieces.get(pieceIndex));
@@ -59,20 +175,11 @@ public abstract class PieceSelectionStrategy {
         return interruptedPieces.remove(pieceIndex);
     }
 
-    public boolean anyPiecesNotYetRequested(final BitSet peerPieces) {
-        for(int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces.nextSetBit(i + 1)) {
-            if(!downloadingPieces.containsKey(i)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     public boolean pieceRequested(final int pieceIndex, final DataPiece piece) {
 
         //System.out.println("pieceRequested(" + pieceIndex + ", " + piece + ")");
 
+        downloadingPieceSet.set(pieceIndex);
         return downloadingPieces.put(pieceIndex, piece) == null;
     }
 
@@ -81,6 +188,7 @@ public abstract class PieceSelectionStrategy {
         //System.out.println("pieceFailure(" + pieceIndex + ")");
 
         receivedPieces.clear(pieceIndex);
+        downloadingPieceSet.clear(pieceIndex);
         return downloadingPieces.remove(pieceIndex) != null;
     }
 
@@ -89,6 +197,7 @@ public abstract class PieceSelectionStrategy {
         //System.out.println("pieceInterrupted(" + pieceIndex + ")");
 
         receivedPieces.clear(pieceIndex);
+        downloadingPieceSet.clear(pieceIndex);
         final DataPiece interruptedPiece = downloadingPieces.remove(pieceIndex);
         if(interruptedPiece != null) {
             interruptedPieces.put(pieceIndex, interruptedPiece);
@@ -102,6 +211,7 @@ public abstract class PieceSelectionStrategy {
         //System.out.println("pieceObtained(" + pieceIndex + ")");
 
         receivedPieces.set(pieceIndex);
+        downloadingPieceSet.clear(pieceIndex);
         downloadingPieces.remove(pieceIndex);
         interruptedPieces.remove(pieceIndex);
     }
@@ -110,19 +220,55 @@ public abstract class PieceSelectionStrategy {
 
         //System.out.println("peerLost(" + peerPieces + ", " + inProgressPieces + ")");
 
-        peerStateChanged(peerPieces, pieceIndex -> occurrenceDecreased(pieceIndex));
+        if(isSeed(peerPieces) && seedCount > 0) {
+            --seedCount;
+        }
+        else {
+            occurrencesDecreased(peerPieces);
+        }
     }
 
     public void peerGained(final BitSet peerPieces) {
 
         //System.out.println("peerGained(" + peerPieces + ")");
 
-        peerStateChanged(peerPieces, pieceIndex -> occurrenceIncreased(pieceIndex));
+        if(isSeed(peerPieces)) {
+            ++seedCount;
+        }
+        else {
+            occurrencesIncreased(peerPieces);
+        }
+    }
+
+    /**
+     * Move a peer, whose pieces have been counted one by one, to the seed counter once it has got all of the pieces.
+     *
+     * @param peerPieces Pieces that the peer has, all of which have already been counted
+     */
+    public void peerCompleted(final BitSet peerPieces) {
+        if(!isSeed(peerPieces)) {
+            return;
+        }
+        occurrencesDecreased(peerPieces);
+        ++seedCount;
+    }
+
+    private boolean isSeed(final BitSet peerPieces) {
+        return peerPieces.nextClearBit(0) >= pieceAvailabilities.length;
+    }
+
+    //The peer's pieces are found a word at a time, any (spare) bits beyond the last piece are ignored
+    private void occurrencesIncreased(final BitSet peerPieces) {
+        for(int i = peerPieces.nextSetBit(0); i >= 0 && i < pieceAvailabilities.length;
+            i = peerPieces.nextSetBit(i + 1)) {
+            occurrenceIncreased(i);
+        }
     }
 
-    private void peerStateChanged(final BitSet peerPieces, final Consumer<Integer> pieceAvailabilityChangeHandler) {
-        for(int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces.nextSetBit(i + 1)) {
-            pieceAvailabilityChangeHandler.accept(i);
+    private void occurrencesDecreased(final BitSet peerPieces) {
+        for(int i = peerPieces.nextSetBit(0); i >= 0 && i < pieceAvailabilities.length;
+            i = peerPieces.nextSetBit(i + 1)) {
+            occurrenceDecreased(i);
         }
     }
 }
\ No newline at end of file
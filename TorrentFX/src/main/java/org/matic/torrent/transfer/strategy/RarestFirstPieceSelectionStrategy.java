@@ -19,266 +19,203 @@
 */
 package org.matic.torrent.transfer.strategy;
 
-import org.matic.torrent.client.ClientProperties;
-import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.queue.enums.FilePriority;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.OptionalInt;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects the rarest of the pieces that a peer has. All of the pieces are kept in an array sorted on their
+ * availabilities, where the pieces of the same availability form a bucket. Whenever a piece's availability
+ * changes, the piece is swapped with the piece at its bucket's edge and the bucket boundary is moved,
+ * so that the array stays sorted without any searching.
+ *
+ * @author Vedran Matic
+ */
 public class RarestFirstPieceSelectionStrategy extends PieceSelectionStrategy {
 
-    protected final TreeMap<Integer, List<Integer>> rarestPieces = new TreeMap<>();
+    private static final int INITIAL_AVAILABILITY_LEVELS = 16;
+
+    //All of the pieces, sorted on their availabilities (the rarest ones first)
+    protected final int[] sortedPieces;
+
+    //Position of each of the pieces within sortedPieces
+    private final int[] piecePositions;
+
+    //Position within sortedPieces at which the pieces of each availability (or higher) start
+    private int[] availabilityStarts;
+
     private final int maxRarestPieces;
 
+    //Reused by each selection, so that selecting a piece creates no garbage
+    private final BitSet candidatePieces;
+    private final int[] rarestCandidates;
+
     public RarestFirstPieceSelectionStrategy(final int maxRarestPieces, final int pieceCount,
                                              final BitSet receivedPieces) {
         super(pieceCount, receivedPieces);
         this.maxRarestPieces = maxRarestPieces;
-    }
-
-    @Override
-    public Optional<Integer> selectNext(final BitSet peerCondition) {
-        final List<Integer> pieceCandidates = rarestPieces.entrySet().stream().flatMap(
-                entry -> entry.getValue().stream()).filter(pieceIndex ->
-                peerCondition.get(pieceIndex) && !receivedPieces.get(pieceIndex) &&
-                        !downloadingPieces.containsKey(pieceIndex)).collect(Collectors.toList());
-
-        if(pieceCandidates.isEmpty()) {
-            //None of the pieces this peer has are among the rarest, simply request any piece we don't yet have
-            final BitSet candidatePieces = BitSet.valueOf(peerCondition.toByteArray());
-            candidatePieces.andNot(receivedPieces);
-
-            //Check which of the candidate peers has the lowest availability
-            int lowestAvailability = Integer.MAX_VALUE;
-            int rarestPieceIndex = -1;
-
-            for(int i = candidatePieces.nextSetBit(0); i != -1; i = candidatePieces.nextSetBit(i + 1)) {
-                if(super.pieceAvailabilities[i] < lowestAvailability && !downloadingPieces.containsKey(i)
-                        && !receivedPieces.get(i)) {
-                    rarestPieceIndex = i;
-                    lowestAvailability = super.pieceAvailabilities[i];
-                }
-            }
 
-            //System.out.println("Rarest pieces: " + rarestPieces + " , piece to request = " + rarestPieceIndex);
+        candidatePieces = new BitSet(pieceCount);
+        rarestCandidates = new int[Math.min(maxRarestPieces, pieceCount)];
 
-            return rarestPieceIndex != -1? Optional.of(rarestPieceIndex) : Optional.empty();
+        sortedPieces = new int[pieceCount];
+        piecePositions = new int[pieceCount];
+        for(int i = 0; i < pieceCount; ++i) {
+            sortedPieces[i] = i;
+            piecePositions[i] = i;
         }
-        else {
 
-            //System.out.println("Rarest pieces: " + rarestPieces + " , download candidates =  " + pieceCandidates);
-
-            return Optional.of(pieceCandidates.get(
-                    ClientProperties.RANDOM_INSTANCE.nextInt(pieceCandidates.size())));
-        }
+        //All of the pieces are initially unavailable
+        availabilityStarts = new int[INITIAL_AVAILABILITY_LEVELS];
+        Arrays.fill(availabilityStarts, 1, availabilityStarts.length, pieceCount);
     }
 
     @Override
-    public void occurrenceIncreased(final int pieceIndex) {
-        final int oldPieceAvailability = pieceAvailabilities[pieceIndex]++;
-
-        //If we already have this piece, don't do anything
-        if(super.receivedPieces.get(pieceIndex)) {
-            return;
+    public int selectNextPiece(final BitSet peerCondition) {
+        if(isPartialPieceLimitReached()) {
+            return -1;
         }
 
-        final Map.Entry<Integer, List<Integer>> lastRarestEntry = rarestPieces.lastEntry();
-        final List<Integer> oldAvailabilityEntries = rarestPieces.get(oldPieceAvailability);
-        final int rarestPiecesCount = getRarestPiecesCount();
+        //The pieces that the peer has, which we neither have nor are downloading, masked word by word
+        candidatePieces.clear();
+        candidatePieces.or(peerCondition);
+        candidatePieces.andNot(receivedPieces);
+        candidatePieces.andNot(downloadingPieceSet);
 
-        //Check whether the piece was among the rarest pieces
-        if((oldAvailabilityEntries != null && oldAvailabilityEntries.contains(pieceIndex))) {
-            oldAvailabilityEntries.remove((Integer)pieceIndex);
-            if(oldAvailabilityEntries.isEmpty()) {
-                rarestPieces.remove(oldPieceAvailability);
-            }
-
-            if(pieceAvailabilities[pieceIndex] > lastRarestEntry.getKey() && rarestPiecesCount == maxRarestPieces) {
-                //Check whether we can replace the piece with the one of lower availability
-                final OptionalInt lowerPrioPiece = findAvailabilityPiece(
-                        (index, avail) -> avail < pieceAvailabilities[pieceIndex] && (!rarestPieces.containsKey(avail)
-                                || !rarestPieces.get(avail).contains(index)));
-
-                if (lowerPrioPiece.isPresent()) {
-                    final int lowerPrioPieceIndex = lowerPrioPiece.getAsInt();
-                    final int pieceAvail = pieceAvailabilities[lowerPrioPieceIndex];
-
-                    rarestPieces.computeIfAbsent(pieceAvail, value -> new ArrayList<>()).add(lowerPrioPieceIndex);
-                }
-            }
-            else {
-                //The piece is still among the rarest ones, move it to the correct position
-                rarestPieces.computeIfAbsent(pieceAvailabilities[pieceIndex], value -> new ArrayList<>()).add(pieceIndex);
-            }
-        }
-        else {
-            //This piece just became available, prioritize it amongst the rarest pieces
-            if (rarestPiecesCount == maxRarestPieces) {
-                final List<Integer> pieceIndexes = lastRarestEntry.getValue();
-                pieceIndexes.remove(pieceIndexes.size() - 1);
-                if(pieceIndexes.isEmpty()) {
-                    rarestPieces.remove(lastRarestEntry.getKey());
-                }
-            }
-            //Add it to the rarestPieces
-            rarestPieces.computeIfAbsent(pieceAvailabilities[pieceIndex], value -> new ArrayList<>()).add(pieceIndex);
+        if(candidatePieces.isEmpty()) {
+            return -1;
         }
-    }
 
-    @Override
-    public void occurrenceDecreased(final int pieceIndex) {
-        final int oldAvailability = pieceAvailabilities[pieceIndex]--;
+        //Only the peer's pieces of the highest priority are considered, rarest-first among themselves
+        final int highestPriority = getHighestCandidatePriority();
+        if(highestPriority == FilePriority.SKIP.getValue()) {
+            return -1;
+        }
 
-        //If we already have this piece, don't do anything
-        if(super.receivedPieces.get(pieceIndex)) {
-            return;
+        if(isBootstrapping()) {
+            final int randomPieceIndex = selectRandomWidelyAvailablePiece(highestPriority);
+            if(randomPieceIndex != -1) {
+                return randomPieceIndex;
+            }
         }
 
-        final List<Integer> oldAvailabilityEntries = rarestPieces.get(oldAvailability);
+        int rarestCandidateCount = 0;
+        int rarestPieceCount = 0;
 
-        //Check whether the piece was among the rarest pieces
-        if((oldAvailabilityEntries != null && oldAvailabilityEntries.contains(pieceIndex))) {
-            oldAvailabilityEntries.remove((Integer)pieceIndex);
-            if(oldAvailabilityEntries.isEmpty()) {
-                rarestPieces.remove(oldAvailability);
+        //Choose among the rarest pieces of that priority. The pieces that no partial peer has
+        //are still available from the seeds, if there are any
+        for(int position = seedCount > 0? 0 : availabilityStarts[1];
+            position < sortedPieces.length && rarestPieceCount < maxRarestPieces; ++position) {
+            final int pieceIndex = sortedPieces[position];
+            if(receivedPieces.get(pieceIndex) || downloadingPieceSet.get(pieceIndex)
+                    || getPiecePriority(pieceIndex) != highestPriority) {
+                continue;
             }
+            ++rarestPieceCount;
 
-            //If the piece has become unavailable, add another candidate to rarest pieces
-            if(oldAvailability == 1) {
-                updateRarestPieces((index, avail) -> index == pieceIndex || (rarestPieces.containsKey(avail)
-                        && rarestPieces.get(avail).contains(index)));
-            }
-            //The piece is still among the rarest ones, move it to the correct position
-            else {
-                rarestPieces.computeIfAbsent(pieceAvailabilities[pieceIndex], value -> new ArrayList<>()).add(pieceIndex);
+            if(candidatePieces.get(pieceIndex)) {
+                rarestCandidates[rarestCandidateCount++] = pieceIndex;
             }
         }
-        //Check whether the piece has become one of the rarest pieces
-        else if(pieceAvailabilities[pieceIndex] != 0) {
-            final Map.Entry<Integer, List<Integer>> lastRarestEntry = rarestPieces.lastEntry();
-
-            if(lastRarestEntry == null) {
-                //There are no entries among the rarest pieces, add this piece there
-                rarestPieces.computeIfAbsent(pieceAvailabilities[pieceIndex], value -> new ArrayList<>()).add(pieceIndex);
-                return;
-            }
-
-            final List<Integer> lastRarestEntryPieceIndexes = lastRarestEntry.getValue();
-            final int lastRarestEntryAvailability = lastRarestEntry.getKey();
 
-            if (pieceAvailabilities[pieceIndex] < lastRarestEntryAvailability) {
-                //This piece become one of the rarest pieces, replace one of the highest availability pieces there
-                lastRarestEntryPieceIndexes.remove(0);
+        if(rarestCandidateCount > 0) {
+            return chooseRarestCandidate(rarestCandidates, rarestCandidateCount);
+        }
 
-                if (lastRarestEntryPieceIndexes.isEmpty()) {
-                    rarestPieces.remove(lastRarestEntry.getKey());
-                }
+        //None of the pieces this peer has are among the rarest, find its rarest piece of that priority
+        int rarestPieceIndex = -1;
+        int lowestAvailability = Integer.MAX_VALUE;
 
-                rarestPieces.computeIfAbsent(pieceAvailabilities[pieceIndex], value -> new ArrayList<>()).add(pieceIndex);
+        for(int pieceIndex = candidatePieces.nextSetBit(0); pieceIndex != -1 && pieceIndex < sortedPieces.length;
+            pieceIndex = candidatePieces.nextSetBit(pieceIndex + 1)) {
+            if(isAvailable(pieceIndex) && getPiecePriority(pieceIndex) == highestPriority
+                    && pieceAvailabilities[pieceIndex] < lowestAvailability) {
+                rarestPieceIndex = pieceIndex;
+                lowestAvailability = pieceAvailabilities[pieceIndex];
             }
         }
+
+        return rarestPieceIndex;
     }
 
-    @Override
-    public boolean pieceRequested(final int pieceIndex, final DataPiece piece) {
-        final boolean wasRequested = super.pieceRequested(pieceIndex, piece);
+    //Find the highest priority among the candidate pieces, SKIP if none of them can be downloaded
+    private int getHighestCandidatePriority() {
+        final int topPriority = FilePriority.HIGHEST.getValue();
+        int highestPriority = FilePriority.SKIP.getValue();
 
-        if(wasRequested && removeFromRarestPieces(pieceIndex)) {
-            updateRarestPieces((index, avail) -> index == pieceIndex);
+        for(int pieceIndex = candidatePieces.nextSetBit(0); pieceIndex != -1 && pieceIndex < sortedPieces.length
+                && highestPriority < topPriority; pieceIndex = candidatePieces.nextSetBit(pieceIndex + 1)) {
+            if(isAvailable(pieceIndex) && isWanted(pieceIndex)) {
+                highestPriority = Math.max(highestPriority, getPiecePriority(pieceIndex));
+            }
         }
-
-        return wasRequested;
+        return highestPriority;
     }
 
-    @Override
-    public void pieceObtained(final int pieceIndex) {
-        super.pieceObtained(pieceIndex);
-
-        if(removeFromRarestPieces(pieceIndex)) {
-            updateRarestPieces((index, avail) -> index == pieceIndex);
-        }
+    /**
+     * Choose one of the rarest pieces of the highest priority, that the peer has.
+     *
+     * @param candidates Indexes of the candidate pieces
+     * @param candidateCount How many of the candidates are valid
+     * @return Index of the chosen piece
+     */
+    protected int chooseRarestCandidate(final int[] candidates, final int candidateCount) {
+        //Unlike SecureRandom, which allocates a buffer for each number, this doesn't create garbage
+        return candidates[ThreadLocalRandom.current().nextInt(candidateCount)];
     }
 
-    @Override
-    public boolean pieceFailure(final int pieceIndex) {
-        final boolean failureHandled = super.pieceFailure(pieceIndex);
+    //Choose at random among the peer's most available pieces of the highest priority
+    private int selectRandomWidelyAvailablePiece(final int highestPriority) {
+        final int firstAvailablePosition = seedCount > 0? 0 : availabilityStarts[1];
+        int candidateCount = 0;
 
-        if(failureHandled) {
-            updateRarestPieces((index, avail) -> false);
+        for(int position = sortedPieces.length - 1;
+            position >= firstAvailablePosition && candidateCount < rarestCandidates.length; --position) {
+            final int pieceIndex = sortedPieces[position];
+            if(candidatePieces.get(pieceIndex) && getPiecePriority(pieceIndex) == highestPriority) {
+                rarestCandidates[candidateCount++] = pieceIndex;
+            }
         }
 
-        return failureHandled;
+        return candidateCount > 0? rarestCandidates[ThreadLocalRandom.current().nextInt(candidateCount)] : -1;
     }
 
     @Override
-    public void peerLost(final BitSet peerPieces, final Set<Integer> inProgressPieces) {
-        super.peerLost(peerPieces, inProgressPieces);
-    }
-
-    protected int getRarestPiecesCount() {
-        return (int)rarestPieces.values().stream().flatMap(List::stream).count();
-    }
-
-    private boolean removeFromRarestPieces(final int pieceIndex) {
-        if(!rarestPieces.containsKey(pieceAvailabilities[pieceIndex])) {
-            return false;
+    public void occurrenceIncreased(final int pieceIndex) {
+        final int availability = pieceAvailabilities[pieceIndex]++;
+        if(availability + 2 > availabilityStarts.length) {
+            final int oldLength = availabilityStarts.length;
+            availabilityStarts = Arrays.copyOf(availabilityStarts, oldLength * 2);
+            Arrays.fill(availabilityStarts, oldLength, availabilityStarts.length, sortedPieces.length);
         }
-        final List<Integer> sameAvailabilityPieces = rarestPieces.get(pieceAvailabilities[pieceIndex]);
 
-        final boolean removed = sameAvailabilityPieces.remove((Integer)pieceIndex);
-        if(sameAvailabilityPieces.isEmpty()) {
-            rarestPieces.remove(pieceAvailabilities[pieceIndex]);
-        }
-        return removed;
+        //Move the piece to the end of its bucket, where the next bucket will now start
+        final int nextAvailabilityStart = --availabilityStarts[availability + 1];
+        swapPieces(piecePositions[pieceIndex], nextAvailabilityStart);
     }
 
-    private OptionalInt findAvailabilityPiece(final BiFunction<Integer, Integer, Boolean> condition) {
-        for(int i = 0; i < pieceAvailabilities.length; ++i) {
-            if(condition.apply(i, pieceAvailabilities[i])) {
-                return OptionalInt.of(i);
-            }
+    @Override
+    public void occurrenceDecreased(final int pieceIndex) {
+        final int availability = pieceAvailabilities[pieceIndex];
+        if(availability == 0) {
+            return;
         }
-        return OptionalInt.empty();
+        --pieceAvailabilities[pieceIndex];
+
+        //Move the piece to the start of its bucket, which then becomes the end of the previous bucket
+        final int availabilityStart = availabilityStarts[availability]++;
+        swapPieces(piecePositions[pieceIndex], availabilityStart);
     }
 
-    private void updateRarestPieces(final BiFunction<Integer, Integer, Boolean> skipPieceCondition) {
-        final int rarestPiecesCount = getRarestPiecesCount();
-        if(maxRarestPieces == rarestPiecesCount) {
-            return;
-        }
-        final int targetPiecesCount = maxRarestPieces - rarestPiecesCount;
-        final TreeMap<Integer, List<Integer>> result = new TreeMap<>();
-
-        for(int i = 0; i < super.pieceAvailabilities.length; ++i) {
-            //Skip this piece if we have it or if it is among the rarest pieces already
-            final int availability = pieceAvailabilities[i];
-            final boolean isAmongRarestPieces = rarestPieces.containsKey(availability)
-                    && rarestPieces.get(availability).contains(i);
-            if(availability == 0 || super.receivedPieces.get(i) || isAmongRarestPieces
-                    || super.downloadingPieces.containsKey(i) || skipPieceCondition.apply(i, availability)) {
-                continue;
-            }
-            if(result.size() < targetPiecesCount) {
-                result.computeIfAbsent(super.pieceAvailabilities[i], value -> new ArrayList<>()).add(i);
-            }
-            else {
-                final int highestFoundAvailability = result.lastKey();
-                if(super.pieceAvailabilities[i] < highestFoundAvailability) {
-                    result.remove(highestFoundAvailability);
-                    result.computeIfAbsent(super.pieceAvailabilities[i], value -> new ArrayList<>()).add(i);
-                }
-            }
-        }
+    private void swapPieces(final int firstPosition, final int secondPosition) {
+        final int firstPiece = sortedPieces[firstPosition];
+        final int secondPiece = sortedPieces[secondPosition];
 
-        result.entrySet().forEach(entry -> rarestPieces.computeIfAbsent(
-                entry.getKey(), value -> new ArrayList<>()).addAll(entry.getValue()));
+        sortedPieces[firstPosition] = secondPiece;
+        sortedPieces[secondPosition] = firstPiece;
+        piecePositions[secondPiece] = firstPosition;
+        piecePositions[firstPiece] = secondPosition;
     }
-}
\ No newline at end of file
+}
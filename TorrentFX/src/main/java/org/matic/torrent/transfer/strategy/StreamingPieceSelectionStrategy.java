@@ -0,0 +1,81 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.strategy;
+
+import java.util.BitSet;
+
+/**
+ * A piece selection strategy for playing media files while they are being downloaded. The pieces
+ * following the playback position have the earliest deadlines and are selected first, in order.
+ * Outside of this deadline window, the rarest pieces are selected as usual.
+ *
+ * @author Vedran Matic
+ */
+public class StreamingPieceSelectionStrategy extends RarestFirstPieceSelectionStrategy {
+
+    private final int deadlineWindow;
+
+    //Updated by the streaming readers, while the pieces are selected by the transfer controller
+    private volatile int playbackPiece = 0;
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxRarestPieces How many of the rarest pieces to choose among outside of the deadline window
+     * @param pieceCount Total number of the torrent's pieces
+     * @param receivedPieces Pieces that we already have
+     * @param deadlineWindow How many pieces, starting at the playback position, to select in order
+     */
+    public StreamingPieceSelectionStrategy(final int maxRarestPieces, final int pieceCount,
+                                           final BitSet receivedPieces, final int deadlineWindow) {
+        super(maxRarestPieces, pieceCount, receivedPieces);
+        this.deadlineWindow = deadlineWindow;
+    }
+
+    /**
+     * Move the playback position, which will prioritize the pieces needed next.
+     *
+     * @param pieceIndex Index of the piece that is about to be played
+     */
+    public void setPlaybackPiece(final int pieceIndex) {
+        playbackPiece = pieceIndex;
+    }
+
+    public int getPlaybackPiece() {
+        return playbackPiece;
+    }
+
+    @Override
+    public int selectNextPiece(final BitSet peerCondition) {
+        final int deadlineWindowStart = playbackPiece;
+        final int deadlineWindowEnd = Math.min(deadlineWindowStart + deadlineWindow, pieceAvailabilities.length);
+
+        //Select the piece with the earliest deadline that the peer has. Playback can't wait for the
+        //partially downloaded pieces to complete, so these are selected even above the partial piece limit
+        for(int pieceIndex = peerCondition.nextSetBit(deadlineWindowStart);
+            pieceIndex != -1 && pieceIndex < deadlineWindowEnd; pieceIndex = peerCondition.nextSetBit(pieceIndex + 1)) {
+            if(!receivedPieces.get(pieceIndex) && !downloadingPieceSet.get(pieceIndex) && isWanted(pieceIndex)) {
+                return pieceIndex;
+            }
+        }
+
+        return super.selectNextPiece(peerCondition);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.streaming;
+
+import java.io.IOException;
+
+/**
+ * A source of file contents that can be streamed while the file is still being downloaded.
+ *
+ * @author Vedran Matic
+ */
+public interface StreamingDataSource {
+
+    /**
+     * @return Name of the streamed file
+     */
+    String getName();
+
+    /**
+     * @return Total length (in bytes) of the streamed file
+     */
+    long getLength();
+
+    /**
+     * Read file data at the given position, blocking until the data becomes available.
+     *
+     * @param position Position within the file to read from
+     * @param buffer Where to store the read data
+     * @param bufferOffset Offset within the buffer where to start storing the data
+     * @param length Max number of bytes to read
+     * @return How many bytes were read (at least one), or -1 if the position is past the end of the file
+     * @throws IOException If the data could not be read
+     */
+    int read(long position, byte[] buffer, int bufferOffset, int length) throws IOException;
+}
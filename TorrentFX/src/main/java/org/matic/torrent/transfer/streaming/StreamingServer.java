@@ -0,0 +1,244 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.streaming;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal HTTP server, reachable only from the local machine, that lets media players stream files
+ * while they are being downloaded. Byte range requests are supported, so the players can seek.
+ *
+ * @author Vedran Matic
+ */
+public final class StreamingServer {
+
+    protected static final String CONTEXT_PATH = "/stream/";
+
+    //A read that blocks longer than this after the response has started is counted as a playback stall
+    protected static final long STALL_THRESHOLD = 500;  //500 ms
+
+    private static final int TRANSFER_BUFFER_SIZE = 65536;  //64 kB
+
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String RANGE_UNIT_PREFIX = "bytes=";
+
+    private final Map<String, StreamingDataSource> dataSources = new ConcurrentHashMap<>();
+    private final StreamingStatistics statistics = new StreamingStatistics();
+    private final int port;
+
+    private ExecutorService requestExecutor;
+    private HttpServer httpServer;
+
+    /**
+     * Create a new instance.
+     *
+     * @param port Port to listen on, or 0 to use any free port
+     */
+    public StreamingServer(final int port) {
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if(httpServer != null) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext(CONTEXT_PATH, this::handleRequest);
+
+        requestExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread requestThread = new Thread(runnable, "streaming-server");
+            requestThread.setDaemon(true);
+            return requestThread;
+        });
+        httpServer.setExecutor(requestExecutor);
+        httpServer.start();
+    }
+
+    public synchronized void stop() {
+        if(httpServer == null) {
+            return;
+        }
+        httpServer.stop(0);
+        requestExecutor.shutdownNow();
+        httpServer = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return httpServer != null;
+    }
+
+    /**
+     * Make a data source available for streaming.
+     *
+     * @param streamId A unique identifier of the stream, used in the URI path
+     * @param dataSource Source of the streamed data
+     * @return Location from which the data source can be streamed
+     */
+    public synchronized URI publish(final String streamId, final StreamingDataSource dataSource) {
+        if(httpServer == null) {
+            throw new IllegalStateException("The streaming server has not been started");
+        }
+        dataSources.put(streamId, dataSource);
+        final InetSocketAddress serverAddress = httpServer.getAddress();
+        return URI.create("http://" + serverAddress.getAddress().getHostAddress() + ":"
+                + serverAddress.getPort() + CONTEXT_PATH + streamId);
+    }
+
+    public void unpublish(final String streamId) {
+        dataSources.remove(streamId);
+    }
+
+    public StreamingStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Parse the first range of a Range request header.
+     *
+     * @param rangeHeader Range header value, or null if the whole content was requested
+     * @param contentLength Length of the requested content
+     * @return First and last (inclusive) requested byte positions, or null if the range can't be satisfied
+     */
+    protected static long[] parseRange(final String rangeHeader, final long contentLength) {
+        if(rangeHeader == null) {
+            return new long[] {0, contentLength - 1};
+        }
+        if(!rangeHeader.startsWith(RANGE_UNIT_PREFIX)) {
+            return null;
+        }
+
+        final String range = rangeHeader.substring(RANGE_UNIT_PREFIX.length()).split(",")[0].trim();
+        final int separatorIndex = range.indexOf('-');
+        if(separatorIndex == -1) {
+            return null;
+        }
+
+        final long first;
+        final long last;
+        try {
+            if(separatorIndex == 0) {
+                //A suffix range, such as bytes=-500 (the last 500 bytes)
+                final long suffixLength = Long.parseLong(range.substring(1));
+                first = Math.max(0, contentLength - suffixLength);
+                last = contentLength - 1;
+            }
+            else {
+                first = Long.parseLong(range.substring(0, separatorIndex));
+                final String lastValue = range.substring(separatorIndex + 1);
+                last = lastValue.isEmpty()? contentLength - 1 : Math.min(Long.parseLong(lastValue), contentLength - 1);
+            }
+        } catch(final NumberFormatException nfe) {
+            return null;
+        }
+
+        return first <= last && first < contentLength? new long[] {first, last} : null;
+    }
+
+    private void handleRequest(final HttpExchange exchange) throws IOException {
+        final long requestTime = System.currentTimeMillis();
+        try {
+            final String requestMethod = exchange.getRequestMethod();
+            final boolean headRequest = "HEAD".equals(requestMethod);
+            if(!headRequest && !"GET".equals(requestMethod)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final String streamId = exchange.getRequestURI().getPath().substring(CONTEXT_PATH.length());
+            final StreamingDataSource dataSource = dataSources.get(streamId);
+            if(dataSource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            final long contentLength = dataSource.getLength();
+            final String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+            final long[] range = parseRange(rangeHeader, contentLength);
+
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            if(range == null) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + contentLength);
+                exchange.sendResponseHeaders(contentLength == 0 && rangeHeader == null? 200 : 416, -1);
+                return;
+            }
+
+            final String contentType = URLConnection.guessContentTypeFromName(dataSource.getName());
+            exchange.getResponseHeaders().set("Content-Type", contentType != null? contentType : DEFAULT_CONTENT_TYPE);
+
+            final long responseLength = range[1] - range[0] + 1;
+            if(rangeHeader != null) {
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + range[0] + "-" + range[1] + "/" + contentLength);
+            }
+            exchange.sendResponseHeaders(rangeHeader != null? 206 : 200, headRequest? -1 : responseLength);
+
+            if(!headRequest) {
+                transferRange(dataSource, range[0], responseLength, exchange.getResponseBody(), requestTime);
+            }
+        }
+        catch(final IOException ioe) {
+            //The player has most likely closed the connection (when seeking or stopping playback)
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void transferRange(final StreamingDataSource dataSource, final long position, final long length,
+                               final OutputStream responseStream, final long requestTime) throws IOException {
+        final byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+        long bytesSent = 0;
+
+        while(bytesSent < length) {
+            final long readStartTime = System.currentTimeMillis();
+            final int bytesRead = dataSource.read(position + bytesSent, transferBuffer, 0,
+                    (int)Math.min(transferBuffer.length, length - bytesSent));
+            if(bytesRead == -1) {
+                throw new IOException("Unexpected end of " + dataSource.getName());
+            }
+
+            if(bytesSent > 0 && System.currentTimeMillis() - readStartTime > STALL_THRESHOLD) {
+                statistics.recordStall();
+            }
+
+            responseStream.write(transferBuffer, 0, bytesRead);
+
+            if(bytesSent == 0) {
+                responseStream.flush();
+                statistics.recordTimeToFirstByte(System.currentTimeMillis() - requestTime);
+            }
+            bytesSent += bytesRead;
+        }
+        responseStream.flush();
+    }
+}
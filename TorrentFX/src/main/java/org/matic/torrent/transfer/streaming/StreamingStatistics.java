@@ -0,0 +1,77 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.streaming;
+
+/**
+ * Playback quality measurements collected by the streaming server.
+ *
+ * @author Vedran Matic
+ */
+public final class StreamingStatistics {
+
+    private long requestCount = 0;
+    private long totalTimeToFirstByte = 0;
+    private long lastTimeToFirstByte = 0;
+    private long stallCount = 0;
+
+    /**
+     * Record how long it took to send the first byte of a response after its request was received.
+     *
+     * @param timeToFirstByte Time to first byte (in millis)
+     */
+    public synchronized void recordTimeToFirstByte(final long timeToFirstByte) {
+        ++requestCount;
+        totalTimeToFirstByte += timeToFirstByte;
+        lastTimeToFirstByte = timeToFirstByte;
+    }
+
+    /**
+     * Record a playback stall, which occurs when an already started response had to wait for data.
+     */
+    public synchronized void recordStall() {
+        ++stallCount;
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized long getAverageTimeToFirstByte() {
+        return requestCount == 0? 0 : totalTimeToFirstByte / requestCount;
+    }
+
+    public synchronized long getLastTimeToFirstByte() {
+        return lastTimeToFirstByte;
+    }
+
+    public synchronized long getStallCount() {
+        return stallCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StreamingStatistics{" +
+                "requestCount=" + requestCount +
+                ", averageTimeToFirstByte=" + getAverageTimeToFirstByte() +
+                ", lastTimeToFirstByte=" + lastTimeToFirstByte +
+                ", stallCount=" + stallCount +
+                '}';
+    }
+}
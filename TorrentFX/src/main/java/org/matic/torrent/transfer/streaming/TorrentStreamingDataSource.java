@@ -0,0 +1,172 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.streaming;
+
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.io.FileOperationResult;
+import org.matic.torrent.io.ReadDataPieceRequest;
+import org.matic.torrent.io.cache.CachedDataPieceIdentifier;
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.transfer.DataBlockIdentifier;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Streams a file belonging to a torrent that is being downloaded. Reads block until the pieces containing
+ * the requested data have been obtained and written to the disk, and move the playback position so that
+ * the piece selection prioritizes the pieces needed next.
+ *
+ * @author Vedran Matic
+ */
+public final class TorrentStreamingDataSource implements StreamingDataSource {
+
+    //How long to wait for a piece to be downloaded (or read from the disk) before giving up
+    protected static final long READ_TIMEOUT = 60000;   //60 seconds
+
+    private final BitSet availablePieces;
+
+    private final IntConsumer playbackPositionHandler;
+    private final Consumer<ReadDataPieceRequest> pieceReader;
+
+    private final QueuedFileMetaData fileMetaData;
+    private final InfoHash infoHash;
+    private final int pieceLength;
+
+    /**
+     * Create a new instance.
+     *
+     * @param fileMetaData The streamed file
+     * @param infoHash Info hash of the torrent to which the file belongs
+     * @param pieceLength Torrent's piece length
+     * @param availablePieces Pieces that have already been obtained and stored on the disk
+     * @param playbackPositionHandler Notified of the index of the piece that is about to be played
+     * @param pieceReader Reads pieces from the disk (or a cache)
+     */
+    public TorrentStreamingDataSource(final QueuedFileMetaData fileMetaData, final InfoHash infoHash,
+                                      final int pieceLength, final BitSet availablePieces,
+                                      final IntConsumer playbackPositionHandler,
+                                      final Consumer<ReadDataPieceRequest> pieceReader) {
+        this.fileMetaData = fileMetaData;
+        this.infoHash = infoHash;
+        this.pieceLength = pieceLength;
+        this.availablePieces = availablePieces;
+        this.playbackPositionHandler = playbackPositionHandler;
+        this.pieceReader = pieceReader;
+    }
+
+    /**
+     * Notify any waiting reads that a piece has been stored on the disk.
+     *
+     * @param pieceIndex Index of the stored piece
+     */
+    public synchronized void pieceStored(final int pieceIndex) {
+        availablePieces.set(pieceIndex);
+        this.notifyAll();
+    }
+
+    @Override
+    public String getName() {
+        return fileMetaData.getPath().getFileName().toString();
+    }
+
+    @Override
+    public long getLength() {
+        return fileMetaData.getLength();
+    }
+
+    @Override
+    public int read(final long position, final byte[] buffer, final int bufferOffset,
+                    final int length) throws IOException {
+        if(position >= getLength()) {
+            return -1;
+        }
+
+        final long torrentPosition = fileMetaData.getOffset() + position;
+        final int pieceIndex = (int)(torrentPosition / pieceLength);
+        final int pieceOffset = (int)(torrentPosition % pieceLength);
+
+        playbackPositionHandler.accept(pieceIndex);
+        awaitPiece(pieceIndex);
+
+        final DataPiece dataPiece = readPiece(pieceIndex);
+        final int readLength = (int)Math.min(Math.min(length, dataPiece.getLength() - pieceOffset),
+                getLength() - position);
+
+        final Optional<DataBlock> dataBlock = dataPiece.getBlock(pieceOffset, readLength);
+        if(!dataBlock.isPresent()) {
+            throw new IOException("Invalid read of " + readLength + " bytes at offset "
+                    + pieceOffset + " of " + dataPiece);
+        }
+
+        System.arraycopy(dataBlock.get().getBlockData(), 0, buffer, bufferOffset, readLength);
+        return readLength;
+    }
+
+    private synchronized void awaitPiece(final int pieceIndex) throws IOException {
+        final long deadline = System.currentTimeMillis() + READ_TIMEOUT;
+        long timeLeft;
+        while(!availablePieces.get(pieceIndex)) {
+            if((timeLeft = deadline - System.currentTimeMillis()) <= 0) {
+                throw new IOException("Timed out while waiting for piece " + pieceIndex);
+            }
+            try {
+                this.wait(timeLeft);
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for piece " + pieceIndex);
+            }
+        }
+    }
+
+    private DataPiece readPiece(final int pieceIndex) throws IOException {
+        final CompletableFuture<FileOperationResult> readResult = new CompletableFuture<>();
+        pieceReader.accept(new ReadDataPieceRequest(new CachedDataPieceIdentifier(pieceIndex, infoHash),
+                new DataBlockIdentifier(pieceIndex, 0, pieceLength), null, Collections.emptyList(),
+                readResult::complete));
+
+        final FileOperationResult fileOperationResult;
+        try {
+            fileOperationResult = readResult.get(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading piece " + pieceIndex);
+        } catch (final ExecutionException | TimeoutException e) {
+            throw new IOException("Failed to read piece " + pieceIndex, e);
+        }
+
+        final Optional<IOException> readError = fileOperationResult.getErrorCause();
+        if(readError.isPresent()) {
+            throw readError.get();
+        }
+        return fileOperationResult.getDataPiece();
+    }
+}
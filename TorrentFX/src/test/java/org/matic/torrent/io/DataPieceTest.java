@@ -24,6 +24,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Optional;
 
 public final class DataPieceTest {
@@ -93,7 +94,7 @@ public final class DataPieceTest {
         Assert.assertTrue(block4Added);
         Assert.assertEquals(1, unitUnderTest.queuedBlocks.size());
         Assert.assertTrue(unitUnderTest.queuedBlocks.containsKey(9));
-        Assert.assertEquals(block4, unitUnderTest.queuedBlocks.get(9));
+        Assert.assertEquals(Integer.valueOf(block4.getBlockData().length), unitUnderTest.queuedBlocks.get(9));
         Assert.assertEquals(0, unitUnderTest.digestedBlocksPointer);
         Assert.assertArrayEquals(lastBlockBytes, Arrays.copyOfRange(unitUnderTest.getPieceBytes(), 9, 10));
 
@@ -111,7 +112,7 @@ public final class DataPieceTest {
         Assert.assertTrue(block3Added);
         Assert.assertEquals(2, unitUnderTest.queuedBlocks.size());
         Assert.assertTrue(unitUnderTest.queuedBlocks.containsKey(6));
-        Assert.assertEquals(block3, unitUnderTest.queuedBlocks.get(6));
+        Assert.assertEquals(Integer.valueOf(block3.getBlockData().length), unitUnderTest.queuedBlocks.get(6));
         Assert.assertEquals(3, unitUnderTest.digestedBlocksPointer);
         Assert.assertArrayEquals(block3Bytes, Arrays.copyOfRange(unitUnderTest.getPieceBytes(), 6, 9));
 
@@ -126,6 +127,42 @@ public final class DataPieceTest {
         Assert.assertTrue(unitUnderTest.validate(expectedDigestedBytes));
     }
 
+    @Test
+    public void testHasBlock() {
+        Assert.assertFalse(unitUnderTest.hasBlock(0));
+
+        //Out of order block is queued
+        unitUnderTest.addBlock(block4);
+        Assert.assertTrue(unitUnderTest.hasBlock(9));
+        Assert.assertFalse(unitUnderTest.hasBlock(0));
+
+        //In order block is digested
+        unitUnderTest.addBlock(block1);
+        Assert.assertTrue(unitUnderTest.hasBlock(0));
+        Assert.assertFalse(unitUnderTest.hasBlock(3));
+    }
+
+    @Test
+    public void testGetReceivedBlocks() {
+        Assert.assertTrue(unitUnderTest.getReceivedBlocks(3).isEmpty());
+
+        //Digested and queued blocks are both received
+        unitUnderTest.addBlock(block1);
+        unitUnderTest.addBlock(block3);
+
+        final BitSet expectedBlocks = new BitSet();
+        expectedBlocks.set(0);
+        expectedBlocks.set(2);
+        Assert.assertEquals(expectedBlocks, unitUnderTest.getReceivedBlocks(3));
+
+        //The shorter last block completes the piece
+        unitUnderTest.addBlock(block4);
+        unitUnderTest.addBlock(block2);
+
+        expectedBlocks.set(0, 4);
+        Assert.assertEquals(expectedBlocks, unitUnderTest.getReceivedBlocks(3));
+    }
+
     @Test
     public void testAddInvalidBlock() {
         final boolean tooLongBlockAdded = unitUnderTest.addBlock(new DataBlock(block1Bytes, pieceIndex, 10));
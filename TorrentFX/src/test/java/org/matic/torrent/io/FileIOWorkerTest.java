@@ -0,0 +1,641 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.io;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.io.cache.CachedDataPieceIdentifier;
+import org.matic.torrent.io.cache.DataPieceCache;
+import org.matic.torrent.net.pwp.PeerSession;
+import org.matic.torrent.net.pwp.PwpPeer;
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.queue.QueuedTorrentMetaData;
+import org.matic.torrent.transfer.DataBlockIdentifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public final class FileIOWorkerTest {
+
+    private static final int PIECE_LENGTH = 10;
+    private static final int TOTAL_PIECES = 3;
+
+    private final QueuedTorrentMetaData metaDataMock = EasyMock.createMock(QueuedTorrentMetaData.class);
+
+    private final InfoHash infoHash = new InfoHash("1".getBytes(StandardCharsets.UTF_8));
+
+    private final ExecutorService diskIOExecutor = Executors.newFixedThreadPool(4);
+    private final List<Path> tempFiles = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        EasyMock.reset(metaDataMock);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        diskIOExecutor.shutdownNow();
+        for(final Path tempFile : tempFiles) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    public void testQueuedReadsForSamePieceAreServedWithOneDiskRead() throws Exception {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final RecordingFileChannel fileChannel = createFileChannel((long)PIECE_LENGTH * TOTAL_PIECES);
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), PIECE_LENGTH * TOTAL_PIECES, 0), fileChannel));
+
+        final DataPieceCache pieceCache = new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE);
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch resultsLatch = new CountDownLatch(3);
+
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs, pieceCache, metaDataMock, result -> {
+            results.add(result);
+            resultsLatch.countDown();
+        }, diskIOExecutor);
+
+        final PeerSession requester = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+        final List<CachedDataPieceIdentifier> readAheadPieces = Arrays.asList(
+                new CachedDataPieceIdentifier(1, infoHash));
+
+        for(int blockOffset = 0; blockOffset < PIECE_LENGTH; blockOffset += 4) {
+            unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                    new DataBlockIdentifier(0, blockOffset, Math.min(4, PIECE_LENGTH - blockOffset)),
+                    requester, readAheadPieces));
+        }
+
+        unitUnderTest.start();
+
+        Assert.assertTrue(resultsLatch.await(5, TimeUnit.SECONDS));
+
+        //Wait for the read-ahead to complete before stopping the worker
+        final long readAheadDeadline = System.currentTimeMillis() + 5000;
+        while(!pieceCache.get(new CachedDataPieceIdentifier(1, infoHash)).isPresent()
+                && System.currentTimeMillis() < readAheadDeadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertTrue(unitUnderTest.stop(5000));
+
+        //Only one read of the requested piece and one of the read-ahead piece are expected
+        Assert.assertEquals(Arrays.asList(0L, (long)PIECE_LENGTH), fileChannel.getReadPositions());
+        Assert.assertFalse(fileChannel.isOpen());
+
+        Assert.assertEquals(3, results.size());
+        results.forEach(result -> {
+            Assert.assertFalse(result.getErrorCause().isPresent());
+            Assert.assertEquals(0, result.getDataPiece().getIndex());
+        });
+    }
+
+    @Test
+    public void testReadRequestArrivingDuringReadOfSamePieceIsServedWithSameRead() throws Exception {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final RecordingFileChannel fileChannel = createFileChannel((long)PIECE_LENGTH * TOTAL_PIECES);
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch readReleased = new CountDownLatch(1);
+        fileChannel.holdReads(readStarted, readReleased);
+
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), PIECE_LENGTH * TOTAL_PIECES, 0), fileChannel));
+
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch resultsLatch = new CountDownLatch(2);
+
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs,
+                new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE), metaDataMock, result -> {
+            results.add(result);
+            resultsLatch.countDown();
+        }, diskIOExecutor);
+
+        final PeerSession firstRequester = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+        final PeerSession secondRequester = new PeerSession(new PwpPeer("127.0.0.2", 44444, infoHash), false);
+
+        unitUnderTest.start();
+        unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                new DataBlockIdentifier(0, 0, 4), firstRequester));
+        Assert.assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+
+        //The piece is being read when the second request arrives
+        unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                new DataBlockIdentifier(0, 4, 4), secondRequester));
+        readReleased.countDown();
+
+        Assert.assertTrue(resultsLatch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(unitUnderTest.stop(5000));
+
+        Assert.assertEquals(Collections.singletonList(0L), fileChannel.getReadPositions());
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(secondRequester, results.get(1).getSender());
+        results.forEach(result -> Assert.assertFalse(result.getErrorCause().isPresent()));
+    }
+
+    @Test
+    public void testReadAheadIsQueuedBehindWritesAndSkipsPiecesBeingWritten() throws Exception {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final RecordingFileChannel fileChannel = createFileChannel((long)PIECE_LENGTH * TOTAL_PIECES);
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch readReleased = new CountDownLatch(1);
+        fileChannel.holdReads(readStarted, readReleased);
+
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), PIECE_LENGTH * TOTAL_PIECES, 0), fileChannel));
+
+        final DataPieceCache pieceCache = new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE);
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch resultsLatch = new CountDownLatch(2);
+
+        //A single disk thread, so that the queued operations are performed in order of their priorities
+        final ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs, pieceCache, metaDataMock, result -> {
+            results.add(result);
+            resultsLatch.countDown();
+        }, singleThreadExecutor);
+
+        try {
+            final PeerSession requester = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+            unitUnderTest.start();
+            unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                    new DataBlockIdentifier(0, 0, 4), requester, Arrays.asList(
+                            new CachedDataPieceIdentifier(2, infoHash), new CachedDataPieceIdentifier(1, infoHash))));
+            Assert.assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+
+            //Piece 2 is queued for writing while piece 0 is being read
+            unitUnderTest.writeDataPiece(new WriteDataPieceRequest(new CachedDataPieceIdentifier(2, infoHash),
+                    new DataPiece(new byte[PIECE_LENGTH], 2), requester));
+            readReleased.countDown();
+
+            Assert.assertTrue(resultsLatch.await(5, TimeUnit.SECONDS));
+
+            final long readAheadDeadline = System.currentTimeMillis() + 5000;
+            while(!pieceCache.get(new CachedDataPieceIdentifier(1, infoHash)).isPresent()
+                    && System.currentTimeMillis() < readAheadDeadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(unitUnderTest.stop(5000));
+
+            //The piece being written is not read ahead from the disk, and the write is not delayed by the read-ahead
+            Assert.assertEquals(Arrays.asList(0L, (long)PIECE_LENGTH), fileChannel.getReadPositions());
+            Assert.assertEquals(FileOperationResult.OperationType.WRITE, results.get(1).getOperationType());
+            Assert.assertTrue(pieceCache.get(new CachedDataPieceIdentifier(1, infoHash)).isPresent());
+        }
+        finally {
+            singleThreadExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedPieceReadIsReportedToAllRequesters() throws IOException, InterruptedException {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final RecordingFileChannel fileChannel = createFileChannel((long)PIECE_LENGTH * TOTAL_PIECES);
+        fileChannel.failReads();
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), PIECE_LENGTH * TOTAL_PIECES, 0), fileChannel));
+
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch resultsLatch = new CountDownLatch(2);
+
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs,
+                new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE), metaDataMock, result -> {
+            results.add(result);
+            resultsLatch.countDown();
+        }, diskIOExecutor);
+
+        final PeerSession firstRequester = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+        final PeerSession secondRequester = new PeerSession(new PwpPeer("127.0.0.2", 44444, infoHash), false);
+
+        unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                new DataBlockIdentifier(0, 0, 4), firstRequester));
+        unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                new DataBlockIdentifier(0, 4, 4), secondRequester));
+
+        unitUnderTest.start();
+
+        Assert.assertTrue(resultsLatch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(unitUnderTest.stop(5000));
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(firstRequester, results.get(0).getSender());
+        Assert.assertEquals(secondRequester, results.get(1).getSender());
+        results.forEach(result -> Assert.assertTrue(result.getErrorCause().isPresent()));
+    }
+
+    @Test
+    public void testCancelledReadRequestsAreNotReadFromDisk() throws Exception {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final RecordingFileChannel fileChannel = createFileChannel((long)PIECE_LENGTH * TOTAL_PIECES);
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), PIECE_LENGTH * TOTAL_PIECES, 0), fileChannel));
+
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch resultsLatch = new CountDownLatch(1);
+
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs,
+                new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE), metaDataMock, result -> {
+            results.add(result);
+            resultsLatch.countDown();
+        }, diskIOExecutor);
+
+        final PeerSession chokedRequester = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+        final PeerSession requester = new PeerSession(new PwpPeer("127.0.0.2", 44444, infoHash), false);
+
+        final List<ReadDataPieceRequest> cancelledRequests = Arrays.asList(
+                new ReadDataPieceRequest(new CachedDataPieceIdentifier(0, infoHash),
+                        new DataBlockIdentifier(0, 0, 4), chokedRequester),
+                new ReadDataPieceRequest(new CachedDataPieceIdentifier(1, infoHash),
+                        new DataBlockIdentifier(1, 0, 4), chokedRequester));
+        cancelledRequests.forEach(unitUnderTest::readDataPiece);
+        unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(1, infoHash),
+                new DataBlockIdentifier(1, 4, 4), requester));
+        cancelledRequests.forEach(ReadDataPieceRequest::cancel);
+
+        unitUnderTest.start();
+
+        Assert.assertTrue(resultsLatch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(unitUnderTest.stop(5000));
+
+        //Only the piece of the request that wasn't cancelled is expected to be read
+        Assert.assertEquals(Collections.singletonList((long)PIECE_LENGTH), fileChannel.getReadPositions());
+
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(requester, results.get(0).getSender());
+        Assert.assertEquals(4, results.get(0).getBlockRequest().getPieceOffset());
+    }
+
+    @Test
+    public void testConcurrentWritesCompleteBeforeStopIncludingShorterLastPiece() throws Exception {
+        //The last piece is only half as long as the others
+        final long totalLength = PIECE_LENGTH * (TOTAL_PIECES - 1) + PIECE_LENGTH / 2;
+        expectMetaData(totalLength);
+
+        final RecordingFileChannel fileChannel = createFileChannel(totalLength);
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), totalLength, 0), fileChannel));
+
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs,
+                new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE), metaDataMock, results::add, diskIOExecutor);
+        unitUnderTest.start();
+
+        final PeerSession sender = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+        for(int pieceIndex = 0; pieceIndex < TOTAL_PIECES; ++pieceIndex) {
+            final byte[] pieceBytes = new byte[pieceIndex == TOTAL_PIECES - 1? PIECE_LENGTH / 2 : PIECE_LENGTH];
+            Arrays.fill(pieceBytes, (byte)(pieceIndex + 1));
+            unitUnderTest.writeDataPiece(new WriteDataPieceRequest(new CachedDataPieceIdentifier(pieceIndex, infoHash),
+                    new DataPiece(pieceBytes, pieceIndex), sender));
+        }
+
+        Assert.assertTrue(unitUnderTest.stop(5000));
+
+        Assert.assertEquals(TOTAL_PIECES, results.size());
+        results.forEach(result -> Assert.assertFalse(result.getErrorCause().isPresent()));
+
+        final byte[] fileContents = Files.readAllBytes(tempFiles.get(0));
+        Assert.assertEquals(totalLength, fileContents.length);
+        for(int i = 0; i < fileContents.length; ++i) {
+            Assert.assertEquals(i / PIECE_LENGTH + 1, fileContents[i]);
+        }
+    }
+
+    @Test
+    public void testMappedReadsAreServedWithoutReadingOntoHeap() throws Exception {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final RecordingFileChannel fileChannel = createFileChannel((long)PIECE_LENGTH * TOTAL_PIECES);
+        final byte[] fileContents = new byte[PIECE_LENGTH * TOTAL_PIECES];
+        for(int i = 0; i < fileContents.length; ++i) {
+            fileContents[i] = (byte)i;
+        }
+        Files.write(tempFiles.get(0), fileContents);
+
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(tempFiles.get(0), new QueuedFileMetaData(
+                tempFiles.get(0), PIECE_LENGTH * TOTAL_PIECES, 0), fileChannel));
+
+        final DataPieceCache pieceCache = new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE);
+        final List<FileOperationResult> results = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch resultsLatch = new CountDownLatch(1);
+
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs, pieceCache, metaDataMock, result -> {
+            results.add(result);
+            resultsLatch.countDown();
+        }, diskIOExecutor, true);
+
+        final PeerSession requester = new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false);
+        unitUnderTest.readDataPiece(new ReadDataPieceRequest(new CachedDataPieceIdentifier(1, infoHash),
+                new DataBlockIdentifier(1, 2, 4), requester));
+
+        unitUnderTest.start();
+
+        Assert.assertTrue(resultsLatch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(unitUnderTest.stop(5000));
+
+        //The piece is neither read with the file channel, nor held in the heap cache
+        Assert.assertTrue(fileChannel.getReadPositions().isEmpty());
+        Assert.assertFalse(pieceCache.get(new CachedDataPieceIdentifier(1, infoHash)).isPresent());
+
+        final DataPiece mappedPiece = results.get(0).getDataPiece();
+        Assert.assertTrue(mappedPiece instanceof MappedDataPiece);
+        Assert.assertEquals(PIECE_LENGTH, mappedPiece.getLength());
+        Assert.assertArrayEquals(new byte[] {12, 13, 14, 15}, mappedPiece.getBlock(2, 4).get().getBlockData());
+    }
+
+    @Test
+    public void testFileBlockIsOnlySentFromDiskOnceWritten() throws Exception {
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        //Piece 1 (offsets 10-19) spans across both files, which are split at offset 15
+        final Path firstFile = Files.createTempFile("fileblock", ".1");
+        final Path secondFile = Files.createTempFile("fileblock", ".2");
+        tempFiles.add(firstFile);
+        tempFiles.add(secondFile);
+
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(firstFile, new QueuedFileMetaData(firstFile, 15, 0)));
+        diskFileIOs.put(15L, new TorrentFileIO(secondFile, new QueuedFileMetaData(secondFile, 15, 15)));
+
+        //Hold the disk thread, so that the written piece remains pending
+        final ExecutorService singleDiskIOExecutor = Executors.newSingleThreadExecutor();
+        final CountDownLatch diskThreadReleased = new CountDownLatch(1);
+        singleDiskIOExecutor.execute(() -> {
+            try {
+                diskThreadReleased.await();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        //A cached piece is sent from memory, so keep the written piece out of the cache
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs,
+                new DataPieceCache(1), metaDataMock, result -> {}, singleDiskIOExecutor);
+        final DataBlockIdentifier blockIdentifier = new DataBlockIdentifier(1, 3, 4);
+
+        //The files aren't open before the worker is started
+        Assert.assertFalse(unitUnderTest.getFileBlock(blockIdentifier).isPresent());
+
+        unitUnderTest.start();
+
+        final byte[] pieceBytes = {10, 11, 12, 13, 14, 15, 16, 17, 18, 19};
+        unitUnderTest.writeDataPiece(new WriteDataPieceRequest(new CachedDataPieceIdentifier(1, infoHash),
+                new DataPiece(pieceBytes, 1), new PeerSession(new PwpPeer("127.0.0.1", 44444, infoHash), false)));
+
+        Assert.assertFalse(unitUnderTest.getFileBlock(blockIdentifier).isPresent());
+
+        diskThreadReleased.countDown();
+        singleDiskIOExecutor.shutdown();
+        Assert.assertTrue(singleDiskIOExecutor.awaitTermination(5, TimeUnit.SECONDS));
+
+        final FileDataBlock fileBlock = unitUnderTest.getFileBlock(blockIdentifier).get();
+        Assert.assertEquals(1, fileBlock.getPieceIndex());
+        Assert.assertEquals(3, fileBlock.getPieceOffset());
+        Assert.assertEquals(4, fileBlock.getLength());
+
+        final ByteArrayOutputStream sentBytes = new ByteArrayOutputStream();
+        Assert.assertEquals(4, fileBlock.transferTo(0, Channels.newChannel(sentBytes)));
+        Assert.assertArrayEquals(new byte[] {13, 14, 15, 16}, sentBytes.toByteArray());
+
+        //Blocks beyond the end of the (last) piece are never sent
+        Assert.assertFalse(unitUnderTest.getFileBlock(new DataBlockIdentifier(2, 8, 4)).isPresent());
+
+        Assert.assertTrue(unitUnderTest.stop(5000));
+    }
+
+    @Test
+    public void testStoreAndLoadPartialPieceSpanningFiles() throws IOException {
+        final int blockLength = 4;
+        final Path firstFile = Files.createTempFile("partial", ".1");
+        final Path secondFile = Files.createTempFile("partial", ".2");
+        tempFiles.add(firstFile);
+        tempFiles.add(secondFile);
+
+        //Piece 1 (offsets 10-19) spans across both files, which are split at offset 15
+        final QueuedFileMetaData firstFileMetaData = new QueuedFileMetaData(firstFile, 15, 0);
+        final QueuedFileMetaData secondFileMetaData = new QueuedFileMetaData(secondFile, 15, 15);
+
+        expectMetaData((long)PIECE_LENGTH * TOTAL_PIECES);
+
+        final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+        diskFileIOs.put(0L, new TorrentFileIO(firstFile, firstFileMetaData));
+        diskFileIOs.put(15L, new TorrentFileIO(secondFile, secondFileMetaData));
+
+        final FileIOWorker unitUnderTest = new FileIOWorker(diskFileIOs,
+                new DataPieceCache(DataPieceCache.DEFAULT_MAX_SIZE), metaDataMock, result -> {}, diskIOExecutor);
+
+        //Blocks at offsets 4-7 (crossing the file boundary) and 8-9 (the shorter last block) are received
+        final DataPiece partialPiece = new DataPiece(PIECE_LENGTH, 1);
+        partialPiece.addBlock(new DataBlock(new byte[] {4, 5, 6, 7}, 1, 4));
+        partialPiece.addBlock(new DataBlock(new byte[] {8, 9}, 1, 8));
+
+        unitUnderTest.storePartialPieces(Collections.singletonList(partialPiece), blockLength);
+
+        final byte[] firstFileContents = Files.readAllBytes(firstFile);
+        final byte[] secondFileContents = Files.readAllBytes(secondFile);
+        Assert.assertArrayEquals(new byte[] {4}, Arrays.copyOfRange(firstFileContents, 14, 15));
+        Assert.assertArrayEquals(new byte[] {5, 6, 7, 8, 9}, Arrays.copyOfRange(secondFileContents, 0, 5));
+
+        final BitSet storedBlocks = partialPiece.getReceivedBlocks(blockLength);
+        final DataPiece loadedPiece = unitUnderTest.loadPartialPiece(1, storedBlocks, blockLength);
+
+        Assert.assertEquals(storedBlocks, loadedPiece.getReceivedBlocks(blockLength));
+        Assert.assertArrayEquals(new byte[] {0, 0, 0, 0, 4, 5, 6, 7, 8, 9}, loadedPiece.getPieceBytes());
+    }
+
+    private void expectMetaData(final long totalLength) {
+        EasyMock.expect(metaDataMock.getPieceLength()).andReturn(PIECE_LENGTH).anyTimes();
+        EasyMock.expect(metaDataMock.getTotalPieces()).andReturn(TOTAL_PIECES).anyTimes();
+        EasyMock.expect(metaDataMock.getTotalLength()).andReturn(totalLength).anyTimes();
+        EasyMock.expect(metaDataMock.getInfoHash()).andReturn(infoHash).anyTimes();
+        EasyMock.replay(metaDataMock);
+    }
+
+    private RecordingFileChannel createFileChannel(final long fileLength) throws IOException {
+        final Path filePath = Files.createTempFile("fileioworker", ".tmp");
+        tempFiles.add(filePath);
+        Files.write(filePath, new byte[(int)fileLength]);
+        return new RecordingFileChannel(FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    //Records the positions of the reads, and can fail them, while delegating to a real file channel
+    private static final class RecordingFileChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        private final List<Long> readPositions = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failReads = false;
+        private volatile CountDownLatch readStarted = null;
+        private volatile CountDownLatch readReleased = null;
+
+        RecordingFileChannel(final FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        void failReads() {
+            failReads = true;
+        }
+
+        //Each read signals its start and then waits to be released
+        void holdReads(final CountDownLatch readStarted, final CountDownLatch readReleased) {
+            this.readStarted = readStarted;
+            this.readReleased = readReleased;
+        }
+
+        List<Long> getReadPositions() {
+            return readPositions;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            readPositions.add(position);
+            if(readStarted != null) {
+                readStarted.countDown();
+                try {
+                    readReleased.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if(failReads) {
+                throw new IOException("Disk failure");
+            }
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(final long position, final long count,
+                               final WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position,
+                                 final long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
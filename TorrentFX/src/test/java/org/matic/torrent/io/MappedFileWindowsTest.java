@@ -0,0 +1,130 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.io;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matic.torrent.queue.QueuedFileMetaData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+public final class MappedFileWindowsTest {
+
+    private static final int PIECE_LENGTH = 8;
+    private static final int WINDOW_SIZE = 16;
+
+    private final TreeMap<Long, TorrentFileIO> diskFileIOs = new TreeMap<>();
+    private final List<Path> tempFiles = new ArrayList<>();
+
+    @After
+    public void cleanup() throws IOException {
+        diskFileIOs.values().forEach(TorrentFileIO::cleanup);
+        for(final Path tempFile : tempFiles) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    public void testPieceIsMappedAcrossWindowBoundary() throws IOException {
+        addFile(0, 40);
+
+        final MappedFileWindows unitUnderTest = new MappedFileWindows(diskFileIOs, WINDOW_SIZE, 4, PIECE_LENGTH);
+
+        //The piece starts in the first window and ends in the second one
+        final Optional<ByteBuffer> mappedData = unitUnderTest.map(12, PIECE_LENGTH);
+
+        Assert.assertTrue(mappedData.isPresent());
+        assertContents(mappedData.get(), 12, PIECE_LENGTH);
+        Assert.assertEquals(1, unitUnderTest.getMappedWindowCount());
+    }
+
+    @Test
+    public void testShorterLastPieceIsMappedWithinFile() throws IOException {
+        addFile(0, 40);
+
+        final MappedFileWindows unitUnderTest = new MappedFileWindows(diskFileIOs, WINDOW_SIZE, 4, PIECE_LENGTH);
+        final Optional<ByteBuffer> mappedData = unitUnderTest.map(32, 8);
+
+        Assert.assertTrue(mappedData.isPresent());
+        assertContents(mappedData.get(), 32, 8);
+    }
+
+    @Test
+    public void testDataSpanningFilesIsNotMapped() throws IOException {
+        addFile(0, 20);
+        addFile(20, 20);
+
+        final MappedFileWindows unitUnderTest = new MappedFileWindows(diskFileIOs, WINDOW_SIZE, 4, PIECE_LENGTH);
+
+        Assert.assertFalse(unitUnderTest.map(16, PIECE_LENGTH).isPresent());
+
+        final Optional<ByteBuffer> secondFileData = unitUnderTest.map(24, PIECE_LENGTH);
+        Assert.assertTrue(secondFileData.isPresent());
+        assertContents(secondFileData.get(), 4, PIECE_LENGTH);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedWindowsAreDropped() throws IOException {
+        addFile(0, 64);
+
+        final MappedFileWindows unitUnderTest = new MappedFileWindows(diskFileIOs, WINDOW_SIZE, 2, PIECE_LENGTH);
+
+        unitUnderTest.map(0, PIECE_LENGTH);
+        unitUnderTest.map(16, PIECE_LENGTH);
+        unitUnderTest.map(32, PIECE_LENGTH);
+        Assert.assertEquals(2, unitUnderTest.getMappedWindowCount());
+
+        //A slice remains readable after its window has been dropped
+        final ByteBuffer mappedData = unitUnderTest.map(48, PIECE_LENGTH).get();
+        unitUnderTest.clear();
+
+        Assert.assertEquals(0, unitUnderTest.getMappedWindowCount());
+        assertContents(mappedData, 48, PIECE_LENGTH);
+    }
+
+    //Each file's byte at file position i has the value i
+    private void addFile(final long offset, final int length) throws IOException {
+        final Path filePath = Files.createTempFile("mapped", ".tmp");
+        tempFiles.add(filePath);
+
+        final byte[] fileBytes = new byte[length];
+        for(int i = 0; i < length; ++i) {
+            fileBytes[i] = (byte)i;
+        }
+        Files.write(filePath, fileBytes);
+
+        diskFileIOs.put(offset, new TorrentFileIO(filePath, new QueuedFileMetaData(filePath, length, offset)));
+    }
+
+    private void assertContents(final ByteBuffer mappedData, final int filePosition, final int length) {
+        Assert.assertEquals(length, mappedData.remaining());
+        for(int i = 0; i < length; ++i) {
+            Assert.assertEquals((byte)(filePosition + i), mappedData.get(i));
+        }
+    }
+}
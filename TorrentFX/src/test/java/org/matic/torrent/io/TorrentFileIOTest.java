@@ -19,261 +19,210 @@
 */
 package org.matic.torrent.io;
 
-import org.easymock.EasyMock;
+import org.junit.After;
 import org.junit.Assert;
-import org.junit.Before;
 import org.junit.Test;
 import org.matic.torrent.queue.QueuedFileMetaData;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public final class TorrentFileIOTest {
 
-    private final RandomAccessFile fileAccessorMock = EasyMock.createMock(RandomAccessFile.class);
-    private final Path pathMock = EasyMock.createMock(Path.class);
+    private final List<Path> tempFiles = new ArrayList<>();
+    private final List<TorrentFileIO> fileIOs = new ArrayList<>();
 
-    private TorrentFileIO unitUnderTest;
-
-    @Before
-    public void setup() {
-        EasyMock.reset(fileAccessorMock, pathMock);
+    @After
+    public void cleanup() throws IOException {
+        fileIOs.forEach(TorrentFileIO::cleanup);
+        for(final Path tempFile : tempFiles) {
+            Files.deleteIfExists(tempFile);
+        }
     }
 
     @Test
     public void testWritePieceCompletelyInsideFile() throws IOException {
-        final long fileLength = 10;
-        final long fileOffset = 0;
-        final int pieceIndex = 1;
-
-        final byte[] blocks = new byte[] {0, 1, 2};
-
-        final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(pathMock, fileLength, fileOffset);
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
-
-        fileAccessorMock.seek(3);
-        EasyMock.expectLastCall();
-
-        fileAccessorMock.write(blocks, 0, 3);
-        EasyMock.expectLastCall();
-
-        EasyMock.expect(fileAccessorMock.length()).andReturn(42L);
-
-        EasyMock.replay(fileAccessorMock, pathMock);
-
-        unitUnderTest = new TorrentFileIO(pathMock, fileMetaData, fileAccessorMock);
-        final int bytesWritten = unitUnderTest.writePieceToDisk(pieceToWrite);
+        final byte[] blocks = new byte[] {1, 2, 3};
+        final TorrentFileIO unitUnderTest = createFileIO(10, 0);
 
-        EasyMock.verify(fileAccessorMock, pathMock);
+        final int bytesWritten = writePiece(unitUnderTest, blocks, 1);
 
         Assert.assertEquals(3, bytesWritten);
+        assertFileContents(0, new byte[] {0, 0, 0, 1, 2, 3, 0, 0, 0, 0});
     }
 
     @Test
     public void testWritePieceBeginsWhereFileBeginsAndEndsInsideFile() throws IOException {
-        final long fileLength = 10;
-        final long fileOffset = 0;
-        final int pieceIndex = 0;
+        final byte[] blocks = new byte[] {1, 2, 3};
+        final TorrentFileIO unitUnderTest = createFileIO(10, 0);
 
-        final byte[] blocks = new byte[] {0, 1, 2};
-
-        final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(pathMock, fileLength, fileOffset);
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
-
-        fileAccessorMock.seek(0);
-        EasyMock.expectLastCall();
-
-        fileAccessorMock.write(blocks, 0, 3);
-        EasyMock.expectLastCall();
-
-        EasyMock.expect(fileAccessorMock.length()).andReturn(42L);
-
-        EasyMock.replay(fileAccessorMock, pathMock);
-
-        unitUnderTest = new TorrentFileIO(pathMock, fileMetaData, fileAccessorMock);
-        final int bytesWritten = unitUnderTest.writePieceToDisk(pieceToWrite);
-
-        EasyMock.verify(fileAccessorMock, pathMock);
+        final int bytesWritten = writePiece(unitUnderTest, blocks, 0);
 
         Assert.assertEquals(3, bytesWritten);
+        assertFileContents(0, new byte[] {1, 2, 3, 0, 0, 0, 0, 0, 0, 0});
     }
 
     @Test
     public void testWritePieceEndsWhereFileEndsAndBeginsInsideFile() throws IOException {
-        final long fileLength = 10;
-        final long fileOffset = 0;
-        final int pieceIndex = 1;
-
-        final byte[] blocks = new byte[] {0, 1, 2, 3, 4};
+        final byte[] blocks = new byte[] {1, 2, 3, 4, 5};
+        final TorrentFileIO unitUnderTest = createFileIO(10, 0);
 
-        final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(pathMock, fileLength, fileOffset);
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
-
-        fileAccessorMock.seek(5);
-        EasyMock.expectLastCall();
-
-        fileAccessorMock.write(blocks, 0, 5);
-        EasyMock.expectLastCall();
-
-        EasyMock.expect(fileAccessorMock.length()).andReturn(42L);
-
-        EasyMock.replay(fileAccessorMock, pathMock);
-
-        unitUnderTest = new TorrentFileIO(pathMock, fileMetaData, fileAccessorMock);
-        final int bytesWritten = unitUnderTest.writePieceToDisk(pieceToWrite);
-
-        EasyMock.verify(fileAccessorMock, pathMock);
+        final int bytesWritten = writePiece(unitUnderTest, blocks, 1);
 
         Assert.assertEquals(5, bytesWritten);
+        assertFileContents(0, new byte[] {0, 0, 0, 0, 0, 1, 2, 3, 4, 5});
     }
 
     @Test
     public void testWritePieceBeginsBeforeFileBeginsAndEndsInsideFile() throws IOException {
-        final long fileLength = 10;
-        final long fileOffset = 6;
-        final int pieceIndex = 1;
-
-        final byte[] blocks = new byte[] {0, 1, 2, 3, 4};
-
-        final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(pathMock, fileLength, fileOffset);
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
+        final byte[] blocks = new byte[] {1, 2, 3, 4, 5};
+        final TorrentFileIO unitUnderTest = createFileIO(10, 6);
 
-        fileAccessorMock.seek(0);
-        EasyMock.expectLastCall();
-
-        fileAccessorMock.write(blocks, 1, 4);
-        EasyMock.expectLastCall();
-
-        EasyMock.expect(fileAccessorMock.length()).andReturn(42L);
-
-        EasyMock.replay(fileAccessorMock, pathMock);
-
-        unitUnderTest = new TorrentFileIO(pathMock, fileMetaData, fileAccessorMock);
-        final int bytesWritten = unitUnderTest.writePieceToDisk(pieceToWrite);
-
-        EasyMock.verify(fileAccessorMock, pathMock);
+        final int bytesWritten = writePiece(unitUnderTest, blocks, 1);
 
         Assert.assertEquals(4, bytesWritten);
+        assertFileContents(0, new byte[] {2, 3, 4, 5, 0, 0, 0, 0, 0, 0});
     }
 
     @Test
     public void testWritePieceEndsAfterFileEndsAndBeginsInsideFile() throws IOException {
-        final long fileLength = 6;
-        final long fileOffset = 0;
-        final int pieceIndex = 1;
-
-        final byte[] blocks = new byte[] {0, 1, 2, 3, 4};
-
-        final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(pathMock, fileLength, fileOffset);
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
+        final byte[] blocks = new byte[] {1, 2, 3, 4, 5};
+        final TorrentFileIO unitUnderTest = createFileIO(6, 0);
 
-        fileAccessorMock.seek(5);
-        EasyMock.expectLastCall();
-
-        fileAccessorMock.write(blocks, 0, 1);
-        EasyMock.expectLastCall();
-
-        EasyMock.expect(fileAccessorMock.length()).andReturn(42L);
-
-        EasyMock.replay(fileAccessorMock, pathMock);
-
-        unitUnderTest = new TorrentFileIO(pathMock, fileMetaData, fileAccessorMock);
-        final int bytesWritten = unitUnderTest.writePieceToDisk(pieceToWrite);
-
-        EasyMock.verify(fileAccessorMock, pathMock);
+        final int bytesWritten = writePiece(unitUnderTest, blocks, 1);
 
         Assert.assertEquals(1, bytesWritten);
+        assertFileContents(0, new byte[] {0, 0, 0, 0, 0, 1});
     }
 
     @Test
     public void testWritePieceBeginsBeforeFileBeginsAndEndsAfterFileEnds() throws IOException {
-        final long fileLength = 3;
-        final long fileOffset = 4;
-        final int pieceIndex = 0;
-
-        final byte[] blocks = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
-
-        final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(pathMock, fileLength, fileOffset);
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
-
-        fileAccessorMock.seek(0);
-        EasyMock.expectLastCall();
+        final byte[] blocks = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        final TorrentFileIO unitUnderTest = createFileIO(3, 4);
 
-        EasyMock.expect(fileAccessorMock.length()).andReturn(42L);
-
-        fileAccessorMock.write(blocks, 4, 3);
-        EasyMock.expectLastCall();
-
-        EasyMock.replay(fileAccessorMock, pathMock);
-
-        unitUnderTest = new TorrentFileIO(pathMock, fileMetaData, fileAccessorMock);
-        final int bytesWritten = unitUnderTest.writePieceToDisk(pieceToWrite);
-
-        EasyMock.verify(fileAccessorMock, pathMock);
+        final int bytesWritten = writePiece(unitUnderTest, blocks, 0);
 
         Assert.assertEquals(3, bytesWritten);
+        assertFileContents(0, new byte[] {5, 6, 7});
     }
 
     @Test
     public void testWritePieceAcrossThreeFiles() throws IOException {
-        final long firstFileLength = 3;
-        final long firstFileOffset = 0;
-        final QueuedFileMetaData firstFileMetaData = new QueuedFileMetaData(pathMock, firstFileLength, firstFileOffset);
-        final RandomAccessFile firstFileAccessorMock = EasyMock.createMock(RandomAccessFile.class);
-
-        final long secondFileLength = 3;
-        final long secondFileOffset = 3;
-        final QueuedFileMetaData secondFileMetaData = new QueuedFileMetaData(pathMock, secondFileLength, secondFileOffset);
-        final RandomAccessFile secondFileAccessorMock = EasyMock.createMock(RandomAccessFile.class);
-
-        final long thirdFileLength = 4;
-        final long thirdFileOffset = 6;
-        final QueuedFileMetaData thirdFileMetaData = new QueuedFileMetaData(pathMock, thirdFileLength, thirdFileOffset);
-        final RandomAccessFile thirdFileAccessorMock = EasyMock.createMock(RandomAccessFile.class);
-
-        final int pieceIndex = 0;
-        final byte[] blocks = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
-
-        final DataPiece pieceToWrite = new DataPiece(blocks, pieceIndex);
-
-        firstFileAccessorMock.seek(0);
-        EasyMock.expectLastCall();
-
-        firstFileAccessorMock.write(blocks, 0, 3);
-        EasyMock.expectLastCall();
-
-        secondFileAccessorMock.seek(0);
-        EasyMock.expectLastCall();
-
-        secondFileAccessorMock.write(blocks, 3, 3);
-        EasyMock.expectLastCall();
-
-        thirdFileAccessorMock.seek(0);
-        EasyMock.expectLastCall();
-
-        thirdFileAccessorMock.write(blocks, 6, 4);
-        EasyMock.expectLastCall();
+        final byte[] blocks = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+        final TorrentFileIO firstFileIO = createFileIO(3, 0);
+        final TorrentFileIO secondFileIO = createFileIO(3, 3);
+        final TorrentFileIO thirdFileIO = createFileIO(4, 6);
+
+        Assert.assertEquals(3, writePiece(firstFileIO, blocks, 0));
+        Assert.assertEquals(3, writePiece(secondFileIO, blocks, 0));
+        Assert.assertEquals(4, writePiece(thirdFileIO, blocks, 0));
+
+        assertFileContents(0, new byte[] {1, 2, 3});
+        assertFileContents(1, new byte[] {4, 5, 6});
+        assertFileContents(2, new byte[] {7, 8, 9, 10});
+
+        //Reading the piece back gathers it from all of the three files
+        final byte[] readPiece = new byte[blocks.length];
+        Assert.assertEquals(3, firstFileIO.readFromDisk(0, readPiece, 0, readPiece.length));
+        Assert.assertEquals(3, secondFileIO.readFromDisk(0, readPiece, 0, readPiece.length));
+        Assert.assertEquals(4, thirdFileIO.readFromDisk(0, readPiece, 0, readPiece.length));
+        Assert.assertArrayEquals(blocks, readPiece);
+    }
 
-        EasyMock.expect(firstFileAccessorMock.length()).andReturn(42L);
-        EasyMock.expect(secondFileAccessorMock.length()).andReturn(42L);
-        EasyMock.expect(thirdFileAccessorMock.length()).andReturn(42L);
+    @Test
+    public void testReadAndWriteBeyondTwoGigabytes() throws IOException {
+        //The file's contents begin far into the torrent, at a position that doesn't fit into an int
+        final int pieceLength = 4;
+        final int pieceIndex = Integer.MAX_VALUE / pieceLength + 10;
+        final long fileOffset = (long)pieceIndex * pieceLength - 2;
+        final TorrentFileIO unitUnderTest = createFileIO(6, fileOffset);
+
+        Assert.assertEquals(4, writePiece(unitUnderTest, new byte[] {1, 2, 3, 4}, pieceIndex));
+        assertFileContents(0, new byte[] {0, 0, 1, 2, 3, 4});
+
+        final byte[] readPiece = new byte[pieceLength];
+        Assert.assertEquals(2, unitUnderTest.readFromDisk(fileOffset - 2, readPiece, 0, pieceLength));
+        Assert.assertArrayEquals(new byte[] {0, 0, 0, 0}, readPiece);
+        Assert.assertEquals(4, unitUnderTest.readFromDisk((long)pieceIndex * pieceLength, readPiece, 0, pieceLength));
+        Assert.assertArrayEquals(new byte[] {1, 2, 3, 4}, readPiece);
+    }
 
-        EasyMock.replay(firstFileAccessorMock, secondFileAccessorMock, thirdFileAccessorMock, pathMock);
+    @Test
+    public void testReadAndWriteAtTorrentPosition() throws IOException {
+        final TorrentFileIO unitUnderTest = createFileIO(4, 6);
+        final byte[] data = new byte[] {1, 2, 3, 4, 5, 6};
+
+        //Only the part of the data within the file (torrent positions 6-9) is written
+        Assert.assertEquals(2, unitUnderTest.writeToDisk(2, data, 0, 6));
+        Assert.assertEquals(0, unitUnderTest.writeToDisk(0, data, 0, 6));
+        assertFileContents(0, new byte[] {5, 6, 0, 0});
+
+        final byte[] readData = new byte[4];
+        Assert.assertEquals(3, unitUnderTest.readFromDisk(5, readData, 0, 4));
+        Assert.assertArrayEquals(new byte[] {0, 5, 6, 0}, readData);
+    }
 
-        final TorrentFileIO firstFileIO = new TorrentFileIO(pathMock, firstFileMetaData, firstFileAccessorMock);
-        final int firstFileIOBytesWritten = firstFileIO.writePieceToDisk(pieceToWrite);
+    @Test
+    public void testConcurrentWritesToDifferentPositions() throws Exception {
+        final int blockLength = 1024;
+        final int threadCount = 8;
+        final TorrentFileIO unitUnderTest = createFileIO((long)blockLength * threadCount, 0);
+
+        final List<Throwable> writerErrors = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> writers = new ArrayList<>();
+        for(int i = 0; i < threadCount; ++i) {
+            final byte[] block = new byte[blockLength];
+            Arrays.fill(block, (byte)(i + 1));
+            final long blockPosition = (long)i * blockLength;
+            final Thread writer = new Thread(() -> {
+                try {
+                    Assert.assertEquals(blockLength, unitUnderTest.writeToDisk(blockPosition, block, 0, blockLength));
+                } catch (final IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            });
+            writer.setUncaughtExceptionHandler((thread, error) -> writerErrors.add(error));
+            writers.add(writer);
+        }
+        writers.forEach(Thread::start);
+        for(final Thread writer : writers) {
+            writer.join(5000);
+            Assert.assertFalse("A writer has not finished", writer.isAlive());
+        }
+        Assert.assertTrue("Writers failed: " + writerErrors, writerErrors.isEmpty());
+
+        final byte[] fileContents = Files.readAllBytes(tempFiles.get(0));
+        for(int i = 0; i < fileContents.length; ++i) {
+            Assert.assertEquals(i / blockLength + 1, fileContents[i]);
+        }
+    }
 
-        final TorrentFileIO secondFileIO = new TorrentFileIO(pathMock, secondFileMetaData, secondFileAccessorMock);
-        final int secondFileIOBytesWritten = secondFileIO.writePieceToDisk(pieceToWrite);
+    private TorrentFileIO createFileIO(final long fileLength, final long fileOffset) throws IOException {
+        final Path filePath = Files.createTempFile("torrentfileio", ".tmp");
+        tempFiles.add(filePath);
 
-        final TorrentFileIO thirdFileIO = new TorrentFileIO(pathMock, thirdFileMetaData, thirdFileAccessorMock);
-        final int thirdFileIOBytesWritten = thirdFileIO.writePieceToDisk(pieceToWrite);
+        final FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final TorrentFileIO fileIO = new TorrentFileIO(filePath,
+                new QueuedFileMetaData(filePath, fileLength, fileOffset), fileChannel);
+        fileIOs.add(fileIO);
+        return fileIO;
+    }
 
-        EasyMock.verify(firstFileAccessorMock, secondFileAccessorMock, thirdFileAccessorMock, pathMock);
+    //Write a whole piece, the pieces before it are of the same length
+    private int writePiece(final TorrentFileIO fileIO, final byte[] pieceBytes, final int pieceIndex)
+            throws IOException {
+        return fileIO.writeToDisk((long)pieceIndex * pieceBytes.length, pieceBytes, 0, pieceBytes.length);
+    }
 
-        Assert.assertEquals(3, firstFileIOBytesWritten);
-        Assert.assertEquals(3, secondFileIOBytesWritten);
-        Assert.assertEquals(4, thirdFileIOBytesWritten);
+    private void assertFileContents(final int fileIndex, final byte[] expectedContents) throws IOException {
+        Assert.assertArrayEquals(expectedContents, Files.readAllBytes(tempFiles.get(fileIndex)));
     }
-}
\ No newline at end of file
+}
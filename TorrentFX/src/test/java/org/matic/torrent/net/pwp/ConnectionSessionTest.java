@@ -22,10 +22,20 @@ package org.matic.torrent.net.pwp;
 import org.junit.Assert;
 import org.junit.Test;
 import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.io.FileDataBlock;
+import org.matic.torrent.io.TorrentFileIO;
 import org.matic.torrent.net.pwp.PwpMessage.MessageType;
+import org.matic.torrent.queue.QueuedFileMetaData;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 
@@ -716,6 +726,213 @@ public final class ConnectionSessionTest {
 		Assert.assertEquals(908, payload.getInt());
 	}
 	
+	//Parse fully contained PIECE message, its block is decoded directly from the buffer
+	@Test
+	public void testPieceFullyContained() throws Exception {
+		final ConnectionSession unitUnderTest = new ConnectionSession(null, peerSession);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(20);
+
+		buffer.putInt(13);
+		buffer.put((byte)7);
+		buffer.putInt(3981);
+		buffer.putInt(16384);
+		buffer.put(new byte[] {1, 2, 3, 4});
+
+		final List<PwpMessage> messages = unitUnderTest.read(buffer);
+
+		Assert.assertEquals(1, messages.size());
+		Assert.assertTrue(messages.get(0).getMessageType() == MessageType.PIECE);
+
+		final DataBlock block = PwpMessageFactory.parseBlockReceivedMessage(messages.get(0));
+		Assert.assertEquals(3981, block.getPieceIndex());
+		Assert.assertEquals(16384, block.getPieceOffset());
+		Assert.assertArrayEquals(new byte[] {1, 2, 3, 4}, block.getBlockData());
+
+		Assert.assertNull(unitUnderTest.partialBlock);
+		Assert.assertTrue(verifyBufferState(buffer, 0, 20, 20));
+	}
+
+	//Parse PIECE message spread over three buffer reads, only the header is backed up
+	@Test
+	public void testPiecePartiallyContainedThreeReads() throws Exception {
+		final ConnectionSession unitUnderTest = new ConnectionSession(null, peerSession);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(10);
+
+		//Put the length, id and a part of the piece index
+		buffer.putInt(15);
+		buffer.put((byte)7);
+		buffer.put(new byte[] {0, 0});
+
+		final List<PwpMessage> messages = unitUnderTest.read(buffer);
+
+		Assert.assertTrue(messages.isEmpty());
+		Assert.assertTrue(verifyBufferState(unitUnderTest.backupReaderBuffer, 7, 13, 6));
+		Assert.assertNull(unitUnderTest.partialBlock);
+
+		//Put the rest of the header and a part of the block
+		buffer.put(new byte[] {0, 42});
+		buffer.putInt(0);
+		buffer.put(new byte[] {1, 2, 3, 4});
+
+		messages.addAll(unitUnderTest.read(buffer));
+
+		Assert.assertTrue(messages.isEmpty());
+		Assert.assertNull(unitUnderTest.backupReaderBuffer);
+		Assert.assertNotNull(unitUnderTest.partialBlock);
+		Assert.assertTrue(verifyBufferState(buffer, 0, 10, 10));
+
+		//Put the rest of the block, followed by a CHOKE message
+		buffer.put(new byte[] {5, 6});
+		buffer.putInt(1);
+		buffer.put((byte)0);
+
+		messages.addAll(unitUnderTest.read(buffer));
+
+		Assert.assertEquals(2, messages.size());
+		Assert.assertTrue(messages.get(0).getMessageType() == MessageType.PIECE);
+		Assert.assertTrue(messages.get(1).getMessageType() == MessageType.CHOKE);
+
+		final DataBlock block = PwpMessageFactory.parseBlockReceivedMessage(messages.get(0));
+		Assert.assertEquals(42, block.getPieceIndex());
+		Assert.assertEquals(0, block.getPieceOffset());
+		Assert.assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, block.getBlockData());
+
+		Assert.assertNull(unitUnderTest.partialBlock);
+		Assert.assertTrue(verifyBufferState(buffer, 0, 10, 10));
+	}
+
+	//Reject a PIECE message with a block larger than any block we would request
+	@Test(expected = InvalidPeerMessageException.class)
+	public void testPieceWithTooLongBlock() throws Exception {
+		final ConnectionSession unitUnderTest = new ConnectionSession(null, peerSession);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(20);
+
+		buffer.putInt(Integer.MAX_VALUE);
+		buffer.put((byte)7);
+		buffer.putInt(0);
+		buffer.putInt(0);
+
+		unitUnderTest.read(buffer);
+	}
+
+	//Send a PIECE message's block straight from the files that it spans across, between other messages
+	@Test
+	public void testFileBlockIsSentAfterPieceHeader() throws Exception {
+		final Path firstFile = Files.createTempFile("block", ".1");
+		final Path secondFile = Files.createTempFile("block", ".2");
+		Files.write(firstFile, new byte[] {0, 1, 2, 3, 4, 5});
+		Files.write(secondFile, new byte[] {6, 7, 8, 9});
+
+		final TorrentFileIO firstFileIO = new TorrentFileIO(firstFile, new QueuedFileMetaData(firstFile, 6, 0));
+		final TorrentFileIO secondFileIO = new TorrentFileIO(secondFile, new QueuedFileMetaData(secondFile, 4, 6));
+
+		final FileDataBlock fileBlock = new FileDataBlock(3, 2);
+		fileBlock.addFileRegion(firstFileIO, 4, 2);
+		fileBlock.addFileRegion(secondFileIO, 0, 3);
+
+		try(final ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+			try(final SocketChannel senderChannel = SocketChannel.open(serverChannel.getLocalAddress());
+				final SocketChannel receiverChannel = serverChannel.accept()) {
+
+				final ConnectionSession unitUnderTest = new ConnectionSession(senderChannel, peerSession);
+				unitUnderTest.putOnWriteQueue(new PwpMessageRequest(Arrays.asList(
+						PwpMessageFactory.getUnchokeMessage(), PwpMessageFactory.buildSendFileBlockMessage(fileBlock),
+						PwpMessageFactory.getChokeMessage()), peerSession, MessageType.PIECE));
+
+				while(!unitUnderTest.flushWriteQueue()) {
+					Thread.sleep(10);
+				}
+
+				final ByteBuffer received = ByteBuffer.allocate(5 + 13 + 5 + 5);
+				while(received.hasRemaining()) {
+					receiverChannel.read(received);
+				}
+				received.flip();
+
+				Assert.assertEquals(1, received.getInt());
+				Assert.assertEquals(1, received.get());
+
+				Assert.assertEquals(14, received.getInt());
+				Assert.assertEquals(7, received.get());
+				Assert.assertEquals(3, received.getInt());
+				Assert.assertEquals(2, received.getInt());
+
+				final byte[] blockData = new byte[5];
+				received.get(blockData);
+				Assert.assertArrayEquals(new byte[] {4, 5, 6, 7, 8}, blockData);
+
+				Assert.assertEquals(1, received.getInt());
+				Assert.assertEquals(0, received.get());
+			}
+		}
+		finally {
+			firstFileIO.cleanup();
+			secondFileIO.cleanup();
+			Files.deleteIfExists(firstFile);
+			Files.deleteIfExists(secondFile);
+		}
+	}
+
+	//A cancelled block, that hasn't started being sent, is withdrawn from the write queue
+	@Test
+	public void testCancelledFileBlockIsNotSent() throws Exception {
+		final Path file = Files.createTempFile("block", ".1");
+		Files.write(file, new byte[] {0, 1, 2, 3, 4, 5});
+
+		final TorrentFileIO fileIO = new TorrentFileIO(file, new QueuedFileMetaData(file, 6, 0));
+
+		final FileDataBlock cancelledBlock = new FileDataBlock(0, 0);
+		cancelledBlock.addFileRegion(fileIO, 0, 3);
+		final FileDataBlock fileBlock = new FileDataBlock(0, 3);
+		fileBlock.addFileRegion(fileIO, 3, 3);
+
+		try(final ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+			try(final SocketChannel senderChannel = SocketChannel.open(serverChannel.getLocalAddress());
+				final SocketChannel receiverChannel = serverChannel.accept()) {
+
+				final ConnectionSession unitUnderTest = new ConnectionSession(senderChannel, peerSession);
+				unitUnderTest.putOnWriteQueue(new PwpMessageRequest(Arrays.asList(
+						PwpMessageFactory.buildSendFileBlockMessage(cancelledBlock),
+						PwpMessageFactory.buildSendFileBlockMessage(fileBlock)), peerSession, MessageType.PIECE));
+
+				cancelledBlock.cancel();
+
+				while(!unitUnderTest.flushWriteQueue()) {
+					Thread.sleep(10);
+				}
+
+				Assert.assertFalse(cancelledBlock.isSent());
+				Assert.assertTrue(fileBlock.isSent());
+
+				//Only the block that wasn't cancelled is received, followed by nothing else
+				final ByteBuffer received = ByteBuffer.allocate(13 + 3 + 1);
+				receiverChannel.configureBlocking(false);
+				final long receiveDeadline = System.currentTimeMillis() + 1000;
+				while(System.currentTimeMillis() < receiveDeadline && received.hasRemaining()) {
+					receiverChannel.read(received);
+				}
+				received.flip();
+
+				Assert.assertEquals(13 + 3, received.remaining());
+				Assert.assertEquals(12, received.getInt());
+				Assert.assertEquals(7, received.get());
+				Assert.assertEquals(0, received.getInt());
+				Assert.assertEquals(3, received.getInt());
+				Assert.assertEquals(3, received.get());
+				Assert.assertEquals(4, received.get());
+				Assert.assertEquals(5, received.get());
+			}
+		}
+		finally {
+			fileIO.cleanup();
+			Files.deleteIfExists(file);
+		}
+	}
+
 	private boolean verifyBufferState(final ByteBuffer buffer, final int expectedPosition, final int expectedLimit,
 			final int expectedRemaining) {
 		return buffer.position() == expectedPosition && buffer.limit() == expectedLimit &&
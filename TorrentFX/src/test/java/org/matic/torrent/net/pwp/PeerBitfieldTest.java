@@ -0,0 +1,109 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.net.pwp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+public final class PeerBitfieldTest {
+
+    private final int pieceCount = 100;
+    private final PeerBitfield unitUnderTest = new PeerBitfield();
+
+    @Test
+    public void testNoPieces() {
+        Assert.assertTrue(unitUnderTest.isEmpty());
+        Assert.assertFalse(unitUnderTest.get(0));
+        Assert.assertFalse(unitUnderTest.isComplete(pieceCount));
+        Assert.assertEquals(0, unitUnderTest.andNotCardinality(new BitSet()));
+        Assert.assertFalse(unitUnderTest.intersects(allPieces()));
+    }
+
+    @Test
+    public void testAllPiecesFromBitfieldWithSpareBits() {
+        final BitSet pieces = allPieces();
+        pieces.set(pieceCount);
+
+        unitUnderTest.or(pieces, pieceCount);
+
+        Assert.assertTrue(unitUnderTest.isComplete(pieceCount));
+        Assert.assertEquals(pieceCount, unitUnderTest.cardinality());
+        Assert.assertTrue(unitUnderTest.get(pieceCount - 1));
+        Assert.assertFalse(unitUnderTest.get(pieceCount));
+
+        final BitSet copiedPieces = new BitSet();
+        copiedPieces.set(500);
+        unitUnderTest.copyInto(copiedPieces);
+        Assert.assertEquals(allPieces(), copiedPieces);
+    }
+
+    @Test
+    public void testPartialPeerBecomesComplete() {
+        final BitSet pieces = allPieces();
+        pieces.clear(42);
+        unitUnderTest.or(pieces, pieceCount);
+
+        Assert.assertFalse(unitUnderTest.isComplete(pieceCount));
+        Assert.assertEquals(pieceCount - 1, unitUnderTest.cardinality());
+
+        unitUnderTest.set(42, pieceCount);
+
+        Assert.assertTrue(unitUnderTest.isComplete(pieceCount));
+        Assert.assertEquals("{all " + pieceCount + "}", unitUnderTest.toString());
+    }
+
+    @Test
+    public void testRepeatedPieceIsCountedOnce() {
+        unitUnderTest.set(3, pieceCount);
+        unitUnderTest.set(3, pieceCount);
+
+        Assert.assertEquals(1, unitUnderTest.cardinality());
+    }
+
+    @Test
+    public void testAndNotCardinalityAndIntersects() {
+        final BitSet ourPieces = new BitSet();
+        ourPieces.set(0, 10);
+
+        unitUnderTest.set(5, pieceCount);
+        unitUnderTest.set(50, pieceCount);
+        unitUnderTest.set(60, pieceCount);
+
+        Assert.assertEquals(2, unitUnderTest.andNotCardinality(ourPieces));
+        Assert.assertTrue(unitUnderTest.intersects(ourPieces));
+
+        unitUnderTest.setAll(pieceCount);
+
+        Assert.assertEquals(pieceCount - 10, unitUnderTest.andNotCardinality(ourPieces));
+        Assert.assertTrue(unitUnderTest.intersects(ourPieces));
+
+        final BitSet sparePieces = new BitSet();
+        sparePieces.set(pieceCount);
+        Assert.assertFalse(unitUnderTest.intersects(sparePieces));
+    }
+
+    private BitSet allPieces() {
+        final BitSet pieces = new BitSet();
+        pieces.set(0, pieceCount);
+        return pieces;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.net.webseed;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.net.pwp.PeerSession;
+import org.matic.torrent.net.pwp.PwpMessage;
+import org.matic.torrent.net.pwp.PwpMessageEvent;
+import org.matic.torrent.net.pwp.PwpMessageFactory;
+import org.matic.torrent.net.pwp.PwpMessageListener;
+import org.matic.torrent.net.pwp.PwpPeer;
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.queue.QueuedTorrentMetaData;
+import org.matic.torrent.transfer.DataBlockIdentifier;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+public final class WebSeedConnectionTest {
+
+    private static final String TORRENT_NAME = "torrent";
+    private static final int PIECE_LENGTH = 16;
+    private static final int BLOCK_LENGTH = 8;
+
+    private final byte[] firstFileContents = "0123456789".getBytes(StandardCharsets.UTF_8);
+    private final byte[] secondFileContents = "abcdefghijklmnopqrstuvwxyz0123".getBytes(StandardCharsets.UTF_8);
+
+    private final Map<String, byte[]> servedFiles = new HashMap<>();
+    private final AtomicInteger rangeRequestCount = new AtomicInteger(0);
+    private final BlockingQueue<PwpMessageEvent> receivedMessages = new LinkedBlockingQueue<>();
+
+    private final QueuedTorrentMetaData metaDataMock = EasyMock.createMock(QueuedTorrentMetaData.class);
+
+    private HttpServer webSeedServer;
+    private WebSeedConnection unitUnderTest;
+
+    @Before
+    public void setup() throws IOException {
+        servedFiles.put("/seed/" + TORRENT_NAME + "/a.bin", firstFileContents);
+        servedFiles.put("/seed/" + TORRENT_NAME + "/dir/b.bin", secondFileContents);
+
+        webSeedServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        webSeedServer.createContext("/seed/", this::serveRange);
+        webSeedServer.start();
+
+        EasyMock.expect(metaDataMock.getInfoHash()).andReturn(
+                new InfoHash("1".getBytes(StandardCharsets.UTF_8))).anyTimes();
+        EasyMock.expect(metaDataMock.getName()).andReturn(TORRENT_NAME).anyTimes();
+        EasyMock.expect(metaDataMock.isSingleFile()).andReturn(false).anyTimes();
+        EasyMock.expect(metaDataMock.getPieceLength()).andReturn(PIECE_LENGTH).anyTimes();
+        EasyMock.expect(metaDataMock.getTotalPieces()).andReturn(3).anyTimes();
+        EasyMock.expect(metaDataMock.getFiles()).andReturn(Arrays.asList(
+                new QueuedFileMetaData(Paths.get("a.bin"), firstFileContents.length, 0),
+                new QueuedFileMetaData(Paths.get("dir", "b.bin"), secondFileContents.length,
+                        firstFileContents.length))).anyTimes();
+        EasyMock.replay(metaDataMock);
+
+        final String webSeedUrl = "http://127.0.0.1:" + webSeedServer.getAddress().getPort() + "/seed";
+        unitUnderTest = new WebSeedConnection(webSeedUrl, metaDataMock, new PwpMessageListener() {
+            @Override
+            public void onMessageReceived(final PwpMessageEvent event) {
+                receivedMessages.add(event);
+            }
+
+            @Override
+            public Predicate<PwpMessageEvent> getPeerMessageAcceptanceFilter() {
+                return event -> true;
+            }
+        });
+    }
+
+    @After
+    public void cleanup() {
+        unitUnderTest.shutdown();
+        webSeedServer.stop(0);
+    }
+
+    @Test
+    public void testContiguousBlocksSpanningFilesAreDownloaded() throws Exception {
+        Assert.assertTrue(unitUnderTest.getPeerSession().hasPiece(2));
+        Assert.assertFalse(unitUnderTest.getPeerSession().isChokingUs());
+
+        unitUnderTest.request(Arrays.asList(new DataBlockIdentifier(0, 0, BLOCK_LENGTH),
+                new DataBlockIdentifier(0, BLOCK_LENGTH, BLOCK_LENGTH)));
+
+        final DataBlock firstBlock = takeReceivedBlock();
+        final DataBlock secondBlock = takeReceivedBlock();
+
+        Assert.assertEquals(0, firstBlock.getPieceOffset());
+        Assert.assertArrayEquals("01234567".getBytes(StandardCharsets.UTF_8), firstBlock.getBlockData());
+        Assert.assertEquals(BLOCK_LENGTH, secondBlock.getPieceOffset());
+        Assert.assertArrayEquals("89abcdef".getBytes(StandardCharsets.UTF_8), secondBlock.getBlockData());
+
+        //A single range request per file
+        Assert.assertEquals(2, rangeRequestCount.get());
+        Assert.assertTrue(unitUnderTest.isAvailable());
+    }
+
+    @Test
+    public void testWebSeedsOnSameHostHaveDistinctSessions() throws Exception {
+        final String otherUrl = "http://127.0.0.1:" + webSeedServer.getAddress().getPort() + "/mirror";
+        final WebSeedConnection otherWebSeed = new WebSeedConnection(otherUrl, metaDataMock, null);
+        final WebSeedConnection sameWebSeed = new WebSeedConnection(unitUnderTest.getUrl(), metaDataMock, null);
+
+        try {
+            Assert.assertNotEquals(unitUnderTest.getPeerSession(), otherWebSeed.getPeerSession());
+            Assert.assertEquals(unitUnderTest.getPeerSession(), sameWebSeed.getPeerSession());
+            Assert.assertEquals(unitUnderTest.getPeerSession().hashCode(), sameWebSeed.getPeerSession().hashCode());
+
+            //Nor is a web seed ever mistaken for a regular peer on the same host
+            Assert.assertNotEquals(new PeerSession(new PwpPeer("127.0.0.1", webSeedServer.getAddress().getPort(),
+                    metaDataMock.getInfoHash()), false), unitUnderTest.getPeerSession());
+        }
+        finally {
+            otherWebSeed.shutdown();
+            sameWebSeed.shutdown();
+        }
+    }
+
+    @Test
+    public void testWebSeedIsUnavailableAfterRepeatedFailures() throws Exception {
+        servedFiles.clear();
+
+        //Failed downloads are not retried, keep requesting until the web seed gives up
+        for(int i = 0; i < 50 && unitUnderTest.isAvailable(); ++i) {
+            unitUnderTest.request(Arrays.asList(new DataBlockIdentifier(1, 0, BLOCK_LENGTH)));
+            Assert.assertNull(receivedMessages.poll(100, TimeUnit.MILLISECONDS));
+        }
+
+        Assert.assertFalse(unitUnderTest.isAvailable());
+        Assert.assertTrue(rangeRequestCount.get() >= 3);
+    }
+
+    private DataBlock takeReceivedBlock() throws Exception {
+        final PwpMessageEvent event = receivedMessages.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(unitUnderTest.getPeerSession(), event.getPeerSession());
+        Assert.assertEquals(PwpMessage.MessageType.PIECE, event.getMessage().getMessageType());
+        return PwpMessageFactory.parseBlockReceivedMessage(event.getMessage());
+    }
+
+    private void serveRange(final HttpExchange exchange) throws IOException {
+        rangeRequestCount.incrementAndGet();
+        final byte[] fileContents = servedFiles.get(exchange.getRequestURI().getPath());
+        if(fileContents == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        final String[] range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+        final int start = Integer.parseInt(range[0]);
+        final int end = Integer.parseInt(range[1]);
+
+        exchange.sendResponseHeaders(206, end - start + 1);
+        try(final OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(fileContents, start, end - start + 1);
+        }
+    }
+}
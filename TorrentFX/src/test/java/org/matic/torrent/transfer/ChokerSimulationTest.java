@@ -0,0 +1,284 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matic.torrent.net.pwp.PeerSession;
+import org.matic.torrent.net.pwp.PwpPeer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A simplified swarm simulation, in which each round corresponds to one choking rotation. Every peer
+ * splits its upload capacity evenly between the peers it has unchoked, and a peer receives a piece
+ * once enough of an uploader's bandwidth has been spent on it.
+ */
+public final class ChokerSimulationTest {
+
+    private static final int PIECE_COUNT = 200;
+    private static final long PIECE_LENGTH = 256 * 1024;
+
+    private static final long ROUND_LENGTH = 10000;     //One choking rotation, 10 sec
+    private static final int OPTIMISTIC_ROTATION_ROUNDS = 3;
+    private static final int UPLOAD_SLOTS = 4;
+    private static final int MAX_ROUNDS = 10000;
+
+    private static final long SEED_UPLOAD_RATE = 512 * 1024;
+    private static final long[] LEECHER_UPLOAD_RATES = {256 * 1024, 64 * 1024, 16 * 1024};
+    private static final int LEECHERS_PER_UPLOAD_RATE = 8;
+
+    private static final long RANDOM_SEED = 42;
+
+    @Test
+    public void testTitForTatRewardsFastUploaders() {
+        final int[] titForTatCompletionRounds = simulateSwarm(TitForTatChoker::new,
+                () -> new RoundRobinChoker(0), RANDOM_SEED);
+        final Random chokerRandom = new Random(RANDOM_SEED);
+        final int[] randomCompletionRounds = simulateSwarm(() -> new RandomChoker(chokerRandom),
+                () -> new RoundRobinChoker(0), RANDOM_SEED);
+
+        assertAllCompleted(titForTatCompletionRounds);
+        assertAllCompleted(randomCompletionRounds);
+
+        //Peers contributing the most should be rewarded with the fastest downloads
+        final double fastTitForTat = getAverageCompletionRound(titForTatCompletionRounds, 0);
+        Assert.assertTrue(fastTitForTat < getAverageCompletionRound(titForTatCompletionRounds,
+                LEECHER_UPLOAD_RATES.length - 1));
+        Assert.assertTrue(fastTitForTat < getAverageCompletionRound(randomCompletionRounds, 0));
+    }
+
+    @Test
+    public void testSeedingChokersCompleteSwarm() {
+        final int[] roundRobinCompletionRounds = simulateSwarm(TitForTatChoker::new,
+                () -> new RoundRobinChoker(0), RANDOM_SEED);
+        final int[] fastestUploadCompletionRounds = simulateSwarm(TitForTatChoker::new,
+                FastestUploadChoker::new, RANDOM_SEED);
+
+        assertAllCompleted(roundRobinCompletionRounds);
+        assertAllCompleted(fastestUploadCompletionRounds);
+
+        //Either way, the leechers that upload the most still complete first
+        final int slowestRateIndex = LEECHER_UPLOAD_RATES.length - 1;
+        final double fastRoundRobin = getAverageCompletionRound(roundRobinCompletionRounds, 0);
+        final double fastFastestUpload = getAverageCompletionRound(fastestUploadCompletionRounds, 0);
+        Assert.assertTrue(fastRoundRobin < getAverageCompletionRound(roundRobinCompletionRounds, slowestRateIndex));
+        Assert.assertTrue(fastFastestUpload < getAverageCompletionRound(
+                fastestUploadCompletionRounds, slowestRateIndex));
+
+        //Seeding to the peers that take the data the fastest gets the fast leechers done sooner
+        Assert.assertTrue(fastFastestUpload < fastRoundRobin);
+    }
+
+    private int[] simulateSwarm(final Supplier<Choker> leechingChokerSupplier,
+                                final Supplier<Choker> seedingChokerSupplier, final long randomSeed) {
+        final Random random = new Random(randomSeed);
+        final List<SimulatedPeer> peers = new ArrayList<>();
+
+        final SimulatedPeer initialSeed = new SimulatedPeer(SEED_UPLOAD_RATE,
+                leechingChokerSupplier.get(), seedingChokerSupplier.get());
+        initialSeed.pieces.set(0, PIECE_COUNT);
+        peers.add(initialSeed);
+
+        for(final long uploadRate : LEECHER_UPLOAD_RATES) {
+            for(int i = 0; i < LEECHERS_PER_UPLOAD_RATE; ++i) {
+                peers.add(new SimulatedPeer(uploadRate, leechingChokerSupplier.get(), seedingChokerSupplier.get()));
+            }
+        }
+
+        //Each peer keeps a session for every other peer in the swarm
+        for(int i = 0; i < peers.size(); ++i) {
+            for(int j = 0; j < peers.size(); ++j) {
+                peers.get(i).sessions.add(i == j? null : new PeerSession(new PwpPeer("10.0.0." + j, 6881, null), false));
+            }
+        }
+
+        for(int round = 1; round <= MAX_ROUNDS && !isSwarmCompleted(peers); ++round) {
+            final boolean rotateOptimisticUnchoke = round % OPTIMISTIC_ROTATION_ROUNDS == 1;
+            for(int i = 0; i < peers.size(); ++i) {
+                applyChoking(peers, i, rotateOptimisticUnchoke, random);
+            }
+            for(int i = 0; i < peers.size(); ++i) {
+                uploadToUnchokedPeers(peers, i, random);
+            }
+            for(final SimulatedPeer peer : peers) {
+                peer.pieces.or(peer.receivedPieces);
+                peer.receivedPieces.clear();
+                peer.sessions.stream().filter(session -> session != null).forEach(
+                        session -> session.sampleTransferRates(ROUND_LENGTH));
+                if(peer.completionRound == -1 && peer.isSeeder()) {
+                    peer.completionRound = round;
+                }
+            }
+        }
+
+        return peers.subList(1, peers.size()).stream().mapToInt(peer -> peer.completionRound).toArray();
+    }
+
+    private void applyChoking(final List<SimulatedPeer> peers, final int uploaderIndex,
+                              final boolean rotateOptimisticUnchoke, final Random random) {
+        final SimulatedPeer uploader = peers.get(uploaderIndex);
+        final List<PeerSession> interestedPeers = new ArrayList<>();
+
+        for(int i = 0; i < peers.size(); ++i) {
+            final PeerSession session = uploader.sessions.get(i);
+            if(session != null) {
+                final BitSet missingPieces = (BitSet)uploader.pieces.clone();
+                missingPieces.andNot(peers.get(i).pieces);
+                session.setInterestedInUs(!missingPieces.isEmpty());
+                if(session.isInterestedInUs()) {
+                    interestedPeers.add(session);
+                }
+            }
+        }
+
+        final Choker choker = uploader.isSeeder()? uploader.seedingChoker : uploader.leechingChoker;
+        final Set<PeerSession> unchokedPeers = new HashSet<>(
+                choker.rankPeers(interestedPeers).subList(0, Math.min(UPLOAD_SLOTS - 1, interestedPeers.size())));
+
+        if(rotateOptimisticUnchoke || uploader.optimisticUnchoke == null
+                || !interestedPeers.contains(uploader.optimisticUnchoke)) {
+            final List<PeerSession> optimisticCandidates = new ArrayList<>(interestedPeers);
+            optimisticCandidates.removeAll(unchokedPeers);
+            uploader.optimisticUnchoke = optimisticCandidates.isEmpty()? null :
+                    optimisticCandidates.get(random.nextInt(optimisticCandidates.size()));
+        }
+        if(uploader.optimisticUnchoke != null) {
+            unchokedPeers.add(uploader.optimisticUnchoke);
+        }
+
+        uploader.sessions.stream().filter(session -> session != null).forEach(session -> {
+            final boolean unchoke = unchokedPeers.contains(session);
+            if(unchoke == session.areWeChoking()) {
+                session.setAreWeChoking(!unchoke);
+            }
+        });
+    }
+
+    private void uploadToUnchokedPeers(final List<SimulatedPeer> peers, final int uploaderIndex, final Random random) {
+        final SimulatedPeer uploader = peers.get(uploaderIndex);
+        final List<Integer> downloaderIndexes = new ArrayList<>();
+
+        for(int i = 0; i < peers.size(); ++i) {
+            final PeerSession session = uploader.sessions.get(i);
+            if(session != null && !session.areWeChoking()) {
+                downloaderIndexes.add(i);
+            }
+        }
+
+        if(downloaderIndexes.isEmpty()) {
+            return;
+        }
+
+        final long bytesPerDownloader = uploader.uploadRate * ROUND_LENGTH / 1000 / downloaderIndexes.size();
+
+        for(final int downloaderIndex : downloaderIndexes) {
+            final SimulatedPeer downloader = peers.get(downloaderIndex);
+            long availableBytes = downloader.partialBytes[uploaderIndex] + bytesPerDownloader;
+            long transferredBytes = bytesPerDownloader;
+
+            while(availableBytes >= PIECE_LENGTH) {
+                final BitSet candidatePieces = (BitSet)uploader.pieces.clone();
+                candidatePieces.andNot(downloader.pieces);
+                candidatePieces.andNot(downloader.receivedPieces);
+
+                if(candidatePieces.isEmpty()) {
+                    transferredBytes -= availableBytes;
+                    availableBytes = 0;
+                    break;
+                }
+
+                final List<Integer> candidates = new ArrayList<>();
+                candidatePieces.stream().forEach(candidates::add);
+                downloader.receivedPieces.set(candidates.get(random.nextInt(candidates.size())));
+                availableBytes -= PIECE_LENGTH;
+            }
+
+            downloader.partialBytes[uploaderIndex] = availableBytes;
+            uploader.sessions.get(downloaderIndex).addUploadedBytes(Math.max(0, transferredBytes));
+            downloader.sessions.get(uploaderIndex).addDownloadedBytes(Math.max(0, transferredBytes));
+        }
+    }
+
+    private boolean isSwarmCompleted(final List<SimulatedPeer> peers) {
+        return peers.stream().allMatch(SimulatedPeer::isSeeder);
+    }
+
+    private void assertAllCompleted(final int[] completionRounds) {
+        for(final int completionRound : completionRounds) {
+            Assert.assertNotEquals(-1, completionRound);
+        }
+    }
+
+    private double getAverageCompletionRound(final int[] completionRounds, final int uploadRateIndex) {
+        double completionRoundSum = 0;
+        for(int i = 0; i < LEECHERS_PER_UPLOAD_RATE; ++i) {
+            completionRoundSum += completionRounds[uploadRateIndex * LEECHERS_PER_UPLOAD_RATE + i];
+        }
+        return completionRoundSum / LEECHERS_PER_UPLOAD_RATE;
+    }
+
+    private static final class SimulatedPeer {
+        private final long uploadRate;
+        private final Choker leechingChoker;
+        private final Choker seedingChoker;
+
+        private final List<PeerSession> sessions = new ArrayList<>();
+        private final BitSet pieces = new BitSet(PIECE_COUNT);
+        private final BitSet receivedPieces = new BitSet(PIECE_COUNT);
+        private final long[] partialBytes = new long[1 + LEECHER_UPLOAD_RATES.length * LEECHERS_PER_UPLOAD_RATE];
+
+        private PeerSession optimisticUnchoke = null;
+        private int completionRound = -1;
+
+        SimulatedPeer(final long uploadRate, final Choker leechingChoker, final Choker seedingChoker) {
+            this.uploadRate = uploadRate;
+            this.leechingChoker = leechingChoker;
+            this.seedingChoker = seedingChoker;
+        }
+
+        boolean isSeeder() {
+            return pieces.cardinality() == PIECE_COUNT;
+        }
+    }
+
+    private static final class RandomChoker implements Choker {
+        private final Random random;
+
+        RandomChoker(final Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public List<PeerSession> rankPeers(final Collection<PeerSession> candidates) {
+            final List<PeerSession> rankedPeers = new ArrayList<>(candidates);
+            Collections.shuffle(rankedPeers, random);
+            return rankedPeers;
+        }
+    }
+}
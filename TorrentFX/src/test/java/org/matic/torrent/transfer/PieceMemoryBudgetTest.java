@@ -0,0 +1,91 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matic.torrent.hash.InfoHash;
+
+public final class PieceMemoryBudgetTest {
+
+    private static final int PIECE_LENGTH = 16;
+
+    private final InfoHash firstInfoHash = new InfoHash("1".getBytes());
+    private final InfoHash secondInfoHash = new InfoHash("2".getBytes());
+
+    private final PieceMemoryBudget unitUnderTest = new PieceMemoryBudget(2 * PIECE_LENGTH);
+
+    @Test
+    public void testPiecesAreAllocatedWithinLimit() {
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, 0, PIECE_LENGTH));
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+        Assert.assertFalse(unitUnderTest.tryAllocate(firstInfoHash, 2 * PIECE_LENGTH, PIECE_LENGTH));
+        Assert.assertEquals(2 * PIECE_LENGTH, unitUnderTest.getUsedBytes());
+    }
+
+    @Test
+    public void testMemoryIsReleasedWhenUsageDrops() {
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, 0, PIECE_LENGTH));
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+
+        //One of the pieces has been written to the disk
+        unitUnderTest.updateUsage(firstInfoHash, PIECE_LENGTH);
+
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+
+        unitUnderTest.unregister(firstInfoHash);
+        Assert.assertEquals(0, unitUnderTest.getUsedBytes());
+    }
+
+    @Test
+    public void testLimitAppliesToTorrentWithoutPieces() {
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, 0, PIECE_LENGTH));
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+
+        Assert.assertFalse(unitUnderTest.tryAllocate(secondInfoHash, 0, PIECE_LENGTH));
+        Assert.assertEquals(2 * PIECE_LENGTH, unitUnderTest.getUsedBytes());
+    }
+
+    @Test
+    public void testTorrentWithoutPiecesIsNotStarved() {
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, 0, PIECE_LENGTH));
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+        Assert.assertFalse(unitUnderTest.tryAllocate(secondInfoHash, 0, PIECE_LENGTH));
+
+        //The first torrent holds its fair share, so the freed memory is left for the waiting torrent
+        unitUnderTest.updateUsage(firstInfoHash, PIECE_LENGTH);
+        Assert.assertFalse(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+        Assert.assertTrue(unitUnderTest.tryAllocate(secondInfoHash, 0, PIECE_LENGTH));
+
+        //Nobody is waiting anymore, the first torrent may grow again once there is room
+        unitUnderTest.updateUsage(secondInfoHash, 0);
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, PIECE_LENGTH, PIECE_LENGTH));
+        Assert.assertEquals(2 * PIECE_LENGTH, unitUnderTest.getUsedBytes());
+    }
+
+    @Test
+    public void testPieceLongerThanLimitIsOnlyHeldAlone() {
+        Assert.assertTrue(unitUnderTest.tryAllocate(firstInfoHash, 0, 3 * PIECE_LENGTH));
+        Assert.assertFalse(unitUnderTest.tryAllocate(secondInfoHash, 0, PIECE_LENGTH));
+
+        unitUnderTest.unregister(firstInfoHash);
+        Assert.assertTrue(unitUnderTest.tryAllocate(secondInfoHash, 0, PIECE_LENGTH));
+    }
+}
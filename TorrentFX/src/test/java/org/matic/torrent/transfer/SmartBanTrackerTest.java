@@ -0,0 +1,116 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.io.DataBlock;
+import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.net.pwp.PeerSession;
+import org.matic.torrent.net.pwp.PwpPeer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public final class SmartBanTrackerTest {
+
+    private static final int BLOCK_LENGTH = 4;
+    private static final int PIECE_INDEX = 3;
+
+    private final InfoHash infoHash = new InfoHash("1".getBytes(StandardCharsets.UTF_8));
+
+    private final PeerSession honestPeer = new PeerSession(new PwpPeer("127.0.0.1", 42, infoHash), false);
+    private final PeerSession corruptPeer = new PeerSession(new PwpPeer("127.0.0.2", 42, infoHash), false);
+
+    private final SmartBanTracker unitUnderTest = new SmartBanTracker(BLOCK_LENGTH);
+
+    @Test
+    public void testSingleSenderOfFailedPieceIsBanned() {
+        final DataPiece failedPiece = buildDataPiece("aaaabbbbcc", corruptPeer, corruptPeer, corruptPeer);
+
+        Assert.assertEquals(Collections.singleton(corruptPeer), unitUnderTest.pieceFailed(failedPiece));
+        Assert.assertFalse(unitUnderTest.isSuspectPiece(PIECE_INDEX));
+    }
+
+    @Test
+    public void testCorruptBlockSenderIsIdentifiedAfterRedownload() {
+        final DataPiece failedPiece = buildDataPiece("aaaaXXXXcc", honestPeer, corruptPeer, honestPeer);
+
+        Assert.assertTrue(unitUnderTest.pieceFailed(failedPiece).isEmpty());
+        Assert.assertTrue(unitUnderTest.isSuspectPiece(PIECE_INDEX));
+
+        final DataPiece validPiece = buildDataPiece("aaaabbbbcc", honestPeer, honestPeer, honestPeer);
+
+        Assert.assertEquals(Collections.singleton(corruptPeer), unitUnderTest.pieceValidated(validPiece));
+        Assert.assertFalse(unitUnderTest.isSuspectPiece(PIECE_INDEX));
+    }
+
+    @Test
+    public void testCorruptBlockSendersOfAllFailedDownloadsAreIdentified() {
+        final PeerSession secondCorruptPeer = new PeerSession(new PwpPeer("127.0.0.3", 42, infoHash), false);
+
+        Assert.assertTrue(unitUnderTest.pieceFailed(
+                buildDataPiece("aaaaXXXXcc", honestPeer, corruptPeer, honestPeer)).isEmpty());
+        Assert.assertTrue(unitUnderTest.pieceFailed(
+                buildDataPiece("aaaaYYYYcc", honestPeer, secondCorruptPeer, honestPeer)).isEmpty());
+        Assert.assertTrue(unitUnderTest.isSuspectPiece(PIECE_INDEX));
+
+        final DataPiece validPiece = buildDataPiece("aaaabbbbcc", honestPeer, honestPeer, honestPeer);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(corruptPeer, secondCorruptPeer)),
+                unitUnderTest.pieceValidated(validPiece));
+    }
+
+    @Test
+    public void testPartiallyReceivedPieceDoesNotBanSingleSender() {
+        //The first block was restored from disk, its sender is unknown
+        final DataPiece failedPiece = buildDataPiece("XXXXbbbbcc", null, honestPeer, honestPeer);
+
+        Assert.assertTrue(unitUnderTest.pieceFailed(failedPiece).isEmpty());
+        Assert.assertTrue(unitUnderTest.isSuspectPiece(PIECE_INDEX));
+    }
+
+    @Test
+    public void testValidPieceWithoutFailuresBansNobody() {
+        final DataPiece validPiece = buildDataPiece("aaaabbbbcc", honestPeer, corruptPeer, honestPeer);
+
+        Assert.assertTrue(unitUnderTest.pieceValidated(validPiece).isEmpty());
+    }
+
+    private DataPiece buildDataPiece(final String pieceData, final PeerSession... blockSenders) {
+        final byte[] pieceBytes = pieceData.getBytes(StandardCharsets.UTF_8);
+        final DataPiece dataPiece = new DataPiece(pieceBytes.length, PIECE_INDEX);
+
+        for(int blockIndex = 0; blockIndex < blockSenders.length; ++blockIndex) {
+            final int pieceOffset = blockIndex * BLOCK_LENGTH;
+            final byte[] blockData = new byte[Math.min(BLOCK_LENGTH, pieceBytes.length - pieceOffset)];
+            System.arraycopy(pieceBytes, pieceOffset, blockData, 0, blockData.length);
+
+            dataPiece.addBlock(new DataBlock(blockData, PIECE_INDEX, pieceOffset));
+            if(blockSenders[blockIndex] != null) {
+                unitUnderTest.blockReceived(PIECE_INDEX, pieceOffset, blockSenders[blockIndex]);
+            }
+        }
+        return dataPiece;
+    }
+}
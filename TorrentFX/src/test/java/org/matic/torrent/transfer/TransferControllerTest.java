@@ -20,78 +20,550 @@
 package org.matic.torrent.transfer;
 
 import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
+import org.matic.torrent.codec.BinaryEncodedDictionary;
+import org.matic.torrent.codec.BinaryEncodedInteger;
+import org.matic.torrent.codec.BinaryEncodedList;
+import org.matic.torrent.codec.BinaryEncodedString;
+import org.matic.torrent.codec.BinaryEncodingKeys;
 import org.matic.torrent.gui.model.TorrentView;
+import org.matic.torrent.hash.InfoHash;
 import org.matic.torrent.io.cache.DataPieceCache;
 import org.matic.torrent.net.pwp.PeerConnectionController;
-import org.matic.torrent.net.pwp.PeerConnectionStateChangeEvent;
 import org.matic.torrent.net.pwp.PeerSession;
-import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.net.pwp.PwpMessage;
+import org.matic.torrent.net.pwp.PwpMessageEvent;
+import org.matic.torrent.net.pwp.PwpMessageRequest;
+import org.matic.torrent.net.pwp.PwpPeer;
+import org.matic.torrent.queue.QueuedTorrent;
 import org.matic.torrent.queue.QueuedTorrentMetaData;
+import org.matic.torrent.queue.QueuedTorrentProgress;
+import org.matic.torrent.queue.action.FilePriorityChangeEvent;
+import org.matic.torrent.queue.enums.FilePriority;
+import org.matic.torrent.queue.enums.QueueType;
+import org.matic.torrent.utils.UnitConverter;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class TransferControllerTest {
 
-    private final PeerConnectionController connectionControllerMock = EasyMock.createMock(PeerConnectionController.class);
-    private final DataPieceCache dataPieceCacheMock = EasyMock.createMock(DataPieceCache.class);
-    private final TorrentView torrentViewMock = EasyMock.createMock(TorrentView.class);
+    private static final int PIECE_LENGTH = 32;
+    private static final int TOTAL_PIECES = 4;
+    private static final int BLOCK_LENGTH = 16384;
 
-    private final QueuedTorrentMetaData metaDataMock = EasyMock.createMock(QueuedTorrentMetaData.class);
-    private final PeerSession peerSessionMock = EasyMock.createMock(PeerSession.class);
+    private final PeerConnectionController connectionControllerMock = EasyMock.createMock(PeerConnectionController.class);
+    private final InfoHash infoHash = new InfoHash("1".getBytes(StandardCharsets.UTF_8));
 
-    private final List<QueuedFileMetaData> fileMetaDatas = new ArrayList<>();
+    private final ExecutorService diskIOExecutor = Executors.newSingleThreadExecutor();
+    private final List<PwpMessageRequest> sentRequests = Collections.synchronizedList(new ArrayList<>());
 
+    private Path savePath;
+    private PieceMemoryBudget pieceMemoryBudget;
+    private QueuedTorrentProgress progress;
+    private TorrentView torrentView;
     private TransferController unitUnderTest;
 
     @Before
-    public void setup() {
-        EasyMock.reset(connectionControllerMock, dataPieceCacheMock, torrentViewMock, peerSessionMock,
-                metaDataMock);
-        fileMetaDatas.clear();
+    public void setup() throws IOException {
+        savePath = Files.createTempDirectory("transfer");
+        sentRequests.clear();
+        pieceMemoryBudget = new PieceMemoryBudget(1048576);
+
+        final BinaryEncodedDictionary progressDict = new BinaryEncodedDictionary();
+        progressDict.put(BinaryEncodingKeys.STATE_KEY_QUEUE_NAME, new BinaryEncodedString(QueueType.ACTIVE.name()));
+        progress = new QueuedTorrentProgress(progressDict);
+        progress.setSavePath(savePath);
+
+        EasyMock.reset(connectionControllerMock);
+        connectionControllerMock.send(EasyMock.anyObject(PwpMessageRequest.class));
+        EasyMock.expectLastCall().andAnswer(() -> {
+            sentRequests.add((PwpMessageRequest)EasyMock.getCurrentArguments()[0]);
+            return null;
+        }).anyTimes();
+        EasyMock.replay(connectionControllerMock);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        if(unitUnderTest != null) {
+            unitUnderTest.shutdown();
+        }
+        diskIOExecutor.shutdownNow();
+
+        try(final Stream<Path> paths = Files.walk(savePath)) {
+            for(final Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
     }
 
-    @Ignore
     @Test
     public void testPeerConnectedAndHasPiecesNotRequestedNorObtained() {
-        final PeerConnectionStateChangeEvent connectionEvent = new PeerConnectionStateChangeEvent(peerSessionMock,
-                PeerConnectionStateChangeEvent.PeerLifeCycleChangeType.CONNECTED, null);
+        unitUnderTest = buildTransferController(FilePriority.NORMAL, FilePriority.NORMAL);
 
-        addFileMetadatas(true);
-        setupCommonExpectations();
-        replayMocks();
+        final PeerSession peer = connectPeer("127.0.0.1", 0, 2);
 
-        unitUnderTest = new TransferController(
-                torrentViewMock, connectionControllerMock, dataPieceCacheMock);
+        Assert.assertTrue(peer.areWeInterestedIn());
+        Assert.assertEquals(2, peer.getNeededPieceCount());
+        Assert.assertEquals(Collections.singletonList(PwpMessage.MessageType.INTERESTED), getSentMessageTypes(peer));
+    }
+
+    @Test
+    public void testPeerWithOnlySkippedPiecesIsNotInteresting() {
+        unitUnderTest = buildTransferController(FilePriority.SKIP, FilePriority.NORMAL);
+
+        final PeerSession peer = connectPeer("127.0.0.1", 0);
+
+        Assert.assertFalse(peer.areWeInterestedIn());
+        Assert.assertEquals(0, peer.getNeededPieceCount());
 
-        unitUnderTest.handlePeerStateChange(connectionEvent);
+        //Announcing another skipped piece doesn't make the peer interesting either
+        receiveHave(peer, 1);
 
-        verifyMocks();
+        Assert.assertFalse(peer.areWeInterestedIn());
+        Assert.assertEquals(0, peer.getNeededPieceCount());
+        Assert.assertTrue(getSentMessageTypes(peer).isEmpty());
+
+        //A piece of a file that we want does
+        receiveHave(peer, 2);
+
+        Assert.assertTrue(peer.areWeInterestedIn());
+        Assert.assertEquals(1, peer.getNeededPieceCount());
+        Assert.assertEquals(Collections.singletonList(PwpMessage.MessageType.INTERESTED), getSentMessageTypes(peer));
     }
 
-    private void addFileMetadatas(final boolean singleFile) {
-        fileMetaDatas.add(new QueuedFileMetaData(Paths.get(""), 42, 0));
-        if(!singleFile) {
-            fileMetaDatas.add(new QueuedFileMetaData(Paths.get(""), 38, 42));
+    @Test
+    public void testFilePriorityChangeUpdatesInterest() {
+        unitUnderTest = buildTransferController(FilePriority.SKIP, FilePriority.NORMAL);
+
+        final PeerSession peer = connectPeer("127.0.0.1", 0, 1);
+        Assert.assertFalse(peer.areWeInterestedIn());
+
+        unitUnderTest.handleFilePriorityChangeEvent(new FilePriorityChangeEvent(Paths.get("a"), FilePriority.NORMAL));
+
+        Assert.assertTrue(peer.areWeInterestedIn());
+        Assert.assertEquals(2, peer.getNeededPieceCount());
+
+        unitUnderTest.handleFilePriorityChangeEvent(new FilePriorityChangeEvent(Paths.get("a"), FilePriority.SKIP));
+
+        Assert.assertFalse(peer.areWeInterestedIn());
+        Assert.assertEquals(0, peer.getNeededPieceCount());
+        Assert.assertEquals(Arrays.asList(PwpMessage.MessageType.INTERESTED,
+                PwpMessage.MessageType.NOT_INTERESTED), getSentMessageTypes(peer));
+    }
+
+    @Test
+    public void testTimedOutBlockRequestIsReassignedToAnotherPeer() {
+        unitUnderTest = buildTransferController(FilePriority.NORMAL, FilePriority.NORMAL);
+
+        final PeerSession slowPeer = connectPeer("127.0.0.1", 0);
+        receiveMessage(slowPeer, PwpMessage.MessageType.UNCHOKE);
+        assertBlocks(getSentBlocks(slowPeer, PwpMessage.MessageType.REQUEST), 0);
+
+        final PeerSession fastPeer = connectPeer("127.0.0.2", 0, 1);
+        receiveMessage(fastPeer, PwpMessage.MessageType.UNCHOKE);
+        assertBlocks(getSentBlocks(fastPeer, PwpMessage.MessageType.REQUEST), 1);
+
+        //The slow peer's measured latency gives its requests a shorter deadline than the fast peer's
+        slowPeer.updateBlockResponseTime(1000);
+        unitUnderTest.reassignTimedOutBlockRequests(System.currentTimeMillis() + 10000);
+
+        Assert.assertEquals(1, slowPeer.getBlockRequestTimeouts());
+        Assert.assertEquals(0, slowPeer.getRequestedBlocks());
+        assertBlocks(getSentBlocks(slowPeer, PwpMessage.MessageType.CANCEL), 0);
+
+        Assert.assertEquals(0, fastPeer.getBlockRequestTimeouts());
+        Assert.assertEquals(2, fastPeer.getRequestedBlocks());
+        assertBlocks(getSentBlocks(fastPeer, PwpMessage.MessageType.REQUEST), 1, 0);
+        Assert.assertTrue(getSentBlocks(fastPeer, PwpMessage.MessageType.CANCEL).isEmpty());
+    }
+
+    @Test
+    public void testTimedOutBlockRequestStaysWithPeerWhenNoOtherPeerHasPiece() {
+        unitUnderTest = buildTransferController(FilePriority.NORMAL, FilePriority.NORMAL);
+
+        final PeerSession slowPeer = connectPeer("127.0.0.1", 0);
+        receiveMessage(slowPeer, PwpMessage.MessageType.UNCHOKE);
+
+        final PeerSession otherPeer = connectPeer("127.0.0.2", 1);
+        receiveMessage(otherPeer, PwpMessage.MessageType.UNCHOKE);
+
+        final long timeoutCheckTime = System.currentTimeMillis() + 60000;
+        unitUnderTest.reassignTimedOutBlockRequests(timeoutCheckTime);
+
+        Assert.assertEquals(1, slowPeer.getBlockRequestTimeouts());
+        Assert.assertEquals(1, slowPeer.getRequestedBlocks());
+        Assert.assertTrue(getSentBlocks(slowPeer, PwpMessage.MessageType.CANCEL).isEmpty());
+        assertBlocks(getSentBlocks(otherPeer, PwpMessage.MessageType.REQUEST), 1);
+
+        //The request's deadline starts over from the time of the check
+        unitUnderTest.reassignTimedOutBlockRequests(timeoutCheckTime + 1000);
+        Assert.assertEquals(1, slowPeer.getBlockRequestTimeouts());
+    }
+
+    @Test
+    public void testBlockRequestPipelineDepthAdaptsToPeerResponsiveness() {
+        unitUnderTest = buildTransferController(16 * BLOCK_LENGTH, FilePriority.NORMAL, FilePriority.NORMAL);
+
+        final PeerSession peer = connectPeer("127.0.0.1", 0, 1, 2, 3);
+        receiveMessage(peer, PwpMessage.MessageType.UNCHOKE);
+
+        //A responsive peer gets the maximum pipeline depth
+        final List<DataBlockIdentifier> requestedBlocks = getSentBlocks(peer, PwpMessage.MessageType.REQUEST);
+        Assert.assertEquals(19, requestedBlocks.size());
+        Assert.assertEquals(19, unitUnderTest.getBlockRequestPipelineDepth(peer));
+
+        //Each timeout halves the depth, but never below the minimum
+        long timeoutCheckTime = System.currentTimeMillis();
+        for(final int expectedDepth : new int[] {9, 4, 2, 2}) {
+            timeoutCheckTime += 60000;
+            unitUnderTest.reassignTimedOutBlockRequests(timeoutCheckTime);
+            Assert.assertEquals(expectedDepth, unitUnderTest.getBlockRequestPipelineDepth(peer));
         }
+
+        //A full pipeline delivered on time forgives one timeout. The newest requests are delivered first,
+        //so that no piece is completed
+        Collections.reverse(requestedBlocks);
+        final int[] expectedDepths = {2, 2, 2, 2, 4, 4, 4, 4, 9, 9, 9, 9, 9, 9, 9, 9, 9};
+        for(int i = 0; i < expectedDepths.length; ++i) {
+            Assert.assertEquals(expectedDepths[i], unitUnderTest.getBlockRequestPipelineDepth(peer));
+            receiveBlock(peer, requestedBlocks.get(i));
+        }
+        Assert.assertEquals(19, unitUnderTest.getBlockRequestPipelineDepth(peer));
+        Assert.assertEquals(0, peer.getBlockRequestTimeouts());
+
+        //Once the depth is restored, the pipeline is refilled beyond the two remaining requests
+        Assert.assertTrue(peer.getRequestedBlocks() > 2);
+        Assert.assertTrue(peer.getRequestedBlocks() <= 19);
+        Assert.assertTrue(getSentBlocks(peer, PwpMessage.MessageType.REQUEST).size() > 19);
+    }
+
+    @Test
+    public void testPeersShareLargePieceAtBlockLevel() {
+        unitUnderTest = buildTransferController(32 * BLOCK_LENGTH, FilePriority.NORMAL, FilePriority.NORMAL);
+
+        final PeerSession firstPeer = connectPeer("127.0.0.1", 0);
+        receiveMessage(firstPeer, PwpMessage.MessageType.UNCHOKE);
+        final PeerSession secondPeer = connectPeer("127.0.0.2", 0);
+        receiveMessage(secondPeer, PwpMessage.MessageType.UNCHOKE);
+
+        //The first peer fills its pipeline, the second one requests the rest of the same piece
+        final List<DataBlockIdentifier> firstPeerBlocks = getSentBlocks(firstPeer, PwpMessage.MessageType.REQUEST);
+        final List<DataBlockIdentifier> secondPeerBlocks = getSentBlocks(secondPeer, PwpMessage.MessageType.REQUEST);
+        Assert.assertEquals(19, firstPeerBlocks.size());
+        Assert.assertEquals(13, secondPeerBlocks.size());
+
+        final BitSet requestedOffsets = new BitSet();
+        Stream.concat(firstPeerBlocks.stream(), secondPeerBlocks.stream()).forEach(block -> {
+            Assert.assertEquals(0, block.getPieceIndex());
+            Assert.assertFalse(requestedOffsets.get(block.getPieceOffset() / BLOCK_LENGTH));
+            requestedOffsets.set(block.getPieceOffset() / BLOCK_LENGTH);
+        });
+        Assert.assertEquals(32, requestedOffsets.cardinality());
     }
 
-    private void setupCommonExpectations() {
-        EasyMock.expect(torrentViewMock.getMetaData()).andReturn(metaDataMock);
-        EasyMock.expect(metaDataMock.getFiles()).andReturn(fileMetaDatas);
+    @Test
+    public void testDuplicateBlockRequestIsCancelledWhenBlockArrives() {
+        unitUnderTest = buildTransferController(32 * BLOCK_LENGTH, FilePriority.NORMAL, FilePriority.NORMAL);
+
+        final PeerSession slowPeer = connectPeer("127.0.0.1", 0);
+        receiveMessage(slowPeer, PwpMessage.MessageType.UNCHOKE);
+        final PeerSession fastPeer = connectPeer("127.0.0.2", 0);
+        receiveMessage(fastPeer, PwpMessage.MessageType.UNCHOKE);
+
+        //The timed out requests fill the remaining room in the fast peer's pipeline
+        slowPeer.updateBlockResponseTime(1000);
+        unitUnderTest.reassignTimedOutBlockRequests(System.currentTimeMillis() + 10000);
+        Assert.assertEquals(19, fastPeer.getRequestedBlocks());
+        Assert.assertEquals(13, slowPeer.getRequestedBlocks());
+
+        //The slow peer delivers a block it was asked to cancel, after it has already been re-requested
+        final DataBlockIdentifier reassignedBlock = getSentBlocks(slowPeer, PwpMessage.MessageType.CANCEL).get(0);
+        receiveBlock(slowPeer, reassignedBlock);
+
+        final List<DataBlockIdentifier> cancelledBlocks = getSentBlocks(fastPeer, PwpMessage.MessageType.CANCEL);
+        Assert.assertEquals(1, cancelledBlocks.size());
+        Assert.assertEquals(reassignedBlock.getPieceIndex(), cancelledBlocks.get(0).getPieceIndex());
+        Assert.assertEquals(reassignedBlock.getPieceOffset(), cancelledBlocks.get(0).getPieceOffset());
+        Assert.assertEquals(18, fastPeer.getRequestedBlocks());
+        Assert.assertEquals(0, torrentView.getWastedBytes());
     }
 
-    private void replayMocks() {
-        EasyMock.replay(connectionControllerMock, dataPieceCacheMock, torrentViewMock, peerSessionMock,
-                metaDataMock);
+    @Test
+    public void testSameBlockReceivedTwiceIsWasted() {
+        unitUnderTest = buildTransferController(32 * BLOCK_LENGTH, FilePriority.NORMAL, FilePriority.NORMAL);
+
+        final PeerSession peer = connectPeer("127.0.0.1", 0);
+        receiveMessage(peer, PwpMessage.MessageType.UNCHOKE);
+        final DataBlockIdentifier requestedBlock = getSentBlocks(peer, PwpMessage.MessageType.REQUEST).get(0);
+
+        receiveBlock(peer, requestedBlock);
+        Assert.assertEquals(BLOCK_LENGTH, torrentView.getDownloadedBytes());
+        Assert.assertEquals(0, torrentView.getWastedBytes());
+
+        receiveBlock(peer, requestedBlock);
+        Assert.assertEquals(BLOCK_LENGTH, torrentView.getDownloadedBytes());
+        Assert.assertEquals(BLOCK_LENGTH, torrentView.getWastedBytes());
+
+        //The block is neither requested again nor cancelled at the sender
+        Assert.assertEquals(1, getSentBlocks(peer, PwpMessage.MessageType.REQUEST).stream().filter(
+                block -> block.getPieceOffset() == requestedBlock.getPieceOffset()).count());
+        Assert.assertTrue(getSentBlocks(peer, PwpMessage.MessageType.CANCEL).isEmpty());
     }
 
-    private void verifyMocks() {
-        EasyMock.verify(connectionControllerMock, dataPieceCacheMock, torrentViewMock, peerSessionMock,
-                metaDataMock);
+    @Test
+    public void testRestoredPartialPiecesAreLimitedByMemoryBudget() {
+        final int pieceLength = 4 * BLOCK_LENGTH;
+        final Map<Integer, BitSet> partialPieces = new HashMap<>();
+        partialPieces.put(0, BitSet.valueOf(new long[] {0b1}));
+        partialPieces.put(1, BitSet.valueOf(new long[] {0b111}));
+        partialPieces.put(2, BitSet.valueOf(new long[] {0b11}));
+        partialPieces.put(3, BitSet.valueOf(new long[] {0b1}));
+        progress.storePartialPieces(partialPieces);
+
+        //Another torrent holds three of the five pieces that fit in memory
+        final InfoHash otherTorrent = new InfoHash("2".getBytes(StandardCharsets.UTF_8));
+        pieceMemoryBudget = new PieceMemoryBudget(5 * pieceLength);
+        pieceMemoryBudget.updateUsage(otherTorrent, 3 * pieceLength);
+
+        unitUnderTest = buildTransferController(pieceLength, FilePriority.NORMAL, FilePriority.NORMAL);
+        unitUnderTest.restorePartialPieces();
+
+        //Only the two most complete pieces are restored
+        Assert.assertEquals(5 * pieceLength, pieceMemoryBudget.getUsedBytes());
+
+        final PeerSession peer = connectPeer("127.0.0.1", 1);
+        receiveMessage(peer, PwpMessage.MessageType.UNCHOKE);
+        final List<DataBlockIdentifier> requestedBlocks = getSentBlocks(peer, PwpMessage.MessageType.REQUEST);
+        Assert.assertEquals(1, requestedBlocks.size());
+        Assert.assertEquals(3 * BLOCK_LENGTH, requestedBlocks.get(0).getPieceOffset());
+
+        //The postponed pieces are loaded once there is room for them, instead of being downloaded from scratch
+        pieceMemoryBudget.unregister(otherTorrent);
+        final PeerSession seeder = connectPeer("127.0.0.2", 0, 1, 2, 3);
+        receiveMessage(seeder, PwpMessage.MessageType.UNCHOKE);
+        Assert.assertEquals(4 * pieceLength, pieceMemoryBudget.getUsedBytes());
+
+        final List<DataBlockIdentifier> seederBlocks = getSentBlocks(seeder, PwpMessage.MessageType.REQUEST);
+        Assert.assertFalse(seederBlocks.isEmpty());
+        Assert.assertTrue(seederBlocks.stream().noneMatch(block -> block.getPieceIndex() == 0
+                || block.getPieceIndex() == 3));
+    }
+
+    @Test
+    public void testSuperSeedingOffersSinglePieceOnHandshake() {
+        startSuperSeeding();
+
+        final PeerSession firstPeer = connectPeer("127.0.0.1");
+        final PeerSession secondPeer = connectPeer("127.0.0.2");
+
+        //No BITFIELD, only a single HAVE, and a different piece to each of the peers
+        Assert.assertEquals(Collections.singletonList(PwpMessage.MessageType.HAVE), getSentMessageTypes(firstPeer));
+        Assert.assertEquals(Collections.singletonList(PwpMessage.MessageType.HAVE), getSentMessageTypes(secondPeer));
+        Assert.assertNotEquals(getOfferedPieces(firstPeer), getOfferedPieces(secondPeer));
+    }
+
+    @Test
+    public void testSuperSeedingServesOnlyOfferedPieces() {
+        startSuperSeeding();
+
+        final PeerSession peer = connectPeer("127.0.0.1", 1);
+        peer.setAreWeChoking(false);
+
+        final List<Integer> offeredPieces = getOfferedPieces(peer);
+        Assert.assertEquals(1, offeredPieces.size());
+        final int offeredPiece = offeredPieces.get(0);
+
+        //The peer already has piece 1, so any other piece is one that wasn't offered to it
+        final int notOfferedPiece = offeredPiece == 0? 2 : 0;
+        receiveRequest(peer, notOfferedPiece);
+        Assert.assertEquals(0, peer.getSentBlockRequests());
+
+        receiveRequest(peer, offeredPiece);
+        Assert.assertEquals(1, peer.getSentBlockRequests());
+    }
+
+    @Test
+    public void testSuperSeedingOffersAnotherPieceOnceOfferPropagates() {
+        startSuperSeeding();
+
+        final PeerSession firstPeer = connectPeer("127.0.0.1");
+        final PeerSession secondPeer = connectPeer("127.0.0.2");
+        final int firstOffer = getOfferedPieces(firstPeer).get(0);
+
+        //The peer announcing its own offered piece doesn't mean that the piece has propagated
+        receiveHave(firstPeer, firstOffer);
+        Assert.assertEquals(1, getOfferedPieces(firstPeer).size());
+
+        receiveHave(secondPeer, firstOffer);
+
+        final List<Integer> offeredPieces = getOfferedPieces(firstPeer);
+        Assert.assertEquals(2, offeredPieces.size());
+        Assert.assertNotEquals(firstOffer, (int)offeredPieces.get(1));
+    }
+
+    @Test
+    public void testStoppingSuperSeedingAnnouncesRemainingPieces() {
+        startSuperSeeding();
+
+        final PeerSession peer = connectPeer("127.0.0.1", 3);
+        final int offeredPiece = getOfferedPieces(peer).get(0);
+
+        unitUnderTest.handleSuperSeedingChange(false);
+
+        final List<Integer> announcedPieces = getOfferedPieces(peer);
+        Assert.assertEquals(3, announcedPieces.size());
+        Assert.assertEquals(offeredPiece, (int)announcedPieces.get(0));
+        Assert.assertFalse(announcedPieces.contains(3));
+
+        //The pieces are no longer held back
+        peer.setAreWeChoking(false);
+        receiveRequest(peer, announcedPieces.get(1));
+        Assert.assertEquals(1, peer.getSentBlockRequests());
+    }
+
+    private void startSuperSeeding() {
+        final BitSet allPieces = new BitSet(TOTAL_PIECES);
+        allPieces.set(0, TOTAL_PIECES);
+        progress.storeObtainedPieces(allPieces);
+        progress.setSuperSeeding(true);
+
+        unitUnderTest = buildTransferController(FilePriority.NORMAL, FilePriority.NORMAL);
+    }
+
+    private PeerSession connectPeer(final String ip, final int... pieces) {
+        final PeerSession peer = new PeerSession(new PwpPeer(ip, 44444, infoHash), false);
+        final BitSet peerPieces = new BitSet(TOTAL_PIECES);
+        for(final int pieceIndex : pieces) {
+            peerPieces.set(pieceIndex);
+        }
+
+        unitUnderTest.handlePeerMessage(new PwpMessageEvent(
+                new PwpMessage(PwpMessage.MessageType.HANDSHAKE), peer));
+        unitUnderTest.handlePeerMessage(new PwpMessageEvent(new PwpMessage(PwpMessage.MessageType.BITFIELD,
+                UnitConverter.reverseBits(peerPieces.toByteArray())), peer));
+
+        return peer;
+    }
+
+    private void receiveMessage(final PeerSession peer, final PwpMessage.MessageType messageType) {
+        unitUnderTest.handlePeerMessage(new PwpMessageEvent(new PwpMessage(messageType), peer));
+    }
+
+    private void receiveBlock(final PeerSession peer, final DataBlockIdentifier block) {
+        final ByteBuffer payload = ByteBuffer.allocate(8 + block.getBlockLength());
+        payload.putInt(block.getPieceIndex());
+        payload.putInt(block.getPieceOffset());
+
+        unitUnderTest.handlePeerMessage(new PwpMessageEvent(
+                new PwpMessage(PwpMessage.MessageType.PIECE, payload.array()), peer));
+    }
+
+    //The blocks in REQUEST or CANCEL messages sent to the peer, in the order they were sent
+    private List<DataBlockIdentifier> getSentBlocks(final PeerSession peer, final PwpMessage.MessageType messageType) {
+        synchronized(sentRequests) {
+            return sentRequests.stream().filter(request -> request.getPeers().contains(peer)).flatMap(
+                    request -> request.getMessages().stream()).filter(
+                    message -> message.getMessageType() == messageType).map(message -> {
+                        final ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+                        return new DataBlockIdentifier(payload.getInt(5), payload.getInt(9), payload.getInt(13));
+                    }).collect(Collectors.toList());
+        }
+    }
+
+    private void assertBlocks(final List<DataBlockIdentifier> blocks, final int... expectedPieces) {
+        Assert.assertEquals(expectedPieces.length, blocks.size());
+        for(int i = 0; i < expectedPieces.length; ++i) {
+            Assert.assertEquals(expectedPieces[i], blocks.get(i).getPieceIndex());
+            Assert.assertEquals(0, blocks.get(i).getPieceOffset());
+        }
+    }
+
+    private void receiveHave(final PeerSession peer, final int pieceIndex) {
+        unitUnderTest.handlePeerMessage(new PwpMessageEvent(new PwpMessage(PwpMessage.MessageType.HAVE,
+                UnitConverter.getBytes(pieceIndex)), peer));
+    }
+
+    private void receiveRequest(final PeerSession peer, final int pieceIndex) {
+        final ByteBuffer payload = ByteBuffer.allocate(12);
+        payload.putInt(pieceIndex);
+        payload.putInt(0);
+        payload.putInt(PIECE_LENGTH);
+
+        unitUnderTest.handlePeerMessage(new PwpMessageEvent(
+                new PwpMessage(PwpMessage.MessageType.REQUEST, payload.array()), peer));
+    }
+
+    //The pieces announced to the peer with HAVE messages, in the order of announcement
+    private List<Integer> getOfferedPieces(final PeerSession peer) {
+        synchronized(sentRequests) {
+            return sentRequests.stream().filter(request -> request.getPeers().contains(peer)).flatMap(
+                    request -> request.getMessages().stream()).filter(
+                    message -> message.getMessageType() == PwpMessage.MessageType.HAVE).map(
+                    message -> ByteBuffer.wrap(message.getPayload()).getInt(5)).collect(Collectors.toList());
+        }
+    }
+
+    private List<PwpMessage.MessageType> getSentMessageTypes(final PeerSession peer) {
+        synchronized(sentRequests) {
+            return sentRequests.stream().filter(request -> request.getPeers().contains(peer)).flatMap(
+                    request -> request.getMessages().stream()).map(PwpMessage::getMessageType)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private TransferController buildTransferController(final FilePriority... filePriorities) {
+        return buildTransferController(PIECE_LENGTH, filePriorities);
+    }
+
+    //Two files, "a" and "b", of two pieces each
+    private TransferController buildTransferController(final int pieceLength, final FilePriority... filePriorities) {
+        final BinaryEncodedDictionary infoDict = new BinaryEncodedDictionary();
+        final BinaryEncodedList files = new BinaryEncodedList();
+        for(final String fileName : new String[] {"a", "b"}) {
+            final BinaryEncodedList filePath = new BinaryEncodedList();
+            filePath.add(new BinaryEncodedString(fileName));
+
+            final BinaryEncodedDictionary fileDict = new BinaryEncodedDictionary();
+            fileDict.put(BinaryEncodingKeys.KEY_LENGTH, new BinaryEncodedInteger(2 * pieceLength));
+            fileDict.put(BinaryEncodingKeys.KEY_PATH, filePath);
+            files.add(fileDict);
+        }
+        infoDict.put(BinaryEncodingKeys.KEY_FILES, files);
+        infoDict.put(BinaryEncodingKeys.KEY_PIECE_LENGTH, new BinaryEncodedInteger(pieceLength));
+        infoDict.put(BinaryEncodingKeys.KEY_NAME, new BinaryEncodedString("torrent"));
+
+        final BinaryEncodedDictionary metaDataDict = new BinaryEncodedDictionary();
+        metaDataDict.put(BinaryEncodingKeys.KEY_INFO_HASH, new BinaryEncodedString(infoHash.getBytes()));
+        metaDataDict.put(BinaryEncodingKeys.KEY_INFO, infoDict);
+
+        for(int fileIndex = 0; fileIndex < filePriorities.length; ++fileIndex) {
+            progress.setFilePriority(fileIndex, filePriorities[fileIndex]);
+        }
+
+        torrentView = new TorrentView(new QueuedTorrent(new QueuedTorrentMetaData(metaDataDict), progress));
+
+        return new TransferController(torrentView, connectionControllerMock, new DataPieceCache(1),
+                new UploadSlotManager(), pieceMemoryBudget, diskIOExecutor);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class UploadSlotCalculatorTest {
+
+    @Test
+    public void testUploadSlotsFollowUploadCapacity() {
+        final UploadSlotCalculator slotCalculator = new UploadSlotCalculator();
+        Assert.assertEquals(UploadSlotCalculator.DEFAULT_UPLOAD_SLOTS, slotCalculator.getUploadSlots());
+
+        slotCalculator.updateUploadRate(10 * 1024);
+        final int slowUplinkSlots = slotCalculator.getUploadSlots();
+        slotCalculator.updateUploadRate(1024 * 1024);
+        final int fastUplinkSlots = slotCalculator.getUploadSlots();
+
+        Assert.assertTrue(slowUplinkSlots >= UploadSlotCalculator.MIN_UPLOAD_SLOTS);
+        Assert.assertTrue(fastUplinkSlots > slowUplinkSlots);
+        Assert.assertTrue(fastUplinkSlots <= UploadSlotCalculator.MAX_UPLOAD_SLOTS);
+
+        //A single slow sample should only slowly decrease the capacity estimate
+        slotCalculator.updateUploadRate(0);
+        Assert.assertEquals(fastUplinkSlots, slotCalculator.getUploadSlots());
+    }
+
+    @Test
+    public void testExtraSlotsAreProbedWhileUplinkIsNotSaturated() {
+        final UploadSlotCalculator slotCalculator = new UploadSlotCalculator();
+        final double peerUploadRate = 5 * 1024;
+        final double uplinkCapacity = 100 * 1024;
+
+        //Each peer can only receive 5 kB/s, while the uplink could deliver 100 kB/s
+        int uploadSlots = UploadSlotCalculator.MIN_UPLOAD_SLOTS;
+        for(int i = 0; i < 50; ++i) {
+            slotCalculator.updateUploadRate(Math.min(uplinkCapacity, uploadSlots * peerUploadRate));
+            uploadSlots = slotCalculator.getUploadSlots();
+        }
+
+        //Enough slots to saturate the uplink, but only one more than that
+        final int saturatingSlots = (int)(uplinkCapacity / peerUploadRate);
+        Assert.assertTrue(uploadSlots >= saturatingSlots);
+        Assert.assertTrue(uploadSlots <= saturatingSlots + 1);
+    }
+}
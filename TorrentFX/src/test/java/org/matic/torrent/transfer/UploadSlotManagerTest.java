@@ -0,0 +1,143 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matic.torrent.gui.model.TorrentView;
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.queue.QueuedTorrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class UploadSlotManagerTest {
+
+    private final UploadSlotManager unitUnderTest = new UploadSlotManager();
+
+    @Test
+    public void testSlotsAreLimitedByInterestedPeers() {
+        final TorrentView torrentView = buildTorrentViewMock(1, 1);
+
+        unitUnderTest.updateUploadDemand(torrentView, 0, 2);
+
+        Assert.assertEquals(2, unitUnderTest.getUploadSlots(torrentView));
+        Assert.assertTrue(unitUnderTest.acquireSpareUploadSlot(torrentView));
+        Assert.assertEquals(3, unitUnderTest.getUploadSlots(torrentView));
+    }
+
+    @Test
+    public void testTorrentWithoutInterestedPeersGetsNoSlots() {
+        final TorrentView idleTorrentView = buildTorrentViewMock(1, 1);
+        final TorrentView busyTorrentView = buildTorrentViewMock(2, 2);
+
+        unitUnderTest.updateUploadDemand(idleTorrentView, 0, 0);
+        unitUnderTest.updateUploadDemand(busyTorrentView, 0, 10);
+        unitUnderTest.rebalance();
+
+        Assert.assertEquals(0, unitUnderTest.getUploadSlots(idleTorrentView));
+        Assert.assertEquals(unitUnderTest.getTotalUploadSlots(), unitUnderTest.getUploadSlots(busyTorrentView));
+    }
+
+    @Test
+    public void testSlotsAreDividedByPriorityAndRate() {
+        final TorrentView highPriorityTorrentView = buildTorrentViewMock(1, 1);
+        final TorrentView lowPriorityTorrentView = buildTorrentViewMock(2, 3);
+
+        unitUnderTest.updateUploadDemand(highPriorityTorrentView, 0, 10);
+        unitUnderTest.updateUploadDemand(lowPriorityTorrentView, 0, 10);
+        unitUnderTest.rebalance();
+
+        final int highPrioritySlots = unitUnderTest.getUploadSlots(highPriorityTorrentView);
+        final int lowPrioritySlots = unitUnderTest.getUploadSlots(lowPriorityTorrentView);
+
+        Assert.assertEquals(unitUnderTest.getTotalUploadSlots(), highPrioritySlots + lowPrioritySlots);
+        Assert.assertTrue(highPrioritySlots > lowPrioritySlots);
+        Assert.assertTrue(lowPrioritySlots >= 1);
+    }
+
+    @Test
+    public void testForcedTorrentGetsMoreSlotsThanTopQueuedTorrent() {
+        final TorrentView forcedTorrentView = buildTorrentViewMock(1, QueuedTorrent.TOP_PRIORITY);
+        final TorrentView queuedTorrentView = buildTorrentViewMock(2, 1);
+
+        unitUnderTest.updateUploadDemand(forcedTorrentView, 0, 10);
+        unitUnderTest.updateUploadDemand(queuedTorrentView, 0, 10);
+        unitUnderTest.rebalance();
+
+        final int forcedSlots = unitUnderTest.getUploadSlots(forcedTorrentView);
+        final int queuedSlots = unitUnderTest.getUploadSlots(queuedTorrentView);
+
+        Assert.assertEquals(unitUnderTest.getTotalUploadSlots(), forcedSlots + queuedSlots);
+        Assert.assertTrue(forcedSlots > queuedSlots);
+        Assert.assertTrue(queuedSlots >= 1);
+    }
+
+    @Test
+    public void testForcedTorrentIsServedBeforeQueuedTorrents() {
+        final List<TorrentView> torrentViews = new ArrayList<>();
+        final int totalSlots = unitUnderTest.getTotalUploadSlots();
+        for(int i = 0; i < totalSlots; ++i) {
+            final TorrentView torrentView = buildTorrentViewMock(i, i + 1);
+            torrentViews.add(torrentView);
+            unitUnderTest.updateUploadDemand(torrentView, 0, 1);
+        }
+        final TorrentView forcedTorrentView = buildTorrentViewMock(totalSlots, QueuedTorrent.TOP_PRIORITY);
+        unitUnderTest.updateUploadDemand(forcedTorrentView, 0, 1);
+        unitUnderTest.rebalance();
+
+        //There is one torrent too many, the one at the bottom of the queue has to wait instead of the forced one
+        Assert.assertEquals(1, unitUnderTest.getUploadSlots(forcedTorrentView));
+        Assert.assertEquals(0, unitUnderTest.getUploadSlots(torrentViews.get(totalSlots - 1)));
+    }
+
+    @Test
+    public void testStarvedTorrentsAreServedOnNextRebalancing() {
+        final List<TorrentView> torrentViews = new ArrayList<>();
+        final int totalSlots = unitUnderTest.getTotalUploadSlots();
+
+        for(int i = 0; i <= totalSlots; ++i) {
+            final TorrentView torrentView = buildTorrentViewMock(i, i + 1);
+            torrentViews.add(torrentView);
+            unitUnderTest.updateUploadDemand(torrentView, 0, 1);
+        }
+        unitUnderTest.rebalance();
+
+        //The torrent with the lowest priority has to wait
+        final TorrentView lowestPriorityTorrentView = torrentViews.get(totalSlots);
+        Assert.assertEquals(0, unitUnderTest.getUploadSlots(lowestPriorityTorrentView));
+        Assert.assertFalse(unitUnderTest.acquireSpareUploadSlot(lowestPriorityTorrentView));
+
+        unitUnderTest.rebalance();
+        Assert.assertEquals(1, unitUnderTest.getUploadSlots(lowestPriorityTorrentView));
+    }
+
+    private TorrentView buildTorrentViewMock(final int infoHashValue, final int priority) {
+        final TorrentView torrentView = EasyMock.createMock(TorrentView.class);
+        final InfoHash infoHash = new InfoHash(new byte[] {(byte)infoHashValue});
+
+        EasyMock.expect(torrentView.getInfoHash()).andReturn(infoHash).anyTimes();
+        EasyMock.expect(torrentView.getPriority()).andReturn(priority).anyTimes();
+        EasyMock.replay(torrentView);
+
+        return torrentView;
+    }
+}
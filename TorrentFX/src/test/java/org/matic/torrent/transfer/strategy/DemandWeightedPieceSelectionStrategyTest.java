@@ -0,0 +1,79 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.strategy;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+public final class DemandWeightedPieceSelectionStrategyTest {
+
+    //All of the pieces the peer has are among the rarest
+    private final int maxRarestPieces = 32;
+    private final int pieceCount = 64;
+
+    private DemandWeightedPieceSelectionStrategy unitUnderTest;
+    private BitSet receivedPieces;
+    private BitSet peerPieces;
+
+    @Before
+    public void setup() {
+        receivedPieces = new BitSet(pieceCount);
+        unitUnderTest = new DemandWeightedPieceSelectionStrategy(maxRarestPieces, pieceCount, receivedPieces);
+
+        //Every other piece is available from a single peer
+        peerPieces = new BitSet(pieceCount);
+        for(int pieceIndex = 0; pieceIndex < pieceCount; pieceIndex += 2) {
+            peerPieces.set(pieceIndex);
+        }
+        unitUnderTest.peerGained(peerPieces);
+    }
+
+    @Test
+    public void testMostDemandedOfRarestPiecesIsSelected() {
+        //Peers keep requesting our pieces near the piece 40
+        receivedPieces.set(41);
+        unitUnderTest.pieceDemanded(41);
+
+        final int selectedPiece = unitUnderTest.selectNextPiece(peerPieces);
+
+        Assert.assertTrue(selectedPiece >= 32 && selectedPiece < 48);
+    }
+
+    @Test
+    public void testDemandDecays() {
+        unitUnderTest.pieceDemanded(3);
+        unitUnderTest.pieceDemanded(3);
+        Assert.assertEquals(2, unitUnderTest.getPieceDemand(0));
+
+        unitUnderTest.decayDemand();
+        Assert.assertEquals(1, unitUnderTest.getPieceDemand(0));
+
+        unitUnderTest.decayDemand();
+        Assert.assertEquals(0, unitUnderTest.getPieceDemand(15));
+    }
+
+    @Test
+    public void testRandomAmongRarestWithoutDemand() {
+        Assert.assertNotEquals(-1, unitUnderTest.selectNextPiece(peerPieces));
+    }
+}
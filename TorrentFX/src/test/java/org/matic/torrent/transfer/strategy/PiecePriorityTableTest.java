@@ -0,0 +1,94 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.strategy;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.queue.enums.FilePriority;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+public final class PiecePriorityTableTest {
+
+    private static final int PIECE_LENGTH = 10;
+
+    //Pieces: [0: a] [1: a, b] [2: b, empty, c] [3: c]
+    private final List<QueuedFileMetaData> files = Arrays.asList(
+            new QueuedFileMetaData(Paths.get("a"), 15, 0),
+            new QueuedFileMetaData(Paths.get("b"), 10, 15),
+            new QueuedFileMetaData(Paths.get("empty"), 0, 25),
+            new QueuedFileMetaData(Paths.get("c"), 15, 25));
+
+    private final FilePriority[] filePriorities = {FilePriority.NORMAL, FilePriority.SKIP,
+            FilePriority.SKIP, FilePriority.HIGH};
+
+    private PiecePriorityTable unitUnderTest;
+
+    @Before
+    public void setup() {
+        unitUnderTest = new PiecePriorityTable(files, PIECE_LENGTH, 4, fileIndex -> filePriorities[fileIndex]);
+    }
+
+    @Test
+    public void testPiecesSharedBetweenFilesGetHighestPriority() {
+        Assert.assertEquals(FilePriority.NORMAL.getValue(), unitUnderTest.getPriority(0));
+        Assert.assertEquals(FilePriority.NORMAL.getValue(), unitUnderTest.getPriority(1));
+        Assert.assertEquals(FilePriority.HIGH.getValue(), unitUnderTest.getPriority(2));
+        Assert.assertEquals(FilePriority.HIGH.getValue(), unitUnderTest.getPriority(3));
+        Assert.assertFalse(unitUnderTest.isSkipped(1));
+    }
+
+    @Test
+    public void testOnlyOverlappingPiecesAreUpdatedOnPriorityChange() {
+        Assert.assertTrue(unitUnderTest.filePriorityChanged(Paths.get("a"), FilePriority.SKIP));
+
+        Assert.assertTrue(unitUnderTest.isSkipped(0));
+        Assert.assertTrue(unitUnderTest.isSkipped(1));
+        Assert.assertEquals(FilePriority.HIGH.getValue(), unitUnderTest.getPriority(2));
+
+        Assert.assertTrue(unitUnderTest.filePriorityChanged(Paths.get("c"), FilePriority.SKIP));
+
+        Assert.assertTrue(unitUnderTest.isSkipped(2));
+        Assert.assertTrue(unitUnderTest.isSkipped(3));
+
+        Assert.assertTrue(unitUnderTest.filePriorityChanged(Paths.get("b"), FilePriority.LOW));
+
+        Assert.assertTrue(unitUnderTest.isSkipped(0));
+        Assert.assertEquals(FilePriority.LOW.getValue(), unitUnderTest.getPriority(1));
+        Assert.assertEquals(FilePriority.LOW.getValue(), unitUnderTest.getPriority(2));
+        Assert.assertTrue(unitUnderTest.isSkipped(3));
+
+        final BitSet expectedSkippedPieces = new BitSet();
+        expectedSkippedPieces.set(0);
+        expectedSkippedPieces.set(3);
+        Assert.assertEquals(expectedSkippedPieces, unitUnderTest.getSkippedPieces());
+    }
+
+    @Test
+    public void testUnknownOrUnchangedFilePriority() {
+        Assert.assertFalse(unitUnderTest.filePriorityChanged(Paths.get("unknown"), FilePriority.SKIP));
+        Assert.assertFalse(unitUnderTest.filePriorityChanged(Paths.get("a"), FilePriority.NORMAL));
+    }
+}
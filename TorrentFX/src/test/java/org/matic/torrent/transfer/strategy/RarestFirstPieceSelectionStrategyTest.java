@@ -19,18 +19,26 @@
 */
 package org.matic.torrent.transfer.strategy;
 
+import com.sun.management.ThreadMXBean;
 import org.easymock.EasyMock;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.queue.QueuedFileMetaData;
+import org.matic.torrent.queue.enums.FilePriority;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
 
 public final class RarestFirstPieceSelectionStrategyTest {
 
@@ -47,767 +55,503 @@ public final class RarestFirstPieceSelectionStrategyTest {
     }
 
     @Test
-    public void testOccurrenceIncreasedPieceNotDownloadedAndWasUnavailableAndRarestPiecesLimitNotReached() {
+    public void testOccurrenceIncreasedPieceWasUnavailable() {
         final int targetPieceIndex = 2;
 
-        final List<Integer> oneOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(0, 1));
-        final List<Integer> twoOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(3, 4));
-
-        unitUnderTest.rarestPieces.put(1, oneOccurrencePieceIndexes);
-        unitUnderTest.rarestPieces.put(2, twoOccurrencePieceIndexes);
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 1;
-        unitUnderTest.pieceAvailabilities[3] = 2;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(4, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceIncreased(targetPieceIndex);
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        Assert.assertEquals(3, oneOccurrencePieceIndexes.size());
-        Assert.assertEquals(2, twoOccurrencePieceIndexes.size());
-    }
-
-    @Test
-    public void testOccurrenceIncreasedPieceNotDownloadedAndWasUnavailableAndRarestPiecesIsEmpty() {
-        final int targetPieceIndex = 2;
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(targetPieceIndex));
 
         unitUnderTest.occurrenceIncreased(targetPieceIndex);
 
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
-
-        final List<Integer> oneOccurrencePieceIndexes = unitUnderTest.rarestPieces.get(1);
-        Assert.assertEquals(1, oneOccurrencePieceIndexes.size());
-        Assert.assertTrue(oneOccurrencePieceIndexes.contains(targetPieceIndex));
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(targetPieceIndex));
+        Assert.assertEquals(targetPieceIndex, unitUnderTest.sortedPieces[pieceCount - 1]);
+        assertSortedOnAvailability();
     }
 
     @Test
-    public void testOccurrenceIncreasedPieceNotDownloadedAndWasAvailableAndRarestPiecesLimitNotReached() {
-        final int targetPieceIndex = 1;
-
-        final List<Integer> oneOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(0, 1));
-        final List<Integer> twoOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(2, 3));
+    public void testOccurrenceIncreasedPieceWasAvailable() {
+        setAvailabilities(1, 1, 2, 2);
 
-        unitUnderTest.rarestPieces.put(1, oneOccurrencePieceIndexes);
-        unitUnderTest.rarestPieces.put(2, twoOccurrencePieceIndexes);
+        unitUnderTest.occurrenceIncreased(1);
 
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 1;
-        unitUnderTest.pieceAvailabilities[2] = 2;
-        unitUnderTest.pieceAvailabilities[3] = 2;
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(4, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceIncreased(targetPieceIndex);
+        Assert.assertEquals(2, unitUnderTest.getPieceAvailability(1));
+        assertSortedOnAvailability();
 
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(4, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(1, oneOccurrencePieceIndexes.size());
-        Assert.assertEquals(3, twoOccurrencePieceIndexes.size());
+        unitUnderTest.occurrenceIncreased(1);
 
-        unitUnderTest.occurrenceIncreased(targetPieceIndex);
-
-        Assert.assertEquals(3, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(4, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(1, oneOccurrencePieceIndexes.size());
-        Assert.assertEquals(2, twoOccurrencePieceIndexes.size());
-
-        final List<Integer> threeOccurrencePieceIndexes = unitUnderTest.rarestPieces.get(3);
-        Assert.assertEquals(1, threeOccurrencePieceIndexes.size());
-        Assert.assertTrue(threeOccurrencePieceIndexes.contains(targetPieceIndex));
+        Assert.assertEquals(3, unitUnderTest.getPieceAvailability(1));
+        Assert.assertEquals(1, unitUnderTest.sortedPieces[pieceCount - 1]);
+        assertSortedOnAvailability();
     }
 
     @Test
-    public void testOccurrenceIncreasedPieceNotDownloadedAndWasAvailableAndRarestPiecesIsEmpty() {
-
+    public void testOccurrenceIncreasedBeyondInitialAvailabilityLevels() {
+        final int availability = 100;
+        for(int i = 0; i < availability; ++i) {
+            unitUnderTest.occurrenceIncreased(3);
+        }
+        unitUnderTest.occurrenceIncreased(4);
+
+        Assert.assertEquals(availability, unitUnderTest.getPieceAvailability(3));
+        Assert.assertEquals(3, unitUnderTest.sortedPieces[pieceCount - 1]);
+        Assert.assertEquals(4, unitUnderTest.sortedPieces[pieceCount - 2]);
+        assertSortedOnAvailability();
     }
 
     @Test
-    public void testOccurrenceIncreasedPieceNotDownloadedAndWasUnavailableAndRarestPiecesIsFull() {
-        final int targetPieceIndex = 9;
-
-        final List<Integer> oneOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(0, 1, 2));
-        final List<Integer> twoOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(3, 4));
-
-        unitUnderTest.rarestPieces.put(1, oneOccurrencePieceIndexes);
-        unitUnderTest.rarestPieces.put(2, twoOccurrencePieceIndexes);
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 1;
-        unitUnderTest.pieceAvailabilities[2] = 1;
-        unitUnderTest.pieceAvailabilities[3] = 2;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceIncreased(targetPieceIndex);
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(4, oneOccurrencePieceIndexes.size());
-        Assert.assertEquals(1, twoOccurrencePieceIndexes.size());
+    public void testOccurrenceIncreasedPieceAlreadyObtained() {
+        final int targetPieceIndex = 8;
+        receivedPieces.set(targetPieceIndex);
 
         unitUnderTest.occurrenceIncreased(targetPieceIndex);
 
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(3, oneOccurrencePieceIndexes.size());
-        Assert.assertEquals(2, twoOccurrencePieceIndexes.size());
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(targetPieceIndex));
+        assertSortedOnAvailability();
 
-        unitUnderTest.occurrenceIncreased(targetPieceIndex);
-
-        Assert.assertEquals(3, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(3, oneOccurrencePieceIndexes.size());
-        Assert.assertEquals(2, twoOccurrencePieceIndexes.size());
+        final BitSet peerPieces = new BitSet();
+        peerPieces.set(targetPieceIndex);
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces).isPresent());
     }
 
     @Test
-    public void testOccurrenceIncreasedPieceDownloadedAndWasUnavailable() {
-        final int targetPieceIndex = 8;
-        receivedPieces.set(8);
+    public void testOccurrenceDecreasedPieceBecomesUnavailable() {
+        setAvailabilities(1, 0, 0, 0, 0, 0, 1);
 
-        unitUnderTest = new RarestFirstPieceSelectionStrategy(maxRarestPieces, pieceCount, receivedPieces);
+        unitUnderTest.occurrenceDecreased(6);
 
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceIncreased(targetPieceIndex);
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(6));
+        assertSortedOnAvailability();
 
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
+        final BitSet peerPieces = new BitSet();
+        peerPieces.set(6);
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces).isPresent());
     }
 
     @Test
-    public void testOccurrenceDecreasedPieceNotDownloadedAndIsUnavailableAndRarestPiecesLimitNotReached() {
-        final int targetPieceIndex = 6;
-
-        final List<Integer> oneOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(0, 6));
-
-        unitUnderTest.rarestPieces.put(1, oneOccurrencePieceIndexes);
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[6] = 1;
+    public void testOccurrenceDecreasedOfUnavailablePieceIsIgnored() {
+        unitUnderTest.occurrenceDecreased(6);
 
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(2, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(1, oneOccurrencePieceIndexes.size());
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(6));
+        assertSortedOnAvailability();
     }
 
     @Test
-    public void testOccurrenceDecreasedPieceNotDownloadedAndIsUnavailableAndRarestPiecesIsEmpty() {
-        final int targetPieceIndex = 6;
-
-        final List<Integer> oneOccurrencePieceIndexes = new ArrayList<>(Arrays.asList(6));
-
-        unitUnderTest.rarestPieces.put(1, oneOccurrencePieceIndexes);
-        unitUnderTest.pieceAvailabilities[6] = 1;
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(0, oneOccurrencePieceIndexes.size());
+    public void testOccurrenceChangesKeepPiecesSortedOnAvailability() {
+        final Random random = new Random(42);
+        for(int i = 0; i < 10000; ++i) {
+            final int pieceIndex = random.nextInt(pieceCount);
+            if(random.nextInt(3) == 0) {
+                unitUnderTest.occurrenceDecreased(pieceIndex);
+            }
+            else {
+                unitUnderTest.occurrenceIncreased(pieceIndex);
+            }
+            assertSortedOnAvailability();
+        }
     }
 
     @Test
-    public void testOccurrenceDecreasedPieceNotDownloadedAndIsUnavailableAndRarestPiecesIsFull() {
-        final int targetPieceIndex = 3;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0, 1, 2)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(3, 4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 1;
-        unitUnderTest.pieceAvailabilities[2] = 1;
-        unitUnderTest.pieceAvailabilities[3] = 2;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-        unitUnderTest.pieceAvailabilities[5] = 3;
-
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
+    public void testPieceObtainedIsNoLongerSelected() {
+        setAvailabilities(1, 2);
+        unitUnderTest.pieceRequested(0, EasyMock.createMock(DataPiece.class));
 
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(4, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
+        unitUnderTest.pieceObtained(0);
 
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(3, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-
-        final List<Integer> threeOccurrencePieces = unitUnderTest.rarestPieces.get(3);
-        Assert.assertEquals(1, threeOccurrencePieces.size());
-        Assert.assertTrue(threeOccurrencePieces.contains(5));
+        Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
+        Assert.assertTrue(receivedPieces.get(0));
+        Assert.assertEquals(Optional.of(1), unitUnderTest.selectNext(peerPieces(0, 1)));
     }
 
     @Test
-    public void testOccurrenceDecreasedPieceDownloadedAndIsUnavailableAndRarestPiecesIsFull() {
-        final int targetPieceIndex = 5;
-        receivedPieces.set(targetPieceIndex);
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0, 1, 2)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(3, 4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 1;
-        unitUnderTest.pieceAvailabilities[2] = 1;
-        unitUnderTest.pieceAvailabilities[3] = 2;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-        unitUnderTest.pieceAvailabilities[5] = 1;
+    public void testPieceRequestedIsNoLongerSelected() {
+        setAvailabilities(1, 2, 3, 4, 5, 6);
 
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+        Assert.assertTrue(unitUnderTest.pieceRequested(0, EasyMock.createMock(DataPiece.class)));
+        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(0));
+        Assert.assertFalse(receivedPieces.get(0));
 
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
-
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(3, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(2, unitUnderTest.rarestPieces.get(2).size());
+        //Piece 5 replaced the requested piece among the rarest pieces
+        Assert.assertEquals(Optional.of(5), unitUnderTest.selectNext(peerPieces(0, 5)));
     }
 
     @Test
-    public void testOccurrenceDecreasedPieceNotDownloadedAndIsAvailableAndRarestPiecesIsFull() {
-       final int targetPieceIndex = 5;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0, 1, 2)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(3, 4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 1;
-        unitUnderTest.pieceAvailabilities[2] = 1;
-        unitUnderTest.pieceAvailabilities[3] = 2;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-        unitUnderTest.pieceAvailabilities[5] = 3;
-
-        Assert.assertEquals(3, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
-
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(3, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(2, unitUnderTest.rarestPieces.get(2).size());
-
-        unitUnderTest.occurrenceDecreased(targetPieceIndex);
-
-        final List<Integer> oneOccurrencePieces = unitUnderTest.rarestPieces.get(1);
-        final List<Integer> twoOccurrencePieces = unitUnderTest.rarestPieces.get(2);
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+    public void testPieceFailure() {
+        setAvailabilities(0, 0, 0, 5);
+        unitUnderTest.pieceRequested(3, EasyMock.createMock(DataPiece.class));
 
-        Assert.assertEquals(4, oneOccurrencePieces.size());
-        Assert.assertEquals(1, twoOccurrencePieces.size());
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces(3)).isPresent());
 
-        Assert.assertTrue(oneOccurrencePieces.contains(5));
+        Assert.assertTrue(unitUnderTest.pieceFailure(3));
+        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(3));
+        Assert.assertFalse(receivedPieces.get(3));
+        Assert.assertEquals(Optional.of(3), unitUnderTest.selectNext(peerPieces(3)));
     }
 
     @Test
-    public void testPieceObtainedAndWasAmongRarestPiecesAndLimitNotReached() {
-        final int targetPieceIndex = 4;
-
-        unitUnderTest.downloadingPieces.put(4, EasyMock.createMock(DataPiece.class));
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(2, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.pieceObtained(targetPieceIndex);
-
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(2));
+    public void testSelectNextPieceAndThereAreNoAvailablePieces() {
+        Assert.assertFalse(unitUnderTest.selectNext(new BitSet()).isPresent());
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces(0, 1, 2)).isPresent());
         Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
-        Assert.assertTrue(unitUnderTest.receivedPieces.get(targetPieceIndex));
     }
 
     @Test
-    public void testPieceObtainedAndWasNotAmongRarestPieces() {
-        final int targetPieceIndex = 5;
-
-        unitUnderTest.downloadingPieces.put(targetPieceIndex, EasyMock.createMock(DataPiece.class));
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
-
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        unitUnderTest.pieceObtained(targetPieceIndex);
-
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(6));
-        Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
-        Assert.assertTrue(unitUnderTest.receivedPieces.get(targetPieceIndex));
+    public void testSelectNextPieceAndPeerHasNoPieces() {
+        setAvailabilities(1, 2, 3);
+
+        Assert.assertFalse(unitUnderTest.selectNext(new BitSet()).isPresent());
     }
 
     @Test
-    public void testPieceRequestedAndWasAmongstRarestPieces() {
-        final int targetPieceIndex = 0;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        final boolean wasRequested = unitUnderTest.pieceRequested(
-                targetPieceIndex, EasyMock.createMock(DataPiece.class));
-
-        Assert.assertTrue(wasRequested);
-        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(targetPieceIndex));
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(1));
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+    public void testSelectNextPieceAndThereAreNoRarestPiecesThatMatchOneOtherMatching() {
+        setAvailabilities(1, 2, 3, 4, 5, 6);
 
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(6).size());
+        final Optional<Integer> result = unitUnderTest.selectNext(peerPieces(5));
 
-        Assert.assertFalse(unitUnderTest.receivedPieces.get(targetPieceIndex));
+        Assert.assertEquals(Optional.of(5), result);
+        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(5));
     }
 
     @Test
-    public void testPieceRequestedAndWasNotAmongstRarestPieces() {
-        final int targetPieceIndex = 5;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
-
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        final boolean wasRequested = unitUnderTest.pieceRequested(
-                targetPieceIndex, EasyMock.createMock(DataPiece.class));
-
-        Assert.assertTrue(wasRequested);
-        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(targetPieceIndex));
-
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(6));
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
+    public void testSelectNextPieceAndThereAreRarestPiecesThatMatchOneOtherMatching() {
+        setAvailabilities(1, 2, 3, 4, 5, 6);
 
-        Assert.assertFalse(unitUnderTest.receivedPieces.get(targetPieceIndex));
+        Assert.assertEquals(Optional.of(4), unitUnderTest.selectNext(peerPieces(4, 5)));
     }
 
     @Test
-    public void testSelectNextPieceAndThereAreNoRarestPiecesAndNoOtherMatchingPieces() {
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
+    public void testSelectNextPieceAndPeerOnlyHasPieceThatWeHave() {
+        setAvailabilities(1, 2, 3, 4, 5, 6);
+        receivedPieces.set(5);
 
-        final Optional<Integer> result = unitUnderTest.selectNext(new BitSet());
-
-        Assert.assertFalse(result.isPresent());
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
-        Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces(5)).isPresent());
     }
 
     @Test
-    public void testSelectNextPieceAndThereAreNoRarestPiecesThatMatchAndNoOtherPieces() {
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-
-        Assert.assertEquals(3, unitUnderTest.getRarestPiecesCount());
-
-        final Optional<Integer> result = unitUnderTest.selectNext(new BitSet());
-
-        Assert.assertFalse(result.isPresent());
-        Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
+    public void testSelectNextPieceAndThePieceIsAlreadyDownloading() {
+        setAvailabilities(1, 2, 3, 4, 5, 6);
+        unitUnderTest.pieceRequested(5, EasyMock.createMock(DataPiece.class));
 
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(3, unitUnderTest.getRarestPiecesCount());
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces(5)).isPresent());
+        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(5));
     }
 
     @Test
-    public void testSelectNextPieceAndThereAreNoRarestPiecesThatMatchOneOtherMatching() {
-        final int targetPieceIndex = 5;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
-
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        final BitSet peerPieces = new BitSet();
-        peerPieces.set(targetPieceIndex);
-
-        final Optional<Integer> result = unitUnderTest.selectNext(peerPieces);
-
-        Assert.assertTrue(result.isPresent());
-        Assert.assertEquals(targetPieceIndex, result.get().intValue());
-        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(targetPieceIndex));
-
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
-
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(6));
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+    public void testSelectNextChoosesAmongRarestPieces() {
+        setAvailabilities(1, 1, 1, 1, 1, 2, 2, 2, 2, 2);
+        final BitSet allPieces = peerPieces(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+        final Set<Integer> selectedPieces = new HashSet<>();
+        for(int i = 0; i < 200; ++i) {
+            selectedPieces.add(unitUnderTest.selectNext(allPieces).get());
+        }
+
+        for(int pieceIndex = 0; pieceIndex < maxRarestPieces; ++pieceIndex) {
+            Assert.assertTrue(selectedPieces.contains(pieceIndex));
+        }
+        Assert.assertEquals(maxRarestPieces, selectedPieces.size());
     }
 
     @Test
-    public void testSelectNextPieceAndThereAreRarestPiecesThatMatchOneOtherMatching() {
-        final int targetPieceIndex = 4;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
+    public void testSelectNextWithSingleRarestPiece() {
+        unitUnderTest = new RarestFirstPieceSelectionStrategy(1, pieceCount, receivedPieces);
+        setAvailabilities(3, 1, 2);
 
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
-
-        Assert.assertEquals(5, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+        Assert.assertEquals(Optional.of(1), unitUnderTest.selectNext(peerPieces(0, 1, 2)));
+        Assert.assertEquals(Optional.of(2), unitUnderTest.selectNext(peerPieces(0, 2)));
+    }
 
-        final BitSet peerPieces = new BitSet();
-        peerPieces.set(targetPieceIndex);
-        peerPieces.set(5);
+    @Test
+    public void testSelectNextWhenAllPiecesAreAmongRarestPieces() {
+        unitUnderTest = new RarestFirstPieceSelectionStrategy(Integer.MAX_VALUE, pieceCount, receivedPieces);
+        setAvailabilities(3, 1, 2);
 
-        final Optional<Integer> result = unitUnderTest.selectNext(peerPieces);
+        final Optional<Integer> result = unitUnderTest.selectNext(peerPieces(0, 2));
 
         Assert.assertTrue(result.isPresent());
-        Assert.assertEquals(targetPieceIndex, result.get().intValue());
-        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(targetPieceIndex));
-
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
-
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(6));
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+        Assert.assertTrue(result.get() == 0 || result.get() == 2);
     }
 
     @Test
-    public void testSelectNextPieceAndThereAreNoRarestPiecesThatMatchOneOtherMatchingAndWeHaveThatPiece() {
-        final int targetPieceIndex = 5;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
-
-        unitUnderTest.receivedPieces.set(targetPieceIndex);
-
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        final BitSet peerPieces = new BitSet();
-        peerPieces.set(targetPieceIndex);
-
-        final Optional<Integer> result = unitUnderTest.selectNext(peerPieces);
+    public void testPeerLost() {
+        setAvailabilities(0, 0, 0, 0, 0, 1, 2, 1);
+        unitUnderTest.pieceRequested(5, EasyMock.createMock(DataPiece.class));
 
-        Assert.assertFalse(result.isPresent());
-        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(targetPieceIndex));
+        unitUnderTest.pieceFailure(5);
+        unitUnderTest.peerLost(peerPieces(5, 6, 7), new HashSet<>());
 
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(5));
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(6));
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(7));
+        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(5));
+        assertSortedOnAvailability();
 
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(6));
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+        Assert.assertEquals(Optional.of(6), unitUnderTest.selectNext(peerPieces(5, 6, 7)));
     }
 
     @Test
-    public void testSelectNextPieceAndThePieceIsAlreadyDownloading() {
-        final int targetPieceIndex = 5;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(2)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(4)));
-
-        unitUnderTest.pieceAvailabilities[0] = 1;
-        unitUnderTest.pieceAvailabilities[1] = 2;
-        unitUnderTest.pieceAvailabilities[2] = 3;
-        unitUnderTest.pieceAvailabilities[3] = 4;
-        unitUnderTest.pieceAvailabilities[4] = 5;
-        unitUnderTest.pieceAvailabilities[5] = 6;
+    public void testPeerGained() {
+        setAvailabilities(3, 4, 5, 1, 2);
+        receivedPieces.set(6);
+        receivedPieces.set(7);
+
+        //Bits beyond the last piece are ignored
+        unitUnderTest.peerGained(peerPieces(0, 1, 2, 3, 4, 5, 6, 7, pieceCount + 3));
+
+        Assert.assertEquals(4, unitUnderTest.getPieceAvailability(0));
+        Assert.assertEquals(5, unitUnderTest.getPieceAvailability(1));
+        Assert.assertEquals(6, unitUnderTest.getPieceAvailability(2));
+        Assert.assertEquals(2, unitUnderTest.getPieceAvailability(3));
+        Assert.assertEquals(3, unitUnderTest.getPieceAvailability(4));
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(5));
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(6));
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(7));
+        assertSortedOnAvailability();
 
-        unitUnderTest.downloadingPieces.put(targetPieceIndex, EasyMock.createMock(DataPiece.class));
+        Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
+        Assert.assertEquals(Optional.of(5), unitUnderTest.selectNext(peerPieces(2, 5)));
+    }
 
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[targetPieceIndex]);
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+    @Test
+    public void testSelectNextSkipsUnwantedPiecesAndPrefersHighPriorityPieces() {
+        //One file per piece
+        final List<QueuedFileMetaData> files = new ArrayList<>();
+        for(int i = 0; i < pieceCount; ++i) {
+            files.add(new QueuedFileMetaData(Paths.get(String.valueOf(i)), 1, i));
+        }
+        final PiecePriorityTable piecePriorityTable = new PiecePriorityTable(files, 1, pieceCount,
+                fileIndex -> fileIndex == 0? FilePriority.SKIP : fileIndex == 1? FilePriority.HIGH : FilePriority.NORMAL);
+        unitUnderTest.setPiecePriorityTable(piecePriorityTable);
+
+        setAvailabilities(1, 2, 1);
 
         final BitSet peerPieces = new BitSet();
-        peerPieces.set(targetPieceIndex);
+        peerPieces.set(0, 3);
 
-        final Optional<Integer> result = unitUnderTest.selectNext(peerPieces);
+        Assert.assertEquals(Optional.of(1), unitUnderTest.selectNext(peerPieces));
+        Assert.assertFalse(unitUnderTest.isWanted(0));
 
-        Assert.assertFalse(result.isPresent());
-        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(targetPieceIndex));
+        piecePriorityTable.filePriorityChanged(Paths.get("1"), FilePriority.SKIP);
+        Assert.assertEquals(Optional.of(2), unitUnderTest.selectNext(peerPieces));
 
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(1).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(2).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(3).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(4).size());
-        Assert.assertEquals(1, unitUnderTest.rarestPieces.get(5).size());
-
-        Assert.assertFalse(unitUnderTest.rarestPieces.containsKey(6));
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+        piecePriorityTable.filePriorityChanged(Paths.get("2"), FilePriority.SKIP);
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces).isPresent());
     }
 
     @Test
-    public void testPeerLost() {
-        final int downloadingOnlyPieceIndex = 5;
-        final int downloadingMoreAvailablePieceIndex = 6;
-        final int rarestOnlyPieceIndex = 7;
-
-        unitUnderTest.downloadingPieces.put(downloadingOnlyPieceIndex, EasyMock.createMock(DataPiece.class));
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(rarestOnlyPieceIndex)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(downloadingMoreAvailablePieceIndex)));
-
-        unitUnderTest.pieceAvailabilities[downloadingOnlyPieceIndex] = 1;
-        unitUnderTest.pieceAvailabilities[downloadingMoreAvailablePieceIndex] = 2;
-        unitUnderTest.pieceAvailabilities[rarestOnlyPieceIndex] = 1;
+    public void testSelectNextPrefersHighPriorityPieceOutsideOfRarestPieces() {
+        final List<QueuedFileMetaData> files = new ArrayList<>();
+        for(int i = 0; i < pieceCount; ++i) {
+            files.add(new QueuedFileMetaData(Paths.get(String.valueOf(i)), 1, i));
+        }
+        unitUnderTest.setPiecePriorityTable(new PiecePriorityTable(files, 1, pieceCount,
+                fileIndex -> fileIndex == 8? FilePriority.HIGH : FilePriority.NORMAL));
+
+        setAvailabilities(1, 1, 1, 1, 1, 2, 2, 3, 4);
+
+        //Neither 7 nor 8 are among the rarest pieces, the less available 7 has a lower priority
+        Assert.assertEquals(Optional.of(8), unitUnderTest.selectNext(peerPieces(7, 8)));
+    }
 
-        final BitSet peerPieces = new BitSet();
-        peerPieces.set(downloadingOnlyPieceIndex);
-        peerPieces.set(downloadingMoreAvailablePieceIndex);
-        peerPieces.set(rarestOnlyPieceIndex);
+    @Test
+    public void testSelectNextPrefersHighPriorityPieceOverRarerPiece() {
+        final List<QueuedFileMetaData> files = new ArrayList<>();
+        for(int i = 0; i < pieceCount; ++i) {
+            files.add(new QueuedFileMetaData(Paths.get(String.valueOf(i)), 1, i));
+        }
+        unitUnderTest.setPiecePriorityTable(new PiecePriorityTable(files, 1, pieceCount,
+                fileIndex -> fileIndex >= 3? FilePriority.HIGH : FilePriority.NORMAL));
+
+        setAvailabilities(1, 1, 1, 2, 2, 2, 2, 2, 3, 4);
+
+        //The rarest piece 0 has a lower priority, while 8 is the peer's rarest piece of the high priority
+        Assert.assertEquals(Optional.of(8), unitUnderTest.selectNext(peerPieces(0, 8, 9)));
+        Assert.assertEquals(Optional.of(9), unitUnderTest.selectNext(peerPieces(0, 9)));
+        Assert.assertEquals(Optional.of(0), unitUnderTest.selectNext(peerPieces(0)));
+    }
 
-        Assert.assertEquals(2, unitUnderTest.getRarestPiecesCount());
+    @Test
+    public void testSelectNextPieceStopsAtPartialPieceLimit() {
+        setAvailabilities(1, 1, 1, 1);
+        unitUnderTest.setPartialPieceLimit(2);
 
-        unitUnderTest.pieceFailure(downloadingOnlyPieceIndex);
-        unitUnderTest.peerLost(peerPieces, Collections.emptySet());
+        unitUnderTest.pieceRequested(0, EasyMock.createMock(DataPiece.class));
+        Assert.assertTrue(unitUnderTest.selectNext(peerPieces(1, 2, 3)).isPresent());
 
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
-        Assert.assertTrue(unitUnderTest.rarestPieces.containsKey(1));
-        Assert.assertTrue(unitUnderTest.rarestPieces.get(1).contains(downloadingMoreAvailablePieceIndex));
+        unitUnderTest.pieceRequested(1, EasyMock.createMock(DataPiece.class));
+        Assert.assertEquals(2, unitUnderTest.getPartialPieceCount());
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces(2, 3)).isPresent());
 
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[downloadingOnlyPieceIndex]);
-        Assert.assertEquals(0, unitUnderTest.pieceAvailabilities[rarestOnlyPieceIndex]);
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[downloadingMoreAvailablePieceIndex]);
+        //An interrupted piece is still partially downloaded
+        unitUnderTest.pieceInterrupted(1, "test");
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces(2, 3)).isPresent());
 
-        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(downloadingOnlyPieceIndex));
+        unitUnderTest.pieceObtained(0);
+        Assert.assertTrue(unitUnderTest.selectNext(peerPieces(2, 3)).isPresent());
     }
 
     @Test
-    public void testPeerGained() {
-        final int obtainedPieceIndex = 5;
-
-        unitUnderTest.rarestPieces.put(1, new ArrayList<>(Arrays.asList(3)));
-        unitUnderTest.rarestPieces.put(2, new ArrayList<>(Arrays.asList(4)));
-        unitUnderTest.rarestPieces.put(3, new ArrayList<>(Arrays.asList(0)));
-        unitUnderTest.rarestPieces.put(4, new ArrayList<>(Arrays.asList(1)));
-        unitUnderTest.rarestPieces.put(5, new ArrayList<>(Arrays.asList(2)));
-
-        unitUnderTest.pieceAvailabilities[obtainedPieceIndex] = 0;
-        unitUnderTest.pieceAvailabilities[4] = 2;
-        unitUnderTest.pieceAvailabilities[3] = 1;
-        unitUnderTest.pieceAvailabilities[0] = 3;
-        unitUnderTest.pieceAvailabilities[1] = 4;
-        unitUnderTest.pieceAvailabilities[2] = 5;
+    public void testRandomFirstPiecesAreAmongMostAvailable() {
+        setAvailabilities(1, 1, 1, 1, 1, 4, 4, 5, 5, 6);
+        unitUnderTest.setRandomFirstPieceCount(1);
+
+        final BitSet peerPieces = peerPieces(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+        for(int i = 0; i < 100; ++i) {
+            final int selectedPiece = unitUnderTest.selectNextPiece(peerPieces);
+            Assert.assertTrue(selectedPiece >= 5);
+        }
+
+        //Once the first piece has been obtained, the rarest pieces are selected
+        receivedPieces.set(9);
+        for(int i = 0; i < 100; ++i) {
+            Assert.assertTrue(unitUnderTest.selectNextPiece(peerPieces) < 5);
+        }
+    }
 
-        final BitSet peerPieces = new BitSet();
-        peerPieces.set(obtainedPieceIndex);
-        peerPieces.set(0);
-        peerPieces.set(1);
-        peerPieces.set(2);
-        peerPieces.set(3);
-        peerPieces.set(4);
-        peerPieces.set(6);
-        peerPieces.set(7);
+    @Test
+    public void testRandomFirstPiecesRespectPriorities() {
+        final List<QueuedFileMetaData> files = new ArrayList<>();
+        for(int i = 0; i < pieceCount; ++i) {
+            files.add(new QueuedFileMetaData(Paths.get(String.valueOf(i)), 1, i));
+        }
+        unitUnderTest.setPiecePriorityTable(new PiecePriorityTable(files, 1, pieceCount,
+                fileIndex -> fileIndex == 9? FilePriority.HIGH : FilePriority.NORMAL));
+        unitUnderTest.setRandomFirstPieceCount(1);
+
+        //The most available pieces fill the candidate buffer, but are all of a lower priority
+        setAvailabilities(5, 5, 5, 5, 5, 5, 5, 5, 5, 1);
+
+        final BitSet peerPieces = peerPieces(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+        for(int i = 0; i < 100; ++i) {
+            Assert.assertEquals(9, unitUnderTest.selectNextPiece(peerPieces));
+        }
+    }
 
-        //Set some pieces as already have
-        unitUnderTest.receivedPieces.set(6);
-        unitUnderTest.receivedPieces.set(7);
+    @Test
+    public void testSeedGainedAndLostIsCountedOnce() {
+        setAvailabilities(1, 2);
+        final BitSet seedPieces = new BitSet();
+        seedPieces.set(0, pieceCount);
 
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
+        unitUnderTest.peerGained(seedPieces);
 
-        unitUnderTest.peerGained(peerPieces);
+        Assert.assertEquals(1, unitUnderTest.getSeedCount());
+        Assert.assertEquals(2, unitUnderTest.getPieceAvailability(0));
+        Assert.assertEquals(3, unitUnderTest.getPieceAvailability(1));
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(pieceCount - 1));
+        assertSortedOnAvailability();
 
-        Assert.assertEquals(5, unitUnderTest.getRarestPiecesCount());
-
-        Assert.assertTrue(unitUnderTest.rarestPieces.containsKey(1));
-        final List<Integer> oneOccurrencePieces = unitUnderTest.rarestPieces.get(1);
-        Assert.assertEquals(1, oneOccurrencePieces.size());
-        Assert.assertTrue(oneOccurrencePieces.contains(obtainedPieceIndex));
-
-        Assert.assertTrue(unitUnderTest.rarestPieces.containsKey(2));
-        final List<Integer> twoOccurrencesPieces = unitUnderTest.rarestPieces.get(2);
-        Assert.assertEquals(1, twoOccurrencesPieces.size());
-        Assert.assertTrue(twoOccurrencesPieces.contains(3));
-
-        Assert.assertTrue(unitUnderTest.rarestPieces.containsKey(3));
-        final List<Integer> threeOccurrencesPieces = unitUnderTest.rarestPieces.get(3);
-        Assert.assertEquals(1, threeOccurrencesPieces.size());
-        Assert.assertTrue(threeOccurrencesPieces.contains(4));
-
-        Assert.assertTrue(unitUnderTest.rarestPieces.containsKey(4));
-        final List<Integer> fourOccurrencesPieces = unitUnderTest.rarestPieces.get(4);
-        Assert.assertEquals(1, fourOccurrencesPieces.size());
-        Assert.assertTrue(fourOccurrencesPieces.contains(0));
-
-        Assert.assertTrue(unitUnderTest.rarestPieces.containsKey(5));
-        final List<Integer> fiveOccurrencesPieces = unitUnderTest.rarestPieces.get(5);
-        Assert.assertEquals(1, fiveOccurrencesPieces.size());
-        Assert.assertTrue(fiveOccurrencesPieces.contains(1));
-
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[obtainedPieceIndex]);
-        Assert.assertEquals(3, unitUnderTest.pieceAvailabilities[4]);
-        Assert.assertEquals(2, unitUnderTest.pieceAvailabilities[3]);
-        Assert.assertEquals(4, unitUnderTest.pieceAvailabilities[0]);
-        Assert.assertEquals(5, unitUnderTest.pieceAvailabilities[1]);
-        Assert.assertEquals(6, unitUnderTest.pieceAvailabilities[2]);
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[6]);
-        Assert.assertEquals(1, unitUnderTest.pieceAvailabilities[7]);
+        unitUnderTest.peerLost(seedPieces, Collections.emptySet());
 
-        Assert.assertTrue(unitUnderTest.downloadingPieces.isEmpty());
+        Assert.assertEquals(0, unitUnderTest.getSeedCount());
+        Assert.assertEquals(1, unitUnderTest.getPieceAvailability(0));
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(pieceCount - 1));
+        assertSortedOnAvailability();
     }
 
     @Test
-    public void testPieceRequested() {
-        final int requestedRarestPieceIndex = 9;
-        final int requestedNotRarestPieceIndex = 0;
-
-        unitUnderTest.rarestPieces.put(42, new ArrayList<>(Arrays.asList(requestedRarestPieceIndex)));
+    public void testSelectNextPieceOnlyAvailableFromSeed() {
+        setAvailabilities(1, 1, 1);
+        final BitSet seedPieces = new BitSet();
+        seedPieces.set(0, pieceCount);
+        unitUnderTest.peerGained(seedPieces);
+
+        //No partial peer has the piece 5, but the seed does
+        Assert.assertEquals(Optional.of(5), unitUnderTest.selectNext(peerPieces(5)));
+    }
 
-        unitUnderTest.pieceAvailabilities[requestedRarestPieceIndex] = 42;
-        unitUnderTest.pieceAvailabilities[requestedNotRarestPieceIndex] = 89;
+    @Test
+    public void testPeerCompletedMovesToSeedCount() {
+        final BitSet peerPieces = new BitSet();
+        peerPieces.set(0, pieceCount - 1);
+        unitUnderTest.peerGained(peerPieces);
 
-        final boolean notRarestPieceRequested = unitUnderTest.pieceRequested(
-                requestedNotRarestPieceIndex, EasyMock.createMock(DataPiece.class));
+        //The last piece is announced with a HAVE
+        unitUnderTest.occurrenceIncreased(pieceCount - 1);
+        peerPieces.set(pieceCount - 1);
+        unitUnderTest.peerCompleted(peerPieces);
 
-        Assert.assertTrue(notRarestPieceRequested);
-        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(requestedNotRarestPieceIndex));
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
+        Assert.assertEquals(1, unitUnderTest.getSeedCount());
+        for(int pieceIndex = 0; pieceIndex < pieceCount; ++pieceIndex) {
+            Assert.assertEquals(1, unitUnderTest.getPieceAvailability(pieceIndex));
+        }
+        assertSortedOnAvailability();
 
-        final boolean rarestPieceRequested = unitUnderTest.pieceRequested(
-                requestedRarestPieceIndex, EasyMock.createMock(DataPiece.class));
+        unitUnderTest.peerLost(peerPieces, Collections.emptySet());
 
-        Assert.assertTrue(rarestPieceRequested);
-        Assert.assertTrue(unitUnderTest.downloadingPieces.containsKey(requestedRarestPieceIndex));
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
+        Assert.assertEquals(0, unitUnderTest.getSeedCount());
+        Assert.assertEquals(0, unitUnderTest.getPieceAvailability(0));
     }
 
     @Test
-    public void testPieceFailure() {
-        final int failedDownloadPieceIndex = 3;
-
-        unitUnderTest.pieceAvailabilities[failedDownloadPieceIndex] = 5;
-        unitUnderTest.downloadingPieces.put(failedDownloadPieceIndex, EasyMock.createMock(DataPiece.class));
-
-        Assert.assertEquals(0, unitUnderTest.getRarestPiecesCount());
+    public void testSelectNextPieceCreatesNoGarbage() {
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof ThreadMXBean);
+        final ThreadMXBean allocationBean = (ThreadMXBean)threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported()
+                && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        final int largePieceCount = 1_000_000;
+        final BitSet largeReceivedPieces = new BitSet(largePieceCount);
+        largeReceivedPieces.set(0, largePieceCount / 2);
+        unitUnderTest = new RarestFirstPieceSelectionStrategy(maxRarestPieces, largePieceCount, largeReceivedPieces);
+
+        //Each peer has a different half of the pieces
+        final Random random = new Random(42);
+        final List<BitSet> peers = new ArrayList<>();
+        for(int i = 0; i < 20; ++i) {
+            final BitSet peerPieces = new BitSet(largePieceCount);
+            final int firstPiece = random.nextInt(largePieceCount / 2);
+            peerPieces.set(firstPiece, firstPiece + largePieceCount / 2);
+            unitUnderTest.peerGained(peerPieces);
+            peers.add(peerPieces);
+        }
+
+        //Warm up, so that the scratch buffers have reached their final sizes
+        peers.forEach(unitUnderTest::selectNextPiece);
+
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        int selectedPieces = 0;
+        for(int i = 0; i < 1000; ++i) {
+            if(unitUnderTest.selectNextPiece(peers.get(i % peers.size())) != -1) {
+                ++selectedPieces;
+            }
+        }
+        final long allocatedBytes = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        Assert.assertEquals(1000, selectedPieces);
+
+        //Allow for the measurement itself, but not for anything allocated per selection
+        Assert.assertTrue("Allocated " + allocatedBytes + " bytes", allocatedBytes < 1000);
+    }
 
-        final boolean pieceWasRequestedResult = unitUnderTest.pieceFailure(3);
+    //Set the availabilities of the first pieces, in the order of the piece indexes
+    private void setAvailabilities(final int... availabilities) {
+        for(int pieceIndex = 0; pieceIndex < availabilities.length; ++pieceIndex) {
+            for(int i = 0; i < availabilities[pieceIndex]; ++i) {
+                unitUnderTest.occurrenceIncreased(pieceIndex);
+            }
+        }
+    }
 
-        Assert.assertTrue(pieceWasRequestedResult);
-        Assert.assertFalse(unitUnderTest.downloadingPieces.containsKey(failedDownloadPieceIndex));
-        Assert.assertFalse(unitUnderTest.receivedPieces.get(failedDownloadPieceIndex));
+    private BitSet peerPieces(final int... pieceIndexes) {
+        final BitSet peerPieces = new BitSet();
+        for(final int pieceIndex : pieceIndexes) {
+            peerPieces.set(pieceIndex);
+        }
+        return peerPieces;
+    }
 
-        Assert.assertEquals(1, unitUnderTest.getRarestPiecesCount());
+    private void assertSortedOnAvailability() {
+        final BitSet foundPieces = new BitSet();
+        for(int position = 0; position < pieceCount; ++position) {
+            final int pieceIndex = unitUnderTest.sortedPieces[position];
+            foundPieces.set(pieceIndex);
+
+            if(position > 0) {
+                Assert.assertTrue(unitUnderTest.getPieceAvailability(unitUnderTest.sortedPieces[position - 1])
+                        <= unitUnderTest.getPieceAvailability(pieceIndex));
+            }
+        }
+        Assert.assertEquals(pieceCount, foundPieces.cardinality());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.strategy;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.matic.torrent.io.DataPiece;
+
+import java.util.BitSet;
+import java.util.Optional;
+
+public final class StreamingPieceSelectionStrategyTest {
+
+    private final int maxRarestPieces = 5;
+    private final int pieceCount = 20;
+    private final int deadlineWindow = 4;
+
+    private StreamingPieceSelectionStrategy unitUnderTest;
+    private BitSet receivedPieces;
+    private BitSet peerPieces;
+
+    @Before
+    public void setup() {
+        receivedPieces = new BitSet(pieceCount);
+        peerPieces = new BitSet(pieceCount);
+        peerPieces.set(0, pieceCount);
+
+        unitUnderTest = new StreamingPieceSelectionStrategy(maxRarestPieces, pieceCount,
+                receivedPieces, deadlineWindow);
+        unitUnderTest.peerGained(peerPieces);
+    }
+
+    @Test
+    public void testPiecesAfterPlaybackPositionAreSelectedInOrder() {
+        unitUnderTest.setPlaybackPiece(10);
+
+        Assert.assertEquals(Optional.of(10), unitUnderTest.selectNext(peerPieces));
+
+        unitUnderTest.pieceRequested(10, new DataPiece(1, 10));
+        receivedPieces.set(11);
+
+        Assert.assertEquals(Optional.of(12), unitUnderTest.selectNext(peerPieces));
+    }
+
+    @Test
+    public void testOnlyPiecesThatPeerHasAreSelected() {
+        unitUnderTest.setPlaybackPiece(10);
+
+        final BitSet partialPeerPieces = new BitSet(pieceCount);
+        partialPeerPieces.set(12);
+        partialPeerPieces.set(18);
+
+        Assert.assertEquals(Optional.of(12), unitUnderTest.selectNext(partialPeerPieces));
+    }
+
+    @Test
+    public void testRarestPieceSelectedOutsideOfDeadlineWindow() {
+        unitUnderTest.setPlaybackPiece(16);
+        receivedPieces.set(16, pieceCount);
+
+        final Optional<Integer> selectedPiece = unitUnderTest.selectNext(peerPieces);
+
+        Assert.assertTrue(selectedPiece.isPresent());
+        Assert.assertTrue(selectedPiece.get() < 16);
+    }
+
+    @Test
+    public void testDeadlinePieceSelectedAbovePartialPieceLimit() {
+        unitUnderTest.setPlaybackPiece(16);
+        unitUnderTest.setPartialPieceLimit(1);
+        unitUnderTest.pieceRequested(3, new DataPiece(1, 3));
+
+        Assert.assertEquals(Optional.of(16), unitUnderTest.selectNext(peerPieces));
+
+        receivedPieces.set(16, pieceCount);
+
+        Assert.assertFalse(unitUnderTest.selectNext(peerPieces).isPresent());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.streaming;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+public final class StreamingServerTest {
+
+    private static final int FILE_LENGTH = 200000;
+
+    private final byte[] fileContents = new byte[FILE_LENGTH];
+
+    private StreamingServer unitUnderTest;
+    private Path localFile;
+
+    @Before
+    public void setup() throws IOException {
+        new Random(42).nextBytes(fileContents);
+        localFile = Files.createTempFile("streaming", ".mp4");
+        Files.write(localFile, fileContents);
+
+        unitUnderTest = new StreamingServer(0);
+        unitUnderTest.start();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        unitUnderTest.stop();
+        Files.deleteIfExists(localFile);
+    }
+
+    @Test
+    public void testStreamWholeFile() throws IOException {
+        final URI streamLocation = unitUnderTest.publish("file", new LocalFileStreamingDataSource(localFile, 0));
+        Assert.assertEquals("127.0.0.1", streamLocation.getHost());
+
+        final HttpURLConnection connection = (HttpURLConnection)streamLocation.toURL().openConnection();
+
+        Assert.assertEquals(200, connection.getResponseCode());
+        Assert.assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+        Assert.assertEquals("video/mp4", connection.getContentType());
+        Assert.assertArrayEquals(fileContents, readResponse(connection));
+
+        Assert.assertEquals(1, unitUnderTest.getStatistics().getRequestCount());
+        Assert.assertEquals(0, unitUnderTest.getStatistics().getStallCount());
+    }
+
+    @Test
+    public void testStreamByteRange() throws IOException {
+        final URI streamLocation = unitUnderTest.publish("file", new LocalFileStreamingDataSource(localFile, 0));
+
+        final HttpURLConnection connection = (HttpURLConnection)streamLocation.toURL().openConnection();
+        connection.setRequestProperty("Range", "bytes=100000-100099");
+
+        Assert.assertEquals(206, connection.getResponseCode());
+        Assert.assertEquals("bytes 100000-100099/" + FILE_LENGTH, connection.getHeaderField("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(fileContents, 100000, 100100), readResponse(connection));
+    }
+
+    @Test
+    public void testUnsatisfiableByteRange() throws IOException {
+        final URI streamLocation = unitUnderTest.publish("file", new LocalFileStreamingDataSource(localFile, 0));
+
+        final HttpURLConnection connection = (HttpURLConnection)streamLocation.toURL().openConnection();
+        connection.setRequestProperty("Range", "bytes=" + FILE_LENGTH + "-");
+
+        Assert.assertEquals(416, connection.getResponseCode());
+        Assert.assertEquals("bytes */" + FILE_LENGTH, connection.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void testUnknownStream() throws IOException {
+        final URI streamLocation = unitUnderTest.publish("file", new LocalFileStreamingDataSource(localFile, 0));
+        final URI unknownLocation = streamLocation.resolve("other");
+
+        final HttpURLConnection connection = (HttpURLConnection)unknownLocation.toURL().openConnection();
+        Assert.assertEquals(404, connection.getResponseCode());
+    }
+
+    @Test
+    public void testSlowReadsAreCountedAsStalls() throws IOException {
+        final long readDelay = StreamingServer.STALL_THRESHOLD + 100;
+        final URI streamLocation = unitUnderTest.publish("file",
+                new LocalFileStreamingDataSource(localFile, readDelay));
+
+        //The response is transferred in two reads of which only the second one happens during playback
+        final HttpURLConnection connection = (HttpURLConnection)streamLocation.toURL().openConnection();
+        connection.setRequestProperty("Range", "bytes=0-99999");
+
+        Assert.assertEquals(206, connection.getResponseCode());
+        Assert.assertArrayEquals(Arrays.copyOf(fileContents, 100000), readResponse(connection));
+
+        final StreamingStatistics statistics = unitUnderTest.getStatistics();
+        Assert.assertEquals(1, statistics.getRequestCount());
+        Assert.assertEquals(1, statistics.getStallCount());
+        Assert.assertTrue(statistics.getLastTimeToFirstByte() >= readDelay);
+    }
+
+    @Test
+    public void testParseRange() {
+        Assert.assertArrayEquals(new long[] {0, 99}, StreamingServer.parseRange(null, 100));
+        Assert.assertArrayEquals(new long[] {10, 99}, StreamingServer.parseRange("bytes=10-", 100));
+        Assert.assertArrayEquals(new long[] {10, 20}, StreamingServer.parseRange("bytes=10-20", 100));
+        Assert.assertArrayEquals(new long[] {10, 99}, StreamingServer.parseRange("bytes=10-200", 100));
+        Assert.assertArrayEquals(new long[] {80, 99}, StreamingServer.parseRange("bytes=-20", 100));
+        Assert.assertArrayEquals(new long[] {0, 99}, StreamingServer.parseRange("bytes=-200", 100));
+        Assert.assertArrayEquals(new long[] {0, 0}, StreamingServer.parseRange("bytes=0-0, 5-10", 100));
+
+        Assert.assertNull(StreamingServer.parseRange("bytes=100-", 100));
+        Assert.assertNull(StreamingServer.parseRange("bytes=20-10", 100));
+        Assert.assertNull(StreamingServer.parseRange("bytes=abc", 100));
+        Assert.assertNull(StreamingServer.parseRange("items=0-10", 100));
+    }
+
+    private byte[] readResponse(final HttpURLConnection connection) throws IOException {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try(final InputStream responseStream = connection.getInputStream()) {
+            final byte[] buffer = new byte[8192];
+            int bytesRead;
+            while((bytesRead = responseStream.read(buffer)) != -1) {
+                response.write(buffer, 0, bytesRead);
+            }
+        }
+        return response.toByteArray();
+    }
+
+    //Streams a local file, optionally simulating data that needs to be downloaded before each read
+    private static final class LocalFileStreamingDataSource implements StreamingDataSource {
+
+        private final Path filePath;
+        private final long readDelay;
+
+        LocalFileStreamingDataSource(final Path filePath, final long readDelay) {
+            this.filePath = filePath;
+            this.readDelay = readDelay;
+        }
+
+        @Override
+        public String getName() {
+            return filePath.getFileName().toString();
+        }
+
+        @Override
+        public long getLength() {
+            return filePath.toFile().length();
+        }
+
+        @Override
+        public int read(final long position, final byte[] buffer, final int bufferOffset,
+                        final int length) throws IOException {
+            if(readDelay > 0) {
+                try {
+                    Thread.sleep(readDelay);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ie);
+                }
+            }
+            try(final RandomAccessFile file = new RandomAccessFile(filePath.toFile(), "r")) {
+                file.seek(position);
+                return file.read(buffer, bufferOffset, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+* This file is part of Trabos, an open-source BitTorrent client written in JavaFX.
+* Copyright (C) 2015-2017 Vedran Matic
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation; either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, write to the Free Software
+* Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+*
+*/
+package org.matic.torrent.transfer.streaming;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matic.torrent.hash.InfoHash;
+import org.matic.torrent.io.DataPiece;
+import org.matic.torrent.io.FileOperationResult;
+import org.matic.torrent.io.ReadDataPieceRequest;
+import org.matic.torrent.queue.QueuedFileMetaData;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public final class TorrentStreamingDataSourceTest {
+
+    private static final int PIECE_LENGTH = 10;
+
+    private final InfoHash infoHash = new InfoHash("1".getBytes(StandardCharsets.UTF_8));
+    private final Path filePath = Paths.get("movie.mkv");
+
+    //The file starts in the middle of the first piece and ends in the middle of the third piece
+    private final QueuedFileMetaData fileMetaData = new QueuedFileMetaData(filePath, 20, 5);
+
+    private final List<Integer> playbackPieces = new ArrayList<>();
+    private final List<ReadDataPieceRequest> readRequests = new ArrayList<>();
+
+    @Test
+    public void testReadAvailablePiece() throws IOException {
+        final BitSet availablePieces = new BitSet();
+        availablePieces.set(1);
+
+        final TorrentStreamingDataSource unitUnderTest = new TorrentStreamingDataSource(fileMetaData, infoHash,
+                PIECE_LENGTH, availablePieces, playbackPieces::add, this::servePieceRead);
+
+        final byte[] buffer = new byte[32];
+        final int bytesRead = unitUnderTest.read(7, buffer, 0, buffer.length);
+
+        //Only the rest of the piece is returned, even if more data was requested
+        Assert.assertEquals(8, bytesRead);
+        for(int i = 0; i < bytesRead; ++i) {
+            Assert.assertEquals(12 + i, buffer[i]);
+        }
+        Assert.assertEquals(1, playbackPieces.get(0).intValue());
+        Assert.assertEquals(1, readRequests.size());
+        Assert.assertEquals(1, readRequests.get(0).getCachedDataPieceIdentifier().getPieceIndex());
+    }
+
+    @Test
+    public void testReadBlocksUntilPieceStored() throws Exception {
+        final TorrentStreamingDataSource unitUnderTest = new TorrentStreamingDataSource(fileMetaData, infoHash,
+                PIECE_LENGTH, new BitSet(), playbackPieces::add, this::servePieceRead);
+
+        final byte[] buffer = new byte[4];
+        final CompletableFuture<Integer> readResult = CompletableFuture.supplyAsync(() -> {
+            try {
+                return unitUnderTest.read(17, buffer, 0, buffer.length);
+            } catch (final IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+
+        Thread.sleep(200);
+        Assert.assertFalse(readResult.isDone());
+
+        unitUnderTest.pieceStored(2);
+
+        //The file ends in the middle of the last piece
+        Assert.assertEquals(3, readResult.get(5, TimeUnit.SECONDS).intValue());
+        Assert.assertArrayEquals(new byte[] {22, 23, 24, 0}, buffer);
+        Assert.assertEquals(2, playbackPieces.get(0).intValue());
+    }
+
+    @Test
+    public void testReadPastEndOfFile() throws IOException {
+        final TorrentStreamingDataSource unitUnderTest = new TorrentStreamingDataSource(fileMetaData, infoHash,
+                PIECE_LENGTH, new BitSet(), playbackPieces::add, this::servePieceRead);
+
+        Assert.assertEquals(-1, unitUnderTest.read(20, new byte[4], 0, 4));
+        Assert.assertEquals("movie.mkv", unitUnderTest.getName());
+        Assert.assertEquals(20, unitUnderTest.getLength());
+        Assert.assertTrue(readRequests.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadFailure() throws IOException {
+        final BitSet availablePieces = new BitSet();
+        availablePieces.set(0);
+
+        final TorrentStreamingDataSource unitUnderTest = new TorrentStreamingDataSource(fileMetaData, infoHash,
+                PIECE_LENGTH, availablePieces, playbackPieces::add, readRequest ->
+                readRequest.getResultHandler().get().accept(new FileOperationResult(
+                        FileOperationResult.OperationType.READ, null, null, readRequest.getBlockIdentifier(),
+                        new IOException("Disk failure"))));
+
+        unitUnderTest.read(0, new byte[4], 0, 4);
+    }
+
+    //Each byte of the torrent contains its own position within the torrent
+    private void servePieceRead(final ReadDataPieceRequest readRequest) {
+        readRequests.add(readRequest);
+
+        final int pieceIndex = readRequest.getCachedDataPieceIdentifier().getPieceIndex();
+        final byte[] pieceBytes = new byte[PIECE_LENGTH];
+        for(int i = 0; i < pieceBytes.length; ++i) {
+            pieceBytes[i] = (byte)(pieceIndex * PIECE_LENGTH + i);
+        }
+
+        readRequest.getResultHandler().get().accept(new FileOperationResult(FileOperationResult.OperationType.READ,
+                new DataPiece(pieceBytes, pieceIndex), null, readRequest.getBlockIdentifier(), null));
+    }
+}